@@ -0,0 +1,490 @@
+package info.saltyhash.wormhole;
+
+import info.saltyhash.wormhole.SimulatedServer.SimPlayer;
+import info.saltyhash.wormhole.SimulatedServer.SimWorld;
+import info.saltyhash.wormhole.metrics.Histogram;
+import info.saltyhash.wormhole.metrics.Metrics;
+import org.bukkit.Bukkit;
+import org.bukkit.Location;
+import org.bukkit.block.Block;
+import org.bukkit.block.BlockFace;
+import org.bukkit.command.CommandExecutor;
+import org.bukkit.command.PluginCommand;
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.bukkit.event.Listener;
+import org.bukkit.event.block.Action;
+import org.bukkit.event.player.AsyncPlayerPreLoginEvent;
+import org.bukkit.event.player.PlayerInteractEvent;
+import org.bukkit.event.player.PlayerLoginEvent;
+import org.bukkit.event.world.ChunkLoadEvent;
+import org.bukkit.plugin.PluginDescriptionFile;
+import org.bukkit.plugin.java.JavaPluginLoader;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Headless end-to-end load harness: runs Wormhole on a {@link SimulatedServer} with simulated
+ * players, signs, and economy, and drives its event and command handlers with a mix of
+ * operations, as players would.  Reports the throughput, the latency of each operation, the
+ * time of the server thread per tick, and where Wormhole spent it.
+ *
+ * The harness thread is the server thread: each tick runs the scheduled tasks, then that
+ * tick's operations.  Ticks are paced to 50 ms unless unpaced.  With --ramp, the operations
+ * per tick double each phase until the 99th percentile tick takes longer than 50 ms.
+ *
+ * Usage: java -cp &lt;classes, bukkit, vault, sqlite-jdbc&gt; info.saltyhash.wormhole.LoadHarness
+ *        [--players 100] [--jumps 10000] [--signs 1000] [--ticks 1200] [--ops-per-tick 5]
+ *        [--ramp] [--unpaced] [--cold-signs] [--seed 1] [--mix click=30,jump=20,...]
+ *        [--config config.yml] [--plugin plugin.yml] [--set key=value]...
+ */
+public final class LoadHarness {
+    private static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+    private static final int  MAX_PHASES = 16;
+    private static final int  TOP_HISTOGRAMS = 10;
+    private static final String DEFAULT_MIX =
+            "click=30,jump=20,list=15,search=10,add=5,delete=5,set=3,unset=2,back=5,cost=5";
+    
+    /** Operation of a simulated player. */
+    private enum Op { CLICK, JUMP, LIST, SEARCH, ADD, DELETE, SET, UNSET, BACK, COST }
+    
+    /** Simulated player, with the jumps they added. */
+    private static final class Simulated {
+        final SimPlayer sim;
+        final List<String> jumps = new ArrayList<>();   // Seeded
+        final List<String> added = new ArrayList<>();   // Added by ADD, not yet deleted
+        
+        Simulated(SimPlayer sim) {
+            this.sim = sim;
+        }
+    }
+    
+    /** Sign that SET and UNSET operations set and unset, apart from those clicked. */
+    private static final class SpareSign {
+        final Block block;
+        boolean set = false;
+        
+        SpareSign(Block block) {
+            this.block = block;
+        }
+    }
+    
+    /** Wormhole, enabled and disabled by the harness rather than a plugin manager. */
+    private static final class SimulatedWormhole extends Wormhole {
+        SimulatedWormhole(JavaPluginLoader loader, PluginDescriptionFile description,
+                          File dataFolder, File file) {
+            super(loader, description, dataFolder, file);
+        }
+        
+        void enable(boolean enabled) {
+            setEnabled(enabled);
+        }
+    }
+    
+    private final Map<String, String> options;
+    private final List<String> overrides;
+    private final Random random;
+    private final SimulatedServer server = new SimulatedServer(1e12);
+    private SimWorld world;
+    private SimulatedWormhole plugin;
+    private WormholeEventHandler eventHandler;
+    private CommandExecutor commandExecutor;
+    private PluginCommand command;
+    
+    private final List<Simulated> players = new ArrayList<>();
+    private final List<Block> signs = new ArrayList<>();
+    private final List<SpareSign> spareSigns = new ArrayList<>();
+    private Op[] mix;               // Operations, each repeated by its weight
+    private int addedCount = 0;
+    
+    private LoadHarness(Map<String, String> options, List<String> overrides) {
+        this.options   = options;
+        this.overrides = overrides;
+        this.random    = new Random(getLong("seed", 1));
+    }
+    
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        List<String> overrides = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if (!args[i].startsWith("--"))
+                throw new IllegalArgumentException("Bad option: "+args[i]);
+            String name = args[i].substring(2);
+            switch (name) {
+                case "ramp":
+                case "unpaced":
+                case "cold-signs":
+                    options.put(name, "true");
+                    break;
+                case "set":
+                    overrides.add(args[++i]);
+                    break;
+                default:
+                    if (i+1 >= args.length)
+                        throw new IllegalArgumentException("Missing value: "+name);
+                    options.put(name, args[++i]);
+            }
+        }
+        
+        LoadHarness harness = new LoadHarness(options, overrides);
+        Path dir = Files.createTempDirectory("wormhole-harness");
+        try {
+            harness.run(dir);
+        } finally {
+            harness.server.shutdown();
+            deleteRecursively(dir);
+        }
+        System.exit(0);     // Stop the threads Wormhole may have left behind
+    }
+    
+    private void run(Path dir) throws Exception {
+        mix = parseMix(options.getOrDefault("mix", DEFAULT_MIX));
+        start(dir);
+        try {
+            seed();
+            
+            double opsPerTick = getDouble("ops-per-tick", 5);
+            boolean ramp = options.containsKey("ramp");
+            for (int phase = 1; phase <= (ramp ? MAX_PHASES : 1); phase++) {
+                double p99Millis = runPhase(phase, opsPerTick);
+                if (p99Millis > 50) {
+                    if (ramp) System.out.printf("%nServer thread saturated at %.1f ops per tick%n",
+                            opsPerTick);
+                    break;
+                }
+                opsPerTick *= 2;
+            }
+        } finally {
+            plugin.enable(false);
+        }
+    }
+    
+    /** Sets up the server and enables Wormhole, waiting for it to warm up. */
+    private void start(Path dir) throws Exception {
+        // Copy the config to the data folder, with the overrides
+        File dataFolder = dir.resolve("Wormhole").toFile();
+        if (!dataFolder.mkdirs()) throw new IOException("Failed to create "+dataFolder);
+        File configFile = new File(dataFolder, "config.yml");
+        Files.copy(Paths.get(options.getOrDefault("config", "config.yml")), configFile.toPath());
+        if (!overrides.isEmpty()) {
+            YamlConfiguration config = YamlConfiguration.loadConfiguration(configFile);
+            for (String override : overrides) {
+                int equals = override.indexOf('=');
+                if (equals < 0) throw new IllegalArgumentException("Bad override: "+override);
+                config.set(override.substring(0, equals), parseValue(override.substring(equals+1)));
+            }
+            config.save(configFile);
+        }
+        
+        // Create the server and the plugin
+        Bukkit.setServer(server.server);
+        world = server.createWorld("world");
+        PluginDescriptionFile description;
+        try (InputStream in = new FileInputStream(options.getOrDefault("plugin", "plugin.yml"))) {
+            description = new PluginDescriptionFile(in);
+        }
+        plugin = new SimulatedWormhole(new JavaPluginLoader(server.server), description,
+                dataFolder, new File(dir.toFile(), "Wormhole.jar"));
+        server.setPlugin(plugin);
+        command = server.getCommand();
+        
+        // Enable, and tick until warmed up
+        long startNanos = System.nanoTime();
+        plugin.enable(true);
+        for (Listener listener : server.getListeners()) {
+            if (listener instanceof WormholeEventHandler)
+                eventHandler = (WormholeEventHandler) listener;
+        }
+        commandExecutor = command.getExecutor();
+        if (eventHandler == null || commandExecutor == null)
+            throw new IllegalStateException("Wormhole did not register its handlers");
+        while (!plugin.isReady()) {
+            if (server.isPluginDisabled())
+                throw new IllegalStateException("Wormhole disabled itself");
+            if (System.nanoTime()-startNanos > TimeUnit.MINUTES.toNanos(5))
+                throw new IllegalStateException("Wormhole did not warm up in 5 minutes");
+            tickAndSleep();
+        }
+        System.out.printf("Enabled and warmed up in %.1f s%n", (System.nanoTime()-startNanos)/1e9);
+    }
+    
+    /** Logs in the players and creates their jumps and signs, as they would. */
+    private void seed() throws Exception {
+        int playerCount = getInt("players", 100);
+        int jumpCount   = getInt("jumps", 10000);
+        int signCount   = getInt("signs", 1000);
+        long startNanos = System.nanoTime();
+        
+        // Log in the players: pre-login off the server thread, then login on it
+        int side = (int) Math.ceil(Math.sqrt(signCount+playerCount));
+        ExecutorService loginExecutor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<?>> preLogins = new ArrayList<>();
+            for (int i = 0; i < playerCount; i++) {
+                SimPlayer sim = server.createPlayer("player"+i, randomLocation(side));
+                players.add(new Simulated(sim));
+                preLogins.add(loginExecutor.submit(() -> eventHandler.onAsyncPlayerPreLogin(
+                        new AsyncPlayerPreLoginEvent(sim.name, InetAddress.getLoopbackAddress(),
+                                sim.uuid))));
+            }
+            for (Future<?> preLogin : preLogins) {
+                while (!preLogin.isDone()) tickAndSleep();
+                preLogin.get();
+            }
+        } finally {
+            loginExecutor.shutdown();
+        }
+        for (Simulated player : players) {
+            eventHandler.onPlayerLogin(new PlayerLoginEvent(
+                    player.sim.player, "localhost", InetAddress.getLoopbackAddress()));
+        }
+        
+        // Add the jumps, spread over the players
+        for (int j = 0; j < jumpCount; j++) {
+            Simulated player = players.get(j % playerCount);
+            String name = "jump"+(j/playerCount);
+            player.sim.location = randomLocation(side);
+            dispatch(player, "add", name);
+            player.jumps.add(name);
+            if (j % 100 == 99) server.tick();
+        }
+        
+        // Place the signs in a grid, set by their players to their jumps
+        for (int s = 0; s < signCount+Math.max(16, signCount/10); s++) {
+            Simulated player = players.get(s % playerCount);
+            Block block = world.placeSign((s % side)*3, 70, (s/side)*3);
+            if (s < signCount) {
+                player.sim.target = block;
+                dispatch(player, "set", randomElement(player.jumps));
+                player.sim.target = null;
+                signs.add(block);
+            } else {
+                spareSigns.add(new SpareSign(block));
+            }
+            if (s % 100 == 99) server.tick();
+        }
+        
+        // Load the chunks with the signs, unless the signs are to be looked up cold
+        if (!options.containsKey("cold-signs")) {
+            for (Block sign : signs) {
+                if (world.loadChunkOf(sign))
+                    eventHandler.onChunkLoad(new ChunkLoadEvent(sign.getChunk(), false));
+            }
+        }
+        
+        int errors = 0;
+        for (Simulated player : players) errors += player.sim.errors.getAndSet(0);
+        System.out.printf("Seeded %d players, %d jumps, and %d signs in %.1f s (%d errors)%n",
+                playerCount, jumpCount, signCount, (System.nanoTime()-startNanos)/1e9, errors);
+    }
+    
+    /**
+     * Runs the mix of operations for a phase of ticks, and reports it.
+     * @return 99th percentile time of the server thread per tick, in milliseconds.
+     */
+    private double runPhase(int phase, double opsPerTick) throws InterruptedException {
+        int ticks = getInt("ticks", 1200);
+        boolean paced = !options.containsKey("unpaced");
+        Metrics.reset();
+        Histogram tickLatency = Metrics.histogram("harness.tick");
+        Map<Op, Histogram> opLatencies = new EnumMap<>(Op.class);
+        Map<Op, Integer> opErrors = new EnumMap<>(Op.class);
+        for (Op op : Op.values()) {
+            opLatencies.put(op, Metrics.histogram("harness.op."+op.name().toLowerCase()));
+            opErrors.put(op, 0);
+        }
+        
+        long startNanos = System.nanoTime();
+        double budget = 0;
+        for (int tick = 0; tick < ticks; tick++) {
+            long tickStart = System.nanoTime();
+            server.tick();
+            for (budget += opsPerTick; budget >= 1; budget--) {
+                Simulated player = randomElement(players);
+                int errorsBefore = player.sim.errors.get();
+                long opStart = System.nanoTime();
+                Op op = runOp(player, mix[random.nextInt(mix.length)]);
+                opLatencies.get(op).record(System.nanoTime()-opStart);
+                if (player.sim.errors.get() != errorsBefore) opErrors.merge(op, 1, Integer::sum);
+            }
+            long tickNanos = System.nanoTime()-tickStart;
+            tickLatency.record(tickNanos);
+            if (paced && tickNanos < TICK_NANOS)
+                TimeUnit.NANOSECONDS.sleep(TICK_NANOS-tickNanos);
+        }
+        long nanos = System.nanoTime()-startNanos;
+        
+        // Report throughput and server thread time per tick
+        Histogram.Snapshot tickSnapshot = tickLatency.snapshot();
+        long ops = 0;
+        for (Histogram histogram : opLatencies.values()) ops += histogram.getCount();
+        System.out.printf("%nPhase %d: %.1f ops per tick, %d ticks%s%n",
+                phase, opsPerTick, ticks, paced ? "" : " (unpaced)");
+        System.out.printf("  Throughput: %.0f ops/s%n", ops/(nanos/1e9));
+        System.out.printf("  Server thread per tick: mean %.2f ms, p99 %.2f ms, max %.2f ms; "+
+                        "%.1f%% of ticks over 50 ms%n",
+                tickSnapshot.getMean()/1e6, tickSnapshot.getPercentile(99)/1e6,
+                tickSnapshot.getMax()/1e6,
+                100.0*(ticks-tickSnapshot.getCountAtMost(TICK_NANOS))/ticks);
+        
+        // Report each operation
+        System.out.printf("  %-8s %8s %7s %10s %10s %10s%n",
+                "op", "count", "errors", "p50", "p99", "max");
+        for (Op op : Op.values()) {
+            Histogram.Snapshot snapshot = opLatencies.get(op).snapshot();
+            if (snapshot.getCount() == 0) continue;
+            System.out.printf("  %-8s %8d %7d %10s %10s %10s%n", op.name().toLowerCase(),
+                    snapshot.getCount(), opErrors.get(op),
+                    Metrics.formatNanos(snapshot.getPercentile(50)),
+                    Metrics.formatNanos(snapshot.getPercentile(99)),
+                    Metrics.formatNanos(snapshot.getMax()));
+        }
+        
+        // Report where Wormhole spent the time
+        List<Histogram.Snapshot> snapshots = new ArrayList<>();
+        List<String> names = new ArrayList<>();
+        for (Histogram histogram : Metrics.getHistograms().values()) {
+            if (histogram.getName().startsWith("harness.") || histogram.getCount() == 0) continue;
+            snapshots.add(histogram.snapshot());
+            names.add(histogram.getName());
+        }
+        Integer[] order = new Integer[names.size()];
+        for (int i = 0; i < order.length; i++) order[i] = i;
+        Arrays.sort(order, (a, b) ->
+                Long.compare(snapshots.get(b).getSum(), snapshots.get(a).getSum()));
+        System.out.println("  Wormhole time by operation:");
+        for (int i = 0; i < order.length && i < TOP_HISTOGRAMS; i++) {
+            Histogram.Snapshot snapshot = snapshots.get(order[i]);
+            System.out.printf("    %-32s total %10s  count %8d  p99 %10s%n", names.get(order[i]),
+                    Metrics.formatNanos(snapshot.getSum()), snapshot.getCount(),
+                    Metrics.formatNanos(snapshot.getPercentile(99)));
+        }
+        return tickSnapshot.getPercentile(99)/1e6;
+    }
+    
+    /**
+     * Runs the operation as the player.
+     * @return Operation run, which differs if the one given could not be (e.g. DELETE with
+     *         no jump to delete runs ADD).
+     */
+    private Op runOp(Simulated player, Op op) {
+        switch (op) {
+            case CLICK:
+                Block sign = randomElement(signs);
+                eventHandler.onPlayerInteract(new PlayerInteractEvent(
+                        player.sim.player, Action.RIGHT_CLICK_BLOCK, null, sign, BlockFace.NORTH));
+                return op;
+            case JUMP:
+                dispatch(player, "jump", randomElement(player.jumps));
+                return op;
+            case LIST:
+                dispatch(player, "list");
+                return op;
+            case SEARCH:
+                String name = randomElement(player.jumps);
+                dispatch(player, "search", name.substring(0, Math.min(5, name.length())));
+                return op;
+            case DELETE:
+                if (!player.added.isEmpty()) {
+                    dispatch(player, "delete", player.added.remove(player.added.size()-1));
+                    return op;
+                }
+                // Fall through; nothing to delete
+            case ADD:
+                String added = "added"+(addedCount++);
+                dispatch(player, "add", added);
+                player.added.add(added);
+                return Op.ADD;
+            case SET:
+            case UNSET:
+                SpareSign spare = randomElement(spareSigns);
+                player.sim.target = spare.block;
+                if (spare.set) dispatch(player, "unset");
+                else           dispatch(player, "set", randomElement(player.jumps));
+                player.sim.target = null;
+                spare.set = !spare.set;
+                return spare.set ? Op.SET : Op.UNSET;
+            case BACK:
+                dispatch(player, "back");
+                return op;
+            case COST:
+                dispatch(player, "cost");
+                return op;
+            default:
+                throw new AssertionError(op);
+        }
+    }
+    
+    /** Dispatches "/worm &lt;args&gt;" as the player. */
+    private void dispatch(Simulated player, String... args) {
+        commandExecutor.onCommand(player.sim.player, command, "worm", args);
+    }
+    
+    /** Runs a tick, then sleeps for a millisecond, e.g. while waiting on another thread. */
+    private void tickAndSleep() throws InterruptedException {
+        server.tick();
+        Thread.sleep(1);
+    }
+    
+    private Location randomLocation(int side) {
+        return new Location(world.world, random.nextInt(side*3), 64, random.nextInt(side*3),
+                random.nextFloat()*360, 0);
+    }
+    
+    private <T> T randomElement(List<T> list) {
+        return list.get(random.nextInt(list.size()));
+    }
+    
+    /** Parses the mix, e.g. "click=30,jump=20", into operations repeated by their weights. */
+    private static Op[] parseMix(String mix) {
+        List<Op> ops = new ArrayList<>();
+        for (String entry : mix.split(",")) {
+            String[] parts = entry.trim().split("=");
+            if (parts.length != 2) throw new IllegalArgumentException("Bad mix entry: "+entry);
+            Op op = Op.valueOf(parts[0].trim().toUpperCase());
+            for (int i = Integer.parseInt(parts[1].trim()); i > 0; i--) ops.add(op);
+        }
+        if (ops.isEmpty()) throw new IllegalArgumentException("Empty mix: "+mix);
+        return ops.toArray(new Op[0]);
+    }
+    
+    /** Parses the config value as a boolean, an integer, a double, or else a string. */
+    private static Object parseValue(String value) {
+        if (value.equals("true") || value.equals("false")) return Boolean.valueOf(value);
+        try {
+            return Integer.valueOf(value);
+        } catch (NumberFormatException ignored) {}
+        try {
+            return Double.valueOf(value);
+        } catch (NumberFormatException ignored) {}
+        return value;
+    }
+    
+    private int getInt(String option, int defaultValue) {
+        return options.containsKey(option) ? Integer.parseInt(options.get(option)) : defaultValue;
+    }
+    
+    private long getLong(String option, long defaultValue) {
+        return options.containsKey(option) ? Long.parseLong(options.get(option)) : defaultValue;
+    }
+    
+    private double getDouble(String option, double defaultValue) {
+        return options.containsKey(option) ? Double.parseDouble(options.get(option)) : defaultValue;
+    }
+    
+    private static void deleteRecursively(Path dir) throws IOException {
+        try (Stream<Path> paths = Files.walk(dir)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,564 @@
+package info.saltyhash.wormhole;
+
+import net.milkbowl.vault.economy.Economy;
+import net.milkbowl.vault.economy.EconomyResponse;
+import org.bukkit.*;
+import org.bukkit.block.Block;
+import org.bukkit.block.BlockState;
+import org.bukkit.block.Sign;
+import org.bukkit.command.PluginCommand;
+import org.bukkit.entity.Player;
+import org.bukkit.event.Listener;
+import org.bukkit.plugin.*;
+import org.bukkit.plugin.messaging.Messenger;
+import org.bukkit.scheduler.BukkitScheduler;
+import org.bukkit.scheduler.BukkitTask;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * Stand-in Bukkit server for running Wormhole headless: worlds of sign blocks, simulated
+ * players, a scheduler run one tick at a time by the thread that created the server (the
+ * simulated server thread), and a Vault economy kept in memory.  The stand-ins are dynamic
+ * proxies; methods they do not implement return null, 0, or false.
+ */
+final class SimulatedServer {
+    /** Answers a method called on a stand-in, or returns {@link #UNHANDLED}. */
+    private interface Answer {
+        Object answer(Method method, Object[] args);
+    }
+    
+    private static final Object UNHANDLED = new Object();
+    
+    /** Simulated world, whose blocks are all air except for the signs placed in it. */
+    final class SimWorld {
+        final UUID   uuid;
+        final String name;
+        final World  world;
+        private final Map<Long, Block> signs  = new ConcurrentHashMap<>();
+        private final Map<Long, Chunk> chunks = new ConcurrentHashMap<>();
+        private final Set<Long> loadedChunks  = ConcurrentHashMap.newKeySet();
+        
+        SimWorld(String name) {
+            this.name  = name;
+            this.uuid  = UUID.nameUUIDFromBytes(("world-"+name).getBytes());
+            this.world = stub(World.class, (method, args) -> {
+                switch (method.getName()) {
+                    case "getName"      : return name;
+                    case "getUID"       : return uuid;
+                    case "getBlockAt":
+                        if (args.length == 1) {
+                            Location l = (Location) args[0];
+                            return getBlock(l.getBlockX(), l.getBlockY(), l.getBlockZ());
+                        }
+                        return getBlock((Integer) args[0], (Integer) args[1], (Integer) args[2]);
+                    case "getChunkAt":
+                        if (args[0] instanceof Location) {
+                            Location l = (Location) args[0];
+                            return getChunk(l.getBlockX() >> 4, l.getBlockZ() >> 4);
+                        }
+                        if (args[0] instanceof Block) {
+                            Block b = (Block) args[0];
+                            return getChunk(b.getX() >> 4, b.getZ() >> 4);
+                        }
+                        return getChunk((Integer) args[0], (Integer) args[1]);
+                    case "loadChunk":
+                        if (args[0] instanceof Chunk) return UNHANDLED;
+                        loadedChunks.add(chunkKey((Integer) args[0], (Integer) args[1]));
+                        return (method.getReturnType() == boolean.class) ? true : null;
+                    case "isChunkLoaded":
+                        if (args[0] instanceof Chunk) return ((Chunk) args[0]).isLoaded();
+                        return loadedChunks.contains(
+                                chunkKey((Integer) args[0], (Integer) args[1]));
+                    case "getLoadedChunks":
+                        List<Chunk> loaded = new ArrayList<>();
+                        for (long key : loadedChunks)
+                            loaded.add(getChunk((int) (key >> 32), (int) key));
+                        return loaded.toArray(new Chunk[0]);
+                    case "getSpawnLocation": return new Location(world(), 0, 64, 0);
+                    default: return UNHANDLED;
+                }
+            });
+        }
+        
+        private World world() {
+            return world;
+        }
+        
+        /** Places a sign at the location, with empty lines. */
+        Block placeSign(int x, int y, int z) {
+            Block block = stubBlock(this, x, y, z, true);
+            signs.put(blockKey(x, y, z), block);
+            return block;
+        }
+        
+        Block getBlock(int x, int y, int z) {
+            Block sign = signs.get(blockKey(x, y, z));
+            return (sign != null) ? sign : stubBlock(this, x, y, z, false);
+        }
+        
+        Chunk getChunk(int chunkX, int chunkZ) {
+            return chunks.computeIfAbsent(chunkKey(chunkX, chunkZ), key -> stub(Chunk.class,
+                    (method, args) -> {
+                        switch (method.getName()) {
+                            case "getX"     : return chunkX;
+                            case "getZ"     : return chunkZ;
+                            case "getWorld" : return world;
+                            case "isLoaded" : return loadedChunks.contains(key);
+                            case "load"     : loadedChunks.add(key); return true;
+                            case "unload"   : loadedChunks.remove(key); return true;
+                            default         : return UNHANDLED;
+                        }
+                    }));
+        }
+        
+        /** Marks the chunk containing the block as loaded, returning true if it was not. */
+        boolean loadChunkOf(Block block) {
+            return loadedChunks.add(chunkKey(block.getX() >> 4, block.getZ() >> 4));
+        }
+    }
+    
+    /** Simulated player, who is always online and has every permission but "wormhole.free". */
+    final class SimPlayer {
+        final UUID   uuid;
+        final String name;
+        final Player player;
+        volatile Location location;
+        /** Block the player is looking at. */
+        volatile Block target = null;
+        final AtomicInteger messages = new AtomicInteger();
+        final AtomicInteger errors   = new AtomicInteger();   // Messages in dark red
+        
+        SimPlayer(String name, Location location) {
+            this.name     = name;
+            this.uuid     = UUID.nameUUIDFromBytes(("player-"+name).getBytes());
+            this.location = location;
+            this.player   = stub(Player.class, (method, args) -> {
+                switch (method.getName()) {
+                    case "getName"           :
+                    case "getDisplayName"    :
+                    case "getPlayerListName" : return this.name;
+                    case "getUniqueId"       : return uuid;
+                    case "getLocation":
+                        if (args.length == 0) return this.location.clone();
+                        return UNHANDLED;
+                    case "getWorld"          : return this.location.getWorld();
+                    case "teleport":
+                        if (!(args[0] instanceof Location)) return false;
+                        this.location = ((Location) args[0]).clone();
+                        return true;
+                    case "hasPermission":
+                        String permission = (args[0] instanceof String) ? (String) args[0] :
+                                ((org.bukkit.permissions.Permission) args[0]).getName();
+                        return !permission.equals("wormhole.free");
+                    case "isPermissionSet"   : return true;
+                    case "isOnline"          : return true;
+                    case "getPlayer"         : return player();
+                    case "getServer"         : return server;
+                    case "getTargetBlock"    : return target;
+                    case "sendMessage":
+                        if (args[0] instanceof String[]) {
+                            for (String message : (String[]) args[0]) received(message);
+                        } else {
+                            received((String) args[0]);
+                        }
+                        return null;
+                    default: return UNHANDLED;
+                }
+            });
+        }
+        
+        private Player player() {
+            return player;
+        }
+        
+        private void received(String message) {
+            messages.incrementAndGet();
+            if (message.startsWith(ChatColor.DARK_RED.toString())) errors.incrementAndGet();
+        }
+    }
+    
+    /** Task run by the scheduler. */
+    private final class Task implements Comparable<Task> {
+        final int      id = nextTaskId.incrementAndGet();
+        final Runnable runnable;
+        final long     period;      // 0 if run once
+        long nextTick;
+        volatile boolean cancelled = false;
+        final BukkitTask handle;
+        
+        Task(Plugin owner, Runnable runnable, long delay, long period, boolean sync) {
+            this.runnable = runnable;
+            this.period   = Math.max(0, period);
+            this.nextTick = currentTick+Math.max(1, delay);
+            this.handle   = stub(BukkitTask.class, (method, args) -> {
+                switch (method.getName()) {
+                    case "getTaskId"   : return id;
+                    case "getOwner"    : return owner;
+                    case "isSync"      : return sync;
+                    case "isCancelled" : return cancelled;
+                    case "cancel"      : cancelled = true; return null;
+                    default            : return UNHANDLED;
+                }
+            });
+        }
+        
+        @Override
+        public int compareTo(Task other) {
+            return (nextTick != other.nextTick) ?
+                    Long.compare(nextTick, other.nextTick) : Integer.compare(id, other.id);
+        }
+    }
+    
+    final Server server;
+    private final Thread mainThread = Thread.currentThread();
+    private final Logger logger     = Logger.getLogger("SimulatedServer");
+    
+    private final Map<UUID, SimWorld>  worlds  = new LinkedHashMap<>();
+    private final Map<UUID, SimPlayer> players = new ConcurrentHashMap<>();
+    private final List<Listener> listeners     = new ArrayList<>();
+    private Plugin plugin = null;
+    private PluginCommand command = null;
+    private volatile boolean pluginDisabled = false;
+    
+    private final AtomicInteger nextTaskId = new AtomicInteger();
+    private final PriorityQueue<Task> tasks = new PriorityQueue<>();    // Guarded by itself
+    private final ExecutorService asyncExecutor = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "SimulatedServer-Async");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private volatile long currentTick = 0;
+    
+    private final Map<String, Double> balances = new ConcurrentHashMap<>();
+    private final double startingBalance;
+    private final Plugin vault;
+    private final Economy economy;
+    
+    /**
+     * Creates the server, with the thread calling it as the server thread.
+     * @param startingBalance Balance of each player's account when first used.
+     */
+    SimulatedServer(double startingBalance) {
+        this.startingBalance = startingBalance;
+        
+        vault = stub(Plugin.class, (method, args) -> {
+            switch (method.getName()) {
+                case "getName"   : return "Vault";
+                case "isEnabled" : return true;
+                default          : return UNHANDLED;
+            }
+        });
+        economy = stub(Economy.class, (method, args) -> {
+            switch (method.getName()) {
+                case "isEnabled"             : return true;
+                case "getName"               : return "SimulatedEconomy";
+                case "fractionalDigits"      : return 2;
+                case "currencyNamePlural"    : return "dollars";
+                case "currencyNameSingular"  : return "dollar";
+                case "format"                : return String.format("$%.2f", (Double) args[0]);
+                case "hasAccount"            :
+                case "createPlayerAccount"   : return true;
+                case "getBalance"            : return getBalance(args[0]);
+                case "has":
+                    return getBalance(args[0]) >= (Double) args[args.length-1];
+                case "withdrawPlayer":
+                case "depositPlayer": {
+                    double amount = (Double) args[args.length-1];
+                    if (method.getName().equals("withdrawPlayer")) amount = -amount;
+                    String account = getAccount(args[0]);
+                    synchronized (balances) {
+                        double balance = getBalance(args[0]);
+                        if (balance+amount < 0) {
+                            return new EconomyResponse(0, balance,
+                                    EconomyResponse.ResponseType.FAILURE, "Insufficient funds");
+                        }
+                        balances.put(account, balance+amount);
+                        return new EconomyResponse(Math.abs(amount), balance+amount,
+                                EconomyResponse.ResponseType.SUCCESS, null);
+                    }
+                }
+                default: return UNHANDLED;
+            }
+        });
+        
+        PluginManager pluginManager = stub(PluginManager.class, (method, args) -> {
+            switch (method.getName()) {
+                case "registerEvents"   : listeners.add((Listener) args[0]); return null;
+                case "getPlugin":
+                    if ("Vault".equals(args[0])) return vault;
+                    return (plugin != null && plugin.getName().equals(args[0])) ? plugin : null;
+                case "isPluginEnabled"  : return true;
+                case "disablePlugin"    : pluginDisabled = true; return null;
+                case "callEvent"        : return null;
+                default                 : return UNHANDLED;
+            }
+        });
+        BukkitScheduler scheduler = stub(BukkitScheduler.class, (method, args) -> {
+            String name = method.getName();
+            switch (name) {
+                case "runTask":
+                case "runTaskLater":
+                case "runTaskTimer":
+                case "scheduleSyncDelayedTask":
+                case "scheduleSyncRepeatingTask": {
+                    long delay  = (args.length > 2) ? (Long) args[2] : 0;
+                    long period = (args.length > 3) ? (Long) args[3] : 0;
+                    Task task = schedule((Plugin) args[0], (Runnable) args[1], delay, period);
+                    return name.startsWith("schedule") ? (Object) task.id : task.handle;
+                }
+                case "runTaskAsynchronously":
+                    asyncExecutor.execute((Runnable) args[1]);
+                    return stub(BukkitTask.class, (m, a) -> UNHANDLED);
+                case "cancelTask":
+                    synchronized (tasks) {
+                        for (Task task : tasks)
+                            if (task.id == (Integer) args[0]) task.cancelled = true;
+                    }
+                    return null;
+                case "cancelTasks":
+                case "cancelAllTasks":
+                    synchronized (tasks) {
+                        for (Task task : tasks) task.cancelled = true;
+                    }
+                    return null;
+                default: return UNHANDLED;
+            }
+        });
+        ServicesManager servicesManager = stub(ServicesManager.class, (method, args) -> {
+            switch (method.getName()) {
+                case "getRegistration":
+                    if (args[0] != Economy.class) return null;
+                    return new RegisteredServiceProvider<>(
+                            Economy.class, economy, ServicePriority.Normal, vault);
+                case "load":
+                    return (args[0] == Economy.class) ? economy : null;
+                default: return UNHANDLED;
+            }
+        });
+        Messenger messenger = stub(Messenger.class, (method, args) -> UNHANDLED);
+        
+        this.server = stub(Server.class, (method, args) -> {
+            switch (method.getName()) {
+                case "getName"            : return "SimulatedServer";
+                case "getVersion"         : return "1.11.2";
+                case "getBukkitVersion"   : return "1.11.2-R0.1-SNAPSHOT";
+                case "getLogger"          : return logger;
+                case "getPluginManager"   : return pluginManager;
+                case "getScheduler"       : return scheduler;
+                case "getServicesManager" : return servicesManager;
+                case "getMessenger"       : return messenger;
+                case "isPrimaryThread"    : return Thread.currentThread() == mainThread;
+                case "getPluginCommand"   : return command;
+                case "getWorlds":
+                    List<World> worldList = new ArrayList<>();
+                    for (SimWorld world : worlds.values()) worldList.add(world.world);
+                    return worldList;
+                case "getWorld":
+                    if (args[0] instanceof UUID) {
+                        SimWorld world = worlds.get(args[0]);
+                        return (world != null) ? world.world : null;
+                    }
+                    for (SimWorld world : worlds.values())
+                        if (world.name.equals(args[0])) return world.world;
+                    return null;
+                case "getOnlinePlayers":
+                    List<Player> online = new ArrayList<>();
+                    for (SimPlayer player : players.values()) online.add(player.player);
+                    return online;
+                case "getPlayer":
+                case "getPlayerExact":
+                case "getOfflinePlayer":
+                    SimPlayer player = findPlayer(args[0]);
+                    return (player != null) ? player.player : null;
+                case "getOfflinePlayers":
+                    List<OfflinePlayer> all = new ArrayList<>();
+                    for (SimPlayer p : players.values()) all.add(p.player);
+                    return all.toArray(new OfflinePlayer[0]);
+                default: return UNHANDLED;
+            }
+        });
+    }
+    
+    /** Returns the name of the account of the player or player name. */
+    private static String getAccount(Object player) {
+        String name = (player instanceof OfflinePlayer) ?
+                ((OfflinePlayer) player).getName() : String.valueOf(player);
+        return name.toLowerCase();
+    }
+    
+    private double getBalance(Object player) {
+        return balances.getOrDefault(getAccount(player), startingBalance);
+    }
+    
+    /** Finds the player by UUID or name (case-insensitive). */
+    private SimPlayer findPlayer(Object uuidOrName) {
+        if (uuidOrName instanceof UUID) return players.get(uuidOrName);
+        for (SimPlayer player : players.values())
+            if (player.name.equalsIgnoreCase((String) uuidOrName)) return player;
+        return null;
+    }
+    
+    /**
+     * Sets the plugin running on the server, and creates its "wormhole" command, so that
+     * {@code getCommand("wormhole")} finds it.
+     */
+    void setPlugin(Plugin plugin) throws ReflectiveOperationException {
+        this.plugin = plugin;
+        Constructor<PluginCommand> constructor =
+                PluginCommand.class.getDeclaredConstructor(String.class, Plugin.class);
+        constructor.setAccessible(true);
+        command = constructor.newInstance("wormhole", plugin);
+    }
+    
+    PluginCommand getCommand() {
+        return command;
+    }
+    
+    /** Returns the listeners registered by the plugin. */
+    List<Listener> getListeners() {
+        return listeners;
+    }
+    
+    /** Returns true if the plugin asked the server to disable it, e.g. after a fatal error. */
+    boolean isPluginDisabled() {
+        return pluginDisabled;
+    }
+    
+    SimWorld createWorld(String name) {
+        SimWorld world = new SimWorld(name);
+        worlds.put(world.uuid, world);
+        return world;
+    }
+    
+    /** Creates a player at the location; log them in with the plugin's events. */
+    SimPlayer createPlayer(String name, Location location) {
+        SimPlayer player = new SimPlayer(name, location);
+        players.put(player.uuid, player);
+        return player;
+    }
+    
+    /** Runs the task on a thread other than the server thread. */
+    void runAsync(Runnable task) {
+        asyncExecutor.execute(task);
+    }
+    
+    private Task schedule(Plugin owner, Runnable runnable, long delay, long period) {
+        Task task = new Task(owner, runnable, delay, period, true);
+        synchronized (tasks) {
+            tasks.add(task);
+        }
+        return task;
+    }
+    
+    /** Starts the next tick and runs the tasks due in it, on the calling (server) thread. */
+    void tick() {
+        currentTick++;
+        while (true) {
+            Task task;
+            synchronized (tasks) {
+                task = tasks.peek();
+                if (task == null || task.nextTick > currentTick) return;
+                tasks.poll();
+            }
+            if (task.cancelled) continue;
+            try {
+                task.runnable.run();
+            } catch (RuntimeException e) {
+                logger.warning("Task "+task.id+" threw "+e);
+            }
+            if (task.period > 0 && !task.cancelled) {
+                task.nextTick = currentTick+task.period;
+                synchronized (tasks) {
+                    tasks.add(task);
+                }
+            }
+        }
+    }
+    
+    /** Stops the threads of the server. */
+    void shutdown() {
+        asyncExecutor.shutdownNow();
+    }
+    
+    /** Returns a stand-in of the block, which is a sign if requested. */
+    private Block stubBlock(SimWorld world, int x, int y, int z, boolean isSign) {
+        final Block[] block = new Block[1];
+        final String[] lines = {"", "", "", ""};
+        Answer common = (method, args) -> {
+            switch (method.getName()) {
+                case "getX"        : return x;
+                case "getY"        : return y;
+                case "getZ"        : return z;
+                case "getWorld"    : return world.world;
+                case "getChunk"    : return world.getChunk(x >> 4, z >> 4);
+                case "getBlock"    : return block[0];
+                case "getType"     : return isSign ? Material.WALL_SIGN : Material.AIR;
+                case "getLocation":
+                    if (args.length == 0) return new Location(world.world, x, y, z);
+                    return UNHANDLED;
+                default            : return UNHANDLED;
+            }
+        };
+        block[0] = stub(Block.class, (method, args) -> {
+            if (!method.getName().equals("getState")) return common.answer(method, args);
+            if (!isSign) return stub(BlockState.class, common);
+            return stub(Sign.class, (m, a) -> {
+                switch (m.getName()) {
+                    case "getLines" : return lines.clone();
+                    case "getLine"  : return lines[(Integer) a[0]];
+                    case "setLine"  : lines[(Integer) a[0]] = (String) a[1]; return null;
+                    case "update"   : return true;
+                    default         : return common.answer(m, a);
+                }
+            });
+        });
+        return block[0];
+    }
+    
+    /** Returns a stand-in of the interface, whose methods are answered by the answer. */
+    @SuppressWarnings("unchecked")
+    private static <T> T stub(Class<T> type, Answer answer) {
+        return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type},
+                (proxy, method, args) -> {
+                    Object[] a = (args != null) ? args : new Object[0];
+                    if (a.length == 0 && method.getName().equals("hashCode"))
+                        return System.identityHashCode(proxy);
+                    if (a.length == 0 && method.getName().equals("toString"))
+                        return "Simulated"+type.getSimpleName();
+                    if (a.length == 1 && method.getName().equals("equals"))
+                        return proxy == a[0];
+                    Object result = answer.answer(method, a);
+                    return (result != UNHANDLED) ? result : defaultValue(method.getReturnType());
+                });
+    }
+    
+    /** Returns the default value of the type: null, 0, or false. */
+    private static Object defaultValue(Class<?> type) {
+        if (!type.isPrimitive() || type == void.class) return null;
+        if (type == boolean.class) return false;
+        if (type == char.class)    return '\0';
+        if (type == long.class)    return 0L;
+        if (type == float.class)   return 0f;
+        if (type == double.class)  return 0d;
+        if (type == byte.class)    return (byte) 0;
+        if (type == short.class)   return (short) 0;
+        return 0;
+    }
+    
+    private static long blockKey(int x, int y, int z) {
+        return ((long) x & 0x3FFFFFF) << 38 | ((long) z & 0x3FFFFFF) << 12 | (y & 0xFFF);
+    }
+    
+    private static long chunkKey(int chunkX, int chunkZ) {
+        return ((long) chunkX << 32) | (chunkZ & 0xFFFFFFFFL);
+    }
+}
\ No newline at end of file
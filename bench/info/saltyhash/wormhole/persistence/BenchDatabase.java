@@ -0,0 +1,115 @@
+package info.saltyhash.wormhole.persistence;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.logging.Logger;
+
+/**
+ * Temporary SQLite database for the benchmarks, seeded like a busy server: each player owns
+ * {@value #JUMPS_PER_PLAYER} jumps named like "home12", and every
+ * {@value #JUMPS_PER_SIGN}th jump has a sign pointing to it.
+ */
+final class BenchDatabase {
+    static final int  JUMPS_PER_PLAYER = 100;
+    static final int  JUMPS_PER_SIGN   = 10;
+    static final UUID WORLD_UUID =
+            UUID.nameUUIDFromBytes("bench-world".getBytes(StandardCharsets.UTF_8));
+    /** Words the names of the jumps begin with. */
+    static final String[] WORDS = {
+            "home", "base", "mine", "farm", "nether", "end", "spawn", "shop", "tower", "village"};
+    /** Jumps inserted per batch while seeding. */
+    private static final int BATCH_SIZE = 10000;
+    
+    final File file;
+    final int  jumps;
+    /** Database ID of each player, by index. */
+    final int[] playerIds;
+    
+    private BenchDatabase(File file, int jumps) {
+        this.file      = file;
+        this.jumps     = jumps;
+        this.playerIds = new int[(jumps+JUMPS_PER_PLAYER-1)/JUMPS_PER_PLAYER];
+    }
+    
+    /**
+     * Creates a database in a temporary file, sets it up as Wormhole's database, and seeds
+     * it with the number of jumps.
+     * @throws IOException if the database could not be created or seeded.
+     */
+    static BenchDatabase create(int jumps) throws IOException {
+        File file = File.createTempFile("wormhole-bench-", ".sqlite");
+        BenchDatabase db = new BenchDatabase(file, jumps);
+        DBManager.setup(file, Logger.getLogger("Wormhole-Bench"));
+        if (!DBManager.migrate()) throw new IOException("Failed to migrate the database");
+        
+        // Seed the players
+        List<PlayerRecord> players = new ArrayList<>(db.playerIds.length);
+        for (int i = 0; i < db.playerIds.length; i++)
+            players.add(new PlayerRecord(getPlayerUuid(i), getPlayerName(i)));
+        if (!PlayerRecord.upsertAll(players)) throw new IOException("Failed to seed the players");
+        for (int i = 0; i < db.playerIds.length; i++) db.playerIds[i] = players.get(i).getId();
+        
+        // Seed the jumps and their signs, one batch at a time
+        UnitOfWork.Outcome outcome = UnitOfWork.run(() -> {
+            List<JumpRecord> batch = new ArrayList<>(BATCH_SIZE);
+            for (int start = 0; start < jumps; start += BATCH_SIZE) {
+                batch.clear();
+                for (int j = start; j < Math.min(start+BATCH_SIZE, jumps); j++) {
+                    batch.add(new JumpRecord(db.getPlayerId(j), getJumpName(j), WORLD_UUID,
+                            j % 10000, 64, j / 10000, 0));
+                }
+                if (!JumpRecord.insertAll(batch)) return false;
+                for (int i = 0; i < batch.size(); i++) {
+                    int j = start+i;
+                    if (j % JUMPS_PER_SIGN != 0) continue;
+                    int[] l = getSignLocation(j / JUMPS_PER_SIGN);
+                    if (!new SignRecord(WORLD_UUID, l[0], l[1], l[2], batch.get(i).id).save())
+                        return false;
+                }
+            }
+            return true;
+        });
+        if (outcome != UnitOfWork.Outcome.COMMITTED) {
+            db.delete();
+            throw new IOException("Failed to seed the jumps: "+outcome);
+        }
+        return db;
+    }
+    
+    /** Closes and deletes the database. */
+    void delete() {
+        DBManager.closeConnection();
+        for (String suffix : new String[]{"", "-wal", "-shm"}) {
+            File f = new File(file.getPath()+suffix);
+            if (f.exists() && !f.delete()) f.deleteOnExit();
+        }
+    }
+    
+    /** Returns the database ID of the player owning the jump with the index. */
+    int getPlayerId(int jump) {
+        return playerIds[jump / JUMPS_PER_PLAYER];
+    }
+    
+    static UUID getPlayerUuid(int player) {
+        return UUID.nameUUIDFromBytes(("bench-player-"+player).getBytes(StandardCharsets.UTF_8));
+    }
+    
+    static String getPlayerName(int player) {
+        return "player"+player;
+    }
+    
+    /** Returns the name of the jump with the index, unique among those of its owner. */
+    static String getJumpName(int jump) {
+        int j = jump % JUMPS_PER_PLAYER;
+        return WORDS[j % WORDS.length]+(j / WORDS.length);
+    }
+    
+    /** Returns the x, y, and z of the sign with the index. */
+    static int[] getSignLocation(int sign) {
+        return new int[]{(sign % 1000)*3, 70, (sign / 1000)*3};
+    }
+}
\ No newline at end of file
@@ -0,0 +1,125 @@
+package info.saltyhash.wormhole.persistence;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of the record queries against SQLite databases seeded with 1k, 100k, and 1M
+ * jumps (see {@link BenchDatabase}).  The caches are empty, so every query reads the
+ * database.  Run {@link #main(String[])} with the "bench" source root, JMH, and sqlite-jdbc
+ * on the classpath; it takes JMH's command line options (e.g. "-p jumps=1000") and adds
+ * the GC profiler, so that the allocation rate of each query ("gc.alloc.rate.norm", in
+ * bytes per query) is reported next to its time.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class PersistenceBenchmark {
+    /** Stride through the jumps, a prime so that queries are scattered over the database. */
+    private static final int STRIDE = 7919;
+    /** Number of jumps updated in turn by {@link #jumpSaveUpdate()}. */
+    private static final int UPDATED_JUMPS = 1000;
+    
+    @Param({"1000", "100000", "1000000"})
+    public int jumps;
+    
+    private BenchDatabase db;
+    private int next = 0;
+    private int inserted = 0;
+    private int updated  = 0;
+    private final List<JumpRecord> updatedJumps = new ArrayList<>(UPDATED_JUMPS);
+    
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        db = BenchDatabase.create(jumps);
+        for (int i = 0; i < Math.min(UPDATED_JUMPS, jumps); i++) {
+            int j = nextJump();
+            updatedJumps.add(JumpRecord.load(db.getPlayerId(j), BenchDatabase.getJumpName(j)));
+        }
+    }
+    
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        db.delete();
+    }
+    
+    /** Returns the index of the next jump to query. */
+    private int nextJump() {
+        next = (next+STRIDE) % jumps;
+        return next;
+    }
+    
+    @Benchmark
+    public JumpRecord jumpLoad() {
+        int j = nextJump();
+        return JumpRecord.load(db.getPlayerId(j), BenchDatabase.getJumpName(j));
+    }
+    
+    @Benchmark
+    public List<JumpRecord> jumpLoadWithPlayerId() {
+        return JumpRecord.loadWithPlayerId(db.getPlayerId(nextJump()));
+    }
+    
+    @Benchmark
+    public List<JumpRecord> jumpLoadWhereNameBeginsWith() {
+        int j = nextJump();
+        return JumpRecord.loadWhereNameBeginsWith(db.getPlayerId(j),
+                BenchDatabase.WORDS[j % BenchDatabase.WORDS.length]);
+    }
+    
+    @Benchmark
+    public List<JumpRecord> jumpLoadWhereNameLike() {
+        int j = nextJump();
+        return JumpRecord.loadWhereNameLike(db.getPlayerId(j),
+                BenchDatabase.getJumpName(j).substring(1));
+    }
+    
+    @Benchmark
+    public SignRecord signLoad() {
+        int[] l = BenchDatabase.getSignLocation(nextJump() / BenchDatabase.JUMPS_PER_SIGN);
+        return SignRecord.load(BenchDatabase.WORLD_UUID, l[0], l[1], l[2]);
+    }
+    
+    @Benchmark
+    public PlayerRecord playerLoadByName() {
+        return PlayerRecord.load(BenchDatabase.getPlayerName(
+                nextJump() / BenchDatabase.JUMPS_PER_PLAYER));
+    }
+    
+    @Benchmark
+    public boolean jumpSaveInsert() {
+        int j = nextJump();
+        return new JumpRecord(db.getPlayerId(j), "bench"+(inserted++), BenchDatabase.WORLD_UUID,
+                j % 10000, 80, j / 10000, 90).save();
+    }
+    
+    @Benchmark
+    public boolean jumpSaveUpdate() {
+        JumpRecord jumpRecord = updatedJumps.get(updated++ % updatedJumps.size());
+        jumpRecord.yaw = (jumpRecord.yaw+1) % 360;
+        return jumpRecord.save();
+    }
+    
+    public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+        Options options = new OptionsBuilder()
+                .parent(new CommandLineOptions(args))
+                .include(PersistenceBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(options).run();
+    }
+}
\ No newline at end of file
@@ -0,0 +1,99 @@
+package info.saltyhash.wormhole;
+
+import java.io.*;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.function.Consumer;
+
+import info.saltyhash.wormhole.persistence.InvalidationTransport;
+import org.bukkit.entity.Player;
+import org.bukkit.plugin.messaging.PluginMessageListener;
+import org.bukkit.scheduler.BukkitTask;
+
+/**
+ * Transport that forwards cache invalidations to all other servers behind a BungeeCord
+ * proxy with plugin messages.  Plugin messages travel through a player's connection, so
+ * messages are queued while no player is online, and BungeeCord delivers them only to
+ * servers with a player online.  A server that misses messages resyncs its caches when
+ * the next one arrives.
+ */
+class BungeeTransport implements InvalidationTransport, PluginMessageListener {
+    private static final String CHANNEL    = "BungeeCord";
+    private static final String SUBCHANNEL = "Wormhole";
+    /** Most messages queued while no player is online; the oldest are dropped beyond it. */
+    private static final int MAX_QUEUED = 1000;
+    
+    private final Wormhole wormhole;
+    private final Deque<byte[]> queue = new ArrayDeque<>();  // Main thread only
+    private Consumer<byte[]> receiver;
+    private BukkitTask flushTask;
+    
+    BungeeTransport(Wormhole wormhole) {
+        this.wormhole = wormhole;
+    }
+    
+    @Override
+    public void open(Consumer<byte[]> receiver) {
+        this.receiver = receiver;
+        wormhole.getServer().getMessenger().registerOutgoingPluginChannel(wormhole, CHANNEL);
+        wormhole.getServer().getMessenger().registerIncomingPluginChannel(wormhole, CHANNEL, this);
+        // Send the messages queued while no player was online
+        flushTask = wormhole.getServer().getScheduler().runTaskTimer(
+                wormhole, this::flush, 20, 20);
+    }
+    
+    @Override
+    public void send(byte[] message) {
+        // Wrap the message in a BungeeCord "Forward" request
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(message.length+32);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeUTF("Forward");
+            out.writeUTF("ALL");
+            out.writeUTF(SUBCHANNEL);
+            out.writeShort(message.length);
+            out.write(message);
+        } catch (IOException e) {
+            return;     // Not thrown by a byte array stream
+        }
+        final byte[] request = bytes.toByteArray();
+        
+        // Send on the main thread, in order
+        wormhole.runOnMainThread(() -> {
+            queue.addLast(request);
+            if (queue.size() > MAX_QUEUED) queue.removeFirst();
+            flush();
+        });
+    }
+    
+    /** Sends the queued messages through any online player; main thread only. */
+    private void flush() {
+        if (queue.isEmpty()) return;
+        Iterator<? extends Player> players = wormhole.getServer().getOnlinePlayers().iterator();
+        if (!players.hasNext()) return;
+        Player player = players.next();
+        while (!queue.isEmpty()) player.sendPluginMessage(wormhole, CHANNEL, queue.removeFirst());
+    }
+    
+    @Override
+    public void onPluginMessageReceived(String channel, Player player, byte[] request) {
+        if (!CHANNEL.equals(channel)) return;
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(request));
+            if (!SUBCHANNEL.equals(in.readUTF())) return;
+            byte[] message = new byte[in.readUnsignedShort()];
+            in.readFully(message);
+            receiver.accept(message);
+        } catch (IOException e) {
+            wormhole.getLogger().warning("Failed to read plugin message:\n"+e.toString());
+        }
+    }
+    
+    @Override
+    public void close() {
+        if (flushTask != null) flushTask.cancel();
+        wormhole.getServer().getMessenger().unregisterIncomingPluginChannel(wormhole);
+        wormhole.getServer().getMessenger().unregisterOutgoingPluginChannel(wormhole);
+        queue.clear();
+    }
+}
\ No newline at end of file
@@ -0,0 +1,252 @@
+package info.saltyhash.wormhole;
+
+import info.saltyhash.wormhole.metrics.Metrics;
+import org.bukkit.ChatColor;
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.configuration.file.FileConfiguration;
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.bukkit.entity.Player;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Cooldowns of the actions that teleport players, configured per permission group: a player
+ * in group "vip" has the permission "wormhole.cooldown.vip", everyone is in group "default",
+ * and the shortest cooldown of the player's groups applies.
+ *
+ * Cooldowns are counted in ticks, and expire on a hashed timing wheel: a cooldown is put in
+ * the slot of the tick it expires in, modulo the number of slots, and each tick expires the
+ * cooldowns of one slot that are due, so that no task is scheduled per player.  Call
+ * {@link #tick()} once per tick.  Server thread only.
+ */
+final class Cooldowns {
+    /** Action with a cooldown. */
+    enum Action {
+        JUMP("jump", "jump directly to a jump"),
+        BACK("back", "jump back to your previous location"),
+        USE("use", "use signs pointing to jumps");
+        
+        final String key, description;
+        
+        Action(String key, String description) {
+            this.key = key;
+            this.description = description;
+        }
+    }
+    
+    /** Cooldown of an action of a player, in the list of its slot. */
+    private static final class Cooldown {
+        final UUID uuid;
+        final Action action;
+        final long expiresTick;
+        Cooldown next;
+        
+        Cooldown(UUID uuid, Action action, long expiresTick) {
+            this.uuid = uuid;
+            this.action = action;
+            this.expiresTick = expiresTick;
+        }
+    }
+    
+    private static final Action[] ACTIONS = Action.values();
+    /** Number of slots of the wheel, a power of two; a cooldown longer goes around again. */
+    private static final int SLOTS = 1024;
+    private static final long MILLIS_PER_TICK = 50;
+    
+    private static final Cooldown[] wheel = new Cooldown[SLOTS];
+    /** Cooldowns of each player, by action; null where there is none. */
+    private static final Map<UUID, Cooldown[]> cooldowns = new HashMap<>();
+    private static long currentTick = 0;
+    private static int  count = 0;
+    
+    /** Cooldown ticks of each action, by group, in config order. */
+    private static final Map<String, long[]> groups = new LinkedHashMap<>();
+    
+    static {
+        Metrics.gauge("cooldowns.active", () -> count);
+    }
+    
+    private Cooldowns() {}
+    
+    /** Reads the cooldowns of the groups from the config.  Call again on reload. */
+    static void setup(Wormhole wormhole) {
+        groups.clear();
+        ConfigurationSection section =
+                wormhole.getConfig().getConfigurationSection("cooldowns.groups");
+        if (section == null) return;
+        boolean any = false;
+        for (String group : section.getKeys(false)) {
+            long[] ticks = new long[ACTIONS.length];
+            for (Action action : ACTIONS) {
+                double millis = section.getDouble(group+"."+action.key)*1000;
+                ticks[action.ordinal()] = Math.max(0, (long) Math.ceil(millis/MILLIS_PER_TICK));
+                any |= (ticks[action.ordinal()] > 0);
+            }
+            groups.put(group, ticks);
+        }
+        
+        // No cooldowns at all?  Then skip looking up the groups of players.
+        if (!any) groups.clear();
+    }
+    
+    /** Returns the cooldown ticks of the action for the player: the shortest of their groups. */
+    private static long getCooldownTicks(Player player, Action action) {
+        long shortest = -1;
+        for (Map.Entry<String, long[]> group : groups.entrySet()) {
+            if (!group.getKey().equals("default") &&
+                    !player.hasPermission("wormhole.cooldown."+group.getKey())) continue;
+            long ticks = group.getValue()[action.ordinal()];
+            if (shortest < 0 || ticks < shortest) shortest = ticks;
+        }
+        return Math.max(0, shortest);
+    }
+    
+    /** Returns the ticks left of the cooldown of the player's action; 0 if none. */
+    static long getRemainingTicks(UUID uuid, Action action) {
+        Cooldown[] playerCooldowns = cooldowns.get(uuid);
+        if (playerCooldowns == null) return 0;
+        Cooldown cooldown = playerCooldowns[action.ordinal()];
+        return (cooldown != null) ? Math.max(0, cooldown.expiresTick-currentTick) : 0;
+    }
+    
+    /**
+     * If the player's action is cooling down, the player is notified, and the function
+     * returns true.
+     * @return true if the action is cooling down; false otherwise.
+     */
+    static boolean notifyPlayerIfCoolingDown(Player player, Action action) {
+        String message = getCoolingDownMessage(player, action);
+        if (message == null) return false;
+        player.sendMessage(message);
+        return true;
+    }
+    
+    /** Returns the message telling the player the action is cooling down, or null if not. */
+    static String getCoolingDownMessage(Player player, Action action) {
+        long ticks = getRemainingTicks(player.getUniqueId(), action);
+        if (ticks == 0) return null;
+        return String.format("%sYou cannot %s for another %.1f s",
+                ChatColor.DARK_RED, action.description, ticks*MILLIS_PER_TICK/1000.0);
+    }
+    
+    /** Starts the cooldown of the player's action, once the player has used it. */
+    static void start(Player player, Action action) {
+        if (groups.isEmpty()) return;
+        start(player.getUniqueId(), action, getCooldownTicks(player, action));
+    }
+    
+    /** Starts the cooldown of the player's action, replacing any it has. */
+    private static void start(UUID uuid, Action action, long ticks) {
+        if (ticks <= 0) return;
+        Cooldown[] playerCooldowns =
+                cooldowns.computeIfAbsent(uuid, u -> new Cooldown[ACTIONS.length]);
+        if (playerCooldowns[action.ordinal()] != null) remove(playerCooldowns[action.ordinal()]);
+        
+        Cooldown cooldown = new Cooldown(uuid, action, currentTick+ticks);
+        int slot = (int) (cooldown.expiresTick & (SLOTS-1));
+        cooldown.next = wheel[slot];
+        wheel[slot] = cooldown;
+        playerCooldowns[action.ordinal()] = cooldown;
+        count++;
+    }
+    
+    /** Removes the cooldown from the list of its slot. */
+    private static void remove(Cooldown cooldown) {
+        int slot = (int) (cooldown.expiresTick & (SLOTS-1));
+        Cooldown previous = null;
+        for (Cooldown c = wheel[slot]; c != null; previous = c, c = c.next) {
+            if (c != cooldown) continue;
+            if (previous == null) wheel[slot] = c.next;
+            else                  previous.next = c.next;
+            count--;
+            return;
+        }
+    }
+    
+    /** Advances the wheel by a tick, expiring the cooldowns that are over. */
+    static void tick() {
+        currentTick++;
+        int slot = (int) (currentTick & (SLOTS-1));
+        Cooldown previous = null;
+        for (Cooldown c = wheel[slot]; c != null; c = c.next) {
+            // Expires in a later turn of the wheel?
+            if (c.expiresTick > currentTick) {
+                previous = c;
+                continue;
+            }
+            if (previous == null) wheel[slot] = c.next;
+            else                  previous.next = c.next;
+            count--;
+            
+            // Forget the player once all their cooldowns are over
+            Cooldown[] playerCooldowns = cooldowns.get(c.uuid);
+            playerCooldowns[c.action.ordinal()] = null;
+            boolean any = false;
+            for (Cooldown other : playerCooldowns) any |= (other != null);
+            if (!any) cooldowns.remove(c.uuid);
+        }
+    }
+    
+    /**
+     * Saves the cooldowns not yet over to the file, as the times they end, so that they
+     * continue once reloaded.  Logs errors.
+     * @return true on success; false on error.
+     */
+    static boolean save(Wormhole wormhole, File file) {
+        FileConfiguration yaml = new YamlConfiguration();
+        long now = System.currentTimeMillis();
+        for (Map.Entry<UUID, Cooldown[]> player : cooldowns.entrySet()) {
+            for (Cooldown cooldown : player.getValue()) {
+                if (cooldown == null || cooldown.expiresTick <= currentTick) continue;
+                yaml.set(player.getKey()+"."+cooldown.action.key,
+                        now+(cooldown.expiresTick-currentTick)*MILLIS_PER_TICK);
+            }
+        }
+        try {
+            yaml.save(file);
+        } catch (IOException e) {
+            wormhole.getLogger().warning("Failed to save cooldowns to '"+file+"':\n"+e.toString());
+            return false;
+        }
+        return true;
+    }
+    
+    /**
+     * Loads the cooldowns saved to the file, if it exists, and starts those not yet over.
+     * Logs errors.
+     */
+    static void load(Wormhole wormhole, File file) {
+        if (!file.isFile()) return;
+        FileConfiguration yaml = YamlConfiguration.loadConfiguration(file);
+        long now = System.currentTimeMillis();
+        int loaded = 0;
+        for (String key : yaml.getKeys(false)) {
+            UUID uuid;
+            try {
+                uuid = UUID.fromString(key);
+            } catch (IllegalArgumentException e) {
+                wormhole.getLogger().warning("Ignoring cooldowns of malformed UUID '"+key+"'");
+                continue;
+            }
+            for (Action action : ACTIONS) {
+                long millis = yaml.getLong(key+"."+action.key)-now;
+                if (millis <= 0) continue;
+                start(uuid, action, (millis+MILLIS_PER_TICK-1)/MILLIS_PER_TICK);
+                loaded++;
+            }
+        }
+        if (loaded > 0) wormhole.getLogger().info("Loaded "+loaded+" cooldowns");
+    }
+    
+    /** Forgets all cooldowns. */
+    static void clear() {
+        for (int slot = 0; slot < SLOTS; slot++) wheel[slot] = null;
+        cooldowns.clear();
+        count = 0;
+    }
+}
\ No newline at end of file
@@ -1,5 +1,7 @@
 package info.saltyhash.wormhole;
 
+import info.saltyhash.wormhole.metrics.Histogram;
+import info.saltyhash.wormhole.metrics.Metrics;
 import org.bukkit.Bukkit;
 import org.bukkit.ChatColor;
 import org.bukkit.entity.Player;
@@ -13,6 +15,10 @@ final class EconManager {
     private static Wormhole wormhole;
     static Economy econ;
     
+    // Latencies of the calls to the economy plugin
+    private static final Histogram CHARGE_LATENCY      = Metrics.histogram("vault.charge");
+    private static final Histogram HAS_BALANCE_LATENCY = Metrics.histogram("vault.has_balance");
+    
     private EconManager() {}
     
     static void setup(Wormhole wormhole) {
@@ -57,29 +63,33 @@ final class EconManager {
      */
     static int charge(Player player, double amount) {
         if (!isEnabled()) return 3;
-
-        // Make sure player has an account
-        if (!econ.hasAccount(player))
-            if (!econ.createPlayerAccount(player)) return 2;
-        
-        // Withdraw from account?
-        if (amount > 0.0) {
-            EconomyResponse result = econ.withdrawPlayer(player, amount);
-            // Insufficient funds?
-            if (!result.transactionSuccess()) return 1;
-            // Message player
-            player.sendMessage(ChatColor.RED + "Charged " + ChatColor.RESET +
-                    econ.format(amount));
-        }
-        // Deposit to account?
-        else if (amount < 0.0) {
-            amount = -amount;
-            econ.depositPlayer(player, amount);
-            // Message player
-            player.sendMessage(ChatColor.DARK_GREEN + "Paid " + ChatColor.RESET +
-                    econ.format(amount));
+        long startNanos = CHARGE_LATENCY.start();
+        try {
+            // Make sure player has an account
+            if (!econ.hasAccount(player))
+                if (!econ.createPlayerAccount(player)) return 2;
+            
+            // Withdraw from account?
+            if (amount > 0.0) {
+                EconomyResponse result = econ.withdrawPlayer(player, amount);
+                // Insufficient funds?
+                if (!result.transactionSuccess()) return 1;
+                // Message player
+                player.sendMessage(ChatColor.RED + "Charged " + ChatColor.RESET +
+                        econ.format(amount));
+            }
+            // Deposit to account?
+            else if (amount < 0.0) {
+                amount = -amount;
+                econ.depositPlayer(player, amount);
+                // Message player
+                player.sendMessage(ChatColor.DARK_GREEN + "Paid " + ChatColor.RESET +
+                        econ.format(amount));
+            }
+            return 0;
+        } finally {
+            CHARGE_LATENCY.recordSince(startNanos);
         }
-        return 0;
     }
 
     /**
@@ -96,7 +106,11 @@ final class EconManager {
     static boolean hasBalance(Player player, double amount) {
         // This is kind of hackish; this aught to return false if not enabled,
         // but for simplicity outside the scope of this class, it returns true.
-        return !isEnabled() || econ.has(player, amount);
+        if (!isEnabled()) return true;
+        long startNanos = HAS_BALANCE_LATENCY.start();
+        boolean hasBalance = econ.has(player, amount);
+        HAS_BALANCE_LATENCY.recordSince(startNanos);
+        return hasBalance;
     }
 
     /**
@@ -45,4 +45,17 @@ final class PlayerManager {
     static void setPreviousLocation(Player player, Location location) {
         setMetadata(player, previousLocationKey, location);
     }
+    
+    private static final String portalCornersKey = "portalCorners";
+    /** Returns the last two portal corners the player marked, the last first; null if unmarked. */
+    static Location[] getPortalCorners(Player player) {
+        Object corners = getMetadata(player, portalCornersKey);
+        return (corners instanceof Location[]) ? (Location[]) corners : new Location[2];
+    }
+    
+    /** Marks a portal corner of the player, keeping the one marked before it. */
+    static void addPortalCorner(Player player, Location corner) {
+        Location[] corners = getPortalCorners(player);
+        setMetadata(player, portalCornersKey, new Location[] {corner, corners[0]});
+    }
 }
\ No newline at end of file
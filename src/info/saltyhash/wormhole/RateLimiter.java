@@ -0,0 +1,105 @@
+package info.saltyhash.wormhole;
+
+import info.saltyhash.wormhole.metrics.Metrics;
+import org.bukkit.ChatColor;
+import org.bukkit.command.CommandSender;
+import org.bukkit.configuration.file.FileConfiguration;
+import org.bukkit.entity.Player;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Limits how often each player can use each action, e.g. against autoclickers on signs and
+ * macros spamming commands, with a token bucket per player and action: a bucket holds up to
+ * "burst" uses, refilled at "per_second" uses per second.  Each bucket is kept as the time at
+ * which it will be full again, so a use is checked with a little arithmetic on the clock, and
+ * no tasks are scheduled.  Players with the "wormhole.ratelimit.bypass" permission are not
+ * limited.  Server thread only.
+ */
+final class RateLimiter {
+    /** Action limited per player. */
+    enum Action {
+        JUMP("jump"), LIST("list"), SEARCH("search"), USE("use"), TAB_COMPLETE("tab_complete");
+        
+        final String key;
+        final LongAdder throttled;
+        /** Nanoseconds per use, and per full bucket; 0 if not limited. */
+        long intervalNanos = 0, burstNanos = 0;
+        
+        Action(String key) {
+            this.key = key;
+            this.throttled = Metrics.counter("ratelimit.throttled."+key);
+        }
+    }
+    
+    private static final Action[] ACTIONS = Action.values();
+    /** Least time between two "slow down" messages to a player. */
+    private static final long MESSAGE_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+    
+    /** Times at which each player's buckets will be full, by action, then of the last message. */
+    private static final Map<UUID, long[]> buckets = new HashMap<>();
+    private static boolean silent = false;
+    
+    private RateLimiter() {}
+    
+    /** Reads the limits from the config, forgetting the buckets.  Call again on reload. */
+    static void setup(Wormhole wormhole) {
+        FileConfiguration config = wormhole.getConfig();
+        silent = config.getString("rate_limit.mode", "message").equalsIgnoreCase("silent");
+        for (Action action : ACTIONS) {
+            double perSecond = config.getDouble("rate_limit."+action.key+".per_second");
+            int    burst     = Math.max(1, config.getInt("rate_limit."+action.key+".burst", 1));
+            action.intervalNanos = (perSecond > 0) ? (long) (1e9/perSecond) : 0;
+            action.burstNanos    = action.intervalNanos*burst;
+        }
+        buckets.clear();
+    }
+    
+    /**
+     * Takes a use of the action from the sender's bucket.  If the bucket is empty, tells the
+     * sender when to try again, unless the mode is silent or the action is tab completion.
+     * @return true if the sender may go ahead, i.e. is not a player, is not limited, or had a
+     *         use left; false if throttled.
+     */
+    static boolean tryAcquire(CommandSender sender, Action action) {
+        if (action.intervalNanos == 0 || !(sender instanceof Player)) return true;
+        Player player = (Player) sender;
+        if (player.hasPermission("wormhole.ratelimit.bypass")) return true;
+        
+        long now = System.nanoTime();
+        long[] playerBuckets = buckets.get(player.getUniqueId());
+        if (playerBuckets == null) {
+            playerBuckets = new long[ACTIONS.length+1];
+            Arrays.fill(playerBuckets, now-MESSAGE_INTERVAL_NANOS);
+            buckets.put(player.getUniqueId(), playerBuckets);
+        }
+        
+        // Bucket has a use left, i.e. would not overflow with another?
+        long fullAt = Math.max(playerBuckets[action.ordinal()], now);
+        long waitNanos = fullAt+action.intervalNanos-(now+action.burstNanos);
+        if (waitNanos <= 0) {
+            playerBuckets[action.ordinal()] = fullAt+action.intervalNanos;
+            return true;
+        }
+        
+        // Throttled; tell the player when to try again, at most once in a while
+        action.throttled.increment();
+        if (!silent && action != Action.TAB_COMPLETE &&
+                now-playerBuckets[ACTIONS.length] >= MESSAGE_INTERVAL_NANOS) {
+            playerBuckets[ACTIONS.length] = now;
+            player.sendMessage(String.format("%sSlow down;%s try again in %.1f s",
+                    ChatColor.DARK_PURPLE, ChatColor.RESET, Math.max(0.1, waitNanos/1e9)));
+        }
+        return false;
+    }
+    
+    /** Forgets the buckets of the player, e.g. when they leave the server. */
+    static void evict(UUID uuid) {
+        buckets.remove(uuid);
+    }
+}
\ No newline at end of file
@@ -0,0 +1,158 @@
+package info.saltyhash.wormhole;
+
+import info.saltyhash.wormhole.metrics.Metrics;
+import org.bukkit.ChatColor;
+import org.bukkit.Location;
+import org.bukkit.configuration.file.FileConfiguration;
+import org.bukkit.entity.Player;
+import org.bukkit.event.entity.EntityDamageEvent;
+
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Warm-ups before Wormhole teleports players: a jump runs after a delay, and is cancelled if
+ * the player moves or takes damage meanwhile.  Rather than listening to every movement of
+ * every player, {@link #tick()} polls just the players warming up, comparing their block
+ * position and last damage to those when the warm-up began.  Players with the
+ * "wormhole.warmup.bypass" permission jump at once.  Server thread only.
+ */
+final class Warmups {
+    /** Jump run once the player is warmed up. */
+    @FunctionalInterface
+    interface Jump {
+        /**
+         * @param warmedUp true if run after a warm-up, during which the jump, the player's
+         *                 balance, or the blacklist may have changed; false if run at once.
+         */
+        void run(boolean warmedUp);
+    }
+    
+    /** Jump of a player waiting to run. */
+    private static final class Warmup {
+        final Player player;
+        final Jump jump;
+        final long dueTick;
+        final Location start;
+        final EntityDamageEvent lastDamage;
+        
+        Warmup(Player player, Jump jump, long dueTick) {
+            this.player     = player;
+            this.jump       = jump;
+            this.dueTick    = dueTick;
+            this.start      = player.getLocation();
+            this.lastDamage = player.getLastDamageCause();
+        }
+    }
+    
+    private static final long TICKS_PER_SECOND = 20;
+    
+    private static Wormhole wormhole;
+    private static final Map<UUID, Warmup> warmups = new HashMap<>();
+    private static long currentTick = 0;
+    private static long warmupTicks = 0;
+    private static boolean cancelOnMove, cancelOnDamage;
+    
+    private static final LongAdder cancelled = Metrics.counter("warmups.cancelled");
+    static {
+        Metrics.gauge("warmups.pending", () -> warmups.size());
+    }
+    
+    private Warmups() {}
+    
+    /** Reads the warm-up from the config.  Call again on reload. */
+    static void setup(Wormhole wormhole) {
+        Warmups.wormhole = wormhole;
+        FileConfiguration config = wormhole.getConfig();
+        warmupTicks    = Math.max(0,
+                Math.round(config.getDouble("warmup.seconds")*TICKS_PER_SECOND));
+        cancelOnMove   = config.getBoolean("warmup.cancel_on_move", true);
+        cancelOnDamage = config.getBoolean("warmup.cancel_on_damage", true);
+    }
+    
+    /**
+     * Runs the player's jump once warmed up, or now if there is no warm-up for the player.
+     * Replaces the jump the player was warming up for, if any.
+     * @param jump Checks again what may have changed if warmed up, then teleports the
+     *             player, plays the effects, and charges the player.
+     */
+    static void start(Player player, Jump jump) {
+        if (warmupTicks == 0 || player.hasPermission("wormhole.warmup.bypass")) {
+            warmups.remove(player.getUniqueId());
+            jump.run(false);
+            return;
+        }
+        
+        Warmup warmup = new Warmup(player, jump, currentTick+warmupTicks);
+        warmups.put(player.getUniqueId(), warmup);
+        wormhole.playWarmupEffect(warmup.start);
+        player.sendMessage(String.format("%sJumping%s in %.1f s%s",
+                ChatColor.DARK_PURPLE, ChatColor.RESET, (double) warmupTicks/TICKS_PER_SECOND,
+                cancelOnMove ? "; don't move" : ""));
+    }
+    
+    /** Cancels the jump the player is warming up for, if any. */
+    static void cancel(UUID uuid) {
+        warmups.remove(uuid);
+    }
+    
+    /**
+     * Advances the warm-ups by a tick: cancels those of players who moved or took damage, and
+     * runs the jumps of those warmed up.
+     */
+    static void tick() {
+        currentTick++;
+        if (warmups.isEmpty()) return;
+        
+        List<Warmup> due = null;
+        for (Iterator<Warmup> iterator = warmups.values().iterator(); iterator.hasNext(); ) {
+            Warmup warmup = iterator.next();
+            Player player = warmup.player;
+            
+            // Player left the server?
+            if (!player.isOnline()) {
+                iterator.remove();
+                continue;
+            }
+            
+            // Player moved to another block, or took damage?
+            String cancelledBecause = null;
+            if (cancelOnMove && hasMoved(warmup.start, player.getLocation()))
+                cancelledBecause = "you moved";
+            else if (cancelOnDamage && player.getLastDamageCause() != warmup.lastDamage)
+                cancelledBecause = "you took damage";
+            if (cancelledBecause != null) {
+                iterator.remove();
+                cancelled.increment();
+                player.sendMessage(ChatColor.DARK_RED+"Jump cancelled;"+ChatColor.RESET+" "+
+                        cancelledBecause);
+                continue;
+            }
+            
+            // Warmed up?
+            if (warmup.dueTick <= currentTick) {
+                iterator.remove();
+                if (due == null) due = new ArrayList<>();
+                due.add(warmup);
+            }
+        }
+        
+        // Jump, now that the warm-ups are no longer being iterated
+        if (due != null) {
+            for (Warmup warmup : due) warmup.jump.run(true);
+        }
+    }
+    
+    /** Returns true if the location is in a different block than the start. */
+    private static boolean hasMoved(Location start, Location location) {
+        return location.getBlockX() != start.getBlockX() ||
+                location.getBlockY() != start.getBlockY() ||
+                location.getBlockZ() != start.getBlockZ() ||
+                location.getWorld() != start.getWorld();
+    }
+    
+    /** Cancels all warm-ups. */
+    static void clear() {
+        warmups.clear();
+    }
+}
\ No newline at end of file
@@ -1,18 +1,61 @@
 package info.saltyhash.wormhole;
 
 import java.io.File;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
+import info.saltyhash.wormhole.api.WormholeService;
+import info.saltyhash.wormhole.metrics.MetricsExporter;
+import info.saltyhash.wormhole.metrics.Watchdog;
+import info.saltyhash.wormhole.persistence.CacheInvalidation;
+import info.saltyhash.wormhole.persistence.ChangeLog;
+import info.saltyhash.wormhole.persistence.ChangeLogReplay;
 import info.saltyhash.wormhole.persistence.DBManager;
-import info.saltyhash.wormhole.persistence.PlayerRecord;
+import info.saltyhash.wormhole.persistence.DataTransfer;
+import info.saltyhash.wormhole.persistence.DatabaseBackup;
+import info.saltyhash.wormhole.persistence.InvalidationTransport;
+import info.saltyhash.wormhole.persistence.JumpImport;
+import info.saltyhash.wormhole.persistence.JumpRecord;
+import info.saltyhash.wormhole.persistence.JumpSource;
+import info.saltyhash.wormhole.persistence.MemoryStore;
+import info.saltyhash.wormhole.persistence.MemoryTransport;
+import info.saltyhash.wormhole.persistence.PlayerCache;
+import info.saltyhash.wormhole.persistence.PortalIndex;
+import info.saltyhash.wormhole.persistence.RecordService;
+import info.saltyhash.wormhole.persistence.SignCache;
+import info.saltyhash.wormhole.persistence.StoreSnapshot;
+import info.saltyhash.wormhole.persistence.UdpTransport;
+import org.bukkit.ChatColor;
+import org.bukkit.Chunk;
 import org.bukkit.Effect;
 import org.bukkit.Location;
+import org.bukkit.OfflinePlayer;
 import org.bukkit.Sound;
 import org.bukkit.World;
+import org.bukkit.command.CommandSender;
 import org.bukkit.entity.Player;
+import org.bukkit.plugin.PluginDescriptionFile;
+import org.bukkit.plugin.ServicePriority;
 import org.bukkit.plugin.java.JavaPlugin;
+import org.bukkit.plugin.java.JavaPluginLoader;
 
 /** Wormhole plugin. */
 public class Wormhole extends JavaPlugin {
+    /** True once the database is migrated and the caches are warmed up. */
+    private volatile boolean ready = false;
+    /** Chunks loaded while warming up, and whether they were new; cached once warmed up. */
+    private final Map<Chunk, Boolean> chunksLoadedWhileWarmingUp = new LinkedHashMap<>();
+    
+    public Wormhole() {}
+    
+    /** Creates the plugin outside of a server, e.g. for the load harness. */
+    Wormhole(JavaPluginLoader loader, PluginDescriptionFile description, File dataFolder,
+             File file) {
+        super(loader, description, dataFolder, file);
+    }
+    
     @Override
     public void onEnable() {
         // Get the path of the data folder: "/path/to/plugins/Wormhole/"
@@ -23,51 +66,477 @@ public class Wormhole extends JavaPlugin {
         
         // Set up the database
         DBManager.setup(new File(dataPath+"Wormhole.sqlite"), getLogger());
-        if (!DBManager.migrate()) {
-            disable();
+        
+        // Set up PlayerManager, Economy, rate limits, cooldowns, and warm-ups
+        PlayerManager.setup(this);
+        EconManager.setup(this);
+        RateLimiter.setup(this);
+        Cooldowns.setup(this);
+        Warmups.setup(this);
+        
+        // Register event handler, command handler, and tab completer
+        getServer().getPluginManager().registerEvents(new WormholeEventHandler(this), this);
+        getCommand("wormhole").setExecutor(new WormholeCommandHandler(this));
+        getCommand("wormhole").setTabCompleter(new WormholeTabCompleter(this));
+        
+        // Expose the jumps to other plugins
+        getServer().getServicesManager().register(
+                WormholeService.class, new RecordService(), this, ServicePriority.Normal);
+        
+        // Keep the caches coherent with other servers that share the database
+        startCacheInvalidation();
+        
+        // Log the changes to players, jumps, and signs
+        if (getConfig().getBoolean("changelog.enabled")) {
+            ChangeLog.start(getChangeLogDir(),
+                    (long) (getConfig().getDouble("changelog.max_file_mb")*1024*1024),
+                    getConfig().getInt("changelog.keep"));
+        }
+        
+        // Export the metrics
+        String textfile = getConfig().getString("metrics.textfile", "");
+        File textfileFile = null;
+        if (!textfile.isEmpty()) {
+            textfileFile = new File(textfile);
+            if (!textfileFile.isAbsolute()) textfileFile = new File(getDataFolder(), textfile);
+        }
+        MetricsExporter.start(getLogger(),
+                getConfig().getString("metrics.http_address", "127.0.0.1"),
+                getConfig().getInt("metrics.http_port"), textfileFile,
+                getConfig().getInt("metrics.textfile_interval_seconds"));
+        
+        // Watch the server thread for slow Wormhole operations
+        long watchdogThreshold = getConfig().getLong("watchdog.threshold_ms");
+        if (watchdogThreshold > 0) {
+            Watchdog.start(getLogger(), watchdogThreshold,
+                    getConfig().getInt("watchdog.report_ticks"));
+            getServer().getScheduler().runTaskTimer(this, Watchdog::tick, 1, 1);
+        }
+        
+        // Count down the cooldowns, continuing those saved at the last shutdown
+        if (getConfig().getBoolean("cooldowns.persist")) Cooldowns.load(this, getCooldownsFile());
+        getServer().getScheduler().runTaskTimer(this, Cooldowns::tick, 1, 1);
+        
+        // Poll the players warming up to jump
+        getServer().getScheduler().runTaskTimer(this, Warmups::tick, 1, 1);
+        
+        // Schedule database backups
+        long backupInterval = (long) (getConfig().getDouble("backup.interval_hours")*60*60*20);
+        if (backupInterval > 0) {
+            getServer().getScheduler().runTaskTimer(
+                    this, () -> backUpDatabase(null), backupInterval, backupInterval);
+        }
+        
+        // Schedule snapshots of the memory-resident store
+        long snapshotInterval = getConfig().getLong("storage.snapshot_interval_minutes")*60*20;
+        if (snapshotInterval > 0) {
+            getServer().getScheduler().runTaskTimer(this, () -> {
+                if (MemoryStore.isEnabled()) DBManager.submit(StoreSnapshot::compact);
+            }, snapshotInterval, snapshotInterval);
+        }
+        
+        getLogger().info("Enabled");
+        
+        // Migrate the database and warm up the caches in the background
+        warmUp();
+    }
+    
+    /** Starts broadcasting and receiving cache invalidations over the configured transport. */
+    private void startCacheInvalidation() {
+        String transportName = getConfig().getString("coherence.transport", "none");
+        if (transportName.equalsIgnoreCase("none")) return;
+        if ("memory".equalsIgnoreCase(getConfig().getString("storage.mode", "sqlite"))) {
+            getLogger().warning("Caches cannot be kept coherent with other servers when "+
+                    "'storage.mode' is \"memory\"; set 'coherence.transport' to \"none\"");
             return;
         }
-        // Save logged in players to the database
+        
+        // Create the transport
+        InvalidationTransport transport;
+        try {
+            switch (transportName.toLowerCase()) {
+                case "udp":
+                    transport = new UdpTransport(
+                            getConfig().getString("coherence.address", "127.0.0.1"),
+                            getConfig().getInt("coherence.port"),
+                            getConfig().getStringList("coherence.peers"));
+                    break;
+                case "bungee":
+                    transport = new BungeeTransport(this);
+                    break;
+                case "memory":
+                    transport = new MemoryTransport();
+                    break;
+                default:
+                    getLogger().warning("Unknown 'coherence.transport' \""+transportName+"\"");
+                    return;
+            }
+        } catch (IllegalArgumentException e) {
+            getLogger().warning("Invalid 'coherence' config: "+e.getMessage());
+            return;
+        }
+        
+        CacheInvalidation.start(transport, () -> runOnMainThread(this::resyncCaches));
+    }
+    
+    /** Drops the caches and warms them up again, after missing changes of other servers. */
+    private void resyncCaches() {
+        ready = false;
+        SignCache.clear();
+        PlayerCache.clear();
+        warmUp();
+    }
+    
+    /**
+     * Migrates the database and warms up the caches on the database thread, then marks the
+     * plugin as ready.  Disables the plugin if the migrations fail.
+     */
+    private void warmUp() {
+        final long start = System.nanoTime();
+        final String logPrefix = "[Warm-up] ";
+        getLogger().info(logPrefix+"Starting; commands are unavailable until done");
+        
+        // Get online players and loaded chunks while on the main thread
+        final Map<UUID, String> onlinePlayers = new HashMap<>();
         for (Player player : getServer().getOnlinePlayers()) {
-            PlayerRecord pr = PlayerRecord.load(player.getUniqueId());
-            // Player record exists?
-            if (pr != null) {
-                // Player usernames do not match (player changed their username)?
-                if (!pr.username.equals(player.getName())) {
-                    // Update username and save
-                    pr.username = player.getName();
-                    if (!pr.save()) {
-                        getLogger().warning("Failed to save player '" + player.getName() +
-                                "' to the database");
+            onlinePlayers.put(player.getUniqueId(), player.getName());
+            PlayerCache.expect(player.getUniqueId());
+        }
+        final Map<UUID, List<Chunk>> loadedChunks = new HashMap<>();
+        int loadedChunkCount = 0;
+        for (World world : getServer().getWorlds()) {
+            List<Chunk> chunks = Arrays.asList(world.getLoadedChunks());
+            loadedChunks.put(world.getUID(), chunks);
+            loadedChunkCount += chunks.size();
+        }
+        final int chunkCount = loadedChunkCount;
+        
+        // Get migration settings
+        final int batchSize = Math.max(1, getConfig().getInt(
+                "migrations.batch_size", DBManager.DEFAULT_MIGRATION_BATCH_SIZE));
+        final boolean dryRun = getConfig().getBoolean("migrations.dry_run", false);
+        final boolean memoryMode = "memory".equalsIgnoreCase(
+                getConfig().getString("storage.mode", "sqlite"));
+        
+        // Chunks unloaded before their signs are cached are then skipped
+        if (!memoryMode) {
+            for (List<Chunk> chunks : loadedChunks.values())
+                for (Chunk chunk : chunks) SignCache.expect(chunk);
+        }
+        DBManager.collectMigrationData();
+        
+        DBManager.submit(() -> {
+            // Only time the migrations against a copy of the database?
+            if (dryRun) {
+                getLogger().info(logPrefix+"Timing migrations against a copy of the database");
+                DBManager.migrateDryRun(batchSize);
+                getLogger().warning(logPrefix+"Dry run done; set 'migrations.dry_run' to false "+
+                        "to migrate the database");
+                runOnMainThread(this::disable);
+                return false;
+            }
+            
+            // Migrate the database
+            getLogger().info(logPrefix+"Migrating database");
+            if (!DBManager.migrate(batchSize)) {
+                runOnMainThread(this::disable);
+                return false;
+            }
+            
+            // Index the portals, which are kept in memory in either mode
+            getLogger().info(logPrefix+"Indexing portals");
+            if (!PortalIndex.load())
+                getLogger().warning(logPrefix+"Failed to load portals from the database");
+            
+            // Load everything into memory, and save logged in players there instead of caching
+            if (memoryMode) {
+                // Load the snapshot, or rebuild from the database if it is missing or stale
+                getLogger().info(logPrefix+"Loading store snapshot into memory");
+                if (!StoreSnapshot.load()) {
+                    getLogger().info(logPrefix+"Loading database into memory");
+                    if (!MemoryStore.load()) {
+                        runOnMainThread(this::disable);
+                        return false;
                     }
+                    MemoryStore.check("startup");
+                    StoreSnapshot.compact();
                 }
+                if (!onlinePlayers.isEmpty()) PlayerCache.prefetchAll(onlinePlayers);
+                runOnMainThread(() -> {
+                    finishWarmUp();
+                    getLogger().info(String.format(
+                            "%sDone in %.1f ms", logPrefix, (System.nanoTime()-start)/1e6));
+                });
+                return true;
             }
-            // Player record does not exist?
-            else {
-                // Create new player record and save
-                pr = new PlayerRecord(player);
-                if (!pr.save()) {
-                    getLogger().warning("Failed to save player '" + player.getName() +
-                            "' to the database");
+            
+            // Writes made in this mode do not go through the store's journal
+            StoreSnapshot.delete();
+            
+            // Save logged in players to the database in one transaction, and cache them
+            if (!onlinePlayers.isEmpty()) {
+                getLogger().info(logPrefix+"Caching "+onlinePlayers.size()+" online players");
+                long phaseStart = System.nanoTime();
+                if (PlayerCache.prefetchAll(onlinePlayers)) {
+                    getLogger().info(String.format(
+                            "%sSaved %d online players to the database in %.1f ms",
+                            logPrefix, onlinePlayers.size(), (System.nanoTime()-phaseStart)/1e6));
+                } else {
+                    getLogger().warning(logPrefix+"Failed to save online players to the database");
                 }
             }
+            
+            // Cache the signs of chunks that are already loaded
+            getLogger().info(logPrefix+"Caching signs in "+chunkCount+" loaded chunks");
+            for (Map.Entry<UUID, List<Chunk>> worldChunks : loadedChunks.entrySet()) {
+                for (Chunk chunk : worldChunks.getValue())
+                    SignCache.loadChunk(worldChunks.getKey(), chunk.getX(), chunk.getZ(), false);
+            }
+            
+            // Ready, once caught up with the chunks loaded and unloaded meanwhile
+            runOnMainThread(() -> {
+                finishWarmUp();
+                getLogger().info(String.format(
+                        "%sDone in %.1f ms", logPrefix, (System.nanoTime()-start)/1e6));
+            });
+            return true;
+        });
+    }
+    
+    /**
+     * Marks the plugin as ready, once the caches are warmed up.  The chunks cached were
+     * loaded when the warm-up began, and those unloaded since were evicted or skipped as
+     * they unloaded, so only those loaded since are left to cache.
+     */
+    private void finishWarmUp() {
+        for (Map.Entry<Chunk, Boolean> chunk : chunksLoadedWhileWarmingUp.entrySet()) {
+            if (chunk.getKey().isLoaded())
+                SignCache.loadChunkLater(chunk.getKey(), chunk.getValue());
+        }
+        chunksLoadedWhileWarmingUp.clear();
+        ready = true;
+    }
+    
+    /** Remembers a chunk loaded while warming up, to be cached once warmed up. */
+    void chunkLoadedWhileWarmingUp(Chunk chunk, boolean isNew) {
+        chunksLoadedWhileWarmingUp.merge(chunk, isNew, Boolean::logicalAnd);
+    }
+    
+    /**
+     * Backs up the database in the background, into the "backups" directory of the data
+     * folder, and deletes the oldest backups.
+     * @param sender Notified when the backup is done; may be null.
+     */
+    void backUpDatabase(final CommandSender sender) {
+        File backupDir = new File(getDataFolder(), "backups");
+        DatabaseBackup.backup(backupDir, getConfig().getInt("backup.keep"), backupFile -> {
+            if (sender == null) return;
+            runOnMainThread(() -> {
+                if (backupFile != null) {
+                    sender.sendMessage(ChatColor.DARK_GREEN+"Backed up database to "+
+                            ChatColor.RESET+backupFile.getName());
+                } else {
+                    sender.sendMessage(ChatColor.DARK_RED+"Failed to back up database;"+
+                            ChatColor.RESET+" see the server log");
+                }
+            });
+        });
+    }
+    
+    /**
+     * Returns the file with the given name in the "exports" directory of the data folder,
+     * creating the directory if needed, or null if the name is not a plain file name.
+     */
+    File getExportFile(String fileName) {
+        if (!fileName.matches("[\\w-][\\w.-]*")) return null;
+        File exportDir = new File(getDataFolder(), "exports");
+        if (!exportDir.isDirectory() && !exportDir.mkdirs()) return null;
+        return new File(exportDir, fileName);
+    }
+    
+    /** Exports all Wormhole data to the file on the database thread, notifying the sender. */
+    void exportData(final CommandSender sender, final File file) {
+        DBManager.submit(() -> {
+            DataTransfer.Result result = DataTransfer.export(file);
+            runOnMainThread(() -> {
+                if (result != null) {
+                    sender.sendMessage(ChatColor.DARK_GREEN+"Exported "+ChatColor.RESET+result);
+                } else {
+                    sender.sendMessage(ChatColor.DARK_RED+"Failed to export;"+ChatColor.RESET+
+                            " see the server log");
+                }
+            });
+            return result;
+        });
+    }
+    
+    /**
+     * Imports Wormhole data from the file on the database thread, notifying the sender.
+     * Commands are unavailable while importing, and the caches are warmed up again after.
+     */
+    void importData(final CommandSender sender, final File file) {
+        ready = false;
+        MemoryStore.unload();
+        SignCache.clear();
+        PlayerCache.clear();
+        DBManager.submit(() -> {
+            StoreSnapshot.delete();
+            DataTransfer.Result result = ChangeLog.bulkChange(
+                    "Import of '"+file.getName()+"' by "+sender.getName(),
+                    () -> DataTransfer.importFrom(file));
+            if (result != null) CacheInvalidation.flush();
+            runOnMainThread(() -> {
+                if (result != null) {
+                    sender.sendMessage(ChatColor.DARK_GREEN+"Imported "+ChatColor.RESET+result);
+                } else {
+                    sender.sendMessage(ChatColor.DARK_RED+"Failed to import;"+ChatColor.RESET+
+                            " see the server log");
+                }
+            });
+            return result;
+        });
+        warmUp();
+    }
+    
+    /**
+     * Imports the jumps of another plugin on the database thread, notifying the sender.
+     * Commands are unavailable while importing, and the caches are warmed up again after.
+     */
+    void importJumps(final CommandSender sender, final JumpSource source, final File path,
+                     final JumpImport.Conflict conflict, final boolean dryRun) {
+        // Get world names and UUIDs while on the main thread
+        final Map<String, UUID> worlds = new HashMap<>();
+        for (World world : getServer().getWorlds()) {
+            worlds.put(world.getName(), world.getUID());
+            worlds.put(world.getUID().toString(), world.getUID());
         }
         
-        // Set up PlayerManager and Economy
-        PlayerManager.setup(this);
-        EconManager.setup(this);
-        
-        // Register event handler, command handler, and tab completer
-        getServer().getPluginManager().registerEvents(new WormholeEventHandler(this), this);
-        getCommand("wormhole").setExecutor(new WormholeCommandHandler(this));
-        getCommand("wormhole").setTabCompleter(new WormholeTabCompleter());
+        // Get the players known to the server, to map the owners of the jumps to
+        final Map<UUID, String> players = new HashMap<>();
+        for (OfflinePlayer player : getServer().getOfflinePlayers()) {
+            if (player.getName() != null && player.getUniqueId() != null)
+                players.put(player.getUniqueId(), player.getName());
+        }
         
-        getLogger().info("Enabled");
+        ready = false;
+        MemoryStore.unload();
+        SignCache.clear();
+        PlayerCache.clear();
+        DBManager.submit(() -> {
+            StoreSnapshot.delete();
+            JumpImport.Report report = ChangeLog.bulkChange(
+                    dryRun ? null : "Import from "+source.getName()+" by "+sender.getName(),
+                    () -> JumpImport.run(source, path, worlds, players, conflict, dryRun));
+            if (report != null && !dryRun) CacheInvalidation.flush();
+            runOnMainThread(() -> {
+                if (report != null) {
+                    sender.sendMessage(ChatColor.DARK_GREEN+(dryRun ? "Dry run " : "Import ")+
+                            "done; "+ChatColor.RESET+report);
+                } else {
+                    sender.sendMessage(ChatColor.DARK_RED+"Failed to import;"+ChatColor.RESET+
+                            " see the server log");
+                }
+            });
+            return report;
+        });
+        warmUp();
+    }
+    
+    /** Returns the "changelog" directory of the data folder. */
+    private File getChangeLogDir() {
+        return new File(getDataFolder(), "changelog");
+    }
+    
+    /** Returns the "cooldowns.yml" file of the data folder, where cooldowns are saved. */
+    private File getCooldownsFile() {
+        return new File(getDataFolder(), "cooldowns.yml");
+    }
+    
+    /**
+     * Replays the changes logged after the sequence number on the database thread,
+     * notifying the sender.  Commands are unavailable while replaying, and the caches are
+     * warmed up again after.
+     */
+    void replayChanges(final CommandSender sender, final long afterSeq) {
+        ready = false;
+        MemoryStore.unload();
+        SignCache.clear();
+        PlayerCache.clear();
+        DBManager.submit(() -> {
+            StoreSnapshot.delete();
+            ChangeLogReplay.Result result = ChangeLogReplay.replay(getChangeLogDir(), afterSeq);
+            if (result != null) CacheInvalidation.flush();
+            runOnMainThread(() -> {
+                if (result != null) {
+                    sender.sendMessage(ChatColor.DARK_GREEN+"Replayed "+ChatColor.RESET+result);
+                } else {
+                    sender.sendMessage(ChatColor.DARK_RED+"Failed to replay;"+ChatColor.RESET+
+                            " see the server log");
+                }
+            });
+            return result;
+        });
+        warmUp();
+    }
+    
+    /** Runs the task on the main thread, unless the plugin has since been disabled. */
+    void runOnMainThread(Runnable task) {
+        if (isEnabled()) getServer().getScheduler().runTask(this, task);
+    }
+    
+    /**
+     * Returns true once the database is migrated and the caches are warmed up.
+     * Until then, commands are answered with a "warming up" message.
+     */
+    boolean isReady() {
+        return ready;
+    }
+    
+    /** If the plugin is not ready, notifies the sender and returns true. */
+    boolean notifySenderIfWarmingUp(CommandSender sender) {
+        if (ready) return false;
+        sender.sendMessage(ChatColor.DARK_PURPLE+"Wormhole is warming up;"+ChatColor.RESET+
+                " please try again in a moment");
+        return true;
     }
     
     @Override
     public void onDisable() {
+        ready = false;
+        chunksLoadedWhileWarmingUp.clear();
+        getServer().getServicesManager().unregisterAll(this);
+        DatabaseBackup.shutdown();
+        
+        // Check the memory-resident store against the database once all writes are persisted,
+        // then snapshot it for the next startup
+        if (MemoryStore.isEnabled()) {
+            try {
+                DBManager.submit(() -> {
+                    boolean consistent = MemoryStore.check("shutdown");
+                    if (consistent) StoreSnapshot.compact();
+                    else            StoreSnapshot.delete();
+                    StoreSnapshot.close();
+                    return consistent;
+                }).get(30, TimeUnit.SECONDS);
+            } catch (InterruptedException | ExecutionException | TimeoutException e) {
+                getLogger().warning("Failed to check memory-resident store against database");
+            }
+            MemoryStore.unload();
+        }
+        
+        // Save the cooldowns not yet over for the next startup
+        if (getConfig().getBoolean("cooldowns.persist")) Cooldowns.save(this, getCooldownsFile());
+        Cooldowns.clear();
+        Warmups.clear();
+        
+        MetricsExporter.stop();
+        Watchdog.stop();
+        CacheInvalidation.stop();
+        ChangeLog.stop();
         DBManager.closeConnection();
+        SignCache.clear();
+        PlayerCache.clear();
+        PortalIndex.clear();
         getLogger().info("Disabled");
     }
     
@@ -82,14 +551,60 @@ public class Wormhole extends JavaPlugin {
      */
     boolean notifyPlayerIfWorldIsBlacklisted(
             Player player, String worldName) {
+        String message = getWorldBlacklistedMessage(player, worldName);
+        if (message == null) return false;
+        player.sendMessage(message);
+        return true;
+    }
+    
+    /**
+     * Returns the message telling the player that the world is blacklisted, or null if it is
+     * not blacklisted for the player.
+     */
+    String getWorldBlacklistedMessage(Player player, String worldName) {
         if (worldIsBlacklisted(worldName) &&
-                !player.hasPermission("wormhole.ignore_world_blacklist")) {
-            player.sendMessage("Sorry, Wormhole is disabled for world '" + worldName + "'");
+                !player.hasPermission("wormhole.ignore_world_blacklist"))
+            return "Sorry, Wormhole is disabled for world '" + worldName + "'";
+        return null;
+    }
+    
+    /**
+     * Checks again, once the player has warmed up, what may have changed meanwhile: that
+     * neither the player's world nor the destination's is blacklisted, and that the player
+     * can still afford the action.  If not, the player is notified, and the function returns
+     * true.
+     * @param  action Economy action the player is charged for, e.g. "jump".
+     * @return true if the player can no longer jump; false otherwise.
+     */
+    boolean notifyPlayerIfCannotJumpAfterWarmup(Player player, World to, String action) {
+        if (notifyPlayerIfWorldIsBlacklisted(player, player.getWorld().getName())) return true;
+        if (to != null && notifyPlayerIfWorldIsBlacklisted(player, to.getName())) return true;
+        if (!player.hasPermission("wormhole.free") && !EconManager.hasBalance(player, action)) {
+            player.sendMessage(ChatColor.DARK_RED+"Jump cancelled;"+ChatColor.RESET+
+                    " you can no longer afford it");
             return true;
         }
         return false;
     }
     
+    /**
+     * Reloads the jump the player has warmed up for, which may have been moved or deleted
+     * meanwhile, and checks again the blacklist and balance.  If the player can no longer
+     * jump, the player is notified.
+     * @param  action Economy action the player is charged for, e.g. "jump".
+     * @return Jump record as it is now, or null if the player can no longer jump.
+     */
+    JumpRecord reloadJumpAfterWarmup(Player player, JumpRecord jumpRecord, String action) {
+        JumpRecord current = JumpRecord.loadWithId(jumpRecord.id);
+        if (current == null) {
+            player.sendMessage(ChatColor.DARK_RED+"Jump cancelled;"+ChatColor.RESET+
+                    " the jump no longer exists");
+            return null;
+        }
+        if (notifyPlayerIfCannotJumpAfterWarmup(player, current.getWorld(), action)) return null;
+        return current;
+    }
+    
     void playTeleportEffect(Location location) {
         /* Plays the teleport effect at the given location. */
         World world = location.getWorld();
@@ -117,6 +632,15 @@ public class Wormhole extends JavaPlugin {
         }
     }
     
+    /** Plays the warm-up effect at the location of a player about to jump. */
+    void playWarmupEffect(Location location) {
+        if (!getConfig().getBoolean("effects.smoke")) return;
+        World world = location.getWorld();
+        for (int x = 0; x < 8; x++) {
+            world.playEffect(location, Effect.SMOKE, x);
+        }
+    }
+    
     @SuppressWarnings("WeakerAccess")
     boolean worldIsBlacklisted(String worldName) {
         return getConfig().getStringList("world_blacklist").contains(worldName);
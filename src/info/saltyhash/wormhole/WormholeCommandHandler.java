@@ -1,12 +1,26 @@
 package info.saltyhash.wormhole;
 
+import java.io.File;
+import java.io.IOException;
+import java.sql.SQLException;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
+import info.saltyhash.wormhole.metrics.Histogram;
+import info.saltyhash.wormhole.metrics.Jfr;
+import info.saltyhash.wormhole.metrics.Metrics;
+import info.saltyhash.wormhole.metrics.Watchdog;
+import info.saltyhash.wormhole.persistence.ChangeLog;
+import info.saltyhash.wormhole.persistence.JumpImport;
 import info.saltyhash.wormhole.persistence.JumpRecord;
+import info.saltyhash.wormhole.persistence.JumpSource;
 import info.saltyhash.wormhole.persistence.PlayerRecord;
+import info.saltyhash.wormhole.persistence.PortalIndex;
+import info.saltyhash.wormhole.persistence.PortalRecord;
 import info.saltyhash.wormhole.persistence.SignRecord;
+import info.saltyhash.wormhole.persistence.UnitOfWork;
 import org.bukkit.*;
 import org.bukkit.block.Block;
 import org.bukkit.block.Sign;
@@ -84,46 +98,204 @@ class WormholeCommandHandler implements CommandExecutor {
             return;
         }
         
-        // Get player ID for jump
-        Integer playerId = null;    // Assume public
-        // Jump is private?
-        if (playerName != null) {
-            // Get player record for jump
-            PlayerRecord playerRecord = PlayerRecord.load(playerName);
-            // Player does not exist?
-            if (playerRecord == null) {
+        // Look up the owner, make sure the jump does not exist, and save it as one unit of work
+        final Location location = player.getLocation();
+        final JumpRecord[] added = new JumpRecord[1];
+        UnitOfWork.Outcome outcome = UnitOfWork.run(() -> {
+            // Get player ID for jump
+            Integer playerId = null;    // Assume public
+            // Jump is private?
+            if (playerName != null) {
+                // Get player record for jump
+                PlayerRecord playerRecord = PlayerRecord.load(playerName);
+                // Player does not exist?
+                if (playerRecord == null) {
+                    player.sendMessage(ERROR_MSG_PREFIX +
+                            "player '" + playerName + "' does not exist");
+                    return false;
+                }
+                // Set player ID
+                playerId = playerRecord.getId();
+            }
+            
+            // Check if jump record already exists
+            JumpRecord existing = JumpRecord.load(playerId, jumpName);
+            if (existing != null) {
                 player.sendMessage(ERROR_MSG_PREFIX +
-                        "player '" + playerName + "' does not exist");
-                return;
+                        "jump " + existing.getDescription(player) + " already exists");
+                return false;
             }
-            // Set player ID
-            playerId = playerRecord.getId();
-        }
+            
+            // Create new jump record and save it
+            added[0] = new JumpRecord(playerId, jumpName, location);
+            if (!added[0].save()) throw new SQLException("Failed to save jump record");
+            return true;
+        });
+        if (notifyPlayerIfWorkFailed(player, outcome, ERROR_MSG_PREFIX,
+                "jump '" + jumpName + "' was just added by someone else",
+                "add jump '" + jumpName + "'")) return;
+        JumpRecord jumpRecord = added[0];
         
-        // Check if jump record already exists
-        JumpRecord jumpRecord = JumpRecord.load(playerId, jumpName);
-        if (jumpRecord != null) {
-            player.sendMessage(ERROR_MSG_PREFIX +
-                    "jump " + jumpRecord.getDescription(player) + " already exists");
+        player.sendMessage(ChatColor.DARK_GREEN + "Added" + ChatColor.RESET +
+                " jump " + jumpRecord.getDescription(player));
+        
+        // Charge player
+        if (!player.hasPermission("wormhole.free")) EconManager.charge(player, "add");
+    }
+    
+    /**
+     * Handles the "admin" command.
+     * Usage: /worm admin <backup | export <file> | import <file> | importfrom <source> ... |
+     *                   replay <seq>>
+     */
+    private void commandAdmin(CommandSender sender, String[] args) {
+        // Get admin subcommand
+        if (args.length < 1) {
+            sender.sendMessage(getCommandUsage("worm admin"));
             return;
         }
+        String adminCommand = args[0].toLowerCase();
         
-        // Create new jump record
-        jumpRecord = new JumpRecord(playerId, jumpName, player.getLocation());
+        switch (adminCommand) {
+            case "backup":
+                if (!sender.hasPermission("wormhole.admin.backup")) {
+                    sender.sendMessage(ChatColor.DARK_RED+"You cannot back up the database");
+                    return;
+                }
+                sender.sendMessage(ChatColor.DARK_PURPLE+"Backing up database...");
+                wormhole.getLogger().info("Database backup started by "+sender.getName());
+                wormhole.backUpDatabase(sender);
+                break;
+            case "export":
+            case "import":
+                if (!sender.hasPermission("wormhole.admin."+adminCommand)) {
+                    sender.sendMessage(ChatColor.DARK_RED+"You cannot "+adminCommand+
+                            " Wormhole data");
+                    return;
+                }
+                if (args.length != 2) {
+                    sender.sendMessage(getCommandUsage("worm admin"));
+                    return;
+                }
+                File file = wormhole.getExportFile(args[1]);
+                if (file == null) {
+                    sender.sendMessage(ChatColor.DARK_RED+"Invalid file name '"+args[1]+"'");
+                    return;
+                }
+                if (adminCommand.equals("export")) {
+                    sender.sendMessage(ChatColor.DARK_PURPLE+"Exporting to "+file.getName()+"...");
+                    wormhole.exportData(sender, file);
+                } else {
+                    if (!file.isFile()) {
+                        sender.sendMessage(ChatColor.DARK_RED+"File '"+file.getName()+
+                                "' does not exist in the exports folder");
+                        return;
+                    }
+                    sender.sendMessage(ChatColor.DARK_PURPLE+"Importing from "+file.getName()+
+                            "; commands are unavailable until done...");
+                    wormhole.importData(sender, file);
+                }
+                wormhole.getLogger().info("Data "+adminCommand+" of '"+file.getName()+
+                        "' started by "+sender.getName());
+                break;
+            case "importfrom":
+                commandAdminImportFrom(sender, Arrays.copyOfRange(args, 1, args.length));
+                break;
+            case "replay":
+                if (!sender.hasPermission("wormhole.admin.replay")) {
+                    sender.sendMessage(ChatColor.DARK_RED+"You cannot replay the change log");
+                    return;
+                }
+                if (args.length != 2) {
+                    sender.sendMessage(getCommandUsage("worm admin"));
+                    return;
+                }
+                long afterSeq;
+                try {
+                    afterSeq = Long.parseLong(args[1]);
+                } catch (NumberFormatException e) {
+                    afterSeq = -1;
+                }
+                if (afterSeq < 0) {
+                    sender.sendMessage(ChatColor.DARK_RED+"Invalid sequence number '"+args[1]+"'");
+                    return;
+                }
+                sender.sendMessage(ChatColor.DARK_PURPLE+"Replaying changes after #"+afterSeq+
+                        "; commands are unavailable until done...");
+                wormhole.getLogger().info("Change log replay after #"+afterSeq+
+                        " started by "+sender.getName());
+                wormhole.replayChanges(sender, afterSeq);
+                break;
+            default:
+                sender.sendMessage(getCommandUsage("worm admin"));
+        }
+    }
+    
+    /**
+     * Handles the "admin importfrom" command.
+     * Usage: /worm admin importfrom <source> [path] [skip | overwrite | rename] [dryrun]
+     * The path is relative to the plugins folder, and defaults to where the source keeps
+     * its data.
+     */
+    private void commandAdminImportFrom(CommandSender sender, String[] args) {
+        final String USAGE = ChatColor.DARK_PURPLE+"Usage:"+ChatColor.RESET+
+                " /worm admin importfrom <"+String.join(" | ", JumpImport.getSourceNames())+
+                "> [path] [skip | overwrite | rename] [dryrun]";
         
-        // Save jump record; failed (unknown reason)?
-        if (!jumpRecord.save()) {
-            player.sendMessage(ERROR_MSG_PREFIX + "internal error");
-            wormhole.getLogger().warning("Player '" + player.getName() + "' failed to add jump " +
-                    jumpRecord.getDescription() + "; failed to save jump record");
+        if (!sender.hasPermission("wormhole.admin.import")) {
+            sender.sendMessage(ChatColor.DARK_RED+"You cannot import Wormhole data");
             return;
         }
         
-        player.sendMessage(ChatColor.DARK_GREEN + "Added" + ChatColor.RESET +
-                " jump " + jumpRecord.getDescription(player));
+        // Get source
+        if (args.length < 1) {
+            sender.sendMessage(USAGE);
+            return;
+        }
+        JumpSource source = JumpImport.getSource(args[0]);
+        if (source == null) {
+            sender.sendMessage(ChatColor.DARK_RED+"Unknown source '"+args[0]+"'");
+            sender.sendMessage(USAGE);
+            return;
+        }
         
-        // Charge player
-        if (!player.hasPermission("wormhole.free")) EconManager.charge(player, "add");
+        // Get options and path
+        File pluginsDir = wormhole.getDataFolder().getParentFile();
+        File path = source.getDefaultPath(pluginsDir);
+        JumpImport.Conflict conflict = JumpImport.Conflict.SKIP;
+        boolean dryRun = false;
+        for (int i = 1; i < args.length; i++) {
+            switch (args[i].toLowerCase()) {
+                case "skip"     : conflict = JumpImport.Conflict.SKIP;      break;
+                case "overwrite": conflict = JumpImport.Conflict.OVERWRITE; break;
+                case "rename"   : conflict = JumpImport.Conflict.RENAME;    break;
+                case "dryrun"   : dryRun = true;                            break;
+                default         : path = new File(pluginsDir, args[i]);
+            }
+        }
+        
+        // Make sure the path is inside the plugins folder and exists
+        try {
+            if (!path.getCanonicalPath().startsWith(pluginsDir.getCanonicalPath()+File.separator)) {
+                sender.sendMessage(ChatColor.DARK_RED+"Path must be inside the plugins folder");
+                return;
+            }
+        } catch (IOException e) {
+            sender.sendMessage(ChatColor.DARK_RED+"Invalid path '"+path+"'");
+            return;
+        }
+        if (!path.exists()) {
+            sender.sendMessage(ChatColor.DARK_RED+"'"+path+"' does not exist");
+            return;
+        }
+        
+        sender.sendMessage(ChatColor.DARK_PURPLE+(dryRun ? "Dry run of importing" : "Importing")+
+                " jumps from "+ChatColor.RESET+path+ChatColor.DARK_PURPLE+
+                "; commands are unavailable until done...");
+        wormhole.getLogger().info("Import of jumps from '"+path+"' ("+source.getName()+", "+
+                conflict.name().toLowerCase()+(dryRun ? ", dry run" : "")+") started by "+
+                sender.getName());
+        wormhole.importJumps(sender, source, path, conflict, dryRun);
     }
     
     /**
@@ -147,6 +319,9 @@ class WormholeCommandHandler implements CommandExecutor {
             return;
         }
         
+        // Player jumped back too recently?
+        if (Cooldowns.notifyPlayerIfCoolingDown(player, Cooldowns.Action.BACK)) return;
+        
         // Make sure player can afford this action
         if (!player.hasPermission("wormhole.free")
                 && !EconManager.hasBalance(player, "back")) {
@@ -166,27 +341,38 @@ class WormholeCommandHandler implements CommandExecutor {
         JumpRecord prevJumpRecord = new JumpRecord();
         prevJumpRecord.setLocation(previousLocation);
         
-        // Get the player's current location as the new previous location
-        Location newPreviousLocation = player.getLocation();
-        
-        // Teleport the player to the previous location; failed?
-        if (!prevJumpRecord.teleportPlayer(player)) {
-            player.sendMessage(ChatColor.DARK_RED+
-                    "Failed to jump to previous location; internal error");
-            wormhole.getLogger().warning("Failed to jump player '"+player.getName()+
-                    "' to previous location; unknown reason");
-            return;
-        }
-        
-        // Play teleport effect
-        wormhole.playTeleportEffect(newPreviousLocation);
-        wormhole.playTeleportEffect(player.getLocation());
-        
-        // Save the new previous location
-        PlayerManager.setPreviousLocation(player, newPreviousLocation);
-    
-        // Charge player
-        if (!player.hasPermission("wormhole.free")) EconManager.charge(player, "back");
+        // Teleport the player to the previous location once warmed up
+        Warmups.start(player, warmedUp -> {
+            // Player's world blacklisted, or player spent their money, meanwhile?
+            if (warmedUp && wormhole.notifyPlayerIfCannotJumpAfterWarmup(
+                    player, previousLocation.getWorld(), "back"))
+                return;
+            
+            // Get the player's current location as the new previous location
+            Location newPreviousLocation = player.getLocation();
+            
+            // Teleport the player to the previous location; failed?
+            if (!prevJumpRecord.teleportPlayer(player)) {
+                player.sendMessage(ChatColor.DARK_RED+
+                        "Failed to jump to previous location; internal error");
+                wormhole.getLogger().warning("Failed to jump player '"+player.getName()+
+                        "' to previous location; unknown reason");
+                return;
+            }
+            
+            // Play teleport effect
+            wormhole.playTeleportEffect(newPreviousLocation);
+            wormhole.playTeleportEffect(player.getLocation());
+            
+            // Save the new previous location
+            PlayerManager.setPreviousLocation(player, newPreviousLocation);
+            
+            // Start the cooldown
+            Cooldowns.start(player, Cooldowns.Action.BACK);
+            
+            // Charge player
+            if (!player.hasPermission("wormhole.free")) EconManager.charge(player, "back");
+        });
     }
     
     /**
@@ -280,7 +466,7 @@ class WormholeCommandHandler implements CommandExecutor {
             player.sendMessage(ChatColor.DARK_RED+"You cannot afford to delete jumps");
             return;
         }
-    
+        
         // Get player ID for jump
         Integer playerId = null;    // Assume public
         // Jump is private?
@@ -334,6 +520,9 @@ class WormholeCommandHandler implements CommandExecutor {
         }
         Player player = (Player)sender;
         
+        // Player is jumping too often?
+        if (!RateLimiter.tryAcquire(player, RateLimiter.Action.JUMP)) return;
+        
         // Player is in blacklisted world?
         if (wormhole.notifyPlayerIfWorldIsBlacklisted(player, player.getWorld().getName())) return;
         
@@ -372,6 +561,9 @@ class WormholeCommandHandler implements CommandExecutor {
             }
         }
         
+        // Player jumped too recently?
+        if (Cooldowns.notifyPlayerIfCoolingDown(player, Cooldowns.Action.JUMP)) return;
+        
         // Make sure player can afford this action
         if (!player.hasPermission("wormhole.free")
                 && !EconManager.hasBalance(player, "jump")) {
@@ -379,7 +571,7 @@ class WormholeCommandHandler implements CommandExecutor {
                     "You cannot afford to jump directly to a jump");
             return;
         }
-    
+        
         // Get player ID for jump
         Integer playerId = null;    // Assume public
         // Jump is private?
@@ -412,25 +604,36 @@ class WormholeCommandHandler implements CommandExecutor {
         // Jump destination is in a blacklisted world?
         if (wormhole.notifyPlayerIfWorldIsBlacklisted(player, jumpRecord.getWorld().getName())) return;
         
-        Location from = player.getLocation();
-        
-        // Teleport the player; failed?
-        if (!jumpRecord.teleportPlayer(player)) {
-            player.sendMessage(ERROR_MSG_PREFIX + "unknown reason");
-            wormhole.getLogger().warning("Player '" + player.getName() + "' failed to jump to "+
-                    jumpRecord.getDescription() + "; unknown reason");
-            return;
-        }
-        
-        // Play teleport effects
-        wormhole.playTeleportEffect(from);
-        wormhole.playTeleportEffect(player.getLocation());
-        
-        // Store previous location
-        PlayerManager.setPreviousLocation(player, from);
-        
-        // Charge player
-        if (!player.hasPermission("wormhole.free")) EconManager.charge(player, "jump");
+        // Teleport the player once warmed up
+        Warmups.start(player, warmedUp -> {
+            // Jump moved or deleted, world blacklisted, or player spent their money, meanwhile?
+            JumpRecord jump = warmedUp ?
+                    wormhole.reloadJumpAfterWarmup(player, jumpRecord, "jump") : jumpRecord;
+            if (jump == null) return;
+            
+            Location from = player.getLocation();
+            
+            // Teleport the player; failed?
+            if (!jump.teleportPlayer(player)) {
+                player.sendMessage(ERROR_MSG_PREFIX + "unknown reason");
+                wormhole.getLogger().warning("Player '" + player.getName() +
+                        "' failed to jump to " + jump.getDescription() + "; unknown reason");
+                return;
+            }
+            
+            // Play teleport effects
+            wormhole.playTeleportEffect(from);
+            wormhole.playTeleportEffect(player.getLocation());
+            
+            // Store previous location
+            PlayerManager.setPreviousLocation(player, from);
+            
+            // Start the cooldown
+            Cooldowns.start(player, Cooldowns.Action.JUMP);
+            
+            // Charge player
+            if (!player.hasPermission("wormhole.free")) EconManager.charge(player, "jump");
+        });
     }
     
     /**
@@ -444,6 +647,9 @@ class WormholeCommandHandler implements CommandExecutor {
         int page;
         String playerName;
         
+        // Sender is listing too often?
+        if (!RateLimiter.tryAcquire(sender, RateLimiter.Action.LIST)) return;
+        
         // Parse arguments
         try {
             // First arg should be empty to imply first page,
@@ -519,7 +725,7 @@ class WormholeCommandHandler implements CommandExecutor {
                 return;
             }
         }
-    
+        
         // Get player ID for jump
         Integer playerId = null;    // Assume public
         // Jump is private?
@@ -596,6 +802,193 @@ class WormholeCommandHandler implements CommandExecutor {
         sender.sendMessage(msg.toString());
     }
     
+    /**
+     * Handles the "portal" command.
+     * Usage: /worm portal <corner | add [player | public] <jump name> | delete>
+     * Portals span the blocks between the last two corners marked, where the player stood.
+     */
+    private void commandPortal(CommandSender sender, String[] args) {
+        // Make sure sender is a player
+        if (!(sender instanceof Player)) {
+            sender.sendMessage("Must be a player");
+            return;
+        }
+        Player player = (Player)sender;
+        
+        // Get portal subcommand
+        if (args.length < 1) {
+            player.sendMessage(getCommandUsage("worm portal"));
+            return;
+        }
+        String portalCommand = args[0].toLowerCase();
+        
+        // Player is in blacklisted world?
+        if (wormhole.notifyPlayerIfWorldIsBlacklisted(player, player.getWorld().getName())) return;
+        
+        switch (portalCommand) {
+            case "corner":
+                if (!player.hasPermission("wormhole.portal.add")) {
+                    player.sendMessage(ChatColor.DARK_RED+"You cannot add portals");
+                    return;
+                }
+                Location corner = player.getLocation();
+                PlayerManager.addPortalCorner(player, corner);
+                player.sendMessage(String.format("%sMarked corner%s (%d, %d, %d)",
+                        ChatColor.DARK_GREEN, ChatColor.RESET,
+                        corner.getBlockX(), corner.getBlockY(), corner.getBlockZ()));
+                break;
+            case "add":
+                commandPortalAdd(player, Arrays.copyOfRange(args, 1, args.length));
+                break;
+            case "delete":
+                commandPortalDelete(player);
+                break;
+            default:
+                player.sendMessage(getCommandUsage("worm portal"));
+        }
+    }
+    
+    /**
+     * Handles the "portal add" command.
+     * Usage: /worm portal add [player | public] <jump name>
+     */
+    private void commandPortalAdd(Player player, String[] args) {
+        final String ERROR_MSG_PREFIX =
+                ChatColor.DARK_RED + "Failed to add portal; " + ChatColor.RESET;
+        
+        // Check permissions
+        if (!player.hasPermission("wormhole.portal.add")) {
+            player.sendMessage(ChatColor.DARK_RED+"You cannot add portals");
+            return;
+        }
+        
+        // Get jump info from args
+        String[] jumpInfo = getJumpInfoFromArgs(player, args);
+        // Parse error?
+        if (jumpInfo == null) {
+            player.sendMessage(getCommandUsage("worm portal"));
+            return;
+        }
+        String playerName = jumpInfo[0];
+        String jumpName   = jumpInfo[1];
+        
+        // Get the corners of the portal
+        Location[] corners = PlayerManager.getPortalCorners(player);
+        if (corners[0] == null || corners[1] == null) {
+            player.sendMessage(ERROR_MSG_PREFIX+"mark two corners first, "+
+                    "with \"/worm portal corner\"");
+            return;
+        }
+        if (corners[0].getWorld() != corners[1].getWorld()) {
+            player.sendMessage(ERROR_MSG_PREFIX+"the corners are in different worlds");
+            return;
+        }
+        
+        // Get player ID for jump
+        Integer playerId = null;    // Assume public
+        // Jump is private?
+        if (playerName != null) {
+            // Get player record for jump
+            PlayerRecord playerRecord = PlayerRecord.load(playerName);
+            // Player does not exist?
+            if (playerRecord == null) {
+                player.sendMessage(ERROR_MSG_PREFIX +
+                        "player '" + playerName + "' does not exist");
+                return;
+            }
+            // Set player ID
+            playerId = playerRecord.getId();
+        }
+        
+        // Get the jump record
+        JumpRecord jumpRecord = JumpRecord.load(playerId, jumpName);
+        // Jump does not exist?
+        if (jumpRecord == null) {
+            player.sendMessage(ERROR_MSG_PREFIX + "jump " +
+                    JumpRecord.getDescription(player, playerName, jumpName) +
+                    " does not exist");
+            return;
+        }
+        
+        // Jump destination is in a blacklisted world?
+        if (wormhole.notifyPlayerIfWorldIsBlacklisted(player, jumpRecord.getWorld().getName()))
+            return;
+        
+        // Create the portal record
+        PortalRecord portalRecord = new PortalRecord(corners[0].getWorld().getUID(),
+                corners[0].getBlockX(), corners[0].getBlockY(), corners[0].getBlockZ(),
+                corners[1].getBlockX(), corners[1].getBlockY(), corners[1].getBlockZ(),
+                jumpRecord.id);
+        
+        // Portal is too large?
+        int maxSize = wormhole.getConfig().getInt("portals.max_size", 64);
+        if (portalRecord.maxX-portalRecord.minX >= maxSize ||
+                portalRecord.maxY-portalRecord.minY >= maxSize ||
+                portalRecord.maxZ-portalRecord.minZ >= maxSize) {
+            player.sendMessage(ERROR_MSG_PREFIX+"portals are at most "+maxSize+
+                    " blocks on each side");
+            return;
+        }
+        
+        // Portal overlaps another?
+        PortalRecord overlapping = PortalIndex.getOverlapping(portalRecord);
+        if (overlapping != null) {
+            player.sendMessage(ERROR_MSG_PREFIX+"overlaps the portal "+
+                    overlapping.getBoundsDescription());
+            return;
+        }
+        
+        // Save the portal record; error?
+        if (!portalRecord.save()) {
+            player.sendMessage(ERROR_MSG_PREFIX+"internal error");
+            wormhole.getLogger().warning("Player '"+player.getName()+
+                    "' failed to save portal record");
+            return;
+        }
+        
+        player.sendMessage(ChatColor.DARK_GREEN+"Added portal"+ChatColor.RESET+" "+
+                portalRecord.getBoundsDescription()+" to jump "+jumpRecord.getDescription(player));
+        wormhole.getLogger().info("Portal "+portalRecord.getBoundsDescription()+" to jump "+
+                jumpRecord.getDescription()+" added by "+player.getName());
+    }
+    
+    /**
+     * Handles the "portal delete" command, deleting the portal nearest to the player in
+     * their chunk.
+     * Usage: /worm portal delete
+     */
+    private void commandPortalDelete(Player player) {
+        // Check permissions
+        if (!player.hasPermission("wormhole.portal.delete")) {
+            player.sendMessage(ChatColor.DARK_RED+"You cannot delete portals");
+            return;
+        }
+        
+        // Get the portal nearest to the player
+        Location location = player.getLocation();
+        PortalRecord portalRecord = PortalIndex.getNearest(location.getWorld().getUID(),
+                location.getBlockX(), location.getBlockY(), location.getBlockZ());
+        if (portalRecord == null) {
+            player.sendMessage(ChatColor.DARK_RED+"Failed to delete portal;"+ChatColor.RESET+
+                    " no portal in this chunk");
+            return;
+        }
+        
+        // Delete the portal record; error?
+        if (!portalRecord.delete()) {
+            player.sendMessage(ChatColor.DARK_RED+"Failed to delete portal;"+ChatColor.RESET+
+                    " internal error");
+            wormhole.getLogger().warning("Player '"+player.getName()+
+                    "' failed to delete portal record");
+            return;
+        }
+        
+        player.sendMessage(ChatColor.RED+"Deleted portal"+ChatColor.RESET+" "+
+                portalRecord.getBoundsDescription());
+        wormhole.getLogger().info("Portal "+portalRecord.getBoundsDescription()+
+                " deleted by "+player.getName());
+    }
+    
     /**
      * Handles the "reload" command.
      * Usage: /worm reload
@@ -606,6 +999,9 @@ class WormholeCommandHandler implements CommandExecutor {
             return;
         }
         wormhole.reloadConfig();
+        RateLimiter.setup(wormhole);
+        Cooldowns.setup(wormhole);
+        Warmups.setup(wormhole);
         sender.sendMessage(ChatColor.DARK_GREEN+"Wormhole config reloaded");
         wormhole.getLogger().info("Config reloaded by "+sender.getName());
     }
@@ -675,57 +1071,57 @@ class WormholeCommandHandler implements CommandExecutor {
                 return;
             }
         }
-    
+        
         // Make sure player can afford this action
         if (!player.hasPermission("wormhole.free")
                 && !EconManager.hasBalance(player, "rename")) {
             player.sendMessage(ChatColor.DARK_RED+"You cannot afford to rename jumps");
             return;
         }
-    
-        // Get player ID for jump
-        Integer playerId = null;    // Assume public
-        // Jump is private?
-        if (playerName != null) {
-            // Get player record for jump
-            PlayerRecord playerRecord = PlayerRecord.load(playerName);
-            // Player does not exist?
-            if (playerRecord == null) {
-                player.sendMessage(ERROR_MSG_PREFIX +
-                        "player '" + playerName + "' does not exist");
-                return;
-            }
-            // Set player ID
-            playerId = playerRecord.getId();
-        }
-        
-        // Try to get a jump record matching the new name
-        JumpRecord jumpRecord = JumpRecord.load(playerId, newJumpName);
-        // Jump with new name already exists?
-        if (jumpRecord != null) {
-            player.sendMessage(ERROR_MSG_PREFIX + "a jump named '" + newJumpName +
-                    "' already exists");
-            return;
-        }
         
-        // Get the jump record with the old name
-        jumpRecord = JumpRecord.load(playerId, oldJumpName);
-        // Jump DNE?
-        if (jumpRecord == null) {
-            player.sendMessage(ERROR_MSG_PREFIX + "jump '" + oldJumpName + "' does not exist");
-            return;
-        }
-        
-        // Save the new jump name
-        jumpRecord.name = newJumpName;
-        // Error?
-        if (!jumpRecord.save()) {
-            player.sendMessage(ERROR_MSG_PREFIX + "unknown reason");
-            wormhole.getLogger().warning("Player '" + player.getName() +
-                    "' failed to rename jump '" + oldJumpName + "' to '" + newJumpName +
-                    "'; unknown reason");
-            return;
-        }
+        // Look up the owner and both names, and save the new name as one unit of work
+        final JumpRecord[] renamed = new JumpRecord[1];
+        UnitOfWork.Outcome outcome = UnitOfWork.run(() -> {
+            // Get player ID for jump
+            Integer playerId = null;    // Assume public
+            // Jump is private?
+            if (playerName != null) {
+                // Get player record for jump
+                PlayerRecord playerRecord = PlayerRecord.load(playerName);
+                // Player does not exist?
+                if (playerRecord == null) {
+                    player.sendMessage(ERROR_MSG_PREFIX +
+                            "player '" + playerName + "' does not exist");
+                    return false;
+                }
+                // Set player ID
+                playerId = playerRecord.getId();
+            }
+            
+            // Jump with new name already exists?
+            if (JumpRecord.load(playerId, newJumpName) != null) {
+                player.sendMessage(ERROR_MSG_PREFIX + "a jump named '" + newJumpName +
+                        "' already exists");
+                return false;
+            }
+            
+            // Get the jump record with the old name
+            renamed[0] = JumpRecord.load(playerId, oldJumpName);
+            // Jump DNE?
+            if (renamed[0] == null) {
+                player.sendMessage(ERROR_MSG_PREFIX + "jump '" + oldJumpName + "' does not exist");
+                return false;
+            }
+            
+            // Save the new jump name
+            renamed[0].name = newJumpName;
+            if (!renamed[0].save()) throw new SQLException("Failed to save jump record");
+            return true;
+        });
+        if (notifyPlayerIfWorkFailed(player, outcome, ERROR_MSG_PREFIX,
+                "a jump named '" + newJumpName + "' was just added by someone else",
+                "rename jump '" + oldJumpName + "' to '" + newJumpName + "'")) return;
+        JumpRecord jumpRecord = renamed[0];
         
         player.sendMessage(String.format(
             "%sRenamed%s jump '%s' to %s",
@@ -794,43 +1190,46 @@ class WormholeCommandHandler implements CommandExecutor {
             player.sendMessage(ChatColor.DARK_RED+"You cannot afford to replace jumps");
             return;
         }
-    
-        // Get player ID for jump
-        Integer playerId = null;    // Assume public
-        // Jump is private?
-        if (playerName != null) {
-            // Get player record for jump
-            PlayerRecord playerRecord = PlayerRecord.load(playerName);
-            // Player does not exist?
-            if (playerRecord == null) {
-                player.sendMessage(ERROR_MSG_PREFIX +
-                        "player '" + playerName + "' does not exist");
-                return;
-            }
-            // Set player ID
-            playerId = playerRecord.getId();
-        }
-        
-        // Get the jump record
-        JumpRecord jumpRecord = JumpRecord.load(playerId, jumpName);
-        // Jump does not exist?
-        if (jumpRecord == null) {
-            player.sendMessage(ERROR_MSG_PREFIX + "jump " +
-                    JumpRecord.getDescription(player, playerName, jumpName) + " does not exist");
-            return;
-        }
-        
-        // Set the location of the jump to the player's current location
-        jumpRecord.setLocation(player.getLocation());
         
-        // Save jump record; failed?
-        if (!jumpRecord.save()) {
-            player.sendMessage(ERROR_MSG_PREFIX + "internal error");
-            wormhole.getLogger().warning("Player '" + player.getName() +
-                    "' failed to replace jump " + jumpRecord.getDescription() +
-                    "; failed to save jump record");
-            return;
-        }
+        // Look up the owner and the jump, and save its new location as one unit of work
+        final Location location = player.getLocation();
+        final JumpRecord[] replaced = new JumpRecord[1];
+        UnitOfWork.Outcome outcome = UnitOfWork.run(() -> {
+            // Get player ID for jump
+            Integer playerId = null;    // Assume public
+            // Jump is private?
+            if (playerName != null) {
+                // Get player record for jump
+                PlayerRecord playerRecord = PlayerRecord.load(playerName);
+                // Player does not exist?
+                if (playerRecord == null) {
+                    player.sendMessage(ERROR_MSG_PREFIX +
+                            "player '" + playerName + "' does not exist");
+                    return false;
+                }
+                // Set player ID
+                playerId = playerRecord.getId();
+            }
+            
+            // Get the jump record
+            replaced[0] = JumpRecord.load(playerId, jumpName);
+            // Jump does not exist?
+            if (replaced[0] == null) {
+                player.sendMessage(ERROR_MSG_PREFIX + "jump " +
+                        JumpRecord.getDescription(player, playerName, jumpName) +
+                        " does not exist");
+                return false;
+            }
+            
+            // Set the location of the jump to the player's current location and save it
+            replaced[0].setLocation(location);
+            if (!replaced[0].save()) throw new SQLException("Failed to save jump record");
+            return true;
+        });
+        if (notifyPlayerIfWorkFailed(player, outcome, ERROR_MSG_PREFIX,
+                "jump '" + jumpName + "' already exists",
+                "replace jump '" + jumpName + "'")) return;
+        JumpRecord jumpRecord = replaced[0];
         
         player.sendMessage(ChatColor.DARK_GREEN+"Replaced"+ChatColor.RESET+" jump "+
             jumpRecord.getDescription(player));
@@ -853,6 +1252,9 @@ class WormholeCommandHandler implements CommandExecutor {
             return;
         }
         Player player = (Player)sender;
+        
+        // Player is searching too often?
+        if (!RateLimiter.tryAcquire(player, RateLimiter.Action.SEARCH)) return;
         // Get jump info from args
         String[] jumpInfo = getJumpInfoFromArgs(player, args);
         // Parse error?
@@ -940,6 +1342,60 @@ class WormholeCommandHandler implements CommandExecutor {
         sender.sendMessage(msg.toString());
     }
     
+    /**
+     * Handles the "stats" command.
+     * Usage: /worm stats [reset | <prefix>]
+     */
+    private void commandStats(CommandSender sender, String[] args) {
+        if (!sender.hasPermission("wormhole.stats")) {
+            sender.sendMessage(ChatColor.DARK_RED+"You cannot view Wormhole stats");
+            return;
+        }
+        if (args.length > 1) {
+            sender.sendMessage(getCommandUsage("worm stats"));
+            return;
+        }
+        
+        // Reset stats?
+        if (args.length == 1 && args[0].equalsIgnoreCase("reset")) {
+            Metrics.reset();
+            sender.sendMessage(ChatColor.DARK_GREEN+"Reset Wormhole stats");
+            return;
+        }
+        
+        // Build the stats starting with the prefix, if any
+        String prefix = (args.length == 1) ? args[0].toLowerCase() : "";
+        StringBuilder stats = new StringBuilder();
+        for (Histogram histogram : Metrics.getHistograms().values()) {
+            if (!histogram.getName().startsWith(prefix)) continue;
+            Histogram.Snapshot snapshot = histogram.snapshot();
+            if (snapshot.getCount() == 0) continue;
+            stats.append(String.format("\n- %s: %d, %s / %s / %s", histogram.getName(),
+                    snapshot.getCount(),
+                    Metrics.formatNanos(snapshot.getPercentile(50)),
+                    Metrics.formatNanos(snapshot.getPercentile(99)),
+                    Metrics.formatNanos(snapshot.getMax())));
+        }
+        for (Map.Entry<String, Long> counter : Metrics.getCounters().entrySet()) {
+            if (!counter.getKey().startsWith(prefix) || counter.getValue() == 0) continue;
+            stats.append(String.format("\n- %s: %d", counter.getKey(), counter.getValue()));
+        }
+        for (Map.Entry<String, Double> gauge : Metrics.getGauges().entrySet()) {
+            if (!gauge.getKey().startsWith(prefix)) continue;
+            stats.append(String.format("\n- %s: %.3f", gauge.getKey(), gauge.getValue()));
+        }
+        
+        if (stats.length() == 0) {
+            sender.sendMessage(ChatColor.DARK_PURPLE+"No Wormhole stats recorded"+
+                    (prefix.isEmpty() ? "" : " starting with '"+prefix+"'"));
+            return;
+        }
+        String tickReport = Watchdog.getTickReport();
+        sender.sendMessage(ChatColor.DARK_PURPLE+"Wormhole Stats"+ChatColor.RESET+
+                " (count, p50 / p99 / max)"+stats+
+                ((tickReport != null) ? "\nServer thread: "+tickReport : ""));
+    }
+    
     /**
      * Handles the "set" command.
      * Usage:  /worm set [player | public] <jump name>
@@ -991,7 +1447,7 @@ class WormholeCommandHandler implements CommandExecutor {
                 return;
             }
         }
-    
+        
         // Make sure player can afford this action
         if (!player.hasPermission("wormhole.free")
                 && !EconManager.hasBalance(player, "set")) {
@@ -999,34 +1455,6 @@ class WormholeCommandHandler implements CommandExecutor {
             return;
         }
         
-        // Get player ID for jump
-        Integer playerId = null;    // Assume public
-        // Jump is private?
-        if (playerName != null) {
-            // Get player record for jump
-            PlayerRecord playerRecord = PlayerRecord.load(playerName);
-            // Player does not exist?
-            if (playerRecord == null) {
-                player.sendMessage(ERROR_MSG_PREFIX +
-                        "player '" + playerName + "' does not exist");
-                return;
-            }
-            // Set player ID
-            playerId = playerRecord.getId();
-        }
-        
-        // Get the jump record
-        JumpRecord jumpRecord = JumpRecord.load(playerId, jumpName);
-        // Jump does not exist?
-        if (jumpRecord == null) {
-            player.sendMessage(ERROR_MSG_PREFIX + "jump " +
-                    JumpRecord.getDescription(player, playerName, jumpName) + " does not exist");
-            return;
-        }
-        
-        // Jump destination is in a blacklisted world?
-        if (wormhole.notifyPlayerIfWorldIsBlacklisted(player, jumpRecord.getWorld().getName())) return;
-    
         // Get sign block
         Block target = player.getTargetBlock((Set<Material>) null, 4);
         if (target == null || !(target.getState() instanceof Sign)) {
@@ -1035,22 +1463,56 @@ class WormholeCommandHandler implements CommandExecutor {
         }
         Sign sign = (Sign) target.getState();
         
-        // Sign is already pointing to a jump?
-        if (SignRecord.load(sign) != null) {
-            player.sendMessage(ERROR_MSG_PREFIX + "sign is already set.\n" +
-                    "Use command \"/worm unset\" to unset the sign.");
-            return;
-        }
-        
-        // Create new sign record
-        SignRecord signRecord = new SignRecord(sign, jumpRecord.id);
-        // Save sign record; failed?
-        if (!signRecord.save()) {
-            player.sendMessage(ERROR_MSG_PREFIX+"internal error");
-            wormhole.getLogger().warning("Player '"+player.getName()+
-                    "' failed to save sign record");
+        // Look up the owner, the jump, and the sign, and save the sign as one unit of work
+        final JumpRecord[] setTo = new JumpRecord[1];
+        UnitOfWork.Outcome outcome = UnitOfWork.run(() -> {
+            // Get player ID for jump
+            Integer playerId = null;    // Assume public
+            // Jump is private?
+            if (playerName != null) {
+                // Get player record for jump
+                PlayerRecord playerRecord = PlayerRecord.load(playerName);
+                // Player does not exist?
+                if (playerRecord == null) {
+                    player.sendMessage(ERROR_MSG_PREFIX +
+                            "player '" + playerName + "' does not exist");
+                    return false;
+                }
+                // Set player ID
+                playerId = playerRecord.getId();
+            }
+            
+            // Get the jump record
+            JumpRecord jumpRecord = JumpRecord.load(playerId, jumpName);
+            // Jump does not exist?
+            if (jumpRecord == null) {
+                player.sendMessage(ERROR_MSG_PREFIX + "jump " +
+                        JumpRecord.getDescription(player, playerName, jumpName) +
+                        " does not exist");
+                return false;
+            }
+            
+            // Jump destination is in a blacklisted world?
+            if (wormhole.notifyPlayerIfWorldIsBlacklisted(player, jumpRecord.getWorld().getName()))
+                return false;
+            
+            // Sign is already pointing to a jump?
+            if (SignRecord.load(sign) != null) {
+                player.sendMessage(ERROR_MSG_PREFIX + "sign is already set.\n" +
+                        "Use command \"/worm unset\" to unset the sign.");
+                return false;
+            }
+            
+            // Create new sign record and save it
+            SignRecord signRecord = new SignRecord(sign, jumpRecord.id);
+            if (!signRecord.save(jumpRecord)) throw new SQLException("Failed to save sign record");
+            setTo[0] = jumpRecord;
+            return true;
+        });
+        if (notifyPlayerIfWorkFailed(player, outcome, ERROR_MSG_PREFIX,
+                "sign was just set by someone else", "set sign to jump '" + jumpName + "'"))
             return;
-        }
+        JumpRecord jumpRecord = setTo[0];
         
         player.sendMessage(ChatColor.DARK_GREEN+"Set sign"+ChatColor.RESET+
             " to jump "+jumpRecord.getDescription(player));
@@ -1134,7 +1596,7 @@ class WormholeCommandHandler implements CommandExecutor {
                 return;
             }
         }
-    
+        
         // Make sure player can afford this action
         if (!player.hasPermission("wormhole.free")
                 && !EconManager.hasBalance(player, "unset")) {
@@ -1144,7 +1606,7 @@ class WormholeCommandHandler implements CommandExecutor {
         }
         
         // Delete the sign record; error?
-        if (!signRecord.delete()) {
+        if (!signRecord.delete(jumpRecord)) {
             player.sendMessage(ERROR_MSG_PREFIX+"internal error");
             wormhole.getLogger().warning(ChatColor.DARK_RED+"Player '"+player.getName()
                     +"' failed to delete sign record");
@@ -1184,6 +1646,36 @@ class WormholeCommandHandler implements CommandExecutor {
         sender.sendMessage(msg.toString());
     }
     
+    /**
+     * Notifies the player if a unit of work did not commit, and logs errors.  The work is
+     * expected to have notified the player itself before rolling back.
+     * @param  errorMsgPrefix Prefix of the messages to the player.
+     * @param  duplicateMsg   Message to the player if a write would have been a duplicate.
+     * @param  action         Description of the action for the log, e.g. "add jump 'x'".
+     * @return true if the unit of work did not commit.
+     */
+    private boolean notifyPlayerIfWorkFailed(Player player, UnitOfWork.Outcome outcome,
+            String errorMsgPrefix, String duplicateMsg, String action) {
+        switch (outcome) {
+            case COMMITTED:
+                return false;
+            case ROLLED_BACK:
+                return true;
+            case DUPLICATE:
+                player.sendMessage(errorMsgPrefix + duplicateMsg);
+                return true;
+            case CONFLICT:
+                player.sendMessage(errorMsgPrefix +
+                        "the jump was just changed by someone else; please try again");
+                return true;
+            default:
+                player.sendMessage(errorMsgPrefix + "internal error");
+                wormhole.getLogger().warning("Player '" + player.getName() + "' failed to " +
+                        action + "; database error");
+                return true;
+        }
+    }
+    
     /** Returns the usage string for the command, or null if DNE. */
     private String getCommandUsage(String command) {
         PluginCommand pluginCommand = wormhole.getCommand(command);
@@ -1258,23 +1750,45 @@ class WormholeCommandHandler implements CommandExecutor {
             return false;
         }
         
-        // Give action to appropriate handler function
-        switch (subcommand) {
-            case "add"    : commandAdd(sender, args);     break;
-            case "back"   : commandBack(sender);          break;
-            case "cost"   : commandCost(sender);          break;
-            case "delete" : commandDelete(sender, args);  break;
-            case "jump"   : commandJump(sender, args);    break;
-            case "list"   : commandList(sender, args);    break;
-            case "reload" : commandReload(sender);        break;
-            case "rename" : commandRename(sender, args);  break;
-            case "replace": commandReplace(sender, args); break;
-            case "search" : commandSearch(sender, args);  break;
-            case "set"    : commandSet(sender, args);     break;
-            case "unset"  : commandUnset(sender);         break;
-            case "version": commandVersion(sender);       break;
-            default:
-                sender.sendMessage(ChatColor.DARK_RED+"Unrecognized command");
+        // Wormhole is still warming up?  Only commands not using the database are available.
+        if (!subcommand.equals("reload") && !subcommand.equals("version") &&
+                !subcommand.equals("stats") && wormhole.notifySenderIfWarmingUp(sender)) {
+            return true;
+        }
+        
+        // Log the changes made by the command as made by the sender
+        ChangeLog.setActor((sender instanceof Player) ? ((Player) sender).getUniqueId() : null,
+                sender.getName());
+        
+        // Give action to appropriate handler function, timing it
+        long startNanos = Metrics.histogram("command."+subcommand).start();
+        Object jfrEvent = Jfr.beginCommand();
+        try {
+            switch (subcommand) {
+                case "add"    : commandAdd(sender, args);     break;
+                case "admin"  : commandAdmin(sender, args);   break;
+                case "back"   : commandBack(sender);          break;
+                case "cost"   : commandCost(sender);          break;
+                case "delete" : commandDelete(sender, args);  break;
+                case "jump"   : commandJump(sender, args);    break;
+                case "list"   : commandList(sender, args);    break;
+                case "portal" : commandPortal(sender, args);  break;
+                case "reload" : commandReload(sender);        break;
+                case "rename" : commandRename(sender, args);  break;
+                case "replace": commandReplace(sender, args); break;
+                case "search" : commandSearch(sender, args);  break;
+                case "set"    : commandSet(sender, args);     break;
+                case "stats"  : commandStats(sender, args);   break;
+                case "unset"  : commandUnset(sender);         break;
+                case "version": commandVersion(sender);       break;
+                default:
+                    sender.sendMessage(ChatColor.DARK_RED+"Unrecognized command");
+                    subcommand = "unknown";
+            }
+        } finally {
+            ChangeLog.clearActor();
+            Metrics.histogram("command."+subcommand).recordSince(startNanos);
+            Jfr.endCommand(jfrEvent, subcommand, args.length);
         }
         return true;
     }
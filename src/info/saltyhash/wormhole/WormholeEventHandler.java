@@ -1,7 +1,15 @@
 package info.saltyhash.wormhole;
 
+import info.saltyhash.wormhole.metrics.Histogram;
+import info.saltyhash.wormhole.metrics.Metrics;
+import info.saltyhash.wormhole.persistence.ChangeLog;
+import info.saltyhash.wormhole.persistence.DBManager;
 import info.saltyhash.wormhole.persistence.JumpRecord;
+import info.saltyhash.wormhole.persistence.PlayerCache;
 import info.saltyhash.wormhole.persistence.PlayerRecord;
+import info.saltyhash.wormhole.persistence.PortalIndex;
+import info.saltyhash.wormhole.persistence.PortalRecord;
+import info.saltyhash.wormhole.persistence.SignCache;
 import info.saltyhash.wormhole.persistence.SignRecord;
 import org.bukkit.ChatColor;
 import org.bukkit.Location;
@@ -14,12 +22,55 @@ import org.bukkit.event.Listener;
 import org.bukkit.event.block.Action;
 import org.bukkit.event.block.BlockBreakEvent;
 import org.bukkit.event.block.BlockDamageEvent;
+import org.bukkit.event.player.AsyncPlayerPreLoginEvent;
 import org.bukkit.event.player.PlayerInteractEvent;
 import org.bukkit.event.player.PlayerLoginEvent;
+import org.bukkit.event.player.PlayerMoveEvent;
+import org.bukkit.event.player.PlayerQuitEvent;
+import org.bukkit.event.world.ChunkLoadEvent;
+import org.bukkit.event.world.ChunkUnloadEvent;
+import org.bukkit.event.world.WorldUnloadEvent;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /** Handles events for Wormhole. */
 class WormholeEventHandler implements Listener {
+    // Latencies of the event handlers
+    private static final Histogram BLOCK_BREAK_LATENCY =
+            Metrics.histogram("event.block_break");
+    private static final Histogram BLOCK_DAMAGE_LATENCY =
+            Metrics.histogram("event.block_damage");
+    private static final Histogram CHUNK_LOAD_LATENCY =
+            Metrics.histogram("event.chunk_load");
+    private static final Histogram CHUNK_UNLOAD_LATENCY =
+            Metrics.histogram("event.chunk_unload");
+    private static final Histogram WORLD_UNLOAD_LATENCY =
+            Metrics.histogram("event.world_unload");
+    private static final Histogram PLAYER_INTERACT_LATENCY =
+            Metrics.histogram("event.player_interact");
+    private static final Histogram PLAYER_MOVE_LATENCY =
+            Metrics.histogram("event.player_move");
+    private static final Histogram ASYNC_PLAYER_PRE_LOGIN_LATENCY =
+            Metrics.histogram("event.async_player_pre_login");
+    private static final Histogram PLAYER_LOGIN_LATENCY =
+            Metrics.histogram("event.player_login");
+    private static final Histogram PLAYER_QUIT_LATENCY =
+            Metrics.histogram("event.player_quit");
+    
+    /** Longest time a login waits for the player to be prefetched. */
+    private static final long PREFETCH_TIMEOUT_SECONDS = 2;
+    /** Least time between two messages to a player about why they cannot use a portal. */
+    private static final long PORTAL_REFUSAL_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(3);
+    
     private final Wormhole wormhole;
+    /** Player UUID -> time the player was last told why they cannot use a portal. */
+    private final Map<UUID, Long> portalRefusalsTold = new HashMap<>();
     
     WormholeEventHandler(Wormhole wormhole) {
         this.wormhole = wormhole;
@@ -37,6 +88,9 @@ class WormholeEventHandler implements Listener {
         // Cancel interact event
         event.setCancelled(true);
         
+        // Player is clicking too often (e.g. with an autoclicker)?
+        if (!RateLimiter.tryAcquire(player, RateLimiter.Action.USE)) return;
+        
         // Player is in blacklisted world?
         if (wormhole.notifyPlayerIfWorldIsBlacklisted(player, player.getWorld().getName()))
             return;
@@ -44,36 +98,99 @@ class WormholeEventHandler implements Listener {
         if (wormhole.notifyPlayerIfWorldIsBlacklisted(player, jumpRecord.getWorld().getName()))
             return;
         
+        // Player cannot use the jump, is cooling down, or cannot afford it?
+        if (notifyPlayerIfCannotUse(player, jumpRecord, "signs")) return;
+        
+        // Teleport the player once warmed up
+        Warmups.start(player, warmedUp -> {
+            // Jump moved or deleted, world blacklisted, or player spent their money, meanwhile?
+            JumpRecord jump = warmedUp ?
+                    wormhole.reloadJumpAfterWarmup(player, jumpRecord, "use") : jumpRecord;
+            if (jump != null) useJump(player, jump);
+        });
+    }
+    
+    /** Handles when a player walks into a portal.  JUMP! */
+    private void handlePortalEntry(Player player, PortalRecord portalRecord) {
+        // Get jump related to this portal
+        JumpRecord jumpRecord = portalRecord.getJumpRecord();
+        // Jump DNE?  ==>  the database deleted the portal along with it (e.g. on another
+        // server), or error; forget the portal.
+        if (jumpRecord == null) {
+            PortalIndex.evict(portalRecord);
+            return;
+        }
+        
+        // Player or jump is in blacklisted world, or player cannot use the jump, is cooling
+        // down, or cannot afford it?
+        String reason = wormhole.getWorldBlacklistedMessage(player, player.getWorld().getName());
+        if (reason == null)
+            reason = wormhole.getWorldBlacklistedMessage(player, jumpRecord.getWorld().getName());
+        if (reason == null) reason = getReasonCannotUse(player, jumpRecord, "portals");
+        if (reason != null) {
+            // Walking about in a portal enters it again at nearly every step, so tell the
+            // player only once in a while
+            long now = System.nanoTime();
+            Long toldAt = portalRefusalsTold.get(player.getUniqueId());
+            if (toldAt == null || now-toldAt >= PORTAL_REFUSAL_INTERVAL_NANOS) {
+                portalRefusalsTold.put(player.getUniqueId(), now);
+                player.sendMessage(reason);
+            }
+            return;
+        }
+        
+        // Teleport the player at once; a warm-up would be cancelled by walking on
+        useJump(player, jumpRecord);
+    }
+    
+    /**
+     * If the player cannot use a sign or portal pointing to the jump, i.e. lacks the
+     * permission, is cooling down, or cannot afford it, the player is notified, and the
+     * function returns true.
+     * @param  what "signs" or "portals".
+     * @return true if the player cannot use the jump; false otherwise.
+     */
+    private boolean notifyPlayerIfCannotUse(Player player, JumpRecord jumpRecord, String what) {
+        String reason = getReasonCannotUse(player, jumpRecord, what);
+        if (reason == null) return false;
+        player.sendMessage(reason);
+        return true;
+    }
+    
+    /**
+     * Returns the message telling the player why they cannot use a sign or portal pointing
+     * to the jump, i.e. lack the permission, are cooling down, or cannot afford it.
+     * @param  what "signs" or "portals".
+     * @return Message, or null if the player can use the jump.
+     */
+    private String getReasonCannotUse(Player player, JumpRecord jumpRecord, String what) {
         // Check permissions
         if (jumpRecord.isPublic()) {
-            if (!player.hasPermission("wormhole.use.public")) {
-                player.sendMessage(ChatColor.DARK_RED+
-                    "You cannot use signs pointing to public jumps");
-                return;
-            }
+            if (!player.hasPermission("wormhole.use.public"))
+                return ChatColor.DARK_RED+"You cannot use "+what+" pointing to public jumps";
         }
         else if (jumpRecord.belongsTo(player)) {
-            if (!player.hasPermission("wormhole.use.private")) {
-                player.sendMessage(ChatColor.DARK_RED+
-                    "You cannot use signs pointing to your jumps");
-                return;
-            }
+            if (!player.hasPermission("wormhole.use.private"))
+                return ChatColor.DARK_RED+"You cannot use "+what+" pointing to your jumps";
         }
         else {
-            if (!player.hasPermission("wormhole.use.other")) {
-                player.sendMessage(ChatColor.DARK_RED+
-                    "You cannot use signs pointing to jumps that belong to other players");
-                return;
-            }
+            if (!player.hasPermission("wormhole.use.other"))
+                return ChatColor.DARK_RED+
+                    "You cannot use "+what+" pointing to jumps that belong to other players";
         }
         
-        // Make sure player can afford this action
-        if (!player.hasPermission("wormhole.free") && !EconManager.hasBalance(player, "use")) {
-            player.sendMessage(ChatColor.DARK_RED+
-                    "You cannot afford to use signs pointing to jumps");
-            return;
-        }
+        // Player used a sign or portal too recently?
+        String coolingDown = Cooldowns.getCoolingDownMessage(player, Cooldowns.Action.USE);
+        if (coolingDown != null) return coolingDown;
         
+        // Make sure player can afford this action
+        if (!player.hasPermission("wormhole.free") && !EconManager.hasBalance(player, "use"))
+            return ChatColor.DARK_RED+"You cannot afford to use "+what+" pointing to jumps";
+        return null;
+    }
+    
+    /** Teleports the player to the jump of a sign or portal, and charges the player. */
+    private void useJump(Player player, JumpRecord jumpRecord) {
         // Get player's start location
         Location from = player.getLocation();
         
@@ -98,6 +215,9 @@ class WormholeEventHandler implements Listener {
         // Store previous location
         PlayerManager.setPreviousLocation(player, from);
         
+        // Start the cooldown
+        Cooldowns.start(player, Cooldowns.Action.USE);
+        
         // Charge player
         if (!player.hasPermission("wormhole.free"))
             EconManager.charge(player, "use");
@@ -106,152 +226,321 @@ class WormholeEventHandler implements Listener {
     /** Called when a player breaks a block. */
     @EventHandler(priority=EventPriority.NORMAL, ignoreCancelled=true)
     public void onBlockBreak(BlockBreakEvent event) {
-        // Ignore event if the block is not a sign
-        if (!(event.getBlock().getState() instanceof Sign)) return;
-        Sign sign = (Sign) event.getBlock().getState();
-        
-        // Get sign record for the sign
-        SignRecord signRecord = SignRecord.load(sign);
-        if (signRecord == null) return;
-        
-        // Get jump destination of sign
-        JumpRecord jump = signRecord.getJumpRecord();
-        if (jump == null) return;   // TODO: This should never happen
-        
-        // Player is in blacklisted world?
-        Player player = event.getPlayer();
-        if (wormhole.notifyPlayerIfWorldIsBlacklisted(player, player.getWorld().getName())) {
-            event.setCancelled(true);
-            return;
-        }
-        
-        // Make sure player can afford this action
-        if (!player.hasPermission("wormhole.free")
-                && !EconManager.hasBalance(player, "unset")) {
-            player.sendMessage(ChatColor.DARK_RED+
-                "You cannot afford to unset signs pointing to jumps");
-            event.setCancelled(true);
-            return;
-        }
-        
-        // Check permissions
-        if (jump.isPublic()) {
-            if (!player.hasPermission("wormhole.unset.public")) {
-                player.sendMessage(ChatColor.DARK_RED+
-                    "You cannot unset signs pointing to public jumps");
+        long startNanos = BLOCK_BREAK_LATENCY.start();
+        try {
+            // Ignore event if the block is not a sign
+            if (!(event.getBlock().getState() instanceof Sign)) return;
+            Sign sign = (Sign) event.getBlock().getState();
+            
+            // Still warming up?  The sign may point to a jump, so keep it until ready.
+            if (wormhole.notifySenderIfWarmingUp(event.getPlayer())) {
                 event.setCancelled(true);
                 return;
             }
-        }
-        else if (jump.belongsTo(player)) {
-            if (!player.hasPermission("wormhole.unset.private")) {
-                player.sendMessage(ChatColor.DARK_RED+
-                    "You cannot unset signs pointing to your jumps");
+            
+            // Get sign record for the sign
+            SignRecord signRecord = SignRecord.load(sign);
+            if (signRecord == null) return;
+            
+            // Get jump destination of sign
+            JumpRecord jump = signRecord.getJumpRecord();
+            if (jump == null) return;   // TODO: This should never happen
+            
+            // Player is in blacklisted world?
+            Player player = event.getPlayer();
+            if (wormhole.notifyPlayerIfWorldIsBlacklisted(player, player.getWorld().getName())) {
                 event.setCancelled(true);
                 return;
             }
-        }
-        else {
-            if (!player.hasPermission("wormhole.unset.other")) {
+            
+            // Make sure player can afford this action
+            if (!player.hasPermission("wormhole.free")
+                    && !EconManager.hasBalance(player, "unset")) {
                 player.sendMessage(ChatColor.DARK_RED+
-                    "You cannot unset signs pointing to jumps that belong to other players");
+                    "You cannot afford to unset signs pointing to jumps");
                 event.setCancelled(true);
                 return;
             }
-        }
-        
-        // Delete sign succeeded?
-        if (signRecord.delete()) {
-            player.sendMessage(ChatColor.DARK_GREEN+"Unset sign"+ChatColor.RESET+
-                " pointing to jump "+jump.getDescription(player));
             
-            // Charge player
-            if (!player.hasPermission("wormhole.free"))
-                EconManager.charge(player, "unset");
-        }
-        // Failed?
-        else {
-            player.sendMessage(ChatColor.DARK_RED + "Failed to unset sign;" + ChatColor.RESET +
-                    " unknown reason");
-            wormhole.getLogger().warning(String.format(
-                "Player \"%s\" failed to unset sign (%s, %d, %d, %d) "+
-                "pointing to jump %s; unknown reason",
-                player.getName(), sign.getWorld().getName(), sign.getX(),
-                sign.getY(), sign.getZ(), jump.getDescription()));
+            // Check permissions
+            if (jump.isPublic()) {
+                if (!player.hasPermission("wormhole.unset.public")) {
+                    player.sendMessage(ChatColor.DARK_RED+
+                        "You cannot unset signs pointing to public jumps");
+                    event.setCancelled(true);
+                    return;
+                }
+            }
+            else if (jump.belongsTo(player)) {
+                if (!player.hasPermission("wormhole.unset.private")) {
+                    player.sendMessage(ChatColor.DARK_RED+
+                        "You cannot unset signs pointing to your jumps");
+                    event.setCancelled(true);
+                    return;
+                }
+            }
+            else {
+                if (!player.hasPermission("wormhole.unset.other")) {
+                    player.sendMessage(ChatColor.DARK_RED+
+                        "You cannot unset signs pointing to jumps that belong to other players");
+                    event.setCancelled(true);
+                    return;
+                }
+            }
+            
+            // Delete sign succeeded?
+            ChangeLog.setActor(player.getUniqueId(), player.getName());
+            boolean deleted = signRecord.delete(jump);
+            ChangeLog.clearActor();
+            if (deleted) {
+                player.sendMessage(ChatColor.DARK_GREEN+"Unset sign"+ChatColor.RESET+
+                    " pointing to jump "+jump.getDescription(player));
+                
+                // Charge player
+                if (!player.hasPermission("wormhole.free"))
+                    EconManager.charge(player, "unset");
+            }
+            // Failed?
+            else {
+                player.sendMessage(ChatColor.DARK_RED + "Failed to unset sign;" + ChatColor.RESET +
+                        " unknown reason");
+                wormhole.getLogger().warning(String.format(
+                    "Player \"%s\" failed to unset sign (%s, %d, %d, %d) "+
+                    "pointing to jump %s; unknown reason",
+                    player.getName(), sign.getWorld().getName(), sign.getX(),
+                    sign.getY(), sign.getZ(), jump.getDescription()));
+            }
+        } finally {
+            BLOCK_BREAK_LATENCY.recordSince(startNanos);
         }
     }
     
     /** Called when a player damages a block. */
     @EventHandler(priority=EventPriority.NORMAL)
     public void onBlockDamage(BlockDamageEvent event) {
-        // Ignore if event isn't involving a sign
-        if (!(event.getBlock().getState() instanceof Sign)) return;
-        Sign sign = (Sign) event.getBlock().getState();
-        
-        // Get sign record of the sign
-        SignRecord signRecord = SignRecord.load(sign);
-        if (signRecord == null) return;
-        
-        // Get jump record of the sign record
-        JumpRecord jumpRecord = signRecord.getJumpRecord();
-        if (jumpRecord == null) return;     // TODO: This should never happen
-        
-        // Check permissions
-        Player player = event.getPlayer();
-        if (jumpRecord.isPublic()) {
-            if (!player.hasPermission("wormhole.use.public")) return;
+        long startNanos = BLOCK_DAMAGE_LATENCY.start();
+        try {
+            // Ignore if Wormhole is still warming up
+            if (!wormhole.isReady()) return;
+            
+            // Ignore if event isn't involving a sign
+            if (!(event.getBlock().getState() instanceof Sign)) return;
+            Sign sign = (Sign) event.getBlock().getState();
+            
+            // Get sign record of the sign
+            SignRecord signRecord = SignRecord.load(sign);
+            if (signRecord == null) return;
+            
+            // Get jump record of the sign record
+            JumpRecord jumpRecord = signRecord.getJumpRecord();
+            if (jumpRecord == null) return;     // TODO: This should never happen
+            
+            // Check permissions
+            Player player = event.getPlayer();
+            if (jumpRecord.isPublic()) {
+                if (!player.hasPermission("wormhole.use.public")) return;
+            }
+            else if (jumpRecord.belongsTo(player)) {
+                if (!player.hasPermission("wormhole.use.private")) return;
+            }
+            else {
+                if (!player.hasPermission("wormhole.use.other")) return;
+            }
+            
+            // Display jump
+            player.sendMessage(ChatColor.DARK_PURPLE + "Sign is set" + ChatColor.RESET +
+                    " to jump " + jumpRecord.getDescription(player));
+        } finally {
+            BLOCK_DAMAGE_LATENCY.recordSince(startNanos);
         }
-        else if (jumpRecord.belongsTo(player)) {
-            if (!player.hasPermission("wormhole.use.private")) return;
+    }
+    
+    /**
+     * Called when a chunk is loaded; caches the signs in the chunk on the database thread,
+     * so that loading chunks does not wait on the database.
+     */
+    @EventHandler(priority=EventPriority.MONITOR)
+    public void onChunkLoad(ChunkLoadEvent event) {
+        long startNanos = CHUNK_LOAD_LATENCY.start();
+        try {
+            // Still warming up?  Cache the chunk once warmed up.
+            if (!wormhole.isReady()) {
+                wormhole.chunkLoadedWhileWarmingUp(event.getChunk(), event.isNewChunk());
+                return;
+            }
+            SignCache.loadChunkLater(event.getChunk(), event.isNewChunk());
+        } finally {
+            CHUNK_LOAD_LATENCY.recordSince(startNanos);
         }
-        else {
-            if (!player.hasPermission("wormhole.use.other")) return;
+    }
+    
+    /** Called when a chunk is unloaded; evicts the signs in the chunk from the cache. */
+    @EventHandler(priority=EventPriority.MONITOR, ignoreCancelled=true)
+    public void onChunkUnload(ChunkUnloadEvent event) {
+        long startNanos = CHUNK_UNLOAD_LATENCY.start();
+        try {
+            SignCache.unloadChunk(event.getChunk());
+        } finally {
+            CHUNK_UNLOAD_LATENCY.recordSince(startNanos);
         }
-        
-        // Display jump
-        player.sendMessage(ChatColor.DARK_PURPLE + "Sign is set" + ChatColor.RESET +
-                " to jump " + jumpRecord.getDescription(player));
     }
-
+    
+    /** Called when a world is unloaded; evicts the signs in the world from the cache. */
+    @EventHandler(priority=EventPriority.MONITOR, ignoreCancelled=true)
+    public void onWorldUnload(WorldUnloadEvent event) {
+        long startNanos = WORLD_UNLOAD_LATENCY.start();
+        try {
+            SignCache.unloadWorld(event.getWorld());
+        } finally {
+            WORLD_UNLOAD_LATENCY.recordSince(startNanos);
+        }
+    }
+    
     /** Called when player interacts with something. */
     @EventHandler(priority=EventPriority.MONITOR, ignoreCancelled=true)
     public void onPlayerInteract(PlayerInteractEvent event) {
-        Player player = event.getPlayer();
-        Block block   = event.getClickedBlock();
+        long startNanos = PLAYER_INTERACT_LATENCY.start();
+        try {
+            Player player = event.getPlayer();
+            Block block   = event.getClickedBlock();
+            
+            // Right-clicked on a sign block?
+            if (event.getAction() == Action.RIGHT_CLICK_BLOCK && block.getState() instanceof Sign
+                    && wormhole.isReady()) {
+                // Handle sign click
+                handleSignClick(event, player, (Sign) block.getState());
+            }
+        } finally {
+            PLAYER_INTERACT_LATENCY.recordSince(startNanos);
+        }
+    }
+    
+    /**
+     * Called when a player moves.  Teleports the player if they walked into a portal.  Only
+     * moves to another block are looked up, so most moves return at once.
+     */
+    @EventHandler(priority=EventPriority.NORMAL, ignoreCancelled=true)
+    public void onPlayerMove(PlayerMoveEvent event) {
+        // No portals, or still in the same block?
+        if (PortalIndex.isEmpty()) return;
+        Location from = event.getFrom();
+        Location to   = event.getTo();
+        int x = to.getBlockX(), y = to.getBlockY(), z = to.getBlockZ();
+        if (x == from.getBlockX() && y == from.getBlockY() && z == from.getBlockZ() &&
+                to.getWorld() == from.getWorld()) return;
         
-        // Right-clicked on a sign block?
-        if (event.getAction() == Action.RIGHT_CLICK_BLOCK && block.getState() instanceof Sign) {
-            // Handle sign click
-            handleSignClick(event, player, (Sign) block.getState());
+        long startNanos = PLAYER_MOVE_LATENCY.start();
+        try {
+            // Ignore event if Wormhole is still warming up
+            if (!wormhole.isReady()) return;
+            
+            // Walked into a portal, i.e. was not already in it?
+            PortalRecord portalRecord = PortalIndex.getPortal(to.getWorld().getUID(), x, y, z);
+            if (portalRecord == null) return;
+            if (to.getWorld() == from.getWorld() &&
+                    portalRecord.contains(from.getBlockX(), from.getBlockY(), from.getBlockZ()))
+                return;
+            handlePortalEntry(event.getPlayer(), portalRecord);
+        } finally {
+            PLAYER_MOVE_LATENCY.recordSince(startNanos);
+        }
+    }
+    
+    /**
+     * Called asynchronously before a player logs into the server.  Saves the player to the
+     * database and caches their player record and jumps, off the main thread.
+     */
+    @EventHandler(priority=EventPriority.MONITOR)
+    public void onAsyncPlayerPreLogin(AsyncPlayerPreLoginEvent event) {
+        long startNanos = ASYNC_PLAYER_PRE_LOGIN_LATENCY.start();
+        try {
+            if (event.getLoginResult() != AsyncPlayerPreLoginEvent.Result.ALLOWED) return;
+            final UUID   uuid     = event.getUniqueId();
+            final String username = event.getName();
+            
+            // Prefetch the player on the database thread, unless they quit first
+            PlayerCache.expect(uuid);
+            Future<Boolean> prefetched = DBManager.submit(() -> PlayerCache.prefetch(uuid, username));
+            
+            // Still warming up?  Don't hold up the login; the prefetch runs after the warm-up.
+            if (!wormhole.isReady()) return;
+            
+            // Wait, so that the cache is ready by the time the player joins; the database
+            // thread may be busy for long (e.g. exporting), so give up after a while, and
+            // save the player on login instead
+            try {
+                if (!prefetched.get(PREFETCH_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                    wormhole.getLogger().warning("Failed to save player '" + username +
+                            "' to the database");
+                }
+            } catch (TimeoutException e) {
+                prefetched.cancel(false);
+                wormhole.getLogger().warning("Timed out prefetching player '" + username +
+                        "'; saving them on login");
+            } catch (InterruptedException | ExecutionException e) {
+                wormhole.getLogger().warning("Failed to prefetch player '" + username + "': " + e);
+            }
+        } finally {
+            ASYNC_PLAYER_PRE_LOGIN_LATENCY.recordSince(startNanos);
         }
     }
     
     /** Called when a player logs into the server. */
     @EventHandler(priority=EventPriority.MONITOR, ignoreCancelled=true)
     public void onPlayerLogin(PlayerLoginEvent event) {
-        Player player   = event.getPlayer();
-        PlayerRecord pr = PlayerRecord.load(player.getUniqueId());
-        
-        // Player already exists in database?
-        if (pr != null) {
-            // Player usernames do not match (player changed their username)?
-            if (!pr.username.equals(player.getName())) {
-                // Update username and save
-                pr.username = player.getName();
+        long startNanos = PLAYER_LOGIN_LATENCY.start();
+        try {
+            Player player = event.getPlayer();
+            
+            // Login was disallowed after the player was prefetched?
+            if (event.getResult() != PlayerLoginEvent.Result.ALLOWED) {
+                PlayerCache.evict(player.getUniqueId());
+                return;
+            }
+            
+            // Player was prefetched, or will be once Wormhole has warmed up?
+            if (PlayerCache.isCached(player.getUniqueId()) || !wormhole.isReady()) return;
+            
+            // Player was not prefetched (e.g. the prefetch failed); save them synchronously
+            PlayerRecord pr = PlayerRecord.load(player.getUniqueId());
+            
+            // Player already exists in database?
+            if (pr != null) {
+                // Player usernames do not match (player changed their username)?
+                if (!pr.username.equals(player.getName())) {
+                    // Update username and save
+                    pr.username = player.getName();
+                    if (!pr.save()) {
+                        wormhole.getLogger().warning("Failed to save player '" + player.getName() +
+                                "' to the database");
+                    }
+                }
+            }
+            // Player record does not exist?
+            else {
+                // Create new player record and save
+                pr = new PlayerRecord(player);
                 if (!pr.save()) {
                     wormhole.getLogger().warning("Failed to save player '" + player.getName() +
                             "' to the database");
                 }
             }
+        } finally {
+            PLAYER_LOGIN_LATENCY.recordSince(startNanos);
         }
-        // Player record does not exist?
-        else {
-            // Create new player record and save
-            pr = new PlayerRecord(player);
-            if (!pr.save()) {
-                wormhole.getLogger().warning("Failed to save player '" + player.getName() +
-                        "' to the database");
-            }
+    }
+    
+    /** Called when a player leaves the server; evicts the player from the cache. */
+    @EventHandler(priority=EventPriority.MONITOR)
+    public void onPlayerQuit(PlayerQuitEvent event) {
+        long startNanos = PLAYER_QUIT_LATENCY.start();
+        try {
+            PlayerCache.evict(event.getPlayer().getUniqueId());
+            RateLimiter.evict(event.getPlayer().getUniqueId());
+            Warmups.cancel(event.getPlayer().getUniqueId());
+            portalRefusalsTold.remove(event.getPlayer().getUniqueId());
+        } finally {
+            PLAYER_QUIT_LATENCY.recordSince(startNanos);
         }
     }
 }
\ No newline at end of file
@@ -13,12 +13,21 @@ import java.util.List;
 
 /** Handles tab completion for the Wormhole plugin commands. */
 class WormholeTabCompleter implements TabCompleter {
+    private final Wormhole wormhole;
+    
+    WormholeTabCompleter(Wormhole wormhole) {
+        this.wormhole = wormhole;
+    }
+    
     @Override
     public List<String> onTabComplete(
             CommandSender sender, Command command, String alias, String[] args) {
         // Return if sender is not a player
         if (!(sender instanceof Player)) return null;
         
+        // Return if Wormhole is still warming up
+        if (!wormhole.isReady()) return null;
+        
         // Return if command is not "/wormhole ..."
         if (!command.getName().equalsIgnoreCase("wormhole")) return null;
         
@@ -33,8 +42,9 @@ class WormholeTabCompleter implements TabCompleter {
             return null;
         }
         
-        final List<String> subcommands = Arrays.asList("reload", "version", "add", "back",
-                "cost", "delete", "jump", "list", "rename", "replace", "search", "set", "unset");
+        final List<String> subcommands = Arrays.asList("reload", "version", "add", "admin", "back",
+                "cost", "delete", "jump", "list", "portal", "rename", "replace", "search", "set",
+                "stats", "unset");
         // Subcommand is not in the list of subcommands?
         if (!subcommands.contains(subcommand)) {
             // Return list of subcommands starting with subcommand
@@ -51,8 +61,11 @@ class WormholeTabCompleter implements TabCompleter {
                 "delete", "jump", "rename", "replace", "set");
         if (!autocompleteCommands.contains(subcommand)) return null;
         
-        // Get player and jump info from args
+        // Return if the player is completing jump names too often
         Player player = (Player) sender;
+        if (!RateLimiter.tryAcquire(player, RateLimiter.Action.TAB_COMPLETE)) return null;
+        
+        // Get jump info from args
         String[] jumpInfo = WormholeCommandHandler.getJumpInfoFromArgs(player, args);
         // Parse error?
         if (jumpInfo == null) return null;
@@ -87,13 +100,7 @@ class WormholeTabCompleter implements TabCompleter {
             playerId = playerRecord.getId();
         }
         
-        // Get the jump records that begin with the given jump name
-        List<JumpRecord> jumpRecords = JumpRecord.loadWhereNameBeginsWith(playerId, jumpName);
-        if (jumpRecords == null) return null;
-        
-        // Build and return a list of jump names
-        List<String> jumpNames = new ArrayList<>();
-        for (JumpRecord jumpRecord : jumpRecords) jumpNames.add(jumpRecord.name);
-        return jumpNames;
+        // Get the names of the jumps that begin with the given jump name
+        return JumpRecord.loadNamesWhereNameBeginsWith(playerId, jumpName);
     }
 }
\ No newline at end of file
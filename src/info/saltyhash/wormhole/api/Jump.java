@@ -0,0 +1,75 @@
+package info.saltyhash.wormhole.api;
+
+import org.bukkit.Bukkit;
+import org.bukkit.Location;
+
+import java.util.UUID;
+
+/** Immutable snapshot of a jump, as handed to other plugins. */
+public final class Jump {
+    private final int    id;
+    private final UUID   ownerUuid;     // null ==> public
+    private final String ownerName;     // null ==> public
+    private final String name;
+    private final UUID   worldUuid;
+    private final double x, y, z;
+    private final float  yaw;
+    
+    public Jump(int id, UUID ownerUuid, String ownerName, String name, UUID worldUuid,
+                double x, double y, double z, float yaw) {
+        this.id        = id;
+        this.ownerUuid = ownerUuid;
+        this.ownerName = ownerName;
+        this.name      = name;
+        this.worldUuid = worldUuid;
+        this.x = x; this.y = y; this.z = z; this.yaw = yaw;
+    }
+    
+    /** Returns the database ID of the jump, which stays the same when it is renamed or moved. */
+    public int getId() {
+        return id;
+    }
+    
+    /** Returns the UUID of the player who owns the jump, or null if public. */
+    public UUID getOwnerUuid() {
+        return ownerUuid;
+    }
+    
+    /** Returns the username of the player who owns the jump, or null if public. */
+    public String getOwnerName() {
+        return ownerName;
+    }
+    
+    public String getName() {
+        return name;
+    }
+    
+    public boolean isPublic() {
+        return (ownerUuid == null);
+    }
+    
+    public UUID getWorldUuid() {
+        return worldUuid;
+    }
+    
+    public double getX() { return x; }
+    public double getY() { return y; }
+    public double getZ() { return z; }
+    public float  getYaw() { return yaw; }
+    
+    /** Returns the jump location; its world is null if the world is not loaded. */
+    public Location getLocation() {
+        return new Location(Bukkit.getWorld(worldUuid), x, y, z, yaw, 0);
+    }
+    
+    /** Returns true if the jump is at the same location as the other jump. */
+    public boolean isAt(Jump other) {
+        return worldUuid.equals(other.worldUuid) &&
+                x == other.x && y == other.y && z == other.z && yaw == other.yaw;
+    }
+    
+    @Override
+    public String toString() {
+        return String.format("'%s' (%s)", name, (ownerName != null ? ownerName : "public"));
+    }
+}
\ No newline at end of file
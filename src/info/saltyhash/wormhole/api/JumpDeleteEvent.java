@@ -0,0 +1,21 @@
+package info.saltyhash.wormhole.api;
+
+import org.bukkit.event.HandlerList;
+
+/** Fired after a jump is deleted. */
+public class JumpDeleteEvent extends JumpEvent {
+    private static final HandlerList handlers = new HandlerList();
+    
+    public JumpDeleteEvent(Jump jump) {
+        super(jump);
+    }
+    
+    @Override
+    public HandlerList getHandlers() {
+        return handlers;
+    }
+    
+    public static HandlerList getHandlerList() {
+        return handlers;
+    }
+}
\ No newline at end of file
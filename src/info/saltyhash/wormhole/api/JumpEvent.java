@@ -0,0 +1,22 @@
+package info.saltyhash.wormhole.api;
+
+import org.bukkit.Bukkit;
+import org.bukkit.event.Event;
+
+/**
+ * Base of the events fired after a jump is changed.  Fired once the change is committed,
+ * on the thread that made it; asynchronous if that is not the main thread.
+ */
+public abstract class JumpEvent extends Event {
+    private final Jump jump;
+    
+    JumpEvent(Jump jump) {
+        super(!Bukkit.isPrimaryThread());
+        this.jump = jump;
+    }
+    
+    /** Returns the jump as it is after the change (or as it was, if deleted). */
+    public Jump getJump() {
+        return jump;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,28 @@
+package info.saltyhash.wormhole.api;
+
+import org.bukkit.event.HandlerList;
+
+/** Fired after a jump is moved to a new location, as by "/worm replace". */
+public class JumpMoveEvent extends JumpEvent {
+    private static final HandlerList handlers = new HandlerList();
+    private final Jump oldJump;
+    
+    public JumpMoveEvent(Jump jump, Jump oldJump) {
+        super(jump);
+        this.oldJump = oldJump;
+    }
+    
+    /** Returns the jump as it was before it was moved. */
+    public Jump getOldJump() {
+        return oldJump;
+    }
+    
+    @Override
+    public HandlerList getHandlers() {
+        return handlers;
+    }
+    
+    public static HandlerList getHandlerList() {
+        return handlers;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,28 @@
+package info.saltyhash.wormhole.api;
+
+import org.bukkit.event.HandlerList;
+
+/** Fired after a jump is renamed. */
+public class JumpRenameEvent extends JumpEvent {
+    private static final HandlerList handlers = new HandlerList();
+    private final String oldName;
+    
+    public JumpRenameEvent(Jump jump, String oldName) {
+        super(jump);
+        this.oldName = oldName;
+    }
+    
+    /** Returns the name of the jump before it was renamed. */
+    public String getOldName() {
+        return oldName;
+    }
+    
+    @Override
+    public HandlerList getHandlers() {
+        return handlers;
+    }
+    
+    public static HandlerList getHandlerList() {
+        return handlers;
+    }
+}
\ No newline at end of file
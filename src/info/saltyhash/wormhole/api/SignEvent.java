@@ -0,0 +1,36 @@
+package info.saltyhash.wormhole.api;
+
+import org.bukkit.Bukkit;
+import org.bukkit.event.Event;
+
+import java.util.UUID;
+
+/**
+ * Base of the events fired after a sign is set to a jump or unset.  Fired once the change
+ * is committed, on the thread that made it; asynchronous if that is not the main thread.
+ */
+public abstract class SignEvent extends Event {
+    private final UUID worldUuid;
+    private final int  x, y, z;
+    private final Jump jump;
+    
+    SignEvent(UUID worldUuid, int x, int y, int z, Jump jump) {
+        super(!Bukkit.isPrimaryThread());
+        this.worldUuid = worldUuid;
+        this.x = x; this.y = y; this.z = z;
+        this.jump = jump;
+    }
+    
+    public UUID getWorldUuid() {
+        return worldUuid;
+    }
+    
+    public int getX() { return x; }
+    public int getY() { return y; }
+    public int getZ() { return z; }
+    
+    /** Returns the jump the sign is (or was) set to, or null if it no longer exists. */
+    public Jump getJump() {
+        return jump;
+    }
+}
\ No newline at end of file
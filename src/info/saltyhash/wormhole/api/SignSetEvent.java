@@ -0,0 +1,23 @@
+package info.saltyhash.wormhole.api;
+
+import org.bukkit.event.HandlerList;
+
+import java.util.UUID;
+
+/** Fired after a sign is set to a jump. */
+public class SignSetEvent extends SignEvent {
+    private static final HandlerList handlers = new HandlerList();
+    
+    public SignSetEvent(UUID worldUuid, int x, int y, int z, Jump jump) {
+        super(worldUuid, x, y, z, jump);
+    }
+    
+    @Override
+    public HandlerList getHandlers() {
+        return handlers;
+    }
+    
+    public static HandlerList getHandlerList() {
+        return handlers;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,23 @@
+package info.saltyhash.wormhole.api;
+
+import org.bukkit.event.HandlerList;
+
+import java.util.UUID;
+
+/** Fired after a sign is unset from its jump. */
+public class SignUnsetEvent extends SignEvent {
+    private static final HandlerList handlers = new HandlerList();
+    
+    public SignUnsetEvent(UUID worldUuid, int x, int y, int z, Jump jump) {
+        super(worldUuid, x, y, z, jump);
+    }
+    
+    @Override
+    public HandlerList getHandlers() {
+        return handlers;
+    }
+    
+    public static HandlerList getHandlerList() {
+        return handlers;
+    }
+}
\ No newline at end of file
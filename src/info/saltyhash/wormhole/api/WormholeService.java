@@ -0,0 +1,40 @@
+package info.saltyhash.wormhole.api;
+
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Read access to Wormhole's jumps for other plugins, registered with Bukkit's
+ * ServicesManager.  Get it with:
+ * 
+ *   Bukkit.getServicesManager().load(WormholeService.class)
+ * 
+ * Lookups never block the calling thread.  Those that can be answered from Wormhole's
+ * caches (the jumps of online players, the signs of loaded chunks, or everything when the
+ * storage mode is "memory") complete immediately; the rest are completed on Wormhole's
+ * database thread, so chain them with the async methods of CompletableFuture, or hop back
+ * to the main thread with the scheduler before touching the world.  Futures complete with
+ * null (or an empty list) if not found, and exceptionally on database errors.
+ * 
+ * To keep a view of the jumps current, listen for {@link JumpCreateEvent},
+ * {@link JumpRenameEvent}, {@link JumpMoveEvent}, {@link JumpDeleteEvent},
+ * {@link SignSetEvent}, and {@link SignUnsetEvent}.  Deleting a jump also unsets its signs
+ * without separate events, and "/worm admin import" replaces all data without any events.
+ */
+public interface WormholeService {
+    /**
+     * Looks up a jump by owner and name.
+     * @param ownerUuid UUID of the player who owns the jump, or null if public.
+     */
+    CompletableFuture<Jump> getJump(UUID ownerUuid, String name);
+    
+    /**
+     * Looks up all jumps of the owner, ordered by name.
+     * @param ownerUuid UUID of the player who owns the jumps, or null for public jumps.
+     */
+    CompletableFuture<List<Jump>> getJumps(UUID ownerUuid);
+    
+    /** Looks up the jump that the sign at the given block is set to. */
+    CompletableFuture<Jump> getJumpOfSign(UUID worldUuid, int x, int y, int z);
+}
\ No newline at end of file
@@ -0,0 +1,150 @@
+package info.saltyhash.wormhole.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram of latencies in nanoseconds, with log-linear buckets in the style of HDR
+ * histograms: each power of two is split into 16 buckets, so any percentile is reported
+ * within 1/16 (about 6%) of the true value, from 1 ns up to about 36 minutes.  Recording
+ * is lock-free and allocation-free (a few atomic adds), so it is cheap enough to use on
+ * the main thread.  Thread-safe.
+ */
+public final class Histogram {
+    private static final int  SUB_BITS     = 4;
+    private static final int  SUB_BUCKETS  = 1 << SUB_BITS;
+    /** Largest power of two recorded; larger values are recorded as the largest. */
+    private static final int  MAX_EXPONENT = 40;
+    private static final long MAX_VALUE    = (1L << (MAX_EXPONENT+1))-1;
+    static final int BUCKETS = getBucket(MAX_VALUE)+1;
+    
+    private final String name;
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder  count = new LongAdder();
+    private final LongAdder  sum   = new LongAdder();
+    private final AtomicLong max   = new AtomicLong();
+    
+    /** Counts and statistics of a histogram at one point in time. */
+    public static final class Snapshot {
+        private final long[] counts;
+        private final long   count, sum, max;
+        
+        private Snapshot(long[] counts, long sum, long max) {
+            long count = 0;
+            for (long c : counts) count += c;
+            this.counts = counts;
+            this.count  = count;
+            this.sum    = sum;
+            this.max    = max;
+        }
+        
+        public long getCount() { return count; }
+        
+        /** Returns the sum of the recorded values, in nanoseconds. */
+        public long getSum() { return sum; }
+        
+        /** Returns the largest recorded value, in nanoseconds. */
+        public long getMax() { return max; }
+        
+        /** Returns the mean of the recorded values, in nanoseconds, or 0 if none. */
+        public double getMean() {
+            return (count > 0) ? (double) sum/count : 0;
+        }
+        
+        /**
+         * Returns the value at the percentile, in nanoseconds, or 0 if none are recorded.
+         * @param percentile Percentile from 0 to 100.
+         */
+        public long getPercentile(double percentile) {
+            if (count == 0) return 0;
+            long rank = Math.max(1, (long) Math.ceil(percentile/100*count));
+            long seen = 0;
+            for (int bucket = 0; bucket < counts.length; bucket++) {
+                seen += counts[bucket];
+                if (seen >= rank) return Math.min(getBucketMax(bucket), max);
+            }
+            return max;
+        }
+        
+        /** Returns the number of recorded values that are at most the given value. */
+        public long getCountAtMost(long value) {
+            long seen = 0;
+            int last = getBucket(Math.min(value, MAX_VALUE));
+            for (int bucket = 0; bucket <= last; bucket++) seen += counts[bucket];
+            return seen;
+        }
+    }
+    
+    Histogram(String name) {
+        this.name = name;
+    }
+    
+    public String getName() {
+        return name;
+    }
+    
+    /** Records the value, in nanoseconds. */
+    public void record(long nanos) {
+        if (nanos < 0) nanos = 0;
+        counts.incrementAndGet(getBucket(Math.min(nanos, MAX_VALUE)));
+        count.increment();
+        sum.add(nanos);
+        long oldMax = max.get();
+        while (nanos > oldMax && !max.compareAndSet(oldMax, nanos)) oldMax = max.get();
+    }
+    
+    /**
+     * Starts timing an operation, telling the {@link Watchdog} it began.  End it with
+     * {@link #recordSince(long)}, e.g. in a finally block.
+     * @return Start time, as returned by {@link System#nanoTime()}.
+     */
+    public long start() {
+        return Watchdog.begin(name);
+    }
+    
+    /**
+     * Records the time since the start, as returned by {@link System#nanoTime()} or
+     * {@link #start()}, telling the {@link Watchdog} the operation ended.
+     */
+    public void recordSince(long startNanos) {
+        long endNanos = System.nanoTime();
+        record(endNanos-startNanos);
+        Watchdog.end(startNanos, endNanos);
+    }
+    
+    public long getCount() {
+        return count.sum();
+    }
+    
+    /** Returns the counts and statistics at this point in time. */
+    public Snapshot snapshot() {
+        long[] snapshot = new long[BUCKETS];
+        for (int bucket = 0; bucket < BUCKETS; bucket++) snapshot[bucket] = counts.get(bucket);
+        return new Snapshot(snapshot, sum.sum(), max.get());
+    }
+    
+    /** Forgets all recorded values. */
+    public void reset() {
+        for (int bucket = 0; bucket < BUCKETS; bucket++) counts.set(bucket, 0);
+        count.reset();
+        sum.reset();
+        max.set(0);
+    }
+    
+    /** Returns the bucket of the value. */
+    private static int getBucket(long value) {
+        if (value < SUB_BUCKETS) return (int) value;
+        int exponent = 63-Long.numberOfLeadingZeros(value);
+        int shift    = exponent-SUB_BITS;
+        return ((shift+1) << SUB_BITS)+(int) ((value >>> shift) & (SUB_BUCKETS-1));
+    }
+    
+    /** Returns the largest value in the bucket. */
+    private static long getBucketMax(int bucket) {
+        if (bucket < SUB_BUCKETS) return bucket;
+        int shift = (bucket >>> SUB_BITS)-1;
+        long min  = (long) (SUB_BUCKETS+(bucket & (SUB_BUCKETS-1))) << shift;
+        return min+(1L << shift)-1;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,102 @@
+package info.saltyhash.wormhole.metrics;
+
+/**
+ * Emits Java Flight Recorder events for Wormhole's commands, queries, teleports, and cache
+ * misses, so that a recording shows which Wormhole operations ran during a tick spike.
+ * Requires a JVM with JFR (Java 11+, or 8u262+); on others, every method does nothing and
+ * the event classes are never loaded.  Events are recorded only while a recording enables
+ * them; they are in the "Wormhole" category.
+ *
+ * A timed event is begun with a begin method, which returns the event (null if it is not
+ * being recorded), and committed by passing it to the matching end method.  Thread-safe.
+ */
+public final class Jfr {
+    private static final boolean AVAILABLE = isAvailable();
+    
+    /** Rows read and written on each thread, so far; counted only if JFR is available. */
+    private static final ThreadLocal<long[]> rows = ThreadLocal.withInitial(() -> new long[2]);
+    
+    private Jfr() {}
+    
+    /** Returns true if the JVM supports JFR events. */
+    private static boolean isAvailable() {
+        try {
+            Class.forName("jdk.jfr.Event");
+            return true;
+        } catch (ClassNotFoundException | LinkageError e) {
+            return false;
+        }
+    }
+    
+    /** Begins a command event; end it with {@link #endCommand(Object, String, int)}. */
+    public static Object beginCommand() {
+        return AVAILABLE ? JfrEvents.beginCommand() : null;
+    }
+    
+    /**
+     * Ends the command event.
+     * @param event      Event returned by {@link #beginCommand()}.
+     * @param subcommand Subcommand executed, e.g. "add".
+     * @param argsSize   Number of arguments of the subcommand.
+     */
+    public static void endCommand(Object event, String subcommand, int argsSize) {
+        if (event != null) JfrEvents.endCommand(event, subcommand, argsSize);
+    }
+    
+    /** Begins a query event; end it with {@link #endQuery(Object, Histogram)}. */
+    public static Object beginQuery() {
+        if (!AVAILABLE) return null;
+        long[] counts = rows.get();
+        return JfrEvents.beginQuery(counts[0], counts[1]);
+    }
+    
+    /**
+     * Ends the query event, with the rows read and written since it began.
+     * @param event Event returned by {@link #beginQuery()}.
+     * @param query Latency histogram of the query, whose name identifies it.
+     */
+    public static void endQuery(Object event, Histogram query) {
+        if (event == null) return;
+        long[] counts = rows.get();
+        JfrEvents.endQuery(event, query.getName(), counts[0], counts[1]);
+    }
+    
+    /** Counts a row read by a query of the thread. */
+    public static void countRead() {
+        if (AVAILABLE) rows.get()[0]++;
+    }
+    
+    /** Counts the rows written by a query of the thread, as returned by executeUpdate(). */
+    public static int countWritten(int count) {
+        if (AVAILABLE && count > 0) rows.get()[1] += count;
+        return count;
+    }
+    
+    /** Counts the rows written by a query of the thread, as returned by executeBatch(). */
+    public static int[] countWritten(int[] counts) {
+        if (AVAILABLE) for (int count : counts) countWritten(count);
+        return counts;
+    }
+    
+    /** Begins a teleport event; end it with {@link #endTeleport(Object, String, long, boolean)}. */
+    public static Object beginTeleport() {
+        return AVAILABLE ? JfrEvents.beginTeleport() : null;
+    }
+    
+    /**
+     * Ends the teleport event.
+     * @param event          Event returned by {@link #beginTeleport()}.
+     * @param world          Name of the world teleported to.
+     * @param chunkLoadNanos Time spent loading the chunk teleported to, in nanoseconds.
+     * @param success        True if the teleport succeeded.
+     */
+    public static void endTeleport(Object event, String world, long chunkLoadNanos,
+                                   boolean success) {
+        if (event != null) JfrEvents.endTeleport(event, world, chunkLoadNanos, success);
+    }
+    
+    /** Emits a cache miss event. */
+    public static void cacheMiss(String cache) {
+        if (AVAILABLE) JfrEvents.cacheMiss(cache);
+    }
+}
\ No newline at end of file
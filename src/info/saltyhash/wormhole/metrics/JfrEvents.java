@@ -0,0 +1,124 @@
+package info.saltyhash.wormhole.metrics;
+
+import jdk.jfr.*;
+
+/**
+ * JFR event classes of Wormhole.  Only loaded through {@link Jfr}, once it has checked that
+ * the JVM supports JFR.
+ */
+final class JfrEvents {
+    @Name("wormhole.Command")
+    @Label("Wormhole Command")
+    @Category("Wormhole")
+    @Description("Execution of a /worm command")
+    static final class CommandEvent extends Event {
+        @Label("Subcommand")
+        String subcommand;
+        
+        @Label("Arguments")
+        int argsSize;
+    }
+    
+    @Name("wormhole.Query")
+    @Label("Wormhole Query")
+    @Category("Wormhole")
+    @Description("Load or save of records, from the caches or the database")
+    static final class QueryEvent extends Event {
+        @Label("Query")
+        String query;
+        
+        @Label("Rows Read")
+        long rowsRead;
+        
+        @Label("Rows Written")
+        long rowsWritten;
+    }
+    
+    @Name("wormhole.Teleport")
+    @Label("Wormhole Teleport")
+    @Category("Wormhole")
+    @Description("Teleport of a player to a jump")
+    static final class TeleportEvent extends Event {
+        @Label("World")
+        String world;
+        
+        @Label("Chunk Load Time")
+        @Timespan(Timespan.NANOSECONDS)
+        long chunkLoadTime;
+        
+        @Label("Success")
+        boolean success;
+    }
+    
+    @Name("wormhole.CacheMiss")
+    @Label("Wormhole Cache Miss")
+    @Category("Wormhole")
+    @Description("Lookup of records not served by the cache, which then queries the database")
+    @StackTrace(false)
+    static final class CacheMissEvent extends Event {
+        @Label("Cache")
+        String cache;
+    }
+    
+    private JfrEvents() {}
+    
+    static Object beginCommand() {
+        CommandEvent event = new CommandEvent();
+        if (!event.isEnabled()) return null;
+        event.begin();
+        return event;
+    }
+    
+    static void endCommand(Object begun, String subcommand, int argsSize) {
+        CommandEvent event = (CommandEvent) begun;
+        event.end();
+        if (!event.shouldCommit()) return;
+        event.subcommand = subcommand;
+        event.argsSize   = argsSize;
+        event.commit();
+    }
+    
+    /** Begins a query event, keeping the counts of rows so far in its fields. */
+    static Object beginQuery(long rowsRead, long rowsWritten) {
+        QueryEvent event = new QueryEvent();
+        if (!event.isEnabled()) return null;
+        event.rowsRead    = rowsRead;
+        event.rowsWritten = rowsWritten;
+        event.begin();
+        return event;
+    }
+    
+    static void endQuery(Object begun, String query, long rowsRead, long rowsWritten) {
+        QueryEvent event = (QueryEvent) begun;
+        event.end();
+        if (!event.shouldCommit()) return;
+        event.query       = query;
+        event.rowsRead    = rowsRead-event.rowsRead;
+        event.rowsWritten = rowsWritten-event.rowsWritten;
+        event.commit();
+    }
+    
+    static Object beginTeleport() {
+        TeleportEvent event = new TeleportEvent();
+        if (!event.isEnabled()) return null;
+        event.begin();
+        return event;
+    }
+    
+    static void endTeleport(Object begun, String world, long chunkLoadNanos, boolean success) {
+        TeleportEvent event = (TeleportEvent) begun;
+        event.end();
+        if (!event.shouldCommit()) return;
+        event.world         = world;
+        event.chunkLoadTime = chunkLoadNanos;
+        event.success       = success;
+        event.commit();
+    }
+    
+    static void cacheMiss(String cache) {
+        CacheMissEvent event = new CacheMissEvent();
+        if (!event.isEnabled()) return;
+        event.cache = cache;
+        event.commit();
+    }
+}
\ No newline at end of file
@@ -0,0 +1,81 @@
+package info.saltyhash.wormhole.metrics;
+
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Registry of Wormhole's latency histograms, counters, and gauges, by name.  Names are dotted paths
+ * such as "command.add" or "query.jump.load", and are created on first use.  Hot paths
+ * should look up their histogram once and keep it, e.g. in a static final field.
+ * Thread-safe.
+ */
+public final class Metrics {
+    private static final Map<String, Histogram> histograms = new ConcurrentHashMap<>();
+    private static final Map<String, LongAdder> counters   = new ConcurrentHashMap<>();
+    private static final Map<String, DoubleSupplier> gauges = new ConcurrentHashMap<>();
+    
+    private Metrics() {}
+    
+    /** Returns the histogram with the name, creating it if needed. */
+    public static Histogram histogram(String name) {
+        return histograms.computeIfAbsent(name, Histogram::new);
+    }
+    
+    /** Returns the counter with the name, creating it if needed. */
+    public static LongAdder counter(String name) {
+        return counters.computeIfAbsent(name, n -> new LongAdder());
+    }
+    
+    /**
+     * Registers the gauge with the name, replacing any registered before.  The gauge is
+     * read whenever the metrics are reported, on any thread, so it must be thread-safe.
+     */
+    public static void gauge(String name, DoubleSupplier gauge) {
+        gauges.put(name, gauge);
+    }
+    
+    /** Returns the ratio of hits to all lookups, or 0 if none, e.g. for a gauge. */
+    public static double hitRatio(LongAdder hits, LongAdder misses) {
+        long hitCount = hits.sum(), total = hitCount+misses.sum();
+        return (total > 0) ? (double) hitCount/total : 0;
+    }
+    
+    /** Returns all histograms, by name. */
+    public static SortedMap<String, Histogram> getHistograms() {
+        return new TreeMap<>(histograms);
+    }
+    
+    /** Returns the values of all counters, by name. */
+    public static SortedMap<String, Long> getCounters() {
+        SortedMap<String, Long> values = new TreeMap<>();
+        for (Map.Entry<String, LongAdder> counter : counters.entrySet())
+            values.put(counter.getKey(), counter.getValue().sum());
+        return values;
+    }
+    
+    /** Returns the current values of all gauges, by name. */
+    public static SortedMap<String, Double> getGauges() {
+        SortedMap<String, Double> values = new TreeMap<>();
+        for (Map.Entry<String, DoubleSupplier> gauge : gauges.entrySet())
+            values.put(gauge.getKey(), gauge.getValue().getAsDouble());
+        return values;
+    }
+    
+    /** Resets all histograms and counters. */
+    public static void reset() {
+        for (Histogram histogram : histograms.values()) histogram.reset();
+        for (LongAdder counter : counters.values()) counter.reset();
+    }
+    
+    /** Formats the nanoseconds with a readable unit, e.g. "1.25 ms". */
+    public static String formatNanos(long nanos) {
+        if (nanos < 1000L)          return nanos+" ns";
+        if (nanos < 1000000L)       return String.format("%.1f us", nanos/1e3);
+        if (nanos < 1000000000L)    return String.format("%.2f ms", nanos/1e6);
+        return String.format("%.2f s", nanos/1e9);
+    }
+}
\ No newline at end of file
@@ -0,0 +1,210 @@
+package info.saltyhash.wormhole.metrics;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Exports the {@link Metrics} in the Prometheus text exposition format, from an HTTP
+ * endpoint, a file rewritten periodically (e.g. for the textfile collector of the node
+ * exporter), or both.  Metrics are rendered on a thread of the exporter's own, never the
+ * main thread.
+ *
+ * Histograms are exported as summaries in seconds, one per first segment of their names,
+ * labeled with the rest: "query.jump.load" becomes wormhole_query_seconds{name="jump.load"}.
+ * Counters and gauges are exported one per name: "cache.player.hits" becomes
+ * wormhole_cache_player_hits_total.
+ */
+public final class MetricsExporter {
+    private static final String PREFIX       = "wormhole_";
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+    private static final double[] QUANTILES  = {0.5, 0.9, 0.99, 0.999};
+    
+    private static ScheduledExecutorService executor = null;    // Null if stopped
+    private static HttpServer server = null;
+    private static Logger logger;
+    
+    private MetricsExporter() {}
+    
+    /**
+     * Starts exporting the metrics.  Logs errors.
+     * @param logger          Logger of the plugin.
+     * @param address         Address to serve the metrics on, e.g. "127.0.0.1".
+     * @param port            Port to serve the metrics on, at "/metrics"; 0 to not serve them.
+     * @param textfile        File to rewrite with the metrics; null to not write them.
+     * @param intervalSeconds Seconds between rewrites of the file.
+     * @return true on success; false on error, in which case nothing is exported.
+     */
+    public static synchronized boolean start(Logger logger, String address, int port,
+                                             File textfile, int intervalSeconds) {
+        stop();
+        if (port <= 0 && textfile == null) return true;
+        MetricsExporter.logger = logger;
+        
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread thread = new Thread(r, "Wormhole-Metrics");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        MetricsExporter.executor = executor;
+        
+        // Serve the metrics over HTTP
+        if (port > 0) {
+            try {
+                server = HttpServer.create(new InetSocketAddress(address, port), 0);
+            } catch (IOException | IllegalArgumentException | SecurityException e) {
+                logger.severe("Failed to serve metrics on "+address+":"+port+":\n"+e.toString());
+                stop();
+                return false;
+            }
+            server.createContext("/metrics", MetricsExporter::handle);
+            server.setExecutor(executor);
+            server.start();
+            logger.info("Serving metrics at http://"+address+":"+port+"/metrics");
+        }
+        
+        // Rewrite the textfile periodically
+        if (textfile != null) {
+            intervalSeconds = Math.max(1, intervalSeconds);
+            executor.scheduleWithFixedDelay(() -> writeTextfile(textfile),
+                    0, intervalSeconds, TimeUnit.SECONDS);
+            logger.info("Writing metrics to '"+textfile+"' every "+intervalSeconds+" s");
+        }
+        return true;
+    }
+    
+    /** Stops exporting the metrics. */
+    public static synchronized void stop() {
+        if (server != null) {
+            server.stop(0);
+            server = null;
+        }
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+    
+    /** Responds to a request for the metrics. */
+    private static void handle(HttpExchange exchange) throws IOException {
+        try {
+            if (!exchange.getRequestMethod().equals("GET") &&
+                    !exchange.getRequestMethod().equals("HEAD")) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            byte[] body = render().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+            if (exchange.getRequestMethod().equals("HEAD")) {
+                exchange.sendResponseHeaders(200, -1);
+                return;
+            }
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+    
+    /**
+     * Writes the metrics to a temporary file and moves it over the file, so that
+     * readers never see a partial file.  Logs errors.
+     * @return true on success; false on error.
+     */
+    static boolean writeTextfile(File file) {
+        File tempFile = new File(file.getPath()+".tmp");
+        try {
+            File dir = file.getAbsoluteFile().getParentFile();
+            if (dir != null && !dir.isDirectory() && !dir.mkdirs())
+                throw new IOException("Failed to create directory '"+dir+"'");
+            try (Writer out = new OutputStreamWriter(
+                    new FileOutputStream(tempFile), StandardCharsets.UTF_8)) {
+                out.write(render());
+            }
+            try {
+                Files.move(tempFile.toPath(), file.toPath(),
+                        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            logger.warning("Failed to write metrics to '"+file+"':\n"+e.toString());
+            return false;
+        }
+        return true;
+    }
+    
+    /** Returns the metrics in the Prometheus text exposition format. */
+    public static String render() {
+        StringBuilder out = new StringBuilder(1 << 14);
+        
+        // Group the histograms by the first segment of their names
+        Map<String, Map<String, Histogram>> families = new TreeMap<>();
+        for (Histogram histogram : Metrics.getHistograms().values()) {
+            String name = histogram.getName();
+            int dot = name.indexOf('.');
+            String family = (dot >= 0) ? name.substring(0, dot) : name;
+            String label  = (dot >= 0) ? name.substring(dot+1) : "";
+            families.computeIfAbsent(family, f -> new TreeMap<>()).put(label, histogram);
+        }
+        for (Map.Entry<String, Map<String, Histogram>> family : families.entrySet()) {
+            String metric = PREFIX+sanitize(family.getKey())+"_seconds";
+            out.append("# HELP ").append(metric).append(" Latency of ")
+                    .append(family.getKey()).append(", in seconds.\n");
+            out.append("# TYPE ").append(metric).append(" summary\n");
+            for (Map.Entry<String, Histogram> histogram : family.getValue().entrySet()) {
+                Histogram.Snapshot snapshot = histogram.getValue().snapshot();
+                String label = histogram.getKey().isEmpty() ? "" :
+                        "name=\""+escape(histogram.getKey())+"\"";
+                String labelPrefix = label.isEmpty() ? "" : label+",";
+                for (double quantile : QUANTILES) {
+                    out.append(metric).append('{').append(labelPrefix)
+                            .append("quantile=\"").append(quantile).append("\"} ")
+                            .append(snapshot.getPercentile(quantile*100)/1e9).append('\n');
+                }
+                String labels = label.isEmpty() ? "" : "{"+label+"}";
+                out.append(metric).append("_sum").append(labels).append(' ')
+                        .append(snapshot.getSum()/1e9).append('\n');
+                out.append(metric).append("_count").append(labels).append(' ')
+                        .append(snapshot.getCount()).append('\n');
+            }
+        }
+        
+        for (Map.Entry<String, Long> counter : Metrics.getCounters().entrySet()) {
+            String metric = PREFIX+sanitize(counter.getKey())+"_total";
+            out.append("# TYPE ").append(metric).append(" counter\n");
+            out.append(metric).append(' ').append(counter.getValue()).append('\n');
+        }
+        
+        for (Map.Entry<String, Double> gauge : Metrics.getGauges().entrySet()) {
+            String metric = PREFIX+sanitize(gauge.getKey());
+            out.append("# TYPE ").append(metric).append(" gauge\n");
+            out.append(metric).append(' ').append(gauge.getValue()).append('\n');
+        }
+        return out.toString();
+    }
+    
+    /** Replaces the characters not allowed in metric names with underscores. */
+    private static String sanitize(String name) {
+        return name.replaceAll("[^a-zA-Z0-9_]", "_");
+    }
+    
+    /** Escapes the label value. */
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+}
\ No newline at end of file
@@ -0,0 +1,244 @@
+package info.saltyhash.wormhole.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+/**
+ * Watches the operations that Wormhole runs on the server thread, i.e. those timed with
+ * {@link Histogram#start()}.  An operation slower than the threshold is logged with the
+ * nested operations that were slow too, and a stack sample taken by a watcher thread while
+ * it was running.  The Wormhole time of each tick is kept for the last ticks, for a rolling
+ * report of the time per tick.
+ *
+ * Operations are tracked on the server thread only, and only while the watchdog is running;
+ * elsewhere, {@link #begin(String)} and {@link #end(long, long)} only read the clock.
+ */
+public final class Watchdog {
+    /** Most nested operations tracked. */
+    private static final int  MAX_DEPTH = 32;
+    /** Most stack frames logged. */
+    private static final int  MAX_FRAMES = 40;
+    /** Least time between two logged slow operations; those in between are only counted. */
+    private static final long LOG_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(10);
+    
+    private static volatile Thread mainThread = null;   // Null if stopped
+    private static volatile long thresholdNanos;
+    private static Thread watcherThread;
+    private static Logger logger;
+    
+    /* Operations running on the server thread, outermost first; server thread only. */
+    private static final String[] names  = new String[MAX_DEPTH];
+    private static final long[]   starts = new long[MAX_DEPTH];
+    private static int depth = 0;
+    private static StringBuilder slowNested = null;     // Slow nested operations, or null
+    private static long lastLogNanos = 0;
+    private static int  unloggedCount = 0;
+    
+    /* Outermost operation, shared with the watcher thread. */
+    private static volatile long activeStart;
+    /** Incremented when the outermost operation begins and ends; odd while one is running. */
+    private static volatile long activeSeq = 0;
+    private static volatile StackTraceElement[] sample = null;
+    private static volatile long sampleSeq = -1;        // Of the operation sampled
+    
+    /* Wormhole time of each of the last ticks, as a ring. */
+    private static volatile AtomicLongArray ticks = new AtomicLongArray(1);
+    private static long tickNanos = 0;                  // Server thread only
+    private static int  tickIndex = 0;                  // Server thread only
+    private static volatile int tickCount = 0;
+    
+    private static final LongAdder slowOperations = Metrics.counter("watchdog.slow_operations");
+    static {
+        Metrics.gauge("watchdog.tick_ms_mean", () -> getTickMillis(false));
+        Metrics.gauge("watchdog.tick_ms_max", () -> getTickMillis(true));
+    }
+    
+    private Watchdog() {}
+    
+    /**
+     * Starts watching the operations of the calling thread, the server thread.  Call
+     * {@link #tick()} from it once per tick.
+     * @param logger          Logger of the plugin.
+     * @param thresholdMillis Time beyond which an operation is logged.
+     * @param reportTicks     Number of ticks over which the time per tick is reported.
+     */
+    public static synchronized void start(Logger logger, long thresholdMillis, int reportTicks) {
+        stop();
+        Watchdog.logger = logger;
+        thresholdNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, thresholdMillis));
+        ticks      = new AtomicLongArray(Math.max(1, reportTicks));
+        tickIndex  = 0;
+        tickCount  = 0;
+        tickNanos  = 0;
+        depth      = 0;
+        slowNested = null;
+        if ((activeSeq & 1) == 1) activeSeq++;
+        mainThread = Thread.currentThread();
+        
+        watcherThread = new Thread(Watchdog::watch, "Wormhole-Watchdog");
+        watcherThread.setDaemon(true);
+        watcherThread.start();
+    }
+    
+    /** Stops watching. */
+    public static synchronized void stop() {
+        mainThread = null;
+        if (watcherThread == null) return;
+        watcherThread.interrupt();
+        watcherThread = null;
+    }
+    
+    public static boolean isRunning() {
+        return (mainThread != null);
+    }
+    
+    /**
+     * Begins the operation, if on the server thread.
+     * @return Start time, as returned by {@link System#nanoTime()}.
+     */
+    static long begin(String name) {
+        long startNanos = System.nanoTime();
+        if (Thread.currentThread() != mainThread || depth == MAX_DEPTH) return startNanos;
+        names[depth]  = name;
+        starts[depth] = startNanos;
+        if (depth++ == 0) {
+            activeStart = startNanos;
+            activeSeq++;
+        }
+        return startNanos;
+    }
+    
+    /**
+     * Ends the operation begun at the start time, if it was begun on the server thread,
+     * logging it if slow.  Nested operations not ended (e.g. by an exception) end with it.
+     */
+    static void end(long startNanos, long endNanos) {
+        if (Thread.currentThread() != mainThread) return;
+        int index = depth-1;
+        while (index >= 0 && starts[index] != startNanos) index--;
+        if (index < 0) return;
+        depth = index;
+        long nanos = endNanos-startNanos;
+        
+        // Nested operation?
+        if (depth > 0) {
+            if (nanos < thresholdNanos) return;
+            if (slowNested == null) slowNested = new StringBuilder();
+            else                    slowNested.append(", ");
+            slowNested.append(names[depth]).append(' ').append(Metrics.formatNanos(nanos));
+            return;
+        }
+        
+        long seq = activeSeq++;
+        tickNanos += nanos;
+        if (nanos >= thresholdNanos) {
+            slowOperations.increment();
+            logSlow(names[depth], nanos, (sampleSeq == seq) ? sample : null);
+        }
+        slowNested = null;
+    }
+    
+    /** Logs the slow operation, unless another was logged recently. */
+    private static void logSlow(String name, long nanos, StackTraceElement[] stack) {
+        long now = System.nanoTime();
+        if (lastLogNanos != 0 && now-lastLogNanos < LOG_INTERVAL_NANOS) {
+            unloggedCount++;
+            return;
+        }
+        lastLogNanos = now;
+        
+        StringBuilder message = new StringBuilder("Slow operation on the server thread: ")
+                .append(name).append(" took ").append(Metrics.formatNanos(nanos));
+        if (slowNested != null) message.append(" (slow within it: ").append(slowNested).append(')');
+        if (unloggedCount > 0) {
+            message.append("; ").append(unloggedCount).append(" more since the last one");
+            unloggedCount = 0;
+        }
+        
+        // Stack of the server thread while the operation was running, or else now
+        if (stack != null) {
+            message.append("\nStack sample while running:");
+        } else {
+            message.append("\nStack when done (ended before it could be sampled):");
+            stack = Thread.currentThread().getStackTrace();
+        }
+        for (int i = 0; i < stack.length && i < MAX_FRAMES; i++)
+            message.append("\n\tat ").append(stack[i]);
+        if (stack.length > MAX_FRAMES)
+            message.append("\n\t... ").append(stack.length-MAX_FRAMES).append(" more");
+        logger.warning(message.toString());
+    }
+    
+    /** Samples the stack of the server thread when its operation becomes slow, until stopped. */
+    private static void watch() {
+        long sampledSeq = -1;
+        while (!Thread.currentThread().isInterrupted()) {
+            Thread thread = mainThread;
+            if (thread == null) return;
+            
+            // Outermost operation running longer than the threshold, and not sampled yet?
+            long seq   = activeSeq;
+            long start = activeStart;
+            if ((seq & 1) == 1 && seq != sampledSeq &&
+                    System.nanoTime()-start >= thresholdNanos) {
+                StackTraceElement[] stack = thread.getStackTrace();
+                if (activeSeq == seq) {
+                    sample    = stack;
+                    sampleSeq = seq;
+                }
+                sampledSeq = seq;
+            }
+            
+            try {
+                TimeUnit.NANOSECONDS.sleep(Math.max(TimeUnit.MILLISECONDS.toNanos(1),
+                        thresholdNanos/4));
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+    
+    /** Ends the tick, keeping its Wormhole time.  Call from the server thread once per tick. */
+    public static void tick() {
+        if (Thread.currentThread() != mainThread) return;
+        
+        // No operation runs between ticks; forget any not ended (e.g. by an exception)
+        if (depth > 0) {
+            depth = 0;
+            activeSeq++;
+            slowNested = null;
+        }
+        
+        AtomicLongArray ticks = Watchdog.ticks;
+        ticks.set(tickIndex, tickNanos);
+        tickIndex = (tickIndex+1) % ticks.length();
+        if (tickCount < ticks.length()) tickCount++;
+        tickNanos = 0;
+    }
+    
+    /** Returns the mean or max Wormhole time per tick over the last ticks, in milliseconds. */
+    private static double getTickMillis(boolean max) {
+        AtomicLongArray ticks = Watchdog.ticks;
+        int count = Math.min(tickCount, ticks.length());
+        if (count == 0) return 0;
+        long sum = 0, maxNanos = 0;
+        for (int i = 0; i < count; i++) {
+            long nanos = ticks.get(i);
+            sum += nanos;
+            maxNanos = Math.max(maxNanos, nanos);
+        }
+        return (max ? maxNanos : (double) sum/count)/1e6;
+    }
+    
+    /**
+     * Returns the rolling report of the Wormhole time per tick, e.g. "0.12 ms per tick
+     * (max 4.50 ms) over the last 1200 ticks", or null if not running.
+     */
+    public static String getTickReport() {
+        if (!isRunning()) return null;
+        return String.format("%.2f ms per tick (max %.2f ms) over the last %d ticks",
+                getTickMillis(false), getTickMillis(true), Math.min(tickCount, ticks.length()));
+    }
+}
\ No newline at end of file
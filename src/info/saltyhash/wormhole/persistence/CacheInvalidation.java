@@ -0,0 +1,303 @@
+package info.saltyhash.wormhole.persistence;
+
+import java.io.*;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the caches of several servers that share one database coherent, including the
+ * {@link PortalIndex}.  Each write seen by the write-through hooks of the caches is
+ * broadcast over a pluggable {@link InvalidationTransport} as a small invalidation naming
+ * what changed (and, for jumps, the version written) once it is committed.  Peers evict
+ * what was deleted, and refresh from the database what was saved, but only if they cache
+ * it and their copy is older.  Messages are numbered by each server, so a peer that misses
+ * some (e.g. a lost or reordered datagram) reloads what it caches from the database in the
+ * background, staying warm meanwhile.  A flush after bulk changes such as imports makes
+ * peers drop their caches and warm them up again instead.
+ *
+ * Only the "sqlite" storage mode is supported, since the memory-resident store assumes
+ * it is the only writer of the database.  Thread-safe.
+ */
+public final class CacheInvalidation {
+    private static final short MAGIC            = 0x5749;   // "WI"
+    private static final byte  PROTOCOL_VERSION = 1;
+    
+    // Kinds of invalidations
+    private static final byte PLAYER_SAVED   = 1;
+    private static final byte PLAYER_DELETED = 2;
+    private static final byte JUMP_SAVED     = 3;
+    private static final byte JUMP_DELETED   = 4;
+    private static final byte SIGN_SAVED     = 5;
+    private static final byte SIGN_DELETED   = 6;
+    private static final byte FLUSH          = 7;
+    private static final byte PORTAL_SAVED   = 8;
+    private static final byte PORTAL_DELETED = 9;
+    
+    /** Identifies the messages of this server. */
+    private static final UUID serverId = UUID.randomUUID();
+    /** Sequence number of the last message sent. */
+    private static final AtomicLong lastSentSeq = new AtomicLong();
+    /** Sequence number of the last message received from each peer. */
+    private static final Map<UUID, Long> lastReceivedSeqs = new ConcurrentHashMap<>();
+    
+    private static volatile InvalidationTransport transport = null;
+    private static volatile Runnable resync = null;
+    
+    /** Writes the details of an invalidation. */
+    private interface Payload {
+        void write(DataOutput out) throws IOException;
+    }
+    
+    private CacheInvalidation() {}
+    
+    /**
+     * Starts broadcasting and receiving invalidations over the transport.  Logs errors.
+     * @param  resync Drops the caches and warms them up again; run on any thread when a
+     *                peer flushed.
+     * @return true on success; false on error.
+     */
+    public static synchronized boolean start(InvalidationTransport transport, Runnable resync) {
+        stop();
+        CacheInvalidation.resync = resync;
+        try {
+            transport.open(CacheInvalidation::receive);
+        } catch (IOException e) {
+            DBManager.logSevere("Failed to open cache invalidation transport:\n"+e.toString());
+            return false;
+        }
+        CacheInvalidation.transport = transport;
+        DBManager.logInfo("Keeping caches coherent with other servers via "+
+                transport.getClass().getSimpleName());
+        return true;
+    }
+    
+    /** Stops broadcasting and receiving invalidations. */
+    public static synchronized void stop() {
+        if (transport == null) return;
+        transport.close();
+        transport = null;
+        resync = null;
+        lastReceivedSeqs.clear();
+    }
+    
+    public static boolean isEnabled() {
+        return (transport != null);
+    }
+    
+    /*
+     * Sending
+     */
+    
+    /**
+     * Tells the other servers to drop their caches and warm them up again.  Used after bulk
+     * changes that are not broadcast one by one, such as imports.
+     */
+    public static void flush() {
+        publish(FLUSH, out -> {});
+    }
+    
+    static void playerSaved(PlayerRecord playerRecord) {
+        final int id = playerRecord.getId();
+        publish(PLAYER_SAVED, out -> out.writeInt(id));
+    }
+    
+    static void playerDeleted(int playerId) {
+        publish(PLAYER_DELETED, out -> out.writeInt(playerId));
+    }
+    
+    static void jumpSaved(JumpRecord jumpRecord) {
+        final int id       = jumpRecord.id;
+        final int playerId = (jumpRecord.playerId != null) ? jumpRecord.playerId : -1;
+        final int version  = jumpRecord.version;
+        publish(JUMP_SAVED, out -> {
+            out.writeInt(id);
+            out.writeInt(playerId);
+            out.writeInt(version);
+        });
+    }
+    
+    static void jumpDeleted(int jumpId) {
+        publish(JUMP_DELETED, out -> out.writeInt(jumpId));
+    }
+    
+    static void signSaved(SignRecord signRecord) {
+        publish(SIGN_SAVED, signLocation(signRecord));
+    }
+    
+    static void signDeleted(SignRecord signRecord) {
+        publish(SIGN_DELETED, signLocation(signRecord));
+    }
+    
+    static void portalSaved(PortalRecord portalRecord) {
+        final int id = portalRecord.getId();
+        publish(PORTAL_SAVED, out -> out.writeInt(id));
+    }
+    
+    static void portalDeleted(int portalId) {
+        publish(PORTAL_DELETED, out -> out.writeInt(portalId));
+    }
+    
+    private static Payload signLocation(SignRecord signRecord) {
+        final UUID worldUuid = signRecord.worldUuid;
+        final int x = signRecord.x, y = signRecord.y, z = signRecord.z;
+        return out -> {
+            out.writeLong(worldUuid.getMostSignificantBits());
+            out.writeLong(worldUuid.getLeastSignificantBits());
+            out.writeInt(x);
+            out.writeInt(y);
+            out.writeInt(z);
+        };
+    }
+    
+    /** Broadcasts the invalidation once the current unit of work, if any, is committed. */
+    private static void publish(byte kind, Payload payload) {
+        if (transport == null) return;
+        UnitOfWork.afterCommit(() -> {
+            InvalidationTransport transport = CacheInvalidation.transport;
+            if (transport == null) return;
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+            try (DataOutputStream out = new DataOutputStream(bytes)) {
+                out.writeShort(MAGIC);
+                out.writeByte(PROTOCOL_VERSION);
+                out.writeLong(serverId.getMostSignificantBits());
+                out.writeLong(serverId.getLeastSignificantBits());
+                // Numbered as sent, so that peers see consecutive numbers
+                synchronized (lastSentSeq) {
+                    out.writeLong(lastSentSeq.incrementAndGet());
+                    out.writeByte(kind);
+                    payload.write(out);
+                    transport.send(bytes.toByteArray());
+                }
+            } catch (IOException e) {
+                DBManager.logWarning("Failed to send cache invalidation:\n"+e.toString());
+            }
+        });
+    }
+    
+    /*
+     * Receiving
+     */
+    
+    /** Handles a message from the transport; run on its thread. */
+    private static void receive(byte[] message) {
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(message));
+            // Not an invalidation of this protocol version?
+            if (in.readShort() != MAGIC || in.readByte() != PROTOCOL_VERSION) return;
+            UUID origin = new UUID(in.readLong(), in.readLong());
+            // Sent by this server?
+            if (origin.equals(serverId)) return;
+            long seq  = in.readLong();
+            byte kind = in.readByte();
+            
+            // Missed invalidations of the peer?  Refresh the caches.
+            // Peer flushed?  Resync.
+            boolean missed;
+            synchronized (lastReceivedSeqs) {
+                Long last = lastReceivedSeqs.get(origin);
+                missed = (last != null && seq > last+1);
+                if (last == null || seq > last) lastReceivedSeqs.put(origin, seq);
+            }
+            if (kind == FLUSH) {
+                Runnable resync = CacheInvalidation.resync;
+                if (resync != null) resync.run();
+                return;
+            }
+            if (missed) {
+                DBManager.logWarning("Missed cache invalidations; refreshing caches");
+                DBManager.submit(() -> {
+                    SignCache.refresh();
+                    PlayerCache.refresh();
+                    PortalIndex.load();
+                    return null;
+                });
+            }
+            
+            // Apply on the database thread, in order with the refreshes of other invalidations
+            DBManager.submit(() -> {
+                try {
+                    apply(kind, in);
+                } catch (IOException e) {
+                    DBManager.logWarning("Failed to read cache invalidation:\n"+e.toString());
+                }
+                return null;
+            });
+        } catch (IOException e) {
+            DBManager.logWarning("Failed to read cache invalidation:\n"+e.toString());
+        }
+    }
+    
+    /**
+     * Evicts what the invalidation deleted from the caches, and refreshes what it saved from
+     * the database, if cached and older.  Runs on the database thread.
+     */
+    private static void apply(byte kind, DataInput in) throws IOException {
+        switch (kind) {
+            case PLAYER_SAVED: {
+                int id = in.readInt();
+                if (PlayerCache.getPlayer(id) == null) return;
+                PlayerRecord playerRecord = PlayerRecord.loadFromDatabase(id);
+                if (playerRecord != null) PlayerCache.playerSaved(playerRecord);
+                return;
+            }
+            case PLAYER_DELETED: {
+                int id = in.readInt();
+                SignCache.playerDeleted(id);
+                PlayerCache.playerDeleted(id);
+                return;
+            }
+            case JUMP_SAVED: {
+                int id       = in.readInt();
+                int playerId = in.readInt();
+                int version  = in.readInt();
+                PortalIndex.jumpSaved(id);
+                // Cached copy is current, or the jump is of no interest?
+                JumpRecord cached = PlayerCache.getJump(id);
+                if (cached == null) cached = SignCache.getJump(id);
+                if (cached != null && cached.version >= version) return;
+                if (cached == null && PlayerCache.getPlayer(playerId) == null) return;
+                JumpRecord jumpRecord = JumpRecord.loadFromDatabase(id);
+                if (jumpRecord == null) return;
+                SignCache.jumpSaved(jumpRecord);
+                PlayerCache.jumpSaved(jumpRecord);
+                return;
+            }
+            case JUMP_DELETED: {
+                int id = in.readInt();
+                SignCache.jumpDeleted(id);
+                PlayerCache.jumpDeleted(id);
+                PortalIndex.jumpDeleted(id);
+                return;
+            }
+            case SIGN_SAVED: {
+                UUID worldUuid = new UUID(in.readLong(), in.readLong());
+                int x = in.readInt(), y = in.readInt(), z = in.readInt();
+                if (!SignCache.isCached(worldUuid, x, z)) return;
+                SignRecord signRecord = SignRecord.loadFromDatabase(worldUuid, x, y, z);
+                if (signRecord == null) return;
+                JumpRecord jumpRecord = JumpRecord.loadFromDatabase(signRecord.jumpId);
+                if (jumpRecord != null) SignCache.signSaved(signRecord, jumpRecord);
+                return;
+            }
+            case SIGN_DELETED: {
+                UUID worldUuid = new UUID(in.readLong(), in.readLong());
+                SignCache.signDeleted(new SignRecord(
+                        worldUuid, in.readInt(), in.readInt(), in.readInt(), 0));
+                return;
+            }
+            case PORTAL_SAVED: {
+                PortalRecord portalRecord = PortalRecord.loadFromDatabase(in.readInt());
+                if (portalRecord != null) PortalIndex.portalSaved(portalRecord);
+                return;
+            }
+            case PORTAL_DELETED: {
+                PortalIndex.portalDeleted(in.readInt());
+                return;
+            }
+            default:
+                DBManager.logWarning("Unknown kind of cache invalidation: "+kind);
+        }
+    }
+}
\ No newline at end of file
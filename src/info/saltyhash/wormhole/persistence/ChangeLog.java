@@ -0,0 +1,447 @@
+package info.saltyhash.wormhole.persistence;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import info.saltyhash.wormhole.metrics.Metrics;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Append-only log of the changes made to the players, jumps, and signs, for auditing and
+ * to feed external indexers; {@link ChangeLogReplay} applies it to a database again.
+ *
+ * Each change saved or deleted through the records is logged once committed, with a
+ * sequence number, the operation, the record as it was before and after, and the player
+ * who made it (see {@link #setActor(UUID, String)}).  The thread making the change only
+ * queues it; a writer thread of its own appends the queued changes in batches to files of
+ * line-delimited JSON in the log directory.  Each file is named after the sequence number
+ * of its first change, and a new one is started once it grows too big, deleting the oldest.
+ *
+ * Bulk changes that do not go through the records one by one, such as imports, are logged
+ * as a single "bulk" entry (see {@link #bulkChange(String, Supplier)}).  If the writer falls
+ * too far behind, changes are dropped and logged as a single "lost" entry.
+ */
+public final class ChangeLog {
+    static final String PREFIX = "changes-";
+    static final String SUFFIX = ".jsonl";
+    
+    // Operations
+    static final String INSERT = "insert";
+    static final String UPDATE = "update";
+    static final String DELETE = "delete";
+    static final String BULK   = "bulk";
+    static final String LOST   = "lost";
+    
+    /** Most changes queued for the writer; more are dropped. */
+    private static final int MAX_QUEUED = 100000;
+    /** Most changes written per batch, before flushing the file. */
+    private static final int BATCH_SIZE = 1000;
+    
+    /** Player making the changes on each thread, if any. */
+    private static final ThreadLocal<Actor> actor = new ThreadLocal<>();
+    /** True on a thread making a bulk change, whose changes are not logged one by one. */
+    private static final ThreadLocal<Boolean> inBulkChange = new ThreadLocal<>();
+    
+    private static final BlockingQueue<Entry> queue = new LinkedBlockingQueue<>(MAX_QUEUED);
+    /** Number of changes dropped since the last batch was written. */
+    private static final AtomicInteger dropped = new AtomicInteger();
+    static {
+        Metrics.gauge("changelog.queue_depth", queue::size);
+    }
+    
+    private static volatile Thread writerThread = null;   // Null if disabled
+    private static volatile boolean running = false;
+    
+    /** Player making changes. */
+    private static final class Actor {
+        final UUID   uuid;  // Null if not a player (e.g. the console)
+        final String name;
+        
+        Actor(UUID uuid, String name) {
+            this.uuid = uuid;
+            this.name = name;
+        }
+    }
+    
+    /** Change queued for the writer. */
+    private static final class Entry {
+        final long   time = System.currentTimeMillis();
+        final String table;         // Null if bulk or lost
+        final String op;
+        final Actor  actor;         // Null if not made by a player
+        final Object before;        // Copy of the record as it was, or null
+        final Object after;         // Copy of the record as it is, or null
+        final String description;   // Of a bulk change, or null
+        
+        Entry(String table, String op, Object before, Object after, String description) {
+            this.table       = table;
+            this.op          = op;
+            this.actor       = ChangeLog.actor.get();
+            this.before      = before;
+            this.after       = after;
+            this.description = description;
+        }
+    }
+    
+    private ChangeLog() {}
+    
+    /**
+     * Starts logging changes into the directory.
+     * @param logDir       Directory of the log files; created if needed.
+     * @param maxFileBytes Size of a log file beyond which a new one is started.
+     * @param keep         Number of log files to keep, including the current one; 0 to keep all.
+     */
+    public static synchronized void start(File logDir, long maxFileBytes, int keep) {
+        stop();
+        running = true;
+        writerThread = new Thread(() -> write(logDir, maxFileBytes, keep), "Wormhole-ChangeLog");
+        writerThread.setDaemon(true);
+        writerThread.start();
+        DBManager.logInfo("Logging changes to '"+logDir+"'");
+    }
+    
+    /** Writes the queued changes, then stops logging changes. */
+    public static synchronized void stop() {
+        if (writerThread == null) return;
+        Thread thread = writerThread;
+        writerThread = null;
+        running = false;
+        thread.interrupt();
+        try {
+            thread.join(TimeUnit.SECONDS.toMillis(30));
+            if (thread.isAlive()) DBManager.logWarning("Timed out waiting for change log writer");
+        } catch (InterruptedException e) {
+            DBManager.logWarning("Interrupted while waiting for change log writer");
+        }
+    }
+    
+    public static boolean isEnabled() {
+        return (writerThread != null);
+    }
+    
+    /**
+     * Sets the player making the changes on this thread, until cleared.
+     * @param uuid UUID of the player, or null if not a player (e.g. the console).
+     * @param name Name of the player.
+     */
+    public static void setActor(UUID uuid, String name) {
+        actor.set(new Actor(uuid, name));
+    }
+    
+    /** Clears the player making the changes on this thread. */
+    public static void clearActor() {
+        actor.remove();
+    }
+    
+    /**
+     * Makes a bulk change on this thread, such as an import, which is logged as a single
+     * entry rather than change by change.
+     * @param  description Description of the change for the log, or null if it changes
+     *                     nothing (e.g. a dry run).
+     * @param  change      Makes the change; returns null on error, in which case it is not
+     *                     logged.
+     * @return Result of the change.
+     */
+    public static <T> T bulkChange(String description, Supplier<T> change) {
+        T result;
+        inBulkChange.set(true);
+        try {
+            result = change.get();
+        } finally {
+            inBulkChange.remove();
+        }
+        if (result != null && description != null)
+            append(new Entry(null, BULK, null, null, description));
+        return result;
+    }
+    
+    /*
+     * Hooks of the records
+     */
+    
+    /** @param before Player record as it was before an update; null if created or unknown. */
+    static void playerSaved(PlayerRecord before, PlayerRecord after, boolean created) {
+        if (isLogged()) {
+            append(new Entry("players", created ? INSERT : UPDATE,
+                    (before != null) ? before.copy() : null, after.copy(), null));
+        }
+    }
+    
+    static void playerDeleted(PlayerRecord before) {
+        if (isLogged()) append(new Entry("players", DELETE, before.copy(), null, null));
+    }
+    
+    /** @param before Jump record as it was before an update; null if created or unknown. */
+    static void jumpSaved(JumpRecord before, JumpRecord after, boolean created) {
+        if (isLogged()) {
+            append(new Entry("jumps", created ? INSERT : UPDATE,
+                    (before != null) ? before.copy() : null, after.copy(), null));
+        }
+    }
+    
+    static void jumpDeleted(JumpRecord before) {
+        if (isLogged()) append(new Entry("jumps", DELETE, before.copy(), null, null));
+    }
+    
+    /** @param before Sign record as it was before an update; null if created or unknown. */
+    static void signSaved(SignRecord before, SignRecord after, boolean created) {
+        if (isLogged()) {
+            append(new Entry("signs", created ? INSERT : UPDATE,
+                    (before != null) ? before.copy() : null, after.copy(), null));
+        }
+    }
+    
+    static void signDeleted(SignRecord before) {
+        if (isLogged()) append(new Entry("signs", DELETE, before.copy(), null, null));
+    }
+    
+    /** Returns true if changes made on this thread are logged one by one. */
+    private static boolean isLogged() {
+        return (writerThread != null && inBulkChange.get() == null);
+    }
+    
+    /** Queues the entry for the writer once the current unit of work, if any, is committed. */
+    private static void append(Entry entry) {
+        if (writerThread == null) return;
+        UnitOfWork.afterCommit(() -> {
+            if (!queue.offer(entry)) dropped.incrementAndGet();
+        });
+    }
+    
+    /*
+     * Writing; on the writer thread
+     */
+    
+    /** Writes the queued changes in batches until stopped. */
+    private static void write(File logDir, long maxFileBytes, int keep) {
+        if (!logDir.isDirectory() && !logDir.mkdirs()) {
+            DBManager.logSevere("Failed to create change log directory '"+logDir+"'");
+        }
+        long seq = getLastSeq(logDir);
+        File file = null;
+        Writer out = null;
+        JsonWriter json = null;
+        List<Entry> batch = new ArrayList<>(BATCH_SIZE);
+        
+        while (true) {
+            // Wait for the next change; once stopped, take only those left in the queue
+            Entry first;
+            try {
+                first = running ? queue.poll(1, TimeUnit.SECONDS) : queue.poll();
+            } catch (InterruptedException e) {
+                continue;   // Stopped
+            }
+            int lost = dropped.getAndSet(0);
+            if (first == null && lost == 0) {
+                if (running) continue;
+                break;
+            }
+            batch.clear();
+            if (lost > 0) batch.add(new Entry(null, LOST, null, null, lost+" changes"));
+            if (first != null) batch.add(first);
+            queue.drainTo(batch, BATCH_SIZE-batch.size());
+            
+            try {
+                // Open the log file, appending to the last one if not too big
+                if (out == null) {
+                    file = getLastFile(logDir);
+                    if (file == null || file.length() >= maxFileBytes)
+                        file = new File(logDir, getFileName(seq+1));
+                    out = openWriter(file);
+                    json = new JsonWriter(out);
+                    json.setLenient(true);  // Allows one top-level value per line
+                }
+                
+                // Write the batch
+                for (Entry entry : batch) {
+                    writeEntry(json, ++seq, entry);
+                    out.write('\n');
+                }
+                out.flush();
+                
+                // File too big?  Start a new one with the next batch.
+                if (file.length() >= maxFileBytes) {
+                    out.close();
+                    out = null;
+                    deleteOldFiles(logDir, keep);
+                }
+            } catch (IOException e) {
+                DBManager.logSevere("Failed to write change log '"+file+"':\n"+e.toString());
+                dropped.addAndGet(batch.size());
+                closeQuietly(out);
+                out = null;
+            }
+        }
+        closeQuietly(out);
+    }
+    
+    /**
+     * Opens the log file for appending.  A change torn by a crash is ended with a new line,
+     * so that it does not run into the next change.
+     */
+    private static Writer openWriter(File file) throws IOException {
+        boolean torn = false;
+        if (file.length() > 0) {
+            try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+                raf.seek(file.length()-1);
+                torn = (raf.read() != '\n');
+            }
+        }
+        Writer out = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(file, true), StandardCharsets.UTF_8), 1 << 16);
+        if (torn) out.write('\n');
+        return out;
+    }
+    
+    private static void writeEntry(JsonWriter json, long seq, Entry entry) throws IOException {
+        json.beginObject().name("seq").value(seq)
+                .name("time").value(entry.time)
+                .name("op").value(entry.op);
+        if (entry.table != null) json.name("table").value(entry.table);
+        if (entry.description != null) json.name("description").value(entry.description);
+        json.name("actor");
+        if (entry.actor != null) {
+            json.beginObject()
+                    .name("uuid").value((entry.actor.uuid != null) ?
+                            entry.actor.uuid.toString() : null)
+                    .name("name").value(entry.actor.name).endObject();
+        } else {
+            json.nullValue();
+        }
+        if (entry.table != null) {
+            json.name("before");
+            writeRecord(json, entry.before);
+            json.name("after");
+            writeRecord(json, entry.after);
+        }
+        json.endObject();
+    }
+    
+    /** Writes the columns of the record. */
+    private static void writeRecord(JsonWriter json, Object record) throws IOException {
+        if (record instanceof PlayerRecord) {
+            PlayerRecord r = (PlayerRecord) record;
+            json.beginObject().name("id").value(r.getId())
+                    .name("uuid").value(r.uuid.toString())
+                    .name("username").value(r.username).endObject();
+        } else if (record instanceof JumpRecord) {
+            JumpRecord r = (JumpRecord) record;
+            json.beginObject().name("id").value(r.id)
+                    .name("player_id").value(r.playerId)
+                    .name("name").value(r.name)
+                    .name("world_uuid").value(r.worldUuid.toString())
+                    .name("x").value(r.x)
+                    .name("y").value(r.y)
+                    .name("z").value(r.z)
+                    .name("yaw").value(r.yaw)
+                    .name("version").value(r.version).endObject();
+        } else if (record instanceof SignRecord) {
+            SignRecord r = (SignRecord) record;
+            json.beginObject().name("id").value(r.getId())
+                    .name("world_uuid").value(r.worldUuid.toString())
+                    .name("x").value(r.x)
+                    .name("y").value(r.y)
+                    .name("z").value(r.z)
+                    .name("jump_id").value(r.jumpId).endObject();
+        } else {
+            json.nullValue();
+        }
+    }
+    
+    /** Deletes the oldest log files, keeping the given number; 0 to keep all. */
+    private static void deleteOldFiles(File logDir, int keep) {
+        if (keep <= 0) return;
+        File[] files = listFiles(logDir);
+        for (int i = 0; i < files.length-keep; i++) {
+            if (!files[i].delete())
+                DBManager.logWarning("Failed to delete old change log '"+files[i]+"'");
+        }
+    }
+    
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null) return;
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            DBManager.logWarning("Failed to close change log:\n"+e.toString());
+        }
+    }
+    
+    /*
+     * Log files
+     */
+    
+    /** Returns the name of the log file starting with the change with the sequence number. */
+    private static String getFileName(long firstSeq) {
+        return PREFIX+String.format("%020d", firstSeq)+SUFFIX;
+    }
+    
+    /** Returns the log files in the directory, oldest first. */
+    static File[] listFiles(File logDir) {
+        File[] files = logDir.listFiles((dir, name) ->
+                name.startsWith(PREFIX) && name.endsWith(SUFFIX));
+        if (files == null) return new File[0];
+        Arrays.sort(files);     // Sequence numbers are zero-padded
+        return files;
+    }
+    
+    /** Returns the newest log file in the directory, or null if none. */
+    private static File getLastFile(File logDir) {
+        File[] files = listFiles(logDir);
+        return (files.length > 0) ? files[files.length-1] : null;
+    }
+    
+    /** Returns the sequence number of the last change logged in the directory, or 0 if none. */
+    private static long getLastSeq(File logDir) {
+        File file = getLastFile(logDir);
+        if (file == null) return 0;
+        long seq = 0;
+        try {
+            for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+                long lineSeq = readSeq(line);
+                if (lineSeq > seq) seq = lineSeq;
+            }
+        } catch (IOException e) {
+            DBManager.logSevere("Failed to read change log '"+file+"':\n"+e.toString());
+        }
+        
+        // Empty file?  Continue from its name.
+        if (seq == 0) {
+            String name = file.getName();
+            try {
+                seq = Long.parseLong(name.substring(
+                        PREFIX.length(), name.length()-SUFFIX.length()))-1;
+            } catch (NumberFormatException e) {
+                seq = 0;
+            }
+        }
+        return seq;
+    }
+    
+    /** Returns the sequence number of the logged change, or 0 if the line is malformed. */
+    static long readSeq(String line) {
+        try (JsonReader json = new JsonReader(new StringReader(line))) {
+            if (json.peek() != JsonToken.BEGIN_OBJECT) return 0;
+            json.beginObject();
+            while (json.hasNext()) {
+                if (json.nextName().equals("seq")) return json.nextLong();
+                json.skipValue();
+            }
+        } catch (IOException | IllegalStateException | NumberFormatException e) {
+            // Malformed, e.g. torn by a crash
+        }
+        return 0;
+    }
+}
\ No newline at end of file
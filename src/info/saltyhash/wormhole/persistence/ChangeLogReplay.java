@@ -0,0 +1,268 @@
+package info.saltyhash.wormhole.persistence;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Replays the {@link ChangeLog}: applies the logged changes after a given sequence number
+ * to the database, e.g. to bring a restored backup up to date.  Saved records are written
+ * as they were after the change, by ID, and deleted records are deleted by ID (along with
+ * whatever the database deletes by cascade).
+ *
+ * Changes are applied in order, in one transaction.  Replay stops before a change that
+ * cannot be replayed: a bulk change, changes lost by the log, or changes missing from it
+ * (e.g. in log files since deleted).  Uses the connection of the calling thread; call it
+ * from the database thread (see {@link DBManager#submit(java.util.concurrent.Callable)}).
+ */
+public final class ChangeLogReplay {
+    /** Columns of the tables, in the order of the upsert statements. */
+    private static final Map<String, String[]> COLUMNS = new HashMap<>();
+    static {
+        COLUMNS.put("players", new String[]{"id", "uuid", "username"});
+        COLUMNS.put("jumps", new String[]{
+                "id", "player_id", "name", "world_uuid", "x", "y", "z", "yaw", "version"});
+        COLUMNS.put("signs", new String[]{"id", "world_uuid", "x", "y", "z", "jump_id"});
+    }
+    
+    /** Counts of the changes replayed, and why replay stopped early, if it did. */
+    public static final class Result {
+        public long changes, lastSeq;
+        public String stoppedBecause = null;    // Null if replayed to the end of the log
+        private final long start = System.nanoTime();
+        private long nanos;
+        
+        @Override
+        public String toString() {
+            String s = String.format("%d changes (up to #%d) in %.1f s",
+                    changes, lastSeq, nanos/1e9);
+            return (stoppedBecause != null) ? s+"; stopped because "+stoppedBecause : s;
+        }
+    }
+    
+    /** A change read from the log. */
+    private static final class Change {
+        long   seq;
+        String op, table, description;
+        Map<String, Object> before, after;
+    }
+    
+    private ChangeLogReplay() {}
+    
+    /**
+     * Applies the changes logged in the directory after the sequence number to the
+     * database.  Logs errors.
+     * @return Result, or null on error, in which case no change is applied.
+     */
+    public static Result replay(File logDir, long afterSeq) {
+        // Get database connection
+        Connection conn = DBManager.getConnection();
+        if (conn == null) return null;
+        
+        Result result = new Result();
+        result.lastSeq = afterSeq;
+        File[] files = ChangeLog.listFiles(logDir);
+        Map<String, DBManager.Upsert> upserts = new HashMap<>();
+        boolean autoCommit = true;
+        try {
+            // Apply all changes in one transaction
+            autoCommit = conn.getAutoCommit();
+            if (!autoCommit) conn.commit();
+            conn.setAutoCommit(false);
+            
+            replay:
+            for (int i = 0; i < files.length; i++) {
+                // All changes of the file come before the first one to replay?
+                if (i+1 < files.length && getFirstSeq(files[i+1]) <= afterSeq+1) continue;
+                
+                try (BufferedReader in = new BufferedReader(new InputStreamReader(
+                        new FileInputStream(files[i]), StandardCharsets.UTF_8), 1 << 16)) {
+                    String line;
+                    while ((line = in.readLine()) != null) {
+                        Change change = readChange(line);
+                        if (change == null || change.seq <= result.lastSeq) continue;
+                        result.stoppedBecause = apply(conn, upserts, change, result.lastSeq);
+                        if (result.stoppedBecause != null) break replay;
+                        result.changes++;
+                        result.lastSeq = change.seq;
+                    }
+                }
+            }
+            
+            // Commit changes
+            conn.commit();
+        } catch (IOException | SQLException e) {
+            DBManager.logSevere("Failed to replay change log after #"+result.lastSeq+":\n"+
+                    e.toString());
+            try {
+                conn.rollback();
+            } catch (SQLException e1) {
+                DBManager.logSevere("Failed to roll back changes");
+            }
+            return null;
+        } finally {
+            for (DBManager.Upsert upsert : upserts.values()) {
+                try {
+                    upsert.close();
+                } catch (SQLException ignored) {}
+            }
+            // Reset connection autocommit to previous value
+            try {
+                conn.setAutoCommit(autoCommit);
+            } catch (SQLException e) {
+                DBManager.logWarning("Failed to set database autocommit to "+autoCommit);
+            }
+        }
+        
+        result.nanos = System.nanoTime()-result.start;
+        DBManager.logInfo("Replayed "+result);
+        return result;
+    }
+    
+    /**
+     * Applies the change to the database.
+     * @return Why replay must stop before the change, or null if applied.
+     */
+    private static String apply(Connection conn, Map<String, DBManager.Upsert> upserts,
+                                Change change, long lastSeq) throws SQLException {
+        // Changes missing from the log?
+        if (change.seq != lastSeq+1) {
+            return "changes #"+(lastSeq+1)+" to #"+(change.seq-1)+" are missing from the log";
+        }
+        
+        switch (change.op) {
+            case ChangeLog.BULK:
+                return "#"+change.seq+" is a bulk change ("+change.description+")";
+            case ChangeLog.LOST:
+                return "#"+change.seq+" records lost changes ("+change.description+")";
+            case ChangeLog.INSERT:
+            case ChangeLog.UPDATE:
+                if (change.after == null || !COLUMNS.containsKey(change.table))
+                    throw new SQLException("Malformed change #"+change.seq);
+                upsert(conn, upserts, change.table, change.after);
+                return null;
+            case ChangeLog.DELETE:
+                if (change.before == null || !COLUMNS.containsKey(change.table) ||
+                        !(change.before.get("id") instanceof Long))
+                    throw new SQLException("Malformed change #"+change.seq);
+                try (PreparedStatement ps = conn.prepareStatement(
+                        "DELETE FROM "+change.table+" WHERE `id`=?;")) {
+                    ps.setLong(1, (Long) change.before.get("id"));
+                    ps.executeUpdate();
+                }
+                return null;
+            default:
+                throw new SQLException("Unknown operation of change #"+change.seq+": "+change.op);
+        }
+    }
+    
+    /** Inserts the record, or updates the existing record with its ID. */
+    private static void upsert(Connection conn, Map<String, DBManager.Upsert> upserts,
+                               String table, Map<String, Object> record) throws SQLException {
+        String[] columns = COLUMNS.get(table);
+        boolean isSign = table.equals("signs");
+        
+        // Create upsert statement
+        DBManager.Upsert ps = upserts.get(table);
+        if (ps == null) {
+            String[] upsertColumns = columns;
+            if (isSign) {
+                upsertColumns = Arrays.copyOf(columns, columns.length+1);
+                upsertColumns[columns.length] = "chunk_key";
+            }
+            ps = new DBManager.Upsert(conn, table, upsertColumns);
+            upserts.put(table, ps);
+        }
+        
+        // Set parameters and execute
+        try {
+            for (int i = 0; i < columns.length; i++) {
+                Object value = record.get(columns[i]);
+                if (value != null && columns[i].endsWith("uuid"))
+                    ps.setObject(i+1, DBManager.UuidToBytes(UUID.fromString((String) value)));
+                else
+                    ps.setObject(i+1, value);
+            }
+            if (isSign) {
+                ps.setObject(columns.length+1, SignCache.getChunkKeyOfBlock(
+                        ((Number) record.get("x")).intValue(),
+                        ((Number) record.get("z")).intValue()));
+            }
+        } catch (ClassCastException | IllegalArgumentException | NullPointerException e) {
+            throw new SQLException("Malformed "+table+" record "+record.get("id"));
+        }
+        ps.executeUpdate();
+    }
+    
+    /** Returns the sequence number of the first change in the log file, from its name. */
+    private static long getFirstSeq(File file) {
+        String name = file.getName();
+        try {
+            return Long.parseLong(name.substring(
+                    ChangeLog.PREFIX.length(), name.length()-ChangeLog.SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return Long.MAX_VALUE;
+        }
+    }
+    
+    /** Reads the logged change, returning null if the line is malformed (e.g. torn by a crash). */
+    private static Change readChange(String line) {
+        Change change = new Change();
+        try (JsonReader json = new JsonReader(new StringReader(line))) {
+            json.beginObject();
+            while (json.hasNext()) {
+                String field = json.nextName();
+                if (json.peek() == JsonToken.NULL) {
+                    json.nextNull();
+                    continue;
+                }
+                switch (field) {
+                    case "seq"        : change.seq         = json.nextLong();   break;
+                    case "op"         : change.op          = json.nextString(); break;
+                    case "table"      : change.table       = json.nextString(); break;
+                    case "description": change.description = json.nextString(); break;
+                    case "before"     : change.before      = readRecord(json);  break;
+                    case "after"      : change.after       = readRecord(json);  break;
+                    default           : json.skipValue();
+                }
+            }
+            json.endObject();
+        } catch (IOException | IllegalStateException | NumberFormatException e) {
+            return null;
+        }
+        return (change.seq > 0 && change.op != null) ? change : null;
+    }
+    
+    /** Reads the columns of a record; numbers are read as longs or doubles. */
+    private static Map<String, Object> readRecord(JsonReader json) throws IOException {
+        Map<String, Object> record = new HashMap<>();
+        json.beginObject();
+        while (json.hasNext()) {
+            String column = json.nextName();
+            switch (json.peek()) {
+                case NULL:
+                    json.nextNull();
+                    record.put(column, null);
+                    break;
+                case NUMBER:
+                    String number = json.nextString();
+                    record.put(column, number.matches("-?\\d+") ?
+                            (Object) Long.parseLong(number) : (Object) Double.parseDouble(number));
+                    break;
+                default:
+                    record.put(column, json.nextString());
+            }
+        }
+        json.endObject();
+        return record;
+    }
+}
\ No newline at end of file
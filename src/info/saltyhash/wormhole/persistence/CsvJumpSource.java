@@ -0,0 +1,68 @@
+package info.saltyhash.wormhole.persistence;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.sql.SQLException;
+import java.util.UUID;
+
+/**
+ * Reads jumps from a flat CSV file, one jump per line:
+ * "owner,name,world,x,y,z[,yaw]", where the owner is a player UUID or username, or empty
+ * for a public jump, and the world is a world name or UUID.  Blank lines, lines starting
+ * with '#', and a header line starting with "owner," are ignored.  Fields cannot contain
+ * commas.
+ */
+final class CsvJumpSource implements JumpSource {
+    @Override
+    public String getName() {
+        return "csv";
+    }
+    
+    @Override
+    public File getDefaultPath(File pluginsDir) {
+        return new File(pluginsDir, "Wormhole"+File.separator+"import.csv");
+    }
+    
+    @Override
+    public int read(File path, Sink sink) throws IOException, SQLException {
+        int errors = 0;
+        try (BufferedReader reader =
+                     Files.newBufferedReader(path.toPath(), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#") || line.startsWith("owner,")) continue;
+                String[] fields = line.split(",", -1);
+                if (fields.length < 6 || fields.length > 7) {
+                    errors++;
+                    continue;
+                }
+                
+                // Owner is a UUID, a username, or empty if public
+                String owner     = fields[0].trim();
+                UUID   ownerUuid = null;
+                String ownerName = null;
+                if (!owner.isEmpty()) {
+                    try {
+                        ownerUuid = UUID.fromString(owner);
+                    } catch (IllegalArgumentException e) {
+                        ownerName = owner;
+                    }
+                }
+                try {
+                    sink.accept(new Entry(ownerUuid, ownerName, fields[1].trim(), fields[2].trim(),
+                            Double.parseDouble(fields[3].trim()),
+                            Double.parseDouble(fields[4].trim()),
+                            Double.parseDouble(fields[5].trim()),
+                            (fields.length == 7) ? Float.parseFloat(fields[6].trim()) : 0f));
+                } catch (NumberFormatException e) {
+                    errors++;
+                }
+            }
+        }
+        return errors;
+    }
+}
\ No newline at end of file
@@ -1,24 +1,35 @@
 package info.saltyhash.wormhole.persistence;
 
-import org.bukkit.Bukkit;
-import org.bukkit.OfflinePlayer;
-import org.bukkit.World;
+import info.saltyhash.wormhole.metrics.Metrics;
 
 import java.io.File;
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
+import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.file.Files;
 import java.sql.*;
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.logging.Logger;
 
 /** Manages the database. */
 @SuppressWarnings({"WeakerAccess", "SameParameterValue"})
 public final class DBManager {
-    private static Connection connection;
+    /** Maximum number of parameters to bind to a single statement. */
+    static final int MAX_PARAMETERS = 500;
+    
+    private static Connection connection;       // Used by the main thread
+    private static Connection asyncConnection;  // Used by the database thread
     private static File dbFile;
     private static Logger logger;
     
+    /** True if the SQLite library has upserts; null until checked. */
+    private static volatile Boolean upsertSupported = null;
+    private static volatile ThreadPoolExecutor executor;
+    private static volatile Thread executorThread;
+    static {
+        Metrics.gauge("db.queue_depth", DBManager::getQueueDepth);
+    }
+    
     private DBManager() {}
     
     @SuppressWarnings("unused")
@@ -34,66 +45,152 @@ public final class DBManager {
     
     /**
      * Returns a connection to the database, reusing previous connection if possible.
+     * The database thread (see {@link #submit(Callable)}) gets a connection of its own,
+     * so that its work never interleaves with transactions of the main thread.
      * The connection is configured with foreign keys ON.  Logs errors.
      * @return Database connection, or null on error.
      */
     static Connection getConnection() {
         if (dbFile == null) throw new NullPointerException("DBManager.dbFile must not be null");
         
-        // Create connection if necessary
+        // Called from the database thread?
+        if (Thread.currentThread() == executorThread) {
+            if (!isOpen(asyncConnection)) asyncConnection = openConnection(dbFile);
+            return asyncConnection;
+        }
+        if (!isOpen(connection)) connection = openConnection(dbFile);
+        return connection;
+    }
+    
+    private static boolean isOpen(Connection conn) {
         try {
-            if (connection == null || connection.isClosed()) {
-                Class.forName("org.sqlite.JDBC");
-                connection = DriverManager.getConnection(
-                        "jdbc:sqlite:"+dbFile.getAbsolutePath());
-            }
+            return (conn != null && !conn.isClosed());
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+    
+    /**
+     * Opens a new connection to the database.  The connection is configured with foreign
+     * keys ON, a busy timeout, and write-ahead logging so that readers do not block the
+     * writer.  Logs errors.
+     * @return Database connection, or null on error.
+     */
+    static Connection openConnection(File file) {
+        // Create connection
+        Connection conn;
+        try {
+            Class.forName("org.sqlite.JDBC");
+            conn = DriverManager.getConnection("jdbc:sqlite:"+file.getAbsolutePath());
         } catch (ClassNotFoundException | SQLException e) {
             logSevere("Failed to connect to database");
             logSevere(e.toString());
-            return (connection = null);
+            return null;
         }
         
-        // Turn on foreign keys
-        try (Statement s = connection.createStatement()) {
+        // Turn on foreign keys, and configure concurrent access
+        try (Statement s = conn.createStatement()) {
             s.execute("PRAGMA foreign_keys=ON;");
+            s.execute("PRAGMA busy_timeout=5000;");
+            s.execute("PRAGMA journal_mode=WAL;");
         } catch (SQLException e) {
-            logSevere("Failed to enable database foreign keys");
+            logSevere("Failed to configure database connection");
             logSevere(e.toString());
-            DBManager.closeConnection();
-            return (connection = null);
+            try {
+                conn.close();
+            } catch (SQLException ignored) {}
+            return null;
         }
         
-        return connection;
+        return conn;
+    }
+    
+    /**
+     * Runs the task on the database thread, which has a connection of its own.
+     * Tasks run one at a time, in the order they were submitted.
+     * @return Future result of the task.
+     */
+    public static synchronized <T> Future<T> submit(Callable<T> task) {
+        if (executor == null) {
+            ThreadFactory threadFactory = r -> {
+                Thread thread = new Thread(r, "Wormhole-DB");
+                thread.setDaemon(true);
+                executorThread = thread;
+                return thread;
+            };
+            executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                    new LinkedBlockingQueue<>(), threadFactory);
+        }
+        return executor.submit(task);
+    }
+    
+    /** Returns the number of tasks waiting for the database thread. */
+    public static int getQueueDepth() {
+        ThreadPoolExecutor executor = DBManager.executor;
+        return (executor != null) ? executor.getQueue().size() : 0;
     }
     
     /**
      * If a database connection exists, then its changes are committed
-     * and the connection is closed.  Logs errors.
+     * and the connection is closed.  Waits for the database thread to finish
+     * its remaining tasks and close its own connection.  Logs errors.
      * @return true on success; false on error.
      */
     @SuppressWarnings("UnusedReturnValue")
     public static boolean closeConnection() {
         boolean success = true;
-        if (connection != null) {
+        
+        // Shut down the database thread, closing its connection last
+        synchronized (DBManager.class) {
+            if (executor != null) {
+                Future<Boolean> closed = executor.submit(() -> {
+                    boolean asyncClosed = closeConnection(asyncConnection);
+                    asyncConnection = null;
+                    return asyncClosed;
+                });
+                executor.shutdown();
+                try {
+                    success = closed.get(30, TimeUnit.SECONDS);
+                } catch (InterruptedException | ExecutionException | TimeoutException e) {
+                    logWarning("Failed to shut down database thread");
+                    success = false;
+                }
+                executor = null;
+                executorThread = null;
+            }
+        }
+        
+        success &= closeConnection(connection);
+        connection = null;
+        return success;
+    }
+    
+    private static boolean closeConnection(Connection conn) {
+        boolean success = true;
+        if (conn != null) {
             try {
-                if (!connection.isClosed()) {
+                if (!conn.isClosed()) {
                     try {
-                        if (!connection.getAutoCommit()) connection.commit();
+                        if (!conn.getAutoCommit()) conn.commit();
                     } catch (SQLException e) {
                         logSevere("Failed to commit changes to database before closing");
                         success = false;
                     }
-                    connection.close();
+                    conn.close();
                 }
             } catch (SQLException e) {
                 logWarning("Failed to close database connection");
                 success = false;
             }
-            connection = null;
         }
         return success;
     }
     
+    /** Returns the database file. */
+    static File getDbFile() {
+        return dbFile;
+    }
+    
     static void logInfo(String msg) {
         if (logger != null) logger.info(msg);
     }
@@ -104,55 +201,104 @@ public final class DBManager {
         if (logger != null) logger.severe(msg);
     }
     
-    /** Returns the current database version, or -1 on error. */
-    private static int getDatabaseVersion() {
-        try (Statement s = getConnection().createStatement()) {
-            // Try to get the 1st row
-            ResultSet results = s.executeQuery(
-                    "SELECT version FROM schema_version LIMIT 1;");
-            
-            // Results are empty?
-            if (!results.isBeforeFirst()) {
-                // Either table DNE or row DNE
-                return -1;
-            }
-            return results.getInt("version");
-        } catch (SQLException e) {
-            // File or table DNE
-            return -1;
+    /** Returns a comma-separated list of count parameter placeholders, e.g. "?,?,?". */
+    static String placeholders(int count) {
+        StringBuilder sb = new StringBuilder(count*2);
+        for (int i = 0; i < count; i++) sb.append(i == 0 ? "?" : ",?");
+        return sb.toString();
+    }
+    
+    /** Returns true if the SQLite library is the given version or later. */
+    static boolean isSqliteAtLeast(Connection conn, int major, int minor) throws SQLException {
+        try (Statement s = conn.createStatement()) {
+            ResultSet rs = s.executeQuery("SELECT sqlite_version();");
+            if (!rs.next()) throw new SQLException("Failed to get SQLite version");
+            String[] version = rs.getString(1).split("\\.");
+            int actualMajor = Integer.parseInt(version[0]);
+            int actualMinor = (version.length > 1) ? Integer.parseInt(version[1]) : 0;
+            return actualMajor > major || (actualMajor == major && actualMinor >= minor);
         }
     }
     
-    /** Returns the latest database version. */
-    private static int getLatestDatabaseVersion() {
-        int latestVersion = 0;
-        while (true) {
-            try {
-                DBManager.class.getDeclaredMethod("migration"+latestVersion,
-                        Connection.class, String.class);
-            } catch (NoSuchMethodException e) {
-                return latestVersion-1;
-            }
-            latestVersion++;
+    /**
+     * Returns true if the SQLite library is 3.24 or later, which has upserts ("INSERT ...
+     * ON CONFLICT ... DO UPDATE").  Servers bundling an older library need an insert and an
+     * update instead.
+     */
+    static boolean supportsUpsert(Connection conn) throws SQLException {
+        Boolean supported = upsertSupported;
+        if (supported == null) {
+            supported = isSqliteAtLeast(conn, 3, 24);
+            upsertSupported = supported;
+            if (!supported) logInfo("SQLite is older than 3.24; using inserts and updates "+
+                    "instead of upserts");
         }
+        return supported;
     }
     
     /**
-     * Sets the database version.  Logs errors.
-     * @param  version The version number to set the database to.
-     * @return true on success; false on error.
+     * Inserts rows of a table, or updates the rows with the same `id`.  On SQLite older than
+     * 3.24, which has no upserts, each row is updated, then inserted if there was none to
+     * update; run within a transaction.
      */
-    private static boolean setDatabaseVersion(int version) {
-        try (Statement s = getConnection().createStatement()) {
-            s.executeUpdate("DELETE FROM schema_version;");
-            s.executeUpdate("INSERT INTO schema_version (`version`) VALUES ("+version+");");
-        } catch (SQLException e) {
-            logSevere("Failed to set database version");
-            logSevere(e.toString());
-            return false;
+    static final class Upsert implements AutoCloseable {
+        private final PreparedStatement upsertPs, updatePs, insertPs;
+        
+        /** @param columns Columns set, the first being `id`. */
+        Upsert(Connection conn, String table, String... columns) throws SQLException {
+            StringBuilder names = new StringBuilder(), sets = new StringBuilder(),
+                    excluded = new StringBuilder();
+            for (int i = 0; i < columns.length; i++) {
+                String column = '`'+columns[i]+'`';
+                names.append(i == 0 ? "" : ",").append(column);
+                if (i == 0) continue;
+                // Numbered, so the update binds the values in the order of the insert
+                sets.append(i == 1 ? "" : ",").append(column).append("=?").append(i+1);
+                excluded.append(i == 1 ? "" : ",").append(column).append("=excluded.")
+                        .append(column);
+            }
+            String insertSql = "INSERT INTO "+table+" ("+names+") VALUES ("+
+                    placeholders(columns.length)+")";
+            if (supportsUpsert(conn)) {
+                upsertPs = conn.prepareStatement(
+                        insertSql+" ON CONFLICT(`id`) DO UPDATE SET "+excluded+";");
+                updatePs = insertPs = null;
+            } else {
+                upsertPs = null;
+                updatePs = conn.prepareStatement(
+                        "UPDATE "+table+" SET "+sets+" WHERE `id`=?1;");
+                try {
+                    insertPs = conn.prepareStatement(insertSql+";");
+                } catch (SQLException e) {
+                    updatePs.close();
+                    throw e;
+                }
+            }
         }
         
-        return true;    // Success
+        /** Sets the value of the column with the given index, from 1, for the next row. */
+        void setObject(int index, Object value) throws SQLException {
+            if (upsertPs != null) {
+                upsertPs.setObject(index, value);
+            } else {
+                updatePs.setObject(index, value);
+                insertPs.setObject(index, value);
+            }
+        }
+        
+        /** Inserts or updates the row.  @return Number of rows changed. */
+        int executeUpdate() throws SQLException {
+            if (upsertPs != null) return upsertPs.executeUpdate();
+            int count = updatePs.executeUpdate();
+            return (count > 0) ? count : insertPs.executeUpdate();
+        }
+        
+        @Override
+        public void close() throws SQLException {
+            if (upsertPs != null) upsertPs.close();
+            if (updatePs != null) updatePs.close();
+            if (insertPs != null) insertPs.close();
+        }
     }
     
     static UUID BytesToUuid(byte[] bytes) {
@@ -165,341 +311,84 @@ public final class DBManager {
                 uuid.getLeastSignificantBits()).array();
     }
     
-    /* <Migrations */
+    /* <Migrations> */
+    
+    /** Default maximum number of rows processed by each batch of a migration step. */
+    public static final int DEFAULT_MIGRATION_BATCH_SIZE = 1000;
+    
+    /**
+     * Collects the server data the migrations need, i.e. the worlds and players of the
+     * server to import the pre-1.4.0 database with.  Call from the main thread before
+     * migrating, since the migrations run on the database thread.
+     */
+    public static void collectMigrationData() {
+        LegacyImport.collectServerData();
+    }
     
     /**
      * Migrates the database to the latest version.
      * @return true on success; false on failure.
      */
+    @SuppressWarnings("unused")
     public static boolean migrate() {
-        // Return if database is already at latest version
-        int version       = getDatabaseVersion();
-        int latestVersion = getLatestDatabaseVersion();
-        if (version == latestVersion) return true;
-        // Sanity check
-        if (version > latestVersion) {
-            logSevere("Current database version is "+version+
-                    " but the latest database version is "+latestVersion);
-            return false;
-        }
-        
-        // Get database connection
+        return migrate(DEFAULT_MIGRATION_BATCH_SIZE);
+    }
+    
+    /**
+     * Migrates the database to the latest version, committing the migration steps in
+     * batches so that an interrupted migration resumes where it left off.  Logs errors.
+     * @param  batchSize Maximum number of rows processed by each batch of a step.
+     * @return true on success; false on failure.
+     */
+    public static boolean migrate(int batchSize) {
         Connection conn = getConnection();
+        if (conn == null) return false;
+        return Migrations.migrate(conn, batchSize, "");
+    }
+    
+    /**
+     * Times the pending migrations by running them against a copy of the database,
+     * leaving the database itself untouched.  Logs errors.
+     * @param  batchSize Maximum number of rows processed by each batch of a step.
+     * @return true if the migrations succeeded on the copy; false otherwise.
+     */
+    public static boolean migrateDryRun(int batchSize) {
+        if (dbFile == null) throw new NullPointerException("DBManager.dbFile must not be null");
         
-        boolean autoCommit = true;
+        // Copy the database, along with its write-ahead log
+        File copyFile = new File(dbFile.getAbsolutePath()+".dryrun");
         try {
-            // Commit any previous changes and disable autocommit
-            autoCommit = conn.getAutoCommit();
-            if (!autoCommit) conn.commit();
-            conn.setAutoCommit(false);
-            
-            // Perform migrations in order
-            for (int migration = version+1; migration <= latestVersion; migration++) {
-                String logPrefix = "[Migration "+migration+"] ";
-                
-                // Perform single migration
-                logInfo(logPrefix+"Starting:");
-                Method migrationMethod = DBManager.class.getDeclaredMethod(
-                        "migration"+migration, Connection.class, String.class);
-                migrationMethod.invoke(null, conn, logPrefix);
-                
-                // Set database version; error?
-                if (!setDatabaseVersion(migration))
-                    throw new SQLException("Failed to set database version to "+migration);
-                
-                // Commit changes
-                logInfo(logPrefix+"Committing changes");
-                conn.commit();
-                logInfo(logPrefix+"Done");
-            }
-            
-        } catch (IllegalAccessException | InvocationTargetException | NoSuchMethodException
-                | SQLException e) {
-            e.printStackTrace();
-            logSevere("Failed to perform migrations!");
-            
-            // Roll back changes
-            logInfo("Rolling back changes");
-            try {
-                conn.rollback();
-            } catch (SQLException e1) {
-                logSevere("Failed to roll back changes");
-                e1.printStackTrace();
+            deleteDatabaseFiles(copyFile);
+            if (dbFile.exists()) {
+                Files.copy(dbFile.toPath(), copyFile.toPath());
+                File walFile = new File(dbFile.getAbsolutePath()+"-wal");
+                if (walFile.exists())
+                    Files.copy(walFile.toPath(), new File(copyFile.getAbsolutePath()+"-wal").toPath());
             }
+        } catch (IOException e) {
+            logSevere("[Dry run] Failed to copy database");
+            logSevere(e.toString());
             return false;
-            
-        } finally {
-            // Reset connection autocommit to previous value
-            try {
-                conn.setAutoCommit(autoCommit);
-            } catch (SQLException e) {
-                logWarning("Failed to set database autocommit to "+autoCommit);
-                e.printStackTrace();
-            }
         }
         
-        logInfo("Database migrations complete");
-        return true;
-    }
-    
-    /** Migrates to database version from previous.  Logs errors. */
-    @SuppressWarnings("unused")
-    private static void migration0(Connection conn, String logPrefix)
-            throws IllegalStateException, SQLException {
-        
-        /* <Create Tables> */
-        
-        try (Statement s = conn.createStatement()) {
-            // Create table 'schema_version'
-            logInfo(logPrefix+"Creating table 'schema_version'");
-            s.execute("CREATE TABLE schema_version (\n" +
-                    "  `version` INTEGER);");
-            
-            // Create table 'players'
-            logInfo(logPrefix+"Creating table 'players'");
-            s.execute("CREATE TABLE players (\n" +
-                    "  `id`       INTEGER PRIMARY KEY,\n" +
-                    "  `uuid`     BINARY(16) NOT NULL UNIQUE,\n" +
-                    "  `username` VARCHAR(16) NOT NULL);");
-            
-            // Create table 'jumps'
-            logInfo(logPrefix+"Creating table 'jumps'");
-            s.execute("CREATE TABLE jumps (\n" +
-                    "  `id`         INTEGER PRIMARY KEY,\n" +
-                    "  `player_id`  INTEGER REFERENCES players(`id`)\n" +
-                    "               ON DELETE CASCADE ON UPDATE CASCADE,\n" +
-                    "  `name`       VARCHAR(100) NOT NULL,\n" +
-                    "  `world_uuid` BINARY(16) NOT NULL,\n" +
-                    "  `x` DOUBLE PRECISION NOT NULL,\n" +
-                    "  `y` DOUBLE PRECISION NOT NULL,\n" +
-                    "  `z` DOUBLE PRECISION NOT NULL,\n" +
-                    "  `yaw` FLOAT NOT NULL,\n" +
-                    "  UNIQUE (`player_id`, `name`));");
-            
-            // Create table 'signs'
-            logInfo(logPrefix+"Creating table 'signs'");
-            s.execute("CREATE TABLE signs (\n" +
-                    "  `id` INTEGER PRIMARY KEY,\n" +
-                    "  `world_uuid` BINARY(16) NOT NULL,\n" +
-                    "  `x` INTEGER NOT NULL,\n" +
-                    "  `y` INTEGER NOT NULL,\n" +
-                    "  `z` INTEGER NOT NULL,\n" +
-                    "  `jump_id` INTEGER NOT NULL REFERENCES jumps(`id`)\n" +
-                    "            ON DELETE CASCADE ON UPDATE CASCADE,\n" +
-                    "  UNIQUE (`world_uuid`, `x`, `y`, `z`));");
+        // Migrate the copy, then delete it
+        Connection conn = openConnection(copyFile);
+        if (conn == null) return false;
+        boolean success = Migrations.migrate(conn, batchSize, "[Dry run] ");
+        closeConnection(conn);
+        try {
+            deleteDatabaseFiles(copyFile);
+        } catch (IOException e) {
+            logWarning("[Dry run] Failed to delete database copy '"+copyFile.getName()+"'");
         }
-        
-        /* </Create Tables> */
-        
-        /* <Pre-1.4.0 Database Import> */
-        
-        // Check for old pre-1.4.0 database file
-        File oldDbFile = new File(dbFile.getParent() + File.separator + "Wormhole.sqlite.db");
-        if (oldDbFile.exists()) {
-            logInfo(logPrefix + "Pre-1.4.0 database found; importing into new database");
-            
-            // Get list of players from the server
-            OfflinePlayer[] players = Bukkit.getOfflinePlayers();
-            if (players.length == 0) {
-                throw new IllegalStateException("No existing players found on the server");
-            }
-            // Create map of usernames to UUIDs
-            Map<String, UUID> serverPlayerUsernamesToUuids = new HashMap<>(players.length);
-            for (OfflinePlayer player : players) {
-                if (player.getUniqueId() == null) {
-                    logWarning(logPrefix + "Player '" + player.getName() +
-                            "' does not have UUID; moving on...");
-                    continue;
-                }
-                serverPlayerUsernamesToUuids.put(player.getName(), player.getUniqueId());
-            }
-            
-            // Get list of worlds from the server
-            List<World> worlds = Bukkit.getWorlds();
-            if (worlds.size() == 0) {
-                throw new IllegalStateException("No existing worlds found on the server");
-            }
-            // Create map of world names to world UUIDs
-            Map<String, UUID> serverWorldNamesToUuids = new HashMap<>(worlds.size());
-            for (World world : worlds) {
-                serverWorldNamesToUuids.put(world.getName(), world.getUID());
-            }
+        return success;
+    }
     
-            Set<String> oldDbPlayerUsernames     = new HashSet<>();
-            Set<String> oldDbWorldNames          = new HashSet<>();
-            List<Map<String, Object>> oldDbJumps = new ArrayList<>();
-            List<Map<String, Object>> oldDbSigns = new ArrayList<>();
-            
-            Connection oldDbConn = null;
-            Statement  oldDbStatement = null;
-            try {
-                // Get connection to old database file
-                Class.forName("org.sqlite.JDBC");
-                oldDbConn = DriverManager.getConnection("jdbc:sqlite:"+oldDbFile.getAbsolutePath());
-                oldDbStatement = oldDbConn.createStatement();
-                
-                // Get player usernames from old database
-                ResultSet rs = oldDbStatement.executeQuery(
-                        "SELECT DISTINCT `player_name` FROM jumps WHERE `player_name` <> '';");
-                while (rs.next()) {
-                    oldDbPlayerUsernames.add(rs.getString("player_name"));
-                }
-                rs.close();
-                
-                // Get world names from old database
-                rs = oldDbStatement.executeQuery("SELECT DISTINCT `world_name` FROM jumps;");
-                while (rs.next()) {
-                    oldDbWorldNames.add(rs.getString("world_name"));
-                }
-                rs.close();
-                rs = oldDbStatement.executeQuery("SELECT DISTINCT `world_name` FROM signs;");
-                while (rs.next()) {
-                    oldDbWorldNames.add(rs.getString("world_name"));
-                }
-                rs.close();
-                
-                // Get jumps from old database
-                logInfo(logPrefix+"Getting jumps from old database");
-                rs = oldDbStatement.executeQuery("SELECT * FROM jumps;");
-                while (rs.next()) {
-                    Map<String, Object> oldDbJump = new HashMap<>(7);
-                    oldDbJump.put("player_name", rs.getString("player_name"));
-                    oldDbJump.put("jump_name",   rs.getString("jump_name"));
-                    oldDbJump.put("world_name",  rs.getString("world_name"));
-                    oldDbJump.put("x",           rs.getDouble("x"));
-                    oldDbJump.put("y",           rs.getDouble("y"));
-                    oldDbJump.put("z",           rs.getDouble("z"));
-                    oldDbJump.put("yaw",         rs.getFloat("yaw"));
-                    oldDbJumps.add(oldDbJump);
-                }
-                rs.close();
-                
-                // Get signs from old database
-                logInfo(logPrefix+"Getting signs from old database");
-                rs = oldDbStatement.executeQuery("SELECT * FROM signs;");
-                while (rs.next()) {
-                    Map<String, Object> oldDbSign = new HashMap<>(6);
-                    oldDbSign.put("world_name",  rs.getString("world_name"));
-                    oldDbSign.put("x",           rs.getInt("x"));
-                    oldDbSign.put("y",           rs.getInt("y"));
-                    oldDbSign.put("z",           rs.getInt("z"));
-                    oldDbSign.put("player_name", rs.getString("player_name"));
-                    oldDbSign.put("jump_name",   rs.getString("jump_name"));
-                    oldDbSigns.add(oldDbSign);
-                }
-                rs.close();
-            } catch (ClassNotFoundException e) {
-                throw new IllegalStateException("Failed to connect to pre-1.4.0 database!");
-            } finally {
-                if (oldDbStatement != null) oldDbStatement.close();
-                if (oldDbConn != null)      oldDbConn.close();
-            }
-            
-            // Make sure old database player usernames exist in server usernames
-            for (String oldDbUsername : oldDbPlayerUsernames) {
-                if (!oldDbUsername.equals("") &&
-                        !serverPlayerUsernamesToUuids.keySet().contains(oldDbUsername)) {
-                    throw new IllegalStateException("Server does not have player '" +
-                            oldDbUsername + "' found in the old database");
-                }
-            }
-            
-            // Make sure old database world names exist in server
-            for (String oldDbWorldName : oldDbWorldNames) {
-                if (!serverWorldNamesToUuids.keySet().contains(oldDbWorldName)) {
-                    throw new IllegalStateException("Server does not have world '" +
-                            oldDbWorldName + "' found in the old database");
-                }
-            }
-            
-            // Insert old database players into the new database
-            logInfo(logPrefix + "Adding " + oldDbPlayerUsernames.size() +
-                    " players to new database");
-            Map<String, Integer> playerUsernamesToIds = new HashMap<>();
-            try (PreparedStatement ps = conn.prepareStatement(
-                    "INSERT INTO players (`uuid`,`username`) VALUES (?,?);",
-                    Statement.RETURN_GENERATED_KEYS)) {
-                for (String playerUsername : oldDbPlayerUsernames) {
-                    UUID playerUuid = serverPlayerUsernamesToUuids.get(playerUsername);
-                    ps.setBytes(1, UuidToBytes(playerUuid));
-                    ps.setString(2, playerUsername);
-                    if (ps.executeUpdate() < 1)
-                        throw new SQLException("Failed to insert player from old database into new");
-                    ResultSet rs = ps.getGeneratedKeys();
-                    if (!rs.next()) throw new SQLException("Failed to get generated key");
-                    playerUsernamesToIds.put(playerUsername, rs.getInt(1));
-                }
-            }
-            
-            // Insert old database jumps into the new database
-            logInfo(logPrefix+"Adding " + oldDbJumps.size() + " jumps to new database");
-            Map<String, Integer> jumpNamesToIds = new HashMap<>();
-            try (PreparedStatement ps = conn.prepareStatement("INSERT INTO jumps "+
-                    "(`player_id`,`name`,`world_uuid`,`x`,`y`,`z`,`yaw`)"+
-                    "VALUES (?,?,?,?,?,?,?);", Statement.RETURN_GENERATED_KEYS)) {
-                for (Map<String, Object> oldDbJump : oldDbJumps) {
-                    // Get player ID
-                    String playerUsername = (String) oldDbJump.get("player_name");
-                    Integer playerId = playerUsername.equals("") ? null :
-                            playerUsernamesToIds.get(playerUsername);
-                    // Get jump name
-                    String jumpName = (String) oldDbJump.get("jump_name");
-                    // Get world UUID
-                    String worldName = (String) oldDbJump.get("world_name");
-                    UUID   worldUuid = serverWorldNamesToUuids.get(worldName);
-                    // Set parameters and execute
-                    ps.setObject(1, playerId, Types.INTEGER);
-                    ps.setString(2, jumpName);
-                    ps.setBytes(3, UuidToBytes(worldUuid));
-                    ps.setDouble(4, (double) oldDbJump.get("x"));
-                    ps.setDouble(5, (double) oldDbJump.get("y"));
-                    ps.setDouble(6, (double) oldDbJump.get("z"));
-                    ps.setFloat (7,  (float) oldDbJump.get("yaw"));
-                    if (ps.executeUpdate() < 1)
-                        throw new SQLException("Failed to insert jump from old database into new");
-                    // Get the new ID of the inserted jump
-                    ResultSet rs = ps.getGeneratedKeys();
-                    if (!rs.next()) throw new SQLException("Failed to get generated jump ID");
-                    String key = playerUsername+"\n"+jumpName;
-                    jumpNamesToIds.put(key, rs.getInt(1));
-                    rs.close();
-                }
-            }
-            
-            // Insert old database signs into the new database
-            logInfo(logPrefix+"Adding " + oldDbSigns.size() + " signs to new database");
-            try (PreparedStatement ps = conn.prepareStatement("INSERT INTO signs "+
-                    "(`world_uuid`,`x`,`y`,`z`,`jump_id`) VALUES (?,?,?,?,?);")) {
-                for (Map<String, Object> oldDbSign : oldDbSigns) {
-                    // Get jump ID
-                    String playerUsername = (String) oldDbSign.get("player_name");
-                    String jumpName       = (String) oldDbSign.get("jump_name");
-                    String key = playerUsername+"\n"+jumpName;
-                    int jumpId = jumpNamesToIds.get(key);
-                    // Get world UUID
-                    String worldName = (String) oldDbSign.get("world_name");
-                    UUID   worldUuid = serverWorldNamesToUuids.get(worldName);
-                    // Set parameters and add to batch
-                    ps.setBytes(1, UuidToBytes(worldUuid));
-                    ps.setInt(2, (int) oldDbSign.get("x"));
-                    ps.setInt(3, (int) oldDbSign.get("y"));
-                    ps.setInt(4, (int) oldDbSign.get("z"));
-                    ps.setInt(5, jumpId);
-                    ps.addBatch();
-                }
-                // Execute batch and make sure all succeeded
-                int[] results = ps.executeBatch();
-                for (int result : results) {
-                    if (result < 1) {
-                        throw new SQLException("Failed to insert sign from old database into new");
-                    }
-                }
-            }
-            
-            logInfo(logPrefix+"Done importing pre-1.4.0 database");
-        }
-        
-        /* </Pre-1.4.0 Database Import> */
+    /** Deletes the database file along with its write-ahead log and shared memory files. */
+    private static void deleteDatabaseFiles(File file) throws IOException {
+        Files.deleteIfExists(file.toPath());
+        Files.deleteIfExists(new File(file.getAbsolutePath()+"-wal").toPath());
+        Files.deleteIfExists(new File(file.getAbsolutePath()+"-shm").toPath());
     }
     
     /* </Migrations> */
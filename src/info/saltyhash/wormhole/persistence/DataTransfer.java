@@ -0,0 +1,506 @@
+package info.saltyhash.wormhole.persistence;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Exports and imports all players, jumps, and signs as line-delimited JSON, which is
+ * gzipped if the file name ends with ".gz".  Both directions stream: export writes rows
+ * straight from forward-only cursors, and import writes rows through batched statements
+ * in large transactions, so neither holds all the data in memory.
+ *
+ * Players are identified by UUID, and jumps by owner UUID and name, rather than by their
+ * database IDs, so that files can be moved between servers.  The first line is a header,
+ * and each following line is one player, jump, or sign.  Players must come before the
+ * jumps they own, and jumps before the signs pointing to them, as they do in exports.
+ *
+ * Both directions use the connection of the calling thread; call them from the
+ * database thread (see {@link DBManager#submit(java.util.concurrent.Callable)}).
+ */
+@SuppressWarnings("WeakerAccess")
+public final class DataTransfer {
+    private static final String FORMAT         = "wormhole";
+    private static final int    FORMAT_VERSION = 1;
+    
+    /** Number of rows per statement batch. */
+    private static final int BATCH_SIZE       = 1000;
+    /** Number of rows per import transaction. */
+    private static final int TRANSACTION_SIZE = 100000;
+    
+    /** Counts of the rows exported or imported. */
+    public static final class Result {
+        public long players, jumps, signs, skipped;
+        private final long start = System.nanoTime();
+        private long nanos;
+        
+        @Override
+        public String toString() {
+            long rows = players+jumps+signs;
+            return String.format("%d players, %d jumps, and %d signs (%d skipped) "+
+                    "in %.1f s (%.0f rows/s)", players, jumps, signs, skipped,
+                    nanos/1e9, (nanos > 0) ? rows/(nanos/1e9) : 0);
+        }
+    }
+    
+    private DataTransfer() {}
+    
+    private static Writer openWriter(File file) throws IOException {
+        OutputStream out = new FileOutputStream(file);
+        if (file.getName().endsWith(".gz")) out = new GZIPOutputStream(out, 1 << 16);
+        return new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), 1 << 16);
+    }
+    
+    private static Reader openReader(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        if (file.getName().endsWith(".gz")) in = new GZIPInputStream(in, 1 << 16);
+        return new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8), 1 << 16);
+    }
+    
+    private static String uuidString(byte[] bytes) {
+        return (bytes != null) ? DBManager.BytesToUuid(bytes).toString() : null;
+    }
+    
+    private static byte[] uuidBytes(UUID uuid) {
+        return (uuid != null) ? DBManager.UuidToBytes(uuid) : null;
+    }
+    
+    /* <Export> */
+    
+    /**
+     * Exports all players, jumps, and signs to the file, reading them from a single
+     * snapshot of the database.  The file is only replaced once the export is complete.
+     * Logs errors.
+     * @return Counts of the rows exported, or null on error.
+     */
+    public static Result export(File file) {
+        // Get database connection
+        Connection conn = DBManager.getConnection();
+        if (conn == null) return null;
+        
+        Result result   = new Result();
+        File   partFile = new File(file.getPath()+".part");
+        boolean autoCommit = true;
+        try {
+            // Read all tables in one transaction, so that they are consistent
+            autoCommit = conn.getAutoCommit();
+            if (!autoCommit) conn.commit();
+            conn.setAutoCommit(false);
+            
+            try (Writer out = openWriter(partFile);
+                 JsonWriter json = new JsonWriter(out);
+                 Statement s = conn.createStatement()) {
+                json.setLenient(true);  // Allows one top-level value per line
+                s.setFetchSize(BATCH_SIZE);
+                
+                // Write header
+                json.beginObject().name("type").value("header")
+                        .name("format").value(FORMAT)
+                        .name("version").value(FORMAT_VERSION).endObject();
+                out.write('\n');
+                
+                // Write players
+                ResultSet rs = s.executeQuery("SELECT `uuid`,`username` FROM players;");
+                while (rs.next()) {
+                    json.beginObject().name("type").value("player")
+                            .name("uuid").value(uuidString(rs.getBytes("uuid")))
+                            .name("username").value(rs.getString("username")).endObject();
+                    out.write('\n');
+                    result.players++;
+                }
+                rs.close();
+                
+                // Write jumps
+                rs = s.executeQuery("SELECT p.`uuid` AS `owner`,j.* FROM jumps j "+
+                        "LEFT JOIN players p ON j.`player_id`=p.`id`;");
+                while (rs.next()) {
+                    json.beginObject().name("type").value("jump")
+                            .name("owner").value(uuidString(rs.getBytes("owner")))
+                            .name("name").value(rs.getString("name"))
+                            .name("world").value(uuidString(rs.getBytes("world_uuid")))
+                            .name("x").value(rs.getDouble("x"))
+                            .name("y").value(rs.getDouble("y"))
+                            .name("z").value(rs.getDouble("z"))
+                            .name("yaw").value(rs.getFloat("yaw")).endObject();
+                    out.write('\n');
+                    result.jumps++;
+                }
+                rs.close();
+                
+                // Write signs
+                rs = s.executeQuery("SELECT p.`uuid` AS `owner`,j.`name` AS `jump`,s.* "+
+                        "FROM signs s JOIN jumps j ON s.`jump_id`=j.`id` "+
+                        "LEFT JOIN players p ON j.`player_id`=p.`id`;");
+                while (rs.next()) {
+                    json.beginObject().name("type").value("sign")
+                            .name("world").value(uuidString(rs.getBytes("world_uuid")))
+                            .name("x").value(rs.getInt("x"))
+                            .name("y").value(rs.getInt("y"))
+                            .name("z").value(rs.getInt("z"))
+                            .name("owner").value(uuidString(rs.getBytes("owner")))
+                            .name("jump").value(rs.getString("jump")).endObject();
+                    out.write('\n');
+                    result.signs++;
+                }
+                rs.close();
+            }
+            conn.commit();
+            
+            // Replace the file with the complete export
+            Files.move(partFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException | SQLException e) {
+            DBManager.logSevere("Failed to export to '"+file.getName()+"':\n"+e.toString());
+            try {
+                conn.rollback();
+            } catch (SQLException ignored) {}
+            if (partFile.exists() && !partFile.delete())
+                DBManager.logWarning("Failed to delete '"+partFile.getName()+"'");
+            return null;
+        } finally {
+            try {
+                conn.setAutoCommit(autoCommit);
+            } catch (SQLException e) {
+                DBManager.logWarning("Failed to set database autocommit to "+autoCommit);
+            }
+        }
+        
+        result.nanos = System.nanoTime()-result.start;
+        DBManager.logInfo("Exported "+result+" to '"+file.getName()+"'");
+        return result;
+    }
+    
+    /* </Export> */
+    
+    /* <Import> */
+    
+    /** A player, jump, or sign read from an import file. */
+    private static final class Row {
+        String type, username, name, jump;
+        UUID   uuid, owner, world;
+        Double x, y, z;
+        Float  yaw;
+        
+        /** Returns true if the row has all fields required by its type. */
+        boolean isValid() {
+            if (type == null) return false;
+            switch (type) {
+                case "player": return uuid != null && username != null;
+                case "jump"  : return name != null && world != null &&
+                        x != null && y != null && z != null && yaw != null;
+                case "sign"  : return jump != null && world != null &&
+                        x != null && y != null && z != null;
+                default      : return false;
+            }
+        }
+    }
+    
+    /** Reads the header of the import file, returning true if the format is supported. */
+    private static boolean readHeader(JsonReader json) throws IOException {
+        if (json.peek() != JsonToken.BEGIN_OBJECT) return false;
+        String format  = null;
+        int    version = -1;
+        json.beginObject();
+        while (json.hasNext()) {
+            String field = json.nextName();
+            if      (field.equals("format"))  format  = json.nextString();
+            else if (field.equals("version")) version = json.nextInt();
+            else json.skipValue();
+        }
+        json.endObject();
+        return FORMAT.equals(format) && version >= 1 && version <= FORMAT_VERSION;
+    }
+    
+    /**
+     * Reads the next row from the import file.
+     * @return Row, or null if the row is malformed.
+     */
+    private static Row readRow(JsonReader json) throws IOException {
+        Row row = new Row();
+        boolean valid = true;
+        json.beginObject();
+        while (json.hasNext()) {
+            String field = json.nextName();
+            if (json.peek() == JsonToken.NULL) {
+                json.nextNull();
+                continue;
+            }
+            try {
+                switch (field) {
+                    case "type"    : row.type     = json.nextString(); break;
+                    case "username": row.username = json.nextString(); break;
+                    case "name"    : row.name     = json.nextString(); break;
+                    case "jump"    : row.jump     = json.nextString(); break;
+                    case "uuid"    : row.uuid  = UUID.fromString(json.nextString()); break;
+                    case "owner"   : row.owner = UUID.fromString(json.nextString()); break;
+                    case "world"   : row.world = UUID.fromString(json.nextString()); break;
+                    case "x"       : row.x   = json.nextDouble();          break;
+                    case "y"       : row.y   = json.nextDouble();          break;
+                    case "z"       : row.z   = json.nextDouble();          break;
+                    case "yaw"     : row.yaw = (float) json.nextDouble();  break;
+                    default        : json.skipValue();
+                }
+            } catch (IllegalArgumentException | IllegalStateException e) {
+                // Malformed UUID or number
+                valid = false;
+            }
+        }
+        json.endObject();
+        return valid ? row : null;
+    }
+    
+    /**
+     * Imports the players, jumps, and signs in the file.  Existing players with the same
+     * UUID, jumps with the same owner and name, and signs at the same location are
+     * overwritten.  Jumps whose owner and signs whose jump cannot be found are skipped.
+     * Rows are committed every {@value #TRANSACTION_SIZE} rows, so on error, the rows
+     * before the failed transaction remain imported.  Logs errors.
+     * @return Counts of the rows imported, or null on error.
+     */
+    public static Result importFrom(File file) {
+        // Get database connection
+        Connection conn = DBManager.getConnection();
+        if (conn == null) return null;
+        
+        Result result = new Result();
+        boolean autoCommit = true;
+        try {
+            autoCommit = conn.getAutoCommit();
+            if (!autoCommit) conn.commit();
+            conn.setAutoCommit(false);
+            
+            try (JsonReader json = new JsonReader(openReader(file));
+                 Importer importer = new Importer(conn, result)) {
+                json.setLenient(true);  // Allows one top-level value per line
+                
+                // Check header
+                if (!readHeader(json))
+                    throw new IOException("Not a Wormhole export, or from a newer version");
+                
+                // Import rows
+                while (json.peek() != JsonToken.END_DOCUMENT) {
+                    Row row = readRow(json);
+                    if (row == null || !row.isValid()) {
+                        result.skipped++;
+                        continue;
+                    }
+                    importer.add(row);
+                }
+                importer.flush();
+            }
+            conn.commit();
+        } catch (IOException | SQLException e) {
+            DBManager.logSevere("Failed to import from '"+file.getName()+"':\n"+e.toString());
+            try {
+                conn.rollback();
+            } catch (SQLException ignored) {}
+            return null;
+        } finally {
+            try {
+                conn.setAutoCommit(autoCommit);
+            } catch (SQLException e) {
+                DBManager.logWarning("Failed to set database autocommit to "+autoCommit);
+            }
+        }
+        
+        result.nanos = System.nanoTime()-result.start;
+        DBManager.logInfo("Imported "+result+" from '"+file.getName()+"'");
+        return result;
+    }
+    
+    /**
+     * Writes imported rows through batched statements, flushing players before jumps and
+     * jumps before signs, so that each can refer to the rows before it.
+     */
+    private static final class Importer implements AutoCloseable {
+        private final Connection conn;
+        private final Result     result;
+        private final PreparedStatement playerUpsert, jumpUpdate, jumpInsert, signUpsert;
+        /** Run before the "upserts" on SQLite older than 3.24, where those only insert. */
+        private final PreparedStatement playerUpdate, signUpdate;
+        private final List<Row> players = new ArrayList<>();
+        private final List<Row> jumps   = new ArrayList<>();
+        private final List<Row> signs   = new ArrayList<>();
+        private int uncommitted = 0;
+        
+        /** Matches a jump by name and owner UUID, or a public jump if the owner is null. */
+        private static final String JUMP_MATCH = "`name`=? AND ((? IS NULL AND `player_id` IS NULL) "+
+                "OR `player_id`=(SELECT `id` FROM players WHERE `uuid`=?))";
+        
+        /** {@link #JUMP_MATCH} with parameters numbered 6 to 8, as bound for the signs. */
+        private static final String JUMP_MATCH_6 = "`name`=?6 AND ((?7 IS NULL AND "+
+                "`player_id` IS NULL) OR `player_id`=(SELECT `id` FROM players WHERE `uuid`=?8))";
+        
+        Importer(Connection conn, Result result) throws SQLException {
+            this.conn   = conn;
+            this.result = result;
+            // SQLite older than 3.24 has no upserts; update the existing rows first, then
+            // insert the others, binding the same parameters to both statements
+            boolean upsert = DBManager.supportsUpsert(conn);
+            playerUpsert = conn.prepareStatement(upsert ?
+                    "INSERT INTO players (`uuid`,`username`) VALUES (?,?) "+
+                    "ON CONFLICT (`uuid`) DO UPDATE SET `username`=excluded.`username`;" :
+                    "INSERT OR IGNORE INTO players (`uuid`,`username`) VALUES (?,?);");
+            playerUpdate = upsert ? null :
+                    conn.prepareStatement("UPDATE players SET `username`=?2 WHERE `uuid`=?1;");
+            jumpUpdate = conn.prepareStatement("UPDATE jumps SET "+
+                    "`world_uuid`=?,`x`=?,`y`=?,`z`=?,`yaw`=?,`version`=`version`+1 WHERE "+
+                    JUMP_MATCH+";");
+            jumpInsert = conn.prepareStatement("INSERT INTO jumps "+
+                    "(`player_id`,`name`,`world_uuid`,`x`,`y`,`z`,`yaw`) "+
+                    "SELECT (SELECT `id` FROM players WHERE `uuid`=?),?,?,?,?,?,? "+
+                    "WHERE ? IS NULL OR EXISTS (SELECT 1 FROM players WHERE `uuid`=?);");
+            signUpsert = conn.prepareStatement("INSERT "+(upsert ? "" : "OR IGNORE ")+
+                    "INTO signs (`world_uuid`,`x`,`y`,`z`,`chunk_key`,`jump_id`) "+
+                    "SELECT ?,?,?,?,?,`id` FROM jumps WHERE "+JUMP_MATCH+
+                    (upsert ? " ON CONFLICT (`world_uuid`,`x`,`y`,`z`) DO UPDATE SET "+
+                            "`jump_id`=excluded.`jump_id`;" : ";"));
+            signUpdate = upsert ? null : conn.prepareStatement("UPDATE signs SET "+
+                    "`jump_id`=(SELECT `id` FROM jumps WHERE "+JUMP_MATCH_6+") WHERE "+
+                    "`world_uuid`=?1 AND `x`=?2 AND `y`=?3 AND `z`=?4 AND "+
+                    "EXISTS (SELECT 1 FROM jumps WHERE "+JUMP_MATCH_6+");");
+        }
+        
+        /** Adds the values to the batch of each statement that is not null. */
+        private static void addBatch(Object[] values, PreparedStatement... statements)
+                throws SQLException {
+            for (PreparedStatement ps : statements) {
+                if (ps == null) continue;
+                for (int i = 0; i < values.length; i++) ps.setObject(i+1, values[i]);
+                ps.addBatch();
+            }
+        }
+        
+        /**
+         * Executes the batch of the update, if any, then of the upsert.
+         * @return Number of rows changed by each row of the batches.
+         */
+        private static int[] executeBatch(PreparedStatement update, PreparedStatement upsert)
+                throws SQLException {
+            int[] updated = (update != null) ? update.executeBatch() : null;
+            int[] upserted = upsert.executeBatch();
+            if (updated != null) {
+                for (int i = 0; i < upserted.length; i++) upserted[i] += updated[i];
+            }
+            return upserted;
+        }
+        
+        /** Adds the row, flushing the batches once full. */
+        void add(Row row) throws SQLException {
+            switch (row.type) {
+                case "player": players.add(row); break;
+                case "jump"  : jumps.add(row);   break;
+                case "sign"  : signs.add(row);   break;
+            }
+            if (players.size()+jumps.size()+signs.size() >= BATCH_SIZE) flush();
+        }
+        
+        /** Executes the pending batches, and commits once the transaction is large enough. */
+        void flush() throws SQLException {
+            uncommitted += players.size()+jumps.size()+signs.size();
+            flushPlayers();
+            flushJumps();
+            flushSigns();
+            if (uncommitted >= TRANSACTION_SIZE) {
+                conn.commit();
+                uncommitted = 0;
+            }
+        }
+        
+        private void flushPlayers() throws SQLException {
+            if (players.isEmpty()) return;
+            for (Row row : players) {
+                addBatch(new Object[] {uuidBytes(row.uuid), row.username},
+                        playerUpdate, playerUpsert);
+            }
+            executeBatch(playerUpdate, playerUpsert);
+            result.players += players.size();
+            players.clear();
+        }
+        
+        private void flushJumps() throws SQLException {
+            if (jumps.isEmpty()) return;
+            
+            // Update existing jumps
+            for (Row row : jumps) {
+                jumpUpdate.setBytes(1, uuidBytes(row.world));
+                jumpUpdate.setDouble(2, row.x);
+                jumpUpdate.setDouble(3, row.y);
+                jumpUpdate.setDouble(4, row.z);
+                jumpUpdate.setFloat (5, row.yaw);
+                jumpUpdate.setString(6, row.name);
+                jumpUpdate.setBytes(7, uuidBytes(row.owner));
+                jumpUpdate.setBytes(8, uuidBytes(row.owner));
+                jumpUpdate.addBatch();
+            }
+            int[] updated = jumpUpdate.executeBatch();
+            
+            // Insert the jumps that do not exist yet
+            int inserts = 0;
+            for (int i = 0; i < updated.length; i++) {
+                if (updated[i] > 0) {
+                    result.jumps++;
+                    continue;
+                }
+                Row row = jumps.get(i);
+                jumpInsert.setBytes(1, uuidBytes(row.owner));
+                jumpInsert.setString(2, row.name);
+                jumpInsert.setBytes(3, uuidBytes(row.world));
+                jumpInsert.setDouble(4, row.x);
+                jumpInsert.setDouble(5, row.y);
+                jumpInsert.setDouble(6, row.z);
+                jumpInsert.setFloat (7, row.yaw);
+                jumpInsert.setBytes(8, uuidBytes(row.owner));
+                jumpInsert.setBytes(9, uuidBytes(row.owner));
+                jumpInsert.addBatch();
+                inserts++;
+            }
+            if (inserts > 0) {
+                // Nothing is inserted if the owner does not exist
+                for (int inserted : jumpInsert.executeBatch()) {
+                    if (inserted > 0) result.jumps++;
+                    else result.skipped++;
+                }
+            }
+            jumps.clear();
+        }
+        
+        private void flushSigns() throws SQLException {
+            if (signs.isEmpty()) return;
+            for (Row row : signs) {
+                int x = (int) Math.floor(row.x), z = (int) Math.floor(row.z);
+                addBatch(new Object[] {uuidBytes(row.world), x, (int) Math.floor(row.y), z,
+                        SignCache.getChunkKeyOfBlock(x, z), row.jump, uuidBytes(row.owner),
+                        uuidBytes(row.owner)}, signUpdate, signUpsert);
+            }
+            // Nothing is inserted if the jump does not exist
+            for (int upserted : executeBatch(signUpdate, signUpsert)) {
+                if (upserted > 0) result.signs++;
+                else result.skipped++;
+            }
+            signs.clear();
+        }
+        
+        @Override
+        public void close() throws SQLException {
+            playerUpsert.close();
+            jumpUpdate.close();
+            jumpInsert.close();
+            signUpsert.close();
+            if (playerUpdate != null) playerUpdate.close();
+            if (signUpdate != null) signUpdate.close();
+        }
+    }
+    
+    /* </Import> */
+}
\ No newline at end of file
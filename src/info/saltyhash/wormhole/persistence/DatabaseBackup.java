@@ -0,0 +1,135 @@
+package info.saltyhash.wormhole.persistence;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
+
+/**
+ * Makes online backups of the database while the server runs.
+ *
+ * Backups run one at a time on a thread of their own, against a separate connection, so
+ * neither the main thread nor the database thread waits for them.  A backup reads a
+ * consistent snapshot of the database with "VACUUM INTO"; since the database uses
+ * write-ahead logging, writers are never blocked by the backup's read transaction.
+ * Each backup is written to a temporary file first, so a crash never leaves a torn backup.
+ */
+public final class DatabaseBackup {
+    private static final String PREFIX = "Wormhole-";
+    private static final String SUFFIX = ".sqlite";
+    
+    private static ExecutorService executor;
+    
+    private DatabaseBackup() {}
+    
+    /**
+     * Backs up the database on the backup thread, then deletes the oldest backups.
+     * @param backupDir Directory to put the backup into.
+     * @param keep      Number of backups to keep, including the new one; 0 to keep all.
+     * @param callback  Called on the backup thread with the backup file, or null on error.
+     */
+    public static synchronized void backup(final File backupDir, final int keep,
+                                           final Consumer<File> callback) {
+        if (executor == null) {
+            executor = Executors.newSingleThreadExecutor(r -> {
+                Thread thread = new Thread(r, "Wormhole-Backup");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        final File dbFile = DBManager.getDbFile();
+        executor.submit(() -> {
+            File backupFile = backup(dbFile, backupDir);
+            if (backupFile != null) deleteOldBackups(backupDir, keep);
+            if (callback != null) callback.accept(backupFile);
+        });
+    }
+    
+    /** Waits for the backup in progress, if any, to finish. */
+    public static synchronized void shutdown() {
+        if (executor == null) return;
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(60, TimeUnit.SECONDS))
+                DBManager.logWarning("Timed out waiting for database backup to finish");
+        } catch (InterruptedException e) {
+            DBManager.logWarning("Interrupted while waiting for database backup to finish");
+        }
+        executor = null;
+    }
+    
+    /**
+     * Backs up the database file into the directory.  Logs errors.
+     * @return Backup file, or null on error.
+     */
+    private static File backup(File dbFile, File backupDir) {
+        long start = System.nanoTime();
+        if (!backupDir.isDirectory() && !backupDir.mkdirs()) {
+            DBManager.logSevere("Failed to create backup directory '"+backupDir+"'");
+            return null;
+        }
+        String timestamp  = new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date());
+        File   backupFile = new File(backupDir, PREFIX+timestamp+SUFFIX);
+        File   partFile   = new File(backupDir, PREFIX+timestamp+SUFFIX+".part");
+        
+        // Get a connection of its own
+        Connection conn = DBManager.openConnection(dbFile);
+        if (conn == null) return null;
+        
+        try (Statement s = conn.createStatement()) {
+            Files.deleteIfExists(partFile.toPath());
+            if (DBManager.isSqliteAtLeast(conn, 3, 27)) {
+                // Copy a consistent snapshot of the database
+                s.executeUpdate("VACUUM INTO '"+
+                        partFile.getAbsolutePath().replace("'", "''")+"';");
+            } else {
+                // SQLite older than 3.27 does not support "VACUUM INTO";
+                // use the online backup API of the driver instead
+                DBManager.logInfo("SQLite is older than 3.27; using online backup API");
+                s.executeUpdate("backup to "+partFile.getAbsolutePath());
+            }
+            Files.move(partFile.toPath(), backupFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException | SQLException e) {
+            DBManager.logSevere("Failed to back up database:\n"+e.toString());
+            try {
+                Files.deleteIfExists(partFile.toPath());
+            } catch (IOException ignored) {}
+            return null;
+        } finally {
+            try {
+                conn.close();
+            } catch (SQLException ignored) {}
+        }
+        
+        DBManager.logInfo(String.format("Backed up database to '%s' (%d KiB) in %.1f ms",
+                backupFile.getName(), backupFile.length()/1024, (System.nanoTime()-start)/1e6));
+        return backupFile;
+    }
+    
+    /** Deletes the oldest backups in the directory, keeping the given number of backups. */
+    private static void deleteOldBackups(File backupDir, int keep) {
+        if (keep <= 0) return;
+        File[] backupFiles = backupDir.listFiles(
+                (dir, name) -> name.startsWith(PREFIX) && name.endsWith(SUFFIX));
+        if (backupFiles == null || backupFiles.length <= keep) return;
+        
+        // Names contain the timestamp, so they sort from oldest to newest
+        Arrays.sort(backupFiles);
+        for (int i = 0; i < backupFiles.length-keep; i++) {
+            if (backupFiles[i].delete()) {
+                DBManager.logInfo("Deleted old database backup '"+backupFiles[i].getName()+"'");
+            } else {
+                DBManager.logWarning("Failed to delete old database backup '"+
+                        backupFiles[i].getName()+"'");
+            }
+        }
+    }
+}
\ No newline at end of file
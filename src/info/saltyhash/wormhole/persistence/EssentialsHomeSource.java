@@ -0,0 +1,62 @@
+package info.saltyhash.wormhole.persistence;
+
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.configuration.file.YamlConfiguration;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.UUID;
+
+/**
+ * Reads the homes of Essentials players, one YAML file per player named by UUID in
+ * "plugins/Essentials/userdata", as private jumps of their players.
+ */
+final class EssentialsHomeSource implements JumpSource {
+    @Override
+    public String getName() {
+        return "essentials-homes";
+    }
+    
+    @Override
+    public File getDefaultPath(File pluginsDir) {
+        return new File(pluginsDir, "Essentials"+File.separator+"userdata");
+    }
+    
+    @Override
+    public int read(File path, Sink sink) throws IOException, SQLException {
+        int errors = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(path.toPath(), "*.yml")) {
+            for (Path file : files) {
+                // Get player UUID from file name
+                String fileName = file.getFileName().toString();
+                UUID ownerUuid;
+                try {
+                    ownerUuid = UUID.fromString(fileName.substring(0, fileName.length()-4));
+                } catch (IllegalArgumentException e) {
+                    errors++;
+                    continue;
+                }
+                
+                YamlConfiguration user  = YamlConfiguration.loadConfiguration(file.toFile());
+                ConfigurationSection homes = user.getConfigurationSection("homes");
+                if (homes == null) continue;
+                String ownerName = user.getString("lastAccountName");
+                for (String name : homes.getKeys(false)) {
+                    ConfigurationSection home = homes.getConfigurationSection(name);
+                    if (home == null || home.getString("world") == null) {
+                        errors++;
+                        continue;
+                    }
+                    sink.accept(new Entry(ownerUuid, ownerName, name, home.getString("world"),
+                            home.getDouble("x"), home.getDouble("y"), home.getDouble("z"),
+                            (float) home.getDouble("yaw")));
+                }
+            }
+        }
+        return errors;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,48 @@
+package info.saltyhash.wormhole.persistence;
+
+import org.bukkit.configuration.file.YamlConfiguration;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.SQLException;
+
+/**
+ * Reads the warps of Essentials, one YAML file per warp in "plugins/Essentials/warps",
+ * as public jumps.
+ */
+final class EssentialsWarpSource implements JumpSource {
+    @Override
+    public String getName() {
+        return "essentials-warps";
+    }
+    
+    @Override
+    public File getDefaultPath(File pluginsDir) {
+        return new File(pluginsDir, "Essentials"+File.separator+"warps");
+    }
+    
+    @Override
+    public int read(File path, Sink sink) throws IOException, SQLException {
+        int errors = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(path.toPath(), "*.yml")) {
+            for (Path file : files) {
+                YamlConfiguration warp = YamlConfiguration.loadConfiguration(file.toFile());
+                // Warp name defaults to the file name
+                String fileName = file.getFileName().toString();
+                String name  = warp.getString("name", fileName.substring(0, fileName.length()-4));
+                String world = warp.getString("world");
+                if (world == null || !warp.contains("x") || !warp.contains("y")
+                        || !warp.contains("z")) {
+                    errors++;
+                    continue;
+                }
+                sink.accept(new Entry(null, null, name, world, warp.getDouble("x"),
+                        warp.getDouble("y"), warp.getDouble("z"), (float) warp.getDouble("yaw")));
+            }
+        }
+        return errors;
+    }
+}
\ No newline at end of file
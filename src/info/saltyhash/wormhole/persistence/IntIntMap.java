@@ -0,0 +1,101 @@
+package info.saltyhash.wormhole.persistence;
+
+import java.util.Arrays;
+
+/**
+ * Hash map of int keys to non-negative int values, stored in two primitive arrays with
+ * linear probing, so it allocates nothing per entry.  Not thread-safe.
+ */
+final class IntIntMap {
+    /** Returned by {@link #get(int)} for a missing key. */
+    static final int MISSING = -1;
+    private static final int EMPTY = Integer.MIN_VALUE;
+    
+    private int[] keys;
+    private int[] values;
+    private int   size = 0;
+    
+    IntIntMap(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(4, expectedSize*2-1))*2;
+        keys   = new int[capacity];
+        values = new int[capacity];
+        Arrays.fill(keys, EMPTY);
+    }
+    
+    IntIntMap(IntIntMap other) {
+        keys   = other.keys.clone();
+        values = other.values.clone();
+        size   = other.size;
+    }
+    
+    int size() {
+        return size;
+    }
+    
+    /** Returns the value of the key, or {@value #MISSING} if DNE. */
+    int get(int key) {
+        int mask = keys.length-1;
+        for (int i = slot(key, mask); keys[i] != EMPTY; i = (i+1) & mask) {
+            if (keys[i] == key) return values[i];
+        }
+        return MISSING;
+    }
+    
+    /** Sets the value of the key; the key must not be {@link Integer#MIN_VALUE}. */
+    void put(int key, int value) {
+        int mask = keys.length-1;
+        int i = slot(key, mask);
+        for (; keys[i] != EMPTY; i = (i+1) & mask) {
+            if (keys[i] == key) {
+                values[i] = value;
+                return;
+            }
+        }
+        keys[i]   = key;
+        values[i] = value;
+        if (++size*2 > keys.length) resize(keys.length*2);
+    }
+    
+    /** Removes the key, if present. */
+    void remove(int key) {
+        int mask = keys.length-1;
+        int i = slot(key, mask);
+        for (; keys[i] != key; i = (i+1) & mask) {
+            if (keys[i] == EMPTY) return;
+        }
+        size--;
+        
+        // Shift back the entries after the hole that would otherwise become unreachable
+        for (int j = (i+1) & mask; keys[j] != EMPTY; j = (j+1) & mask) {
+            int home = slot(keys[j], mask);
+            if (((j-home) & mask) >= ((j-i) & mask)) {
+                keys[i]   = keys[j];
+                values[i] = values[j];
+                i = j;
+            }
+        }
+        keys[i] = EMPTY;
+    }
+    
+    /** Returns the approximate number of bytes of heap used by the map. */
+    long footprint() {
+        return 16+2*(16+4L*keys.length);
+    }
+    
+    private void resize(int capacity) {
+        int[] oldKeys   = keys;
+        int[] oldValues = values;
+        keys   = new int[capacity];
+        values = new int[capacity];
+        Arrays.fill(keys, EMPTY);
+        size = 0;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != EMPTY) put(oldKeys[i], oldValues[i]);
+        }
+    }
+    
+    private static int slot(int key, int mask) {
+        int h = key*0x9E3779B9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+}
\ No newline at end of file
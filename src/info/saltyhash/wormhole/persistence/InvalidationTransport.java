@@ -0,0 +1,23 @@
+package info.saltyhash.wormhole.persistence;
+
+import java.io.IOException;
+import java.util.function.Consumer;
+
+/**
+ * Carries the messages of {@link CacheInvalidation} between the servers that share the
+ * database.  Delivery is best effort: messages may be lost, duplicated, or delivered back
+ * to their sender, all of which the protocol tolerates.
+ */
+public interface InvalidationTransport {
+    /**
+     * Starts delivering the messages of other servers to the receiver, on any thread.
+     * @throws IOException if the transport cannot be opened.
+     */
+    void open(Consumer<byte[]> receiver) throws IOException;
+    
+    /** Sends the message to the other servers; must not block for long. */
+    void send(byte[] message);
+    
+    /** Stops sending and delivering messages. */
+    void close();
+}
\ No newline at end of file
@@ -0,0 +1,310 @@
+package info.saltyhash.wormhole.persistence;
+
+import java.util.*;
+
+/**
+ * Columnar store of jumps for the {@link MemoryStore}: each field of the jumps is kept in a
+ * primitive array indexed by row, instead of as a {@link JumpRecord} object per jump.
+ * Names are deduplicated, world UUIDs are stored once and referred to by index, and the
+ * indexes by ID and by owner and name are open-addressed primitive tables, so the store
+ * allocates nothing per jump besides its name.
+ *
+ * Rows are dense; deleting a row moves the last row into its place.  Reads hand out
+ * {@link View}s onto rows rather than allocating jump records.  Not thread-safe.
+ */
+final class JumpColumns {
+    /** Owner ID of a public jump, and row of a missing jump. */
+    static final int NONE = -1;
+    
+    private int size = 0;
+    private int[]    ids;
+    private int[]    ownerIds;  // NONE ==> public
+    private int[]    worlds;    // Index into worldUuids
+    private double[] xs, ys, zs;
+    private float[]  yaws;
+    private int[]    versions;
+    private String[] names;
+    // Doubly linked list of the rows of each owner
+    private int[]    prevOfOwner, nextOfOwner;
+    
+    private final IntIntMap rowsById;
+    private final IntIntMap firstRowsByOwner;
+    /** Open-addressed table of row+1 by owner and name; 0 ==> empty. */
+    private int[] rowsByName;
+    
+    private final List<UUID>         worldUuids;
+    private final Map<UUID, Integer> worldIndexes;
+    private Map<String, String>      namePool;
+    
+    JumpColumns(int capacity) {
+        capacity = Math.max(16, capacity);
+        ids      = new int[capacity];
+        ownerIds = new int[capacity];
+        worlds   = new int[capacity];
+        xs = new double[capacity]; ys = new double[capacity]; zs = new double[capacity];
+        yaws     = new float[capacity];
+        versions = new int[capacity];
+        names    = new String[capacity];
+        prevOfOwner = new int[capacity];
+        nextOfOwner = new int[capacity];
+        rowsById         = new IntIntMap(capacity);
+        firstRowsByOwner = new IntIntMap(16);
+        rowsByName       = new int[Integer.highestOneBit(capacity*2-1)*2];
+        worldUuids   = new ArrayList<>();
+        worldIndexes = new HashMap<>();
+        namePool     = new HashMap<>();
+    }
+    
+    /** Constructs a copy of the store, trimmed to its size. */
+    private JumpColumns(JumpColumns other) {
+        size     = other.size;
+        ids      = Arrays.copyOf(other.ids, size);
+        ownerIds = Arrays.copyOf(other.ownerIds, size);
+        worlds   = Arrays.copyOf(other.worlds, size);
+        xs = Arrays.copyOf(other.xs, size);
+        ys = Arrays.copyOf(other.ys, size);
+        zs = Arrays.copyOf(other.zs, size);
+        yaws     = Arrays.copyOf(other.yaws, size);
+        versions = Arrays.copyOf(other.versions, size);
+        names    = Arrays.copyOf(other.names, size);
+        prevOfOwner = Arrays.copyOf(other.prevOfOwner, size);
+        nextOfOwner = Arrays.copyOf(other.nextOfOwner, size);
+        rowsById         = new IntIntMap(other.rowsById);
+        firstRowsByOwner = new IntIntMap(other.firstRowsByOwner);
+        rowsByName       = other.rowsByName.clone();
+        worldUuids   = new ArrayList<>(other.worldUuids);
+        worldIndexes = new HashMap<>(other.worldIndexes);
+        namePool     = new HashMap<>(other.namePool);
+    }
+    
+    /** Flyweight view of a row; valid until the store is next modified. */
+    final class View {
+        private int row;
+        
+        /** Moves the view to the row and returns it. */
+        View moveTo(int row) {
+            this.row = row;
+            return this;
+        }
+        
+        int     getId()        { return ids[row]; }
+        boolean isPublic()     { return ownerIds[row] == NONE; }
+        /** Returns the owner ID, or {@value #NONE} if public. */
+        int     getOwnerId()   { return ownerIds[row]; }
+        String  getName()      { return names[row]; }
+        UUID    getWorldUuid() { return worldUuids.get(worlds[row]); }
+        double  getX()         { return xs[row]; }
+        double  getY()         { return ys[row]; }
+        double  getZ()         { return zs[row]; }
+        float   getYaw()       { return yaws[row]; }
+        int     getVersion()   { return versions[row]; }
+        
+        /** Returns a new jump record with the fields of the row. */
+        JumpRecord toRecord() {
+            JumpRecord r = new JumpRecord(isPublic() ? null : getOwnerId(), getName(),
+                    getWorldUuid(), getX(), getY(), getZ(), getYaw());
+            r.id = getId();
+            r.version = getVersion();
+            r.rememberLoaded();
+            return r;
+        }
+    }
+    
+    int size() {
+        return size;
+    }
+    
+    /** Returns a new view; move it to a row before use. */
+    View view() {
+        return new View();
+    }
+    
+    /** Returns the row of the jump with the given ID, or {@value #NONE} if DNE. */
+    int rowOf(int id) {
+        return rowsById.get(id);
+    }
+    
+    /** Returns the row of the owner's jump with the given name, or {@value #NONE} if DNE. */
+    int rowOf(int ownerId, String name) {
+        int row = rowsByName[findSlot(ownerId, name)]-1;
+        return (row >= 0) ? row : NONE;
+    }
+    
+    /** Returns the rows of the owner's jumps, ordered by name. */
+    int[] rowsOf(int ownerId) {
+        int count = 0;
+        for (int row = firstRowsByOwner.get(ownerId); row != NONE; row = nextOfOwner[row])
+            count++;
+        Integer[] rows = new Integer[count];
+        count = 0;
+        for (int row = firstRowsByOwner.get(ownerId); row != NONE; row = nextOfOwner[row])
+            rows[count++] = row;
+        Arrays.sort(rows, (a, b) -> names[a].compareTo(names[b]));
+        int[] sorted = new int[rows.length];
+        for (int i = 0; i < rows.length; i++) sorted[i] = rows[i];
+        return sorted;
+    }
+    
+    /** Inserts the jump, or replaces the jump with the same ID. */
+    void put(int id, int ownerId, String name, UUID worldUuid,
+             double x, double y, double z, float yaw, int version) {
+        remove(id);
+        if (size == ids.length) grow();
+        
+        // Deduplicate the name and index the world
+        String pooled = namePool.putIfAbsent(name, name);
+        if (pooled != null) name = pooled;
+        Integer world = worldIndexes.get(worldUuid);
+        if (world == null) {
+            world = worldUuids.size();
+            worldUuids.add(worldUuid);
+            worldIndexes.put(worldUuid, world);
+        }
+        
+        // Append the row
+        int row = size++;
+        ids[row] = id;
+        ownerIds[row] = ownerId;
+        names[row]    = name;
+        worlds[row]   = world;
+        xs[row] = x; ys[row] = y; zs[row] = z;
+        yaws[row] = yaw;
+        versions[row] = version;
+        
+        // Index the row
+        rowsById.put(id, row);
+        int first = firstRowsByOwner.get(ownerId);
+        prevOfOwner[row] = NONE;
+        nextOfOwner[row] = first;
+        if (first != NONE) prevOfOwner[first] = row;
+        firstRowsByOwner.put(ownerId, row);
+        rowsByName[findSlot(ownerId, name)] = row+1;
+        if (size*2 > rowsByName.length) rehashNames(rowsByName.length*2);
+    }
+    
+    /** Removes the jump with the given ID, if present. */
+    void remove(int id) {
+        int row = rowsById.get(id);
+        if (row == NONE) return;
+        
+        // Unindex the row
+        rowsById.remove(id);
+        unlinkFromOwner(row);
+        removeNameSlot(findSlot(ownerIds[row], names[row]));
+        
+        // Move the last row into its place
+        int last = --size;
+        if (row != last) {
+            int lastSlot = findSlot(ownerIds[last], names[last]);
+            unlinkFromOwner(last);
+            ids[row] = ids[last];
+            ownerIds[row] = ownerIds[last];
+            names[row]    = names[last];
+            worlds[row]   = worlds[last];
+            xs[row] = xs[last]; ys[row] = ys[last]; zs[row] = zs[last];
+            yaws[row] = yaws[last];
+            versions[row] = versions[last];
+            rowsById.put(ids[row], row);
+            rowsByName[lastSlot] = row+1;
+            int first = firstRowsByOwner.get(ownerIds[row]);
+            prevOfOwner[row] = NONE;
+            nextOfOwner[row] = first;
+            if (first != NONE) prevOfOwner[first] = row;
+            firstRowsByOwner.put(ownerIds[row], row);
+        }
+        names[last] = null;
+        
+        // Drop names no longer used once most of the pool is stale
+        if (namePool.size() > 2*size+1024) {
+            namePool = new HashMap<>(size*2);
+            for (int i = 0; i < size; i++) namePool.put(names[i], names[i]);
+        }
+    }
+    
+    /** Returns a copy of the store, trimmed to its size. */
+    JumpColumns copy() {
+        return new JumpColumns(this);
+    }
+    
+    /**
+     * Returns the approximate number of bytes of heap used by the store, counting each
+     * distinct name once.
+     */
+    long footprint() {
+        long capacity = ids.length;
+        long bytes = 10*16+capacity*(4+4+4+8+8+8+4+4+4+4+4); // Columns, with array headers
+        bytes += rowsById.footprint()+firstRowsByOwner.footprint();
+        bytes += 16+4L*rowsByName.length;
+        bytes += worldUuids.size()*(32+32+32);           // UUID, map entry, and boxed index
+        for (String name : namePool.keySet())
+            bytes += 32+24+16+2*name.length();           // Map entry, String, and chars
+        return bytes;
+    }
+    
+    private void unlinkFromOwner(int row) {
+        int prev = prevOfOwner[row], next = nextOfOwner[row];
+        if (next != NONE) prevOfOwner[next] = prev;
+        if (prev != NONE) {
+            nextOfOwner[prev] = next;
+        } else if (next != NONE) {
+            firstRowsByOwner.put(ownerIds[row], next);
+        } else {
+            firstRowsByOwner.remove(ownerIds[row]);
+        }
+    }
+    
+    private void grow() {
+        int capacity = Math.max(16, ids.length*2);
+        ids      = Arrays.copyOf(ids, capacity);
+        ownerIds = Arrays.copyOf(ownerIds, capacity);
+        worlds   = Arrays.copyOf(worlds, capacity);
+        xs = Arrays.copyOf(xs, capacity);
+        ys = Arrays.copyOf(ys, capacity);
+        zs = Arrays.copyOf(zs, capacity);
+        yaws     = Arrays.copyOf(yaws, capacity);
+        versions = Arrays.copyOf(versions, capacity);
+        names    = Arrays.copyOf(names, capacity);
+        prevOfOwner = Arrays.copyOf(prevOfOwner, capacity);
+        nextOfOwner = Arrays.copyOf(nextOfOwner, capacity);
+    }
+    
+    /*
+     * Name index
+     */
+    
+    private static int hash(int ownerId, String name) {
+        int h = (ownerId*31+name.hashCode())*0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+    
+    /** Returns the slot of the owner's jump with the name, or the empty slot to put it in. */
+    private int findSlot(int ownerId, String name) {
+        int mask = rowsByName.length-1;
+        int i = hash(ownerId, name) & mask;
+        for (; rowsByName[i] != 0; i = (i+1) & mask) {
+            int row = rowsByName[i]-1;
+            if (ownerIds[row] == ownerId && names[row].equals(name)) return i;
+        }
+        return i;
+    }
+    
+    /** Empties the slot, shifting back the entries that would otherwise become unreachable. */
+    private void removeNameSlot(int i) {
+        int mask = rowsByName.length-1;
+        for (int j = (i+1) & mask; rowsByName[j] != 0; j = (j+1) & mask) {
+            int row  = rowsByName[j]-1;
+            int home = hash(ownerIds[row], names[row]) & mask;
+            if (((j-home) & mask) >= ((j-i) & mask)) {
+                rowsByName[i] = rowsByName[j];
+                i = j;
+            }
+        }
+        rowsByName[i] = 0;
+    }
+    
+    private void rehashNames(int capacity) {
+        rowsByName = new int[capacity];
+        for (int row = 0; row < size; row++)
+            rowsByName[findSlot(ownerIds[row], names[row])] = row+1;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,284 @@
+package info.saltyhash.wormhole.persistence;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.*;
+
+/**
+ * Imports jumps from the data files of other warp and home plugins, read through
+ * pluggable {@link JumpSource}s.  Owners are mapped to Wormhole players by UUID or
+ * username, name conflicts with existing jumps are resolved by a {@link Conflict} policy,
+ * and new jumps are written through batched inserts in large transactions.  The existing
+ * jumps are loaded once, up front, so conflicts are found without a query per jump.
+ *
+ * Uses the connection of the calling thread; call from the database thread
+ * (see {@link DBManager#submit(java.util.concurrent.Callable)}).
+ */
+@SuppressWarnings("WeakerAccess")
+public final class JumpImport {
+    /** What to do with an imported jump whose owner already has a jump with its name. */
+    public enum Conflict {
+        SKIP,       // Keep the existing jump
+        OVERWRITE,  // Move the existing jump to the imported location
+        RENAME      // Import the jump as "name-2", "name-3", etc.
+    }
+    
+    /** Number of jumps per insert batch. */
+    private static final int BATCH_SIZE       = 1000;
+    /** Number of jumps per transaction. */
+    private static final int TRANSACTION_SIZE = 100000;
+    
+    private static final Map<String, JumpSource> sources = new LinkedHashMap<>();
+    static {
+        registerSource(new EssentialsWarpSource());
+        registerSource(new EssentialsHomeSource());
+        registerSource(new CsvJumpSource());
+    }
+    
+    /** Counts of the jumps read and what became of them. */
+    public static final class Report {
+        public long read, imported, renamed, overwritten;
+        public long conflicts, unknownOwners, unknownWorlds, invalid;
+        private final long start = System.nanoTime();
+        private long nanos;
+        
+        @Override
+        public String toString() {
+            return String.format("read %d jumps: %d imported (%d renamed), %d overwritten, "+
+                    "%d skipped (%d conflicts, %d unknown owners, %d unknown worlds, %d invalid) "+
+                    "in %.1f s (%.0f jumps/s)", read, imported, renamed, overwritten,
+                    conflicts+unknownOwners+unknownWorlds+invalid,
+                    conflicts, unknownOwners, unknownWorlds, invalid,
+                    nanos/1e9, (nanos > 0) ? read/(nanos/1e9) : 0);
+        }
+    }
+    
+    private final Connection conn;
+    private final Map<String, UUID> worlds;
+    private final Map<UUID, String> players;
+    private final Conflict conflict;
+    private final boolean  dryRun;
+    private final Report   report = new Report();
+    
+    /** Player ID + "\n" + name -> existing, pending and imported jumps. */
+    private final Map<String, JumpRecord> jumps = new HashMap<>();
+    private final List<JumpRecord> pending = new ArrayList<>();
+    private int uncommitted = 0;
+    
+    /** Owner UUID or lowercase username -> player ID, or -1 if unknown. */
+    private final Map<Object, Integer> ownerIds = new HashMap<>();
+    /** Lowercase username -> UUID of all players known to the server; built when needed. */
+    private Map<String, UUID> playerUuids;
+    /** Last ID given to an owner a dry run would have saved; -2, -3, etc. */
+    private int lastDryRunPlayerId = -1;
+    
+    private JumpImport(Connection conn, Map<String, UUID> worlds, Map<UUID, String> players,
+                       Conflict conflict, boolean dryRun) {
+        this.conn     = conn;
+        this.worlds   = worlds;
+        this.players  = players;
+        this.conflict = conflict;
+        this.dryRun   = dryRun;
+    }
+    
+    /** Registers the source, replacing any source of the same name. */
+    public static synchronized void registerSource(JumpSource source) {
+        sources.put(source.getName().toLowerCase(), source);
+    }
+    
+    /** Returns the source with the given name, or null if DNE. */
+    public static synchronized JumpSource getSource(String name) {
+        return sources.get(name.toLowerCase());
+    }
+    
+    /** Returns the names of all registered sources. */
+    public static synchronized List<String> getSourceNames() {
+        return new ArrayList<>(sources.keySet());
+    }
+    
+    /**
+     * Imports the jumps of the source.  Jumps are committed every {@value #TRANSACTION_SIZE}
+     * jumps, so on error, the jumps before the failed transaction remain imported.
+     * A dry run writes nothing, so fires no record events, change log entries or cache
+     * updates; it only reports what would have been imported.  Logs errors.
+     * @param  worlds  Map of the server's world names and world UUID strings to world UUIDs.
+     * @param  players Map of the UUIDs of all players known to the server to their
+     *                 usernames; collect on the main thread.
+     * @return Report of the import, or null on error.
+     */
+    public static Report run(JumpSource source, File path, Map<String, UUID> worlds,
+                             Map<UUID, String> players, Conflict conflict, boolean dryRun) {
+        // Get database connection
+        Connection conn = DBManager.getConnection();
+        if (conn == null) return null;
+        
+        String logPrefix = "["+source.getName()+(dryRun ? " dry run" : "")+"] ";
+        JumpImport jumpImport = new JumpImport(conn, worlds, players, conflict, dryRun);
+        boolean autoCommit = true;
+        try {
+            // Commit any previous changes and disable autocommit
+            autoCommit = conn.getAutoCommit();
+            if (!autoCommit) conn.commit();
+            conn.setAutoCommit(false);
+            
+            // Stream the jumps of the source into the database
+            jumpImport.loadJumps();
+            jumpImport.report.invalid += source.read(path, jumpImport::add);
+            jumpImport.flush();
+            if (dryRun) conn.rollback();
+            else        conn.commit();
+        } catch (IOException | SQLException e) {
+            DBManager.logSevere(logPrefix+"Failed to import jumps from '"+path+"':\n"+e.toString());
+            try {
+                conn.rollback();
+            } catch (SQLException e1) {
+                DBManager.logSevere("Failed to roll back changes");
+            }
+            return null;
+        } finally {
+            // Reset connection autocommit to previous value
+            try {
+                conn.setAutoCommit(autoCommit);
+            } catch (SQLException e) {
+                DBManager.logWarning("Failed to set database autocommit to "+autoCommit);
+            }
+        }
+        
+        Report report = jumpImport.report;
+        report.nanos = System.nanoTime()-report.start;
+        DBManager.logInfo(logPrefix+"Imported from '"+path+"'; "+report);
+        return report;
+    }
+    
+    /** Loads the existing jumps, to find conflicts with. */
+    private void loadJumps() throws SQLException {
+        try (Statement s = conn.createStatement()) {
+            ResultSet rs = s.executeQuery("SELECT * FROM jumps;");
+            while (rs.next()) {
+                JumpRecord jumpRecord = new JumpRecord(rs);
+                jumps.put(jumpRecord.playerId+"\n"+jumpRecord.name, jumpRecord);
+            }
+        }
+    }
+    
+    /** Imports the entry, flushing the pending inserts once the batch is full. */
+    private void add(JumpSource.Entry entry) throws SQLException {
+        report.read++;
+        
+        // Get world and validate name
+        UUID worldUuid = worlds.get(entry.world);
+        if (worldUuid == null) {
+            report.unknownWorlds++;
+            return;
+        }
+        if (entry.name == null || entry.name.isEmpty() || entry.name.length() > 100) {
+            report.invalid++;
+            return;
+        }
+        
+        // Get owner
+        Integer playerId = null;
+        if (!entry.isPublic()) {
+            playerId = getOwnerId(entry);
+            if (playerId == null) {
+                report.unknownOwners++;
+                return;
+            }
+        }
+        
+        // Resolve conflict with existing or pending jump
+        String name = entry.name;
+        JumpRecord existing = jumps.get(playerId+"\n"+name);
+        if (existing != null) {
+            switch (conflict) {
+                case SKIP:
+                    report.conflicts++;
+                    return;
+                case OVERWRITE:
+                    existing.worldUuid = worldUuid;
+                    existing.x = entry.x; existing.y = entry.y; existing.z = entry.z;
+                    existing.yaw = entry.yaw;
+                    // A pending jump is simply inserted at the new location
+                    if (existing.id != null && !dryRun && !existing.save())
+                        throw new SQLException("Failed to overwrite jump");
+                    report.overwritten++;
+                    return;
+                case RENAME:
+                    for (int i = 2; jumps.containsKey(playerId+"\n"+name); i++)
+                        name = entry.name+"-"+i;
+                    report.renamed++;
+                    break;
+            }
+        }
+        
+        // Queue the jump for insertion
+        JumpRecord jumpRecord = new JumpRecord(
+                playerId, name, worldUuid, entry.x, entry.y, entry.z, entry.yaw);
+        jumps.put(playerId+"\n"+name, jumpRecord);
+        report.imported++;
+        if (dryRun) return;
+        pending.add(jumpRecord);
+        if (pending.size() >= BATCH_SIZE) flush();
+    }
+    
+    /** Inserts the pending jumps, and commits once the transaction is large enough. */
+    private void flush() throws SQLException {
+        if (pending.isEmpty()) return;
+        if (!JumpRecord.insertAll(pending)) throw new SQLException("Failed to insert jumps");
+        uncommitted += pending.size();
+        pending.clear();
+        if (uncommitted >= TRANSACTION_SIZE) {
+            conn.commit();
+            uncommitted = 0;
+        }
+    }
+    
+    /**
+     * Returns the ID of the entry's owner, saving the owner as a Wormhole player if they
+     * are known to the server but not to Wormhole.
+     * @return Player ID, or null if the owner is unknown.
+     */
+    private Integer getOwnerId(JumpSource.Entry entry) throws SQLException {
+        Object key = (entry.ownerUuid != null) ? entry.ownerUuid : entry.ownerName.toLowerCase();
+        Integer ownerId = ownerIds.get(key);
+        if (ownerId == null) {
+            ownerId = lookUpOwnerId(entry);
+            ownerIds.put(key, ownerId);
+        }
+        return (ownerId != -1) ? ownerId : null;
+    }
+    
+    private int lookUpOwnerId(JumpSource.Entry entry) throws SQLException {
+        // Owner is already a Wormhole player?
+        PlayerRecord playerRecord = (entry.ownerUuid != null) ?
+                PlayerRecord.load(entry.ownerUuid) : PlayerRecord.load(entry.ownerName);
+        if (playerRecord != null) return playerRecord.getId();
+        
+        // Get the owner's UUID and username from the server
+        UUID   uuid     = entry.ownerUuid;
+        String username = entry.ownerName;
+        if (uuid == null) {
+            if (playerUuids == null) {
+                playerUuids = new HashMap<>();
+                for (Map.Entry<UUID, String> player : players.entrySet())
+                    playerUuids.put(player.getValue().toLowerCase(), player.getKey());
+            }
+            uuid = playerUuids.get(username.toLowerCase());
+        } else if (username == null) {
+            username = players.get(uuid);
+        }
+        if (uuid == null || username == null) return -1;
+        
+        // A dry run only pretends to save the owner, under an ID no player has
+        if (dryRun) return --lastDryRunPlayerId;
+        
+        // Save the owner as a Wormhole player
+        playerRecord = new PlayerRecord(uuid, username);
+        if (!playerRecord.upsert()) throw new SQLException("Failed to save player '"+username+"'");
+        return playerRecord.getId();
+    }
+}
\ No newline at end of file
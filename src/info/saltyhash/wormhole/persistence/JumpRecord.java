@@ -1,5 +1,8 @@
 package info.saltyhash.wormhole.persistence;
 
+import info.saltyhash.wormhole.metrics.Histogram;
+import info.saltyhash.wormhole.metrics.Jfr;
+import info.saltyhash.wormhole.metrics.Metrics;
 import org.bukkit.Bukkit;
 import org.bukkit.Location;
 import org.bukkit.World;
@@ -8,9 +11,7 @@ import org.bukkit.entity.Player;
 import org.bukkit.event.player.PlayerTeleportEvent;
 
 import java.sql.*;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.UUID;
+import java.util.*;
 
 /** Represents a row in the database table 'jumps'. */
 @SuppressWarnings("WeakerAccess")
@@ -21,6 +22,35 @@ public class JumpRecord {
     public UUID    worldUuid;
     public double  x, y, z;
     public float   yaw;
+    public int     version;     // Incremented by each update; see UnitOfWork
+    
+    /** The jump as loaded or last saved, the "before" of its next update; see rememberLoaded(). */
+    private JumpRecord loaded;
+    
+    // Latencies of the queries, whether answered from memory or by the database
+    private static final Histogram DELETE_LATENCY =
+            Metrics.histogram("query.jump.delete");
+    private static final Histogram LOAD_BY_ID_LATENCY =
+            Metrics.histogram("query.jump.load_by_id");
+    private static final Histogram LOAD_BY_OWNER_LATENCY =
+            Metrics.histogram("query.jump.load_by_owner");
+    private static final Histogram LOAD_BY_OWNERS_LATENCY =
+            Metrics.histogram("query.jump.load_by_owners");
+    private static final Histogram LOAD_BY_NAME_LATENCY =
+            Metrics.histogram("query.jump.load_by_name");
+    private static final Histogram LOAD_BY_PREFIX_LATENCY =
+            Metrics.histogram("query.jump.load_by_prefix");
+    private static final Histogram LOAD_NAMES_BY_PREFIX_LATENCY =
+            Metrics.histogram("query.jump.load_names_by_prefix");
+    private static final Histogram SEARCH_LATENCY =
+            Metrics.histogram("query.jump.search");
+    private static final Histogram SAVE_LATENCY =
+            Metrics.histogram("query.jump.save");
+    private static final Histogram INSERT_ALL_LATENCY =
+            Metrics.histogram("query.jump.insert_all");
+    
+    private static final Histogram GET_WORLD_LATENCY = Metrics.histogram("bukkit.get_world");
+    private static final Histogram TELEPORT_LATENCY  = Metrics.histogram("teleport");
     
     public JumpRecord() {}
     
@@ -38,7 +68,8 @@ public class JumpRecord {
     }
     
     /** Constructs a jump record from a ResultSet containing all columns of the table. */
-    private JumpRecord(ResultSet rs) throws SQLException {
+    JumpRecord(ResultSet rs) throws SQLException {
+        Jfr.countRead();
         this.id        = rs.getInt("id");
         this.playerId  = (Integer) rs.getObject("player_id");
         this.name      = rs.getString("name");
@@ -47,6 +78,45 @@ public class JumpRecord {
         this.y         = rs.getDouble("y");
         this.z         = rs.getDouble("z");
         this.yaw       = rs.getFloat("yaw");
+        this.version   = rs.getInt("version");
+        rememberLoaded();
+    }
+    
+    /** Returns a copy of the jump record, as loaded. */
+    JumpRecord copy() {
+        JumpRecord copy = snapshot();
+        copy.rememberLoaded();
+        return copy;
+    }
+    
+    private JumpRecord snapshot() {
+        JumpRecord snapshot = new JumpRecord(playerId, name, worldUuid, x, y, z, yaw);
+        snapshot.id = id;
+        snapshot.version = version;
+        return snapshot;
+    }
+    
+    /**
+     * Remembers the jump as it is now, for the rename and move events and the change log of
+     * its next update, so that the update need not load it again; only if either wants it.
+     */
+    void rememberLoaded() {
+        loaded = (RecordEvents.wantsOldJump() || ChangeLog.isEnabled()) ? snapshot() : null;
+    }
+    
+    /**
+     * Restores the ID, version, and loaded state of the jump if the unit of work saving it
+     * is rolled back, so that it can be saved again.  Call before the write changes them.
+     */
+    private void restoreOnRollback() {
+        final Integer oldId = id;
+        final int oldVersion = version;
+        final JumpRecord oldLoaded = loaded;
+        UnitOfWork.afterRollback(() -> {
+            id = oldId;
+            version = oldVersion;
+            loaded = oldLoaded;
+        });
     }
     
     /** Returns true if the jump belongs to the player (and is not public). */
@@ -57,28 +127,53 @@ public class JumpRecord {
     
     /**
      * Deletes the jump record from the database.  Logs errors.
-     * WARNING: This will delete all signs associated with the jump!
+     * WARNING: This will delete all signs and portals associated with the jump!
      * @return true on success (even if record DNE); false on SQL error.
      */
     public boolean delete() {
-        // Cannot delete a jump record with no id
-        if (id == null) return true;
-        
-        // Get database connection
-        Connection conn = DBManager.getConnection();
-        if (conn == null) return false;
-        
-        // Create delete statement
-        final String sql = "DELETE FROM jumps WHERE `id`=?;";
-        try (PreparedStatement ps = conn.prepareStatement(sql)) {
-            // Set statement parameters and execute
-            ps.setInt(1, id);
-            ps.executeUpdate();
-        } catch (SQLException e) {
-            DBManager.logSevere("Failed to delete jump record:\n"+e.toString());
-            return false;
+        long startNanos = DELETE_LATENCY.start();
+        Object jfrEvent = Jfr.beginQuery();
+        try {
+            // Cannot delete a jump record with no id
+            if (id == null) return true;
+            
+            // Memory-resident store?
+            if (MemoryStore.isEnabled()) {
+                MemoryStore.deleteJump(id);
+                PortalIndex.jumpDeleted(id);
+                RecordEvents.jumpDeleted(this);
+                ChangeLog.jumpDeleted(this);
+                return true;
+            }
+            
+            // Get database connection
+            Connection conn = DBManager.getConnection();
+            if (conn == null) return false;
+            
+            // Create delete statement
+            final String sql = "DELETE FROM jumps WHERE `id`=?;";
+            try (PreparedStatement ps = conn.prepareStatement(sql)) {
+                // Set statement parameters and execute
+                ps.setInt(1, id);
+                Jfr.countWritten(ps.executeUpdate());
+            } catch (SQLException e) {
+                DBManager.logSevere("Failed to delete jump record:\n"+e.toString());
+                return false;
+            }
+            final int deletedId = id;
+            UnitOfWork.afterCommit(() -> {
+                SignCache.jumpDeleted(deletedId);
+                PortalIndex.jumpDeleted(deletedId);
+                PlayerCache.jumpDeleted(deletedId);
+            });
+            CacheInvalidation.jumpDeleted(id);
+            RecordEvents.jumpDeleted(this);
+            ChangeLog.jumpDeleted(this);
+            return true;
+        } finally {
+            DELETE_LATENCY.recordSince(startNanos);
+            Jfr.endQuery(jfrEvent, DELETE_LATENCY);
         }
-        return true;
     }
     
     /** Returns a general description of the jump. */
@@ -115,7 +210,7 @@ public class JumpRecord {
     
     /** Returns the jump location. */
     public Location getLocation() {
-        return new Location(Bukkit.getWorld(worldUuid), x, y, z, yaw, 0);
+        return new Location(getWorld(), x, y, z, yaw, 0);
     }
     
     /** Returns the player record to which the jump record belongs, or null if public. */
@@ -125,7 +220,10 @@ public class JumpRecord {
     
     /** Returns the world that the jump resides in. */
     public World getWorld() {
-        return Bukkit.getWorld(worldUuid);
+        long startNanos = GET_WORLD_LATENCY.start();
+        World world = Bukkit.getWorld(worldUuid);
+        GET_WORLD_LATENCY.recordSince(startNanos);
+        return world;
     }
     
     public boolean isPublic() {
@@ -138,6 +236,29 @@ public class JumpRecord {
      * @return Jump record or null if DNE or error.
      */
     public static JumpRecord loadWithId(int id) {
+        long startNanos = LOAD_BY_ID_LATENCY.start();
+        Object jfrEvent = Jfr.beginQuery();
+        try {
+            // Memory-resident store?
+            if (MemoryStore.isEnabled()) return MemoryStore.getJump(id);
+            
+            // Jump is cached?
+            JumpRecord cached = PlayerCache.countLookup(PlayerCache.getJump(id));
+            if (cached != null) return cached.copy();
+            
+            return loadFromDatabase(id);
+        } finally {
+            LOAD_BY_ID_LATENCY.recordSince(startNanos);
+            Jfr.endQuery(jfrEvent, LOAD_BY_ID_LATENCY);
+        }
+    }
+    
+    /**
+     * Gets the jump record with the given ID from the database, bypassing the caches.
+     * Logs errors.
+     * @return Jump record or null if DNE or error.
+     */
+    static JumpRecord loadFromDatabase(int id) {
         // Get database connection
         Connection conn = DBManager.getConnection();
         if (conn == null) return null;
@@ -163,29 +284,97 @@ public class JumpRecord {
      * @return List of all jump records belonging to the player (may be empty), or null on error.
      */
     public static List<JumpRecord> loadWithPlayerId(Integer playerId) {
-        // Get database connection
-        Connection conn = DBManager.getConnection();
-        if (conn == null) return null;
-        
-        // Create select statement
-        String sql = (playerId != null) ?
-                "SELECT * FROM jumps WHERE `player_id`=? ORDER BY `name`;" :
-                "SELECT * FROM jumps WHERE `player_id` IS NULL ORDER BY `name`;";
-        try (PreparedStatement ps = conn.prepareStatement(sql)) {
-            // Set statement parameters and execute
-            if (playerId != null) {
-                ps.setObject(1, playerId, Types.INTEGER);
+        long startNanos = LOAD_BY_OWNER_LATENCY.start();
+        Object jfrEvent = Jfr.beginQuery();
+        try {
+            // Memory-resident store?
+            if (MemoryStore.isEnabled()) return MemoryStore.getJumps(playerId, "%");
+            
+            // Player's jumps are cached?
+            List<JumpRecord> cached = PlayerCache.countLookup(PlayerCache.getJumps(playerId));
+            if (cached != null) return copyMatching(cached, "%");
+            
+            // Get database connection
+            Connection conn = DBManager.getConnection();
+            if (conn == null) return null;
+            
+            // Create select statement
+            String sql = (playerId != null) ?
+                    "SELECT * FROM jumps WHERE `player_id`=? ORDER BY `name`;" :
+                    "SELECT * FROM jumps WHERE `player_id` IS NULL ORDER BY `name`;";
+            try (PreparedStatement ps = conn.prepareStatement(sql)) {
+                // Set statement parameters and execute
+                if (playerId != null) {
+                    ps.setObject(1, playerId, Types.INTEGER);
+                }
+                ResultSet rs = ps.executeQuery();
+                
+                // Get jump records from the result set and return
+                List<JumpRecord> jumpRecords = new ArrayList<>();
+                while (rs.next())
+                    jumpRecords.add(new JumpRecord(rs));
+                return jumpRecords;
+            } catch (SQLException e) {
+                DBManager.logSevere("Failed to fetch jump records:\n"+e.toString());
+                return null;
             }
-            ResultSet rs = ps.executeQuery();
+        } finally {
+            LOAD_BY_OWNER_LATENCY.recordSince(startNanos);
+            Jfr.endQuery(jfrEvent, LOAD_BY_OWNER_LATENCY);
+        }
+    }
+    
+    /**
+     * Returns alphabetical lists of all jump records belonging to each of the players,
+     * fetched a chunk of players per query.  Logs errors.
+     * @param  playerIds Database IDs of the players to which the jump records belong.
+     * @return Map of player ID to list of jump records (may be empty), or null on error.
+     */
+    public static Map<Integer, List<JumpRecord>> loadWithPlayerIds(Collection<Integer> playerIds) {
+        long startNanos = LOAD_BY_OWNERS_LATENCY.start();
+        Object jfrEvent = Jfr.beginQuery();
+        try {
+            // Memory-resident store?
+            if (MemoryStore.isEnabled()) {
+                Map<Integer, List<JumpRecord>> jumpRecords = new HashMap<>(playerIds.size());
+                for (Integer playerId : playerIds)
+                    jumpRecords.put(playerId, MemoryStore.getJumps(playerId, "%"));
+                return jumpRecords;
+            }
+            
+            // Get database connection
+            Connection conn = DBManager.getConnection();
+            if (conn == null) return null;
             
-            // Get jump records from the result set and return
-            List<JumpRecord> jumpRecords = new ArrayList<>();
-            while (rs.next())
-                jumpRecords.add(new JumpRecord(rs));
+            Map<Integer, List<JumpRecord>> jumpRecords = new HashMap<>(playerIds.size());
+            for (Integer playerId : playerIds) jumpRecords.put(playerId, new ArrayList<>());
+            List<Integer> ids = new ArrayList<>(jumpRecords.keySet());
+            for (int start = 0; start < ids.size(); start += DBManager.MAX_PARAMETERS) {
+                List<Integer> chunk = ids.subList(
+                        start, Math.min(start+DBManager.MAX_PARAMETERS, ids.size()));
+                
+                // Create select statement
+                String sql = "SELECT * FROM jumps WHERE `player_id` IN ("+
+                        DBManager.placeholders(chunk.size())+") ORDER BY `name`;";
+                try (PreparedStatement ps = conn.prepareStatement(sql)) {
+                    // Set statement parameters and execute
+                    for (int i = 0; i < chunk.size(); i++) ps.setInt(i+1, chunk.get(i));
+                    ResultSet rs = ps.executeQuery();
+                    
+                    // Get jump records from the result set
+                    while (rs.next()) {
+                        JumpRecord jumpRecord = new JumpRecord(rs);
+                        jumpRecords.get(jumpRecord.playerId).add(jumpRecord);
+                    }
+                } catch (SQLException e) {
+                    DBManager.logSevere("Failed to fetch jump records:\n"+e.toString());
+                    return null;
+                }
+            }
             return jumpRecords;
-        } catch (SQLException e) {
-            DBManager.logSevere("Failed to fetch jump records:\n"+e.toString());
-            return null;
+        } finally {
+            LOAD_BY_OWNERS_LATENCY.recordSince(startNanos);
+            Jfr.endQuery(jfrEvent, LOAD_BY_OWNERS_LATENCY);
         }
     }
     
@@ -196,29 +385,48 @@ public class JumpRecord {
      * @return Jump record or null if DNE or error.
      */
     public static JumpRecord load(Integer playerId, String name) {
-        // Get database connection
-        Connection conn = DBManager.getConnection();
-        if (conn == null) return null;
-        
-        // Create select statement
-        String sql = (playerId != null) ?
-                "SELECT * FROM jumps WHERE `player_id`=? AND `name`=? LIMIT 1;" :
-                "SELECT * FROM jumps WHERE `player_id` IS NULL AND `name`=? LIMIT 1;";
-        try (PreparedStatement ps = conn.prepareStatement(sql)) {
-            // Set statement parameters and execute
-            if (playerId != null) {
-                ps.setInt(1, playerId);
-                ps.setString(2, name);
-            } else {
-                ps.setString(1, name);
+        long startNanos = LOAD_BY_NAME_LATENCY.start();
+        Object jfrEvent = Jfr.beginQuery();
+        try {
+            // Memory-resident store?
+            if (MemoryStore.isEnabled()) return MemoryStore.getJump(playerId, name);
+            
+            // Player's jumps are cached?
+            List<JumpRecord> cached = PlayerCache.countLookup(PlayerCache.getJumps(playerId));
+            if (cached != null) {
+                for (JumpRecord jumpRecord : cached) {
+                    if (jumpRecord.name.equals(name)) return jumpRecord.copy();
+                }
+                return null;
             }
-            ResultSet rs = ps.executeQuery();
-            // Return a new jump record or null if no results
-            return rs.next() ? new JumpRecord(rs) : null;
-        } catch (SQLException e) {
-            DBManager.logSevere("Failed to fetch jump record");
-            e.printStackTrace();
-            return null;
+            
+            // Get database connection
+            Connection conn = DBManager.getConnection();
+            if (conn == null) return null;
+            
+            // Create select statement
+            String sql = (playerId != null) ?
+                    "SELECT * FROM jumps WHERE `player_id`=? AND `name`=? LIMIT 1;" :
+                    "SELECT * FROM jumps WHERE `player_id` IS NULL AND `name`=? LIMIT 1;";
+            try (PreparedStatement ps = conn.prepareStatement(sql)) {
+                // Set statement parameters and execute
+                if (playerId != null) {
+                    ps.setInt(1, playerId);
+                    ps.setString(2, name);
+                } else {
+                    ps.setString(1, name);
+                }
+                ResultSet rs = ps.executeQuery();
+                // Return a new jump record or null if no results
+                return rs.next() ? new JumpRecord(rs) : null;
+            } catch (SQLException e) {
+                DBManager.logSevere("Failed to fetch jump record");
+                e.printStackTrace();
+                return null;
+            }
+        } finally {
+            LOAD_BY_NAME_LATENCY.recordSince(startNanos);
+            Jfr.endQuery(jfrEvent, LOAD_BY_NAME_LATENCY);
         }
     }
     
@@ -231,33 +439,71 @@ public class JumpRecord {
      * @return List of all JumpRecords that begin with name and belong to player, or null on error.
      */
     public static List<JumpRecord> loadWhereNameBeginsWith(Integer playerId, String name) {
-        // Get database connection
-        Connection conn = DBManager.getConnection();
-        if (conn == null) return null;
-        
-        // Create select statement
-        String sql = (playerId != null) ?
-                "SELECT * FROM jumps WHERE `player_id`=? AND `name` LIKE ? ORDER BY `name`;" :
-                "SELECT * FROM jumps WHERE `player_id` IS NULL AND `name` LIKE ? ORDER BY `name`;";
-        try (PreparedStatement ps = conn.prepareStatement(sql)) {
-            // Set statement parameters and execute
-            if (playerId != null) {
-                ps.setObject(1, playerId, Types.INTEGER);
-                ps.setString(2, name + "%");
-            } else {
-                ps.setString(1, name + "%");
+        long startNanos = LOAD_BY_PREFIX_LATENCY.start();
+        Object jfrEvent = Jfr.beginQuery();
+        try {
+            // Memory-resident store?
+            if (MemoryStore.isEnabled()) return MemoryStore.getJumps(playerId, name + "%");
+            
+            // Player's jumps are cached?
+            List<JumpRecord> cached = PlayerCache.countLookup(PlayerCache.getJumps(playerId));
+            if (cached != null) return copyMatching(cached, name + "%");
+            
+            // Get database connection
+            Connection conn = DBManager.getConnection();
+            if (conn == null) return null;
+            
+            // Create select statement
+            String sql = (playerId != null) ?
+                    "SELECT * FROM jumps WHERE `player_id`=? AND `name` LIKE ? ORDER BY `name`;" :
+                    "SELECT * FROM jumps WHERE `player_id` IS NULL AND `name` LIKE ? ORDER BY `name`;";
+            try (PreparedStatement ps = conn.prepareStatement(sql)) {
+                // Set statement parameters and execute
+                if (playerId != null) {
+                    ps.setObject(1, playerId, Types.INTEGER);
+                    ps.setString(2, name + "%");
+                } else {
+                    ps.setString(1, name + "%");
+                }
+                ResultSet rs = ps.executeQuery();
+                
+                // Get jump records from the result set and return
+                List<JumpRecord> jumpRecords = new ArrayList<>();
+                while (rs.next())
+                    jumpRecords.add(new JumpRecord(rs));
+                return jumpRecords;
+            } catch (SQLException e) {
+                DBManager.logSevere("Failed to fetch jump records");
+                e.printStackTrace();
+                return null;
             }
-            ResultSet rs = ps.executeQuery();
+        } finally {
+            LOAD_BY_PREFIX_LATENCY.recordSince(startNanos);
+            Jfr.endQuery(jfrEvent, LOAD_BY_PREFIX_LATENCY);
+        }
+    }
+    
+    /**
+     * Gets the names of the jumps belonging to the player that begin with the name given,
+     * ordered alphabetically; see {@link #loadWhereNameBeginsWith(Integer, String)}.  In the
+     * memory-resident store, the names are read without creating jump records.  Logs errors.
+     * @return List of jump names, or null on error.
+     */
+    public static List<String> loadNamesWhereNameBeginsWith(Integer playerId, String name) {
+        long startNanos = LOAD_NAMES_BY_PREFIX_LATENCY.start();
+        Object jfrEvent = Jfr.beginQuery();
+        try {
+            // Memory-resident store?
+            if (MemoryStore.isEnabled()) return MemoryStore.getJumpNames(playerId, name + "%");
             
-            // Get jump records from the result set and return
-            List<JumpRecord> jumpRecords = new ArrayList<>();
-            while (rs.next())
-                jumpRecords.add(new JumpRecord(rs));
-            return jumpRecords;
-        } catch (SQLException e) {
-            DBManager.logSevere("Failed to fetch jump records");
-            e.printStackTrace();
-            return null;
+            List<JumpRecord> jumpRecords = loadWhereNameBeginsWith(playerId, name);
+            if (jumpRecords == null) return null;
+            List<String> jumpNames = new ArrayList<>(jumpRecords.size());
+            for (JumpRecord jumpRecord : jumpRecords) jumpNames.add(jumpRecord.name);
+            return jumpNames;
+        } finally {
+            LOAD_NAMES_BY_PREFIX_LATENCY.recordSince(startNanos);
+            Jfr.endQuery(jfrEvent, LOAD_NAMES_BY_PREFIX_LATENCY);
         }
     }
     
@@ -270,100 +516,243 @@ public class JumpRecord {
      * @return List of all JumpRecords belonging to the player and matching name, or null on error.
      */
     public static List<JumpRecord> loadWhereNameLike(Integer playerId, String name) {
-        // Get database connection
-        Connection conn = DBManager.getConnection();
-        if (conn == null) return null;
-        
-        // Create select statement
-        String sql = (playerId != null) ?
-                "SELECT * FROM jumps WHERE `player_id`=? AND `name` LIKE ? ORDER BY `name`;" :
-                "SELECT * FROM jumps WHERE `player_id` IS NULL AND `name` LIKE ? ORDER BY `name`;";
-        try (PreparedStatement ps = conn.prepareStatement(sql)) {
-            // Set statement parameters and execute
-            if (playerId != null) {
-                ps.setObject(1, playerId, Types.INTEGER);
-                ps.setString(2, "%" + name + "%");
-            } else {
-                ps.setString(1, "%" + name + "%");
-            }
-            ResultSet rs = ps.executeQuery();
+        long startNanos = SEARCH_LATENCY.start();
+        Object jfrEvent = Jfr.beginQuery();
+        try {
+            // Memory-resident store?
+            if (MemoryStore.isEnabled()) return MemoryStore.getJumps(playerId, "%" + name + "%");
             
-            // Get jump records from the result set and return
-            List<JumpRecord> jumpRecords = new ArrayList<>();
-            while (rs.next())
-                jumpRecords.add(new JumpRecord(rs));
-            return jumpRecords;
-        } catch (SQLException e) {
-            DBManager.logSevere("Failed to fetch jump records:\n"+e.toString());
-            return null;
+            // Player's jumps are cached?
+            List<JumpRecord> cached = PlayerCache.countLookup(PlayerCache.getJumps(playerId));
+            if (cached != null) return copyMatching(cached, "%" + name + "%");
+            
+            // Get database connection
+            Connection conn = DBManager.getConnection();
+            if (conn == null) return null;
+            
+            // Create select statement
+            String sql = (playerId != null) ?
+                    "SELECT * FROM jumps WHERE `player_id`=? AND `name` LIKE ? ORDER BY `name`;" :
+                    "SELECT * FROM jumps WHERE `player_id` IS NULL AND `name` LIKE ? ORDER BY `name`;";
+            try (PreparedStatement ps = conn.prepareStatement(sql)) {
+                // Set statement parameters and execute
+                if (playerId != null) {
+                    ps.setObject(1, playerId, Types.INTEGER);
+                    ps.setString(2, "%" + name + "%");
+                } else {
+                    ps.setString(1, "%" + name + "%");
+                }
+                ResultSet rs = ps.executeQuery();
+                
+                // Get jump records from the result set and return
+                List<JumpRecord> jumpRecords = new ArrayList<>();
+                while (rs.next())
+                    jumpRecords.add(new JumpRecord(rs));
+                return jumpRecords;
+            } catch (SQLException e) {
+                DBManager.logSevere("Failed to fetch jump records:\n"+e.toString());
+                return null;
+            }
+        } finally {
+            SEARCH_LATENCY.recordSince(startNanos);
+            Jfr.endQuery(jfrEvent, SEARCH_LATENCY);
+        }
+    }
+    
+    /** Returns copies of the jump records whose names match the SQL LIKE pattern, in order. */
+    private static List<JumpRecord> copyMatching(List<JumpRecord> jumpRecords, String pattern) {
+        List<JumpRecord> matching = new ArrayList<>();
+        for (JumpRecord jumpRecord : jumpRecords) {
+            if (PlayerCache.like(jumpRecord.name, pattern)) matching.add(jumpRecord.copy());
         }
+        return matching;
     }
     
     /**
-     * Saves the jump record to the database by inserting or updating.  Logs errors.
+     * Saves the jump record to the database by inserting or updating.  An update fails if
+     * the jump has been updated since it was loaded (its version has changed).  Logs errors,
+     * except conflicts and duplicates in a {@link UnitOfWork}, which are reported by it.
      * @return true on success, false on error.
      */
     public boolean save() {
-        // Get database connection
-        Connection conn = DBManager.getConnection();
-        if (conn == null) return false;
-        
-        // Having an id implies that it exists in the database already
-        if (id != null) {
-            // Create update statement
-            final String updateSql = "UPDATE jumps SET "+
-                    "`player_id`=?,`name`=?,`world_uuid`=?,`x`=?,`y`=?,`z`=?,`yaw`=? "+
-                    "WHERE `id`=?;";
-            try (PreparedStatement ps = conn.prepareStatement(updateSql)) {
-                // Set parameters
-                ps.setObject(1, playerId, Types.INTEGER);
-                ps.setString(2, name);
-                ps.setBytes(3, DBManager.UuidToBytes(worldUuid));
-                ps.setDouble(4, x);
-                ps.setDouble(5, y);
-                ps.setDouble(6, z);
-                ps.setFloat(7, yaw);
-                ps.setInt(8, id);
-                // Execute and return result
-                return (ps.executeUpdate() > 0);
-            } catch (SQLException e) {
-                DBManager.logSevere("Failed to update jump record "+id+":\n"+e.toString());
-                return false;
+        long startNanos = SAVE_LATENCY.start();
+        Object jfrEvent = Jfr.beginQuery();
+        try {
+            // Get the jump as it was, for the rename and move events and the change log
+            boolean created = (id == null);
+            JumpRecord oldRecord = !created ? loaded : null;
+            
+            // Memory-resident store?
+            if (MemoryStore.isEnabled()) {
+                if (!MemoryStore.saveJump(this)) return false;
+                rememberLoaded();
+                if (!created) PortalIndex.jumpSaved(id);
+                RecordEvents.jumpSaved(oldRecord, this, created);
+                ChangeLog.jumpSaved(oldRecord, this, created);
+                return true;
             }
+            
+            // Get database connection
+            Connection conn = DBManager.getConnection();
+            if (conn == null) return false;
+            
+            // Having an id implies that it exists in the database already
+            if (id != null) {
+                // Create update statement
+                final String updateSql = "UPDATE jumps SET "+
+                        "`player_id`=?,`name`=?,`world_uuid`=?,`x`=?,`y`=?,`z`=?,`yaw`=?,"+
+                        "`version`=`version`+1 WHERE `id`=? AND `version`=?;";
+                try (PreparedStatement ps = conn.prepareStatement(updateSql)) {
+                    // Set parameters
+                    ps.setObject(1, playerId, Types.INTEGER);
+                    ps.setString(2, name);
+                    ps.setBytes(3, DBManager.UuidToBytes(worldUuid));
+                    ps.setDouble(4, x);
+                    ps.setDouble(5, y);
+                    ps.setDouble(6, z);
+                    ps.setFloat(7, yaw);
+                    ps.setInt(8, id);
+                    ps.setInt(9, version);
+                    // Execute and return result; no row ==> deleted or changed since loaded
+                    if (Jfr.countWritten(ps.executeUpdate()) == 0) {
+                        UnitOfWork.failed(UnitOfWork.Outcome.CONFLICT);
+                        return false;
+                    }
+                    restoreOnRollback();
+                    version++;
+                    rememberLoaded();
+                    UnitOfWork.afterCommit(() -> {
+                        SignCache.jumpSaved(this);
+                        PlayerCache.jumpSaved(this);
+                        PortalIndex.jumpSaved(id);
+                    });
+                    CacheInvalidation.jumpSaved(this);
+                    RecordEvents.jumpSaved(oldRecord, this, false);
+                    ChangeLog.jumpSaved(oldRecord, this, false);
+                    return true;
+                } catch (SQLException e) {
+                    if (UnitOfWork.failed(e)) return false;
+                    DBManager.logSevere("Failed to update jump record "+id+":\n"+e.toString());
+                    return false;
+                }
+            }
+            
+            // Having no id implies that it does NOT exist in the database yet
+            else {
+                // Create insert statement
+                final String insertSql = "INSERT INTO jumps "+
+                        "(`player_id`,`name`,`world_uuid`,`x`,`y`,`z`,`yaw`) "+
+                        "VALUES (?,?,?,?,?,?,?);";
+                try (PreparedStatement ps = conn.prepareStatement(
+                        insertSql, Statement.RETURN_GENERATED_KEYS)) {
+                    // Set parameters
+                    ps.setObject(1, playerId, Types.INTEGER);
+                    ps.setString(2, name);
+                    ps.setBytes(3, DBManager.UuidToBytes(worldUuid));
+                    ps.setDouble(4, x);
+                    ps.setDouble(5, y);
+                    ps.setDouble(6, z);
+                    ps.setFloat(7, yaw);
+                    
+                    // Execute statement, throwing exception if failed
+                    if (Jfr.countWritten(ps.executeUpdate()) == 0)
+                        throw new SQLException("Failed to insert");
+                    
+                    // Set id to the generated key
+                    ResultSet rs = ps.getGeneratedKeys();
+                    if (rs.next()) {
+                        restoreOnRollback();
+                        id = rs.getInt(1);
+                        rememberLoaded();
+                        UnitOfWork.afterCommit(() -> PlayerCache.jumpSaved(this));
+                        CacheInvalidation.jumpSaved(this);
+                        RecordEvents.jumpSaved(null, this, true);
+                        ChangeLog.jumpSaved(null, this, true);
+                        return true;
+                    } else {
+                        throw new SQLException("Failed to retrieve generated key");
+                    }
+                } catch (SQLException e) {
+                    if (UnitOfWork.failed(e)) return false;
+                    DBManager.logSevere("Failed to insert jump record "+id+":\n"+e.toString());
+                    return false;
+                }
+            }
+        } finally {
+            SAVE_LATENCY.recordSince(startNanos);
+            Jfr.endQuery(jfrEvent, SAVE_LATENCY);
         }
-        
-        // Having no id implies that it does NOT exist in the database yet
-        else {
-            // Create insert statement
+    }
+    
+    /**
+     * Inserts the new jump records (with no id) into the database in one batch, and sets
+     * their ids.  Runs in the caller's transaction, if any; a caller inserting many batches
+     * should disable autocommit and commit them together, then call
+     * {@link CacheInvalidation#flush()}, as the jumps are not broadcast one by one.
+     * Logs errors.
+     * @return true on success; false on error.
+     */
+    public static boolean insertAll(List<JumpRecord> jumpRecords) {
+        long startNanos = INSERT_ALL_LATENCY.start();
+        Object jfrEvent = Jfr.beginQuery();
+        try {
+            if (jumpRecords.isEmpty()) return true;
+            
+            // Memory-resident store?
+            if (MemoryStore.isEnabled()) {
+                for (JumpRecord jumpRecord : jumpRecords) {
+                    if (!MemoryStore.saveJump(jumpRecord)) return false;
+                    jumpRecord.rememberLoaded();
+                    RecordEvents.jumpSaved(null, jumpRecord, true);
+                    ChangeLog.jumpSaved(null, jumpRecord, true);
+                }
+                return true;
+            }
+            
+            // Get database connection
+            Connection conn = DBManager.getConnection();
+            if (conn == null) return false;
+            
             final String insertSql = "INSERT INTO jumps "+
                     "(`player_id`,`name`,`world_uuid`,`x`,`y`,`z`,`yaw`) "+
                     "VALUES (?,?,?,?,?,?,?);";
-            try (PreparedStatement ps = conn.prepareStatement(
-                    insertSql, Statement.RETURN_GENERATED_KEYS)) {
-                // Set parameters
-                ps.setObject(1, playerId, Types.INTEGER);
-                ps.setString(2, name);
-                ps.setBytes(3, DBManager.UuidToBytes(worldUuid));
-                ps.setDouble(4, x);
-                ps.setDouble(5, y);
-                ps.setDouble(6, z);
-                ps.setFloat(7, yaw);
-                
-                // Execute statement, throwing exception if failed
-                if (ps.executeUpdate() == 0)  throw new SQLException("Failed to insert");
+            try (PreparedStatement ps = conn.prepareStatement(insertSql);
+                 Statement s = conn.createStatement()) {
+                for (JumpRecord jumpRecord : jumpRecords) {
+                    ps.setObject(1, jumpRecord.playerId, Types.INTEGER);
+                    ps.setString(2, jumpRecord.name);
+                    ps.setBytes(3, DBManager.UuidToBytes(jumpRecord.worldUuid));
+                    ps.setDouble(4, jumpRecord.x);
+                    ps.setDouble(5, jumpRecord.y);
+                    ps.setDouble(6, jumpRecord.z);
+                    ps.setFloat(7, jumpRecord.yaw);
+                    ps.addBatch();
+                }
+                Jfr.countWritten(ps.executeBatch());
                 
-                // Set id to the generated key
-                ResultSet rs = ps.getGeneratedKeys();
-                if (rs.next()) {
-                    id = rs.getInt(1);
-                    return true;
-                } else {
-                    throw new SQLException("Failed to retrieve generated key");
+                // Rows of a single batch get consecutive ids, ending with the last inserted
+                ResultSet rs = s.executeQuery("SELECT last_insert_rowid();");
+                if (!rs.next()) throw new SQLException("Failed to retrieve generated keys");
+                int id = rs.getInt(1)-jumpRecords.size()+1;
+                for (JumpRecord jumpRecord : jumpRecords) {
+                    jumpRecord.restoreOnRollback();
+                    jumpRecord.id = id++;
                 }
             } catch (SQLException e) {
-                DBManager.logSevere("Failed to insert jump record "+id+":\n"+e.toString());
+                DBManager.logSevere("Failed to insert jump records via batch:\n"+e.toString());
                 return false;
             }
+            
+            for (JumpRecord jumpRecord : jumpRecords) {
+                jumpRecord.rememberLoaded();
+                UnitOfWork.afterCommit(() -> PlayerCache.jumpSaved(jumpRecord));
+                RecordEvents.jumpSaved(null, jumpRecord, true);
+                ChangeLog.jumpSaved(null, jumpRecord, true);
+            }
+            return true;
+        } finally {
+            INSERT_ALL_LATENCY.recordSince(startNanos);
+            Jfr.endQuery(jfrEvent, INSERT_ALL_LATENCY);
         }
     }
     
@@ -379,24 +768,39 @@ public class JumpRecord {
      * @return true if teleport was successful.
      */
     public boolean teleportPlayer(Player player) {
-        // Get the jump location and load the chunk
-        Location l = getLocation();
-        l.getWorld().loadChunk((int)x, (int)z);
-        
-        // Player is not riding a creature?
-        if (!(player.getVehicle() instanceof Creature))
-            return player.teleport(l, PlayerTeleportEvent.TeleportCause.PLUGIN);
-        
-        // Player IS riding a creature?
-        else {
-            Creature creature = (Creature) player.getVehicle();
-            creature.removePassenger(player);
-            boolean teleportedCreature = creature.teleport(l,
-                    PlayerTeleportEvent.TeleportCause.PLUGIN);
-            boolean teleportedPlayer   = player.teleport(l,
-                    PlayerTeleportEvent.TeleportCause.PLUGIN);
-            creature.addPassenger(player);
-            return teleportedPlayer && teleportedCreature;
+        long startNanos = TELEPORT_LATENCY.start();
+        Object jfrEvent = Jfr.beginTeleport();
+        long chunkLoadNanos = 0;
+        boolean success = false;
+        Location l = null;
+        try {
+            // Get the jump location and load the chunk
+            l = getLocation();
+            long chunkLoadStartNanos = System.nanoTime();
+            l.getWorld().loadChunk((int)x, (int)z);
+            chunkLoadNanos = System.nanoTime()-chunkLoadStartNanos;
+            
+            // Player is not riding a creature?
+            if (!(player.getVehicle() instanceof Creature)) {
+                success = player.teleport(l, PlayerTeleportEvent.TeleportCause.PLUGIN);
+            }
+            
+            // Player IS riding a creature?
+            else {
+                Creature creature = (Creature) player.getVehicle();
+                creature.removePassenger(player);
+                boolean teleportedCreature = creature.teleport(l,
+                        PlayerTeleportEvent.TeleportCause.PLUGIN);
+                boolean teleportedPlayer   = player.teleport(l,
+                        PlayerTeleportEvent.TeleportCause.PLUGIN);
+                creature.addPassenger(player);
+                success = teleportedPlayer && teleportedCreature;
+            }
+            return success;
+        } finally {
+            TELEPORT_LATENCY.recordSince(startNanos);
+            Jfr.endTeleport(jfrEvent, (l != null && l.getWorld() != null) ?
+                    l.getWorld().getName() : null, chunkLoadNanos, success);
         }
     }
 }
\ No newline at end of file
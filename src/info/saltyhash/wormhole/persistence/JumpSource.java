@@ -0,0 +1,58 @@
+package info.saltyhash.wormhole.persistence;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.UUID;
+
+/**
+ * A source of jumps to import, such as the data files of another warp or home plugin.
+ * Register sources with {@link JumpImport#registerSource(JumpSource)}.
+ */
+public interface JumpSource {
+    /** A jump read from a source. */
+    final class Entry {
+        public final UUID   ownerUuid;  // null if unknown or public
+        public final String ownerName;  // null if unknown or public
+        public final String name;
+        public final String world;      // World name or UUID
+        public final double x, y, z;
+        public final float  yaw;
+        
+        /** Constructs an entry; a public jump has neither an owner UUID nor a name. */
+        public Entry(UUID ownerUuid, String ownerName, String name, String world,
+                     double x, double y, double z, float yaw) {
+            this.ownerUuid = ownerUuid;
+            this.ownerName = ownerName;
+            this.name      = name;
+            this.world     = world;
+            this.x = x; this.y = y; this.z = z; this.yaw = yaw;
+        }
+        
+        /** Returns true if the jump is public. */
+        public boolean isPublic() {
+            return ownerUuid == null && ownerName == null;
+        }
+    }
+    
+    /** Receives the entries of a source, one at a time. */
+    interface Sink {
+        void accept(Entry entry) throws SQLException;
+    }
+    
+    /** Returns the name of the source, as given to the import command. */
+    String getName();
+    
+    /**
+     * Returns the default file or directory to read from.
+     * @param pluginsDir The server's plugins directory.
+     */
+    File getDefaultPath(File pluginsDir);
+    
+    /**
+     * Reads the source at the given path, streaming its entries to the sink one at a time
+     * rather than reading them all into memory.
+     * @return Number of entries that could not be parsed.
+     */
+    int read(File path, Sink sink) throws IOException, SQLException;
+}
\ No newline at end of file
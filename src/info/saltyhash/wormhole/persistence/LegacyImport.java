@@ -0,0 +1,295 @@
+package info.saltyhash.wormhole.persistence;
+
+import org.bukkit.Bukkit;
+import org.bukkit.OfflinePlayer;
+import org.bukkit.World;
+
+import java.io.File;
+import java.sql.*;
+import java.util.*;
+
+/**
+ * Steps of migration 0 that import the pre-1.4.0 database ("Wormhole.sqlite.db"), if it
+ * exists, in checkpointed batches.  Players are imported first, then jumps and signs, which
+ * look up the IDs of their players in a map built once the players are imported.
+ *
+ * The worlds and players of the server are collected on the main thread by
+ * {@link #collectServerData()} before migrating, since the steps run on the database thread.
+ */
+final class LegacyImport {
+    /** World names -> UUIDs, and player usernames -> UUIDs, of the server; see above. */
+    private static volatile Map<String, UUID> serverWorldUuids, serverPlayerUuids;
+    /** Usernames found in the old database -> UUIDs; built once per import. */
+    private static Map<String, UUID> playerUuids;
+    /** Usernames -> IDs of the imported players; built once the players are imported. */
+    private static Map<String, Integer> playerIds;
+    /** Connection to the old database, kept open across batches. */
+    private static Connection oldConn;
+    
+    private LegacyImport() {}
+    
+    /**
+     * Collects the worlds and players of the server, if there is a pre-1.4.0 database to
+     * import.  Call from the main thread before migrating.
+     */
+    static void collectServerData() {
+        if (!getOldDbFile().exists()) return;
+        Map<String, UUID> worldUuids = new HashMap<>();
+        for (World world : Bukkit.getWorlds()) worldUuids.put(world.getName(), world.getUID());
+        Map<String, UUID> playerUuids = new HashMap<>();
+        for (OfflinePlayer player : Bukkit.getOfflinePlayers()) {
+            if (player.getName() == null) continue;
+            if (player.getUniqueId() == null) {
+                DBManager.logWarning("Player '" + player.getName() +
+                        "' does not have UUID; moving on...");
+                continue;
+            }
+            playerUuids.put(player.getName(), player.getUniqueId());
+        }
+        serverWorldUuids  = worldUuids;
+        serverPlayerUuids = playerUuids;
+    }
+    
+    /** Returns the server data collected by {@link #collectServerData()}. */
+    private static Map<String, UUID> getServerData(Map<String, UUID> data)
+            throws IllegalStateException {
+        if (data == null) {
+            throw new IllegalStateException("Worlds and players of the server were not "+
+                    "collected before importing the pre-1.4.0 database");
+        }
+        return data;
+    }
+    
+    private static File getOldDbFile() {
+        return new File(DBManager.getDbFile().getParent() + File.separator + "Wormhole.sqlite.db");
+    }
+    
+    /** Returns the connection to the old database, opening it if needed. */
+    private static Connection getOldDb() throws IllegalStateException, SQLException {
+        if (oldConn != null && !oldConn.isClosed()) return oldConn;
+        try {
+            Class.forName("org.sqlite.JDBC");
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException("Failed to connect to pre-1.4.0 database!");
+        }
+        return (oldConn = DriverManager.getConnection(
+                "jdbc:sqlite:"+getOldDbFile().getAbsolutePath()));
+    }
+    
+    /** Closes the old database and forgets the import's state, once done or failed. */
+    private static void finish() {
+        playerUuids = null;
+        playerIds   = null;
+        if (oldConn == null) return;
+        try {
+            oldConn.close();
+        } catch (SQLException e) {
+            DBManager.logWarning("Failed to close pre-1.4.0 database:\n"+e.toString());
+        }
+        oldConn = null;
+    }
+    
+    /** Returns a map of world names to world UUIDs on the server. */
+    private static Map<String, UUID> getWorldUuids() throws IllegalStateException {
+        Map<String, UUID> worldUuids = getServerData(serverWorldUuids);
+        if (worldUuids.isEmpty()) {
+            throw new IllegalStateException("No existing worlds found on the server");
+        }
+        return worldUuids;
+    }
+    
+    private static UUID getWorldUuid(Map<String, UUID> worldUuids, String worldName)
+            throws IllegalStateException {
+        UUID worldUuid = worldUuids.get(worldName);
+        if (worldUuid == null) {
+            throw new IllegalStateException("Server does not have world '" +
+                    worldName + "' found in the old database");
+        }
+        return worldUuid;
+    }
+    
+    /**
+     * Returns a map of the usernames found in the old database to the UUIDs of those
+     * players on the server, ignoring all other players.
+     */
+    private static Map<String, UUID> getPlayerUuids(Connection oldConn)
+            throws IllegalStateException, SQLException {
+        if (playerUuids != null) return playerUuids;
+        
+        // Get player usernames from old database
+        Set<String> usernames = new HashSet<>();
+        try (Statement s = oldConn.createStatement()) {
+            ResultSet rs = s.executeQuery(
+                    "SELECT DISTINCT `player_name` FROM jumps WHERE `player_name` <> '';");
+            while (rs.next()) usernames.add(rs.getString("player_name"));
+        }
+        
+        // Get UUIDs of those players from the server
+        Map<String, UUID> serverUuids = getServerData(serverPlayerUuids);
+        if (serverUuids.isEmpty()) {
+            throw new IllegalStateException("No existing players found on the server");
+        }
+        Map<String, UUID> uuids = new HashMap<>(usernames.size());
+        for (String username : usernames) {
+            UUID uuid = serverUuids.get(username);
+            if (uuid != null) uuids.put(username, uuid);
+        }
+        return (playerUuids = uuids);
+    }
+    
+    /** Returns the ID of the imported player with the username, or null if public. */
+    private static Integer getPlayerId(Connection conn, String username)
+            throws IllegalStateException, SQLException {
+        if (username.equals("")) return null;
+        if (playerIds == null) {
+            playerIds = new HashMap<>();
+            try (Statement s = conn.createStatement()) {
+                ResultSet rs = s.executeQuery("SELECT `id`,`username` FROM players;");
+                while (rs.next()) playerIds.put(rs.getString("username"), rs.getInt("id"));
+            }
+        }
+        Integer playerId = playerIds.get(username);
+        if (playerId == null) {
+            throw new IllegalStateException("Player '" + username +
+                    "' of the old database was not imported");
+        }
+        return playerId;
+    }
+    
+    /** Sets the parameter to the player ID, or to NULL if public. */
+    private static void setPlayerId(PreparedStatement ps, int index, Integer playerId)
+            throws SQLException {
+        if (playerId != null) ps.setInt(index, playerId);
+        else ps.setNull(index, Types.INTEGER);
+    }
+    
+    /** Imports a batch of players; the checkpoint is the number of players imported. */
+    static long importPlayers(Connection conn, long checkpoint, int batchSize)
+            throws IllegalStateException, SQLException {
+        if (!getOldDbFile().exists()) return Migration.DONE;
+        
+        try (PreparedStatement select = getOldDb().prepareStatement(
+                     "SELECT DISTINCT `player_name` FROM jumps WHERE `player_name` <> '' "+
+                     "ORDER BY `player_name` LIMIT ? OFFSET ?;");
+             PreparedStatement insert = conn.prepareStatement(
+                     "INSERT INTO players (`uuid`,`username`) VALUES (?,?);")) {
+            Map<String, UUID> uuids = getPlayerUuids(oldConn);
+            
+            // Get the next batch of player usernames from the old database
+            select.setInt(1, batchSize);
+            select.setLong(2, checkpoint);
+            ResultSet rs = select.executeQuery();
+            int count = 0;
+            while (rs.next()) {
+                String username = rs.getString("player_name");
+                UUID   uuid     = uuids.get(username);
+                // Make sure old database player username exists in server usernames
+                if (uuid == null) {
+                    throw new IllegalStateException("Server does not have player '" +
+                            username + "' found in the old database");
+                }
+                insert.setBytes(1, DBManager.UuidToBytes(uuid));
+                insert.setString(2, username);
+                insert.addBatch();
+                count++;
+            }
+            
+            // Insert the batch of players into the new database
+            insert.executeBatch();
+            return (count < batchSize) ? Migration.DONE : checkpoint + count;
+        } catch (IllegalStateException | SQLException e) {
+            finish();
+            throw e;
+        }
+    }
+    
+    /** Imports a batch of jumps; the checkpoint is the last old jump row ID imported. */
+    static long importJumps(Connection conn, long checkpoint, int batchSize)
+            throws IllegalStateException, SQLException {
+        if (!getOldDbFile().exists()) return Migration.DONE;
+        
+        try (PreparedStatement select = getOldDb().prepareStatement(
+                     "SELECT `rowid`,* FROM jumps WHERE `rowid` > ? ORDER BY `rowid` LIMIT ?;");
+             PreparedStatement insert = conn.prepareStatement("INSERT INTO jumps "+
+                     "(`player_id`,`name`,`world_uuid`,`x`,`y`,`z`,`yaw`) VALUES "+
+                     "(?,?,?,?,?,?,?);")) {
+            Map<String, UUID> worldUuids = getWorldUuids();
+            
+            // Get the next batch of jumps from the old database
+            select.setLong(1, checkpoint);
+            select.setInt(2, batchSize);
+            ResultSet rs = select.executeQuery();
+            int count = 0;
+            while (rs.next()) {
+                // Set parameters and add to batch; a public jump has no player
+                setPlayerId(insert, 1, getPlayerId(conn, rs.getString("player_name")));
+                insert.setString(2, rs.getString("jump_name"));
+                insert.setBytes(3, DBManager.UuidToBytes(
+                        getWorldUuid(worldUuids, rs.getString("world_name"))));
+                insert.setDouble(4, rs.getDouble("x"));
+                insert.setDouble(5, rs.getDouble("y"));
+                insert.setDouble(6, rs.getDouble("z"));
+                insert.setFloat (7, rs.getFloat("yaw"));
+                insert.addBatch();
+                checkpoint = rs.getLong("rowid");
+                count++;
+            }
+            
+            // Insert the batch of jumps into the new database
+            insert.executeBatch();
+            return (count < batchSize) ? Migration.DONE : checkpoint;
+        } catch (IllegalStateException | SQLException e) {
+            finish();
+            throw e;
+        }
+    }
+    
+    /** Imports a batch of signs; the checkpoint is the last old sign row ID imported. */
+    static long importSigns(Connection conn, long checkpoint, int batchSize)
+            throws IllegalStateException, SQLException {
+        if (!getOldDbFile().exists()) return Migration.DONE;
+        
+        try (PreparedStatement select = getOldDb().prepareStatement(
+                     "SELECT `rowid`,* FROM signs WHERE `rowid` > ? ORDER BY `rowid` LIMIT ?;");
+             PreparedStatement insert = conn.prepareStatement("INSERT INTO signs "+
+                     "(`world_uuid`,`x`,`y`,`z`,`jump_id`) VALUES (?,?,?,?,"+
+                     "(SELECT `id` FROM jumps WHERE `player_id` IS ? AND `name`=?));")) {
+            Map<String, UUID> worldUuids = getWorldUuids();
+            
+            // Get the next batch of signs from the old database
+            select.setLong(1, checkpoint);
+            select.setInt(2, batchSize);
+            ResultSet rs = select.executeQuery();
+            int count = 0;
+            while (rs.next()) {
+                // Set parameters and add to batch; the jump is looked up by its unique key
+                insert.setBytes(1, DBManager.UuidToBytes(
+                        getWorldUuid(worldUuids, rs.getString("world_name"))));
+                insert.setInt(2, rs.getInt("x"));
+                insert.setInt(3, rs.getInt("y"));
+                insert.setInt(4, rs.getInt("z"));
+                setPlayerId(insert, 5, getPlayerId(conn, rs.getString("player_name")));
+                insert.setString(6, rs.getString("jump_name"));
+                insert.addBatch();
+                checkpoint = rs.getLong("rowid");
+                count++;
+            }
+            
+            // Execute batch and make sure all succeeded
+            int[] results = insert.executeBatch();
+            for (int result : results) {
+                if (result < 1) {
+                    throw new SQLException("Failed to insert sign from old database into new");
+                }
+            }
+            if (count < batchSize) {
+                finish();
+                return Migration.DONE;
+            }
+            return checkpoint;
+        } catch (IllegalStateException | SQLException e) {
+            finish();
+            throw e;
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,721 @@
+package info.saltyhash.wormhole.persistence;
+
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Holds every player, jump, and sign in memory when the storage mode is "memory", serving
+ * all record reads without touching the database.  The database becomes a durability log:
+ * each write is applied to memory first, and then persisted on the database thread in
+ * the order the writes were made.
+ *
+ * Constraints of the database (unique keys, foreign keys, and cascading deletes) are
+ * enforced here, so a write that would fail in the database fails in memory instead.
+ * {@link #check(String)} compares the memory with the database, and is run at startup and
+ * at shutdown.
+ *
+ * All access is synchronized on the class.
+ */
+public final class MemoryStore {
+    private static volatile boolean enabled = false;
+    
+    // Players, by ID, UUID, and lowercase username
+    private static Map<Integer, PlayerRecord> players          = new HashMap<>();
+    private static Map<UUID, Integer>         playerIdsByUuid  = new HashMap<>();
+    private static Map<String, Integer>       playerIdsByName  = new HashMap<>();
+    // Jumps, in columns indexed by ID and by owner and name
+    private static JumpColumns jumps = new JumpColumns(0);
+    // Signs, by ID, by world and packed block location, and by jump ID
+    private static Map<Integer, SignRecord>         signs        = new HashMap<>();
+    private static Map<UUID, Map<Long, SignRecord>> signsByBlock = new HashMap<>();
+    private static Map<Integer, Set<Integer>>       signsByJump  = new HashMap<>();
+    
+    private static int nextPlayerId = 1, nextJumpId = 1, nextSignId = 1;
+    /** Sequence number of the last write; see {@link StoreSnapshot}. */
+    private static long seq = 0;
+    
+    /** Number of writes applied in memory but not yet persisted. */
+    private static final AtomicInteger pendingWrites = new AtomicInteger();
+    /** Number of writes that failed to persist since the store was loaded. */
+    private static final AtomicInteger failedWrites  = new AtomicInteger();
+    
+    private MemoryStore() {}
+    
+    /** Returns true if the store is loaded and serves record reads and writes. */
+    public static boolean isEnabled() {
+        return enabled;
+    }
+    
+    /** Returns the number of writes that failed to persist since the store was loaded. */
+    public static int getFailedWrites() {
+        return failedWrites.get();
+    }
+    
+    /**
+     * Loads all players, jumps, and signs from the database into memory, and enables the
+     * store.  Call from the database thread.  Logs errors.
+     * @return true on success; false on error, in which case the store is not enabled.
+     */
+    public static boolean load() {
+        long start = System.nanoTime();
+        
+        // Get database connection
+        Connection conn = DBManager.getConnection();
+        if (conn == null) return false;
+        
+        synchronized (MemoryStore.class) {
+            clear();
+            try (Statement s = conn.createStatement()) {
+                seq = StoreSnapshot.readSeq(conn);
+                
+                // Read the tables in one transaction, so they are consistent with each other
+                boolean autoCommit = conn.getAutoCommit();
+                if (autoCommit) conn.setAutoCommit(false);
+                try {
+                    ResultSet rs = s.executeQuery("SELECT * FROM players;");
+                    while (rs.next()) putPlayer(new PlayerRecord(rs));
+                    rs.close();
+                    rs = s.executeQuery("SELECT * FROM jumps;");
+                    while (rs.next()) putJump(new JumpRecord(rs));
+                    rs.close();
+                    rs = s.executeQuery("SELECT * FROM signs;");
+                    while (rs.next()) putSign(new SignRecord(rs));
+                    rs.close();
+                } finally {
+                    if (autoCommit) {
+                        conn.commit();
+                        conn.setAutoCommit(true);
+                    }
+                }
+            } catch (SQLException e) {
+                DBManager.logSevere("Failed to load database into memory:\n"+e.toString());
+                clear();
+                return false;
+            }
+            failedWrites.set(0);
+            enabled = true;
+            DBManager.logInfo(String.format(
+                    "Loaded %d players, %d jumps, and %d signs into memory in %.1f ms",
+                    players.size(), jumps.size(), signs.size(), (System.nanoTime()-start)/1e6));
+            logJumpFootprint();
+        }
+        return true;
+    }
+    
+    /**
+     * Replaces the contents of the store with the records, without enabling it; used to
+     * load a snapshot.
+     */
+    static synchronized void restore(List<PlayerRecord> playerRecords,
+                                     JumpColumns jumpColumns, List<SignRecord> signRecords) {
+        enabled = false;
+        clear();
+        for (PlayerRecord r : playerRecords) putPlayer(r);
+        jumps = jumpColumns;
+        JumpColumns.View jump = jumps.view();
+        for (int row = 0; row < jumps.size(); row++)
+            nextJumpId = Math.max(nextJumpId, jump.moveTo(row).getId()+1);
+        for (SignRecord   r : signRecords)   putSign(r);
+    }
+    
+    /** Applies a journaled insert or update to the store, without persisting it. */
+    static synchronized void replayPut(Object record) {
+        if (record instanceof PlayerRecord) {
+            PlayerRecord r = (PlayerRecord) record;
+            PlayerRecord old = players.get(r.getId());
+            if (old != null) removePlayer(old);
+            putPlayer(r);
+        } else if (record instanceof JumpRecord) {
+            putJump((JumpRecord) record);
+        } else {
+            SignRecord r = (SignRecord) record;
+            SignRecord old = signs.get(r.getId());
+            if (old != null) removeSign(old);
+            putSign(r);
+        }
+    }
+    
+    /** Applies a journaled delete to the store, without persisting it. */
+    static synchronized void replayDelete(byte op, int id) {
+        if (op == StoreSnapshot.DELETE_PLAYER) {
+            PlayerRecord r = players.get(id);
+            if (r != null) deletePlayerInMemory(r);
+        } else if (op == StoreSnapshot.DELETE_JUMP) {
+            deleteJumpInMemory(id);
+        } else {
+            SignRecord r = signs.get(id);
+            if (r != null) removeSign(r);
+        }
+    }
+    
+    /** Enables the store once restored, continuing from the given sequence number. */
+    static synchronized void enable(long seq) {
+        MemoryStore.seq = seq;
+        failedWrites.set(0);
+        enabled = true;
+    }
+    
+    /**
+     * Adds all player and sign records of the store to the lists; used to take a snapshot.
+     * The records must not be modified.  Synchronize on the class to copy the jumps too.
+     * @return Sequence number of the last write.
+     */
+    static synchronized long copyTo(List<PlayerRecord> playerRecords,
+                                    List<SignRecord> signRecords) {
+        playerRecords.addAll(players.values());
+        signRecords.addAll(signs.values());
+        return seq;
+    }
+    
+    /** Returns a copy of the jumps of the store; used to take a snapshot. */
+    static synchronized JumpColumns copyJumps() {
+        return jumps.copy();
+    }
+    
+    /** Logs the approximate heap footprint of the jumps. */
+    static synchronized void logJumpFootprint() {
+        long bytes = jumps.footprint();
+        DBManager.logInfo(String.format("Jumps take about %d KiB of memory (%.0f bytes/jump)",
+                bytes/1024, (jumps.size() > 0) ? (double) bytes/jumps.size() : 0));
+    }
+    
+    /**
+     * Disables the store and frees its memory; record reads and writes go to the database
+     * again.  Writes not yet persisted are still persisted, in order.
+     */
+    public static synchronized void unload() {
+        enabled = false;
+        clear();
+    }
+    
+    private static void clear() {
+        players         = new HashMap<>();
+        playerIdsByUuid = new HashMap<>();
+        playerIdsByName = new HashMap<>();
+        jumps           = new JumpColumns(0);
+        signs           = new HashMap<>();
+        signsByBlock    = new HashMap<>();
+        signsByJump     = new HashMap<>();
+        nextPlayerId = nextJumpId = nextSignId = 1;
+    }
+    
+    /**
+     * Checks that the memory and the database agree: runs SQLite's integrity check, compares
+     * the number of rows and a digest of the rows of each table with the memory, and checks
+     * the foreign keys in memory.  Call from the database thread, after the writes to check
+     * have been persisted.  Logs the result.
+     * @param  when Description of when the check runs, for the log.
+     * @return true if the check passed; false if it failed or could not be run.
+     */
+    public static boolean check(String when) {
+        long start = System.nanoTime();
+        
+        // Get database connection
+        Connection conn = DBManager.getConnection();
+        if (conn == null) return false;
+        
+        String logPrefix = "[Consistency check at "+when+"] ";
+        long[][] memory;
+        synchronized (MemoryStore.class) {
+            if (!enabled) return false;
+            
+            // Writes made after this check was queued are not in the database yet
+            if (pendingWrites.get() > 0) {
+                DBManager.logWarning(logPrefix+"Skipped; "+pendingWrites.get()+
+                        " writes are not persisted yet");
+                return false;
+            }
+            
+            // Check foreign keys
+            List<String> errors = new ArrayList<>();
+            JumpColumns.View jump = jumps.view();
+            for (int row = 0; row < jumps.size(); row++) {
+                jump.moveTo(row);
+                if (!jump.isPublic() && !players.containsKey(jump.getOwnerId()))
+                    errors.add("jump "+jump.getId()+" belongs to missing player "+
+                            jump.getOwnerId());
+            }
+            for (SignRecord signRecord : signs.values()) {
+                if (jumps.rowOf(signRecord.jumpId) == JumpColumns.NONE)
+                    errors.add("sign "+signRecord.getId()+" points to missing jump "+
+                            signRecord.jumpId);
+            }
+            if (!errors.isEmpty()) {
+                DBManager.logSevere(logPrefix+"Failed; "+String.join("; ", errors));
+                return false;
+            }
+            
+            // Digest the memory
+            memory = new long[][] {new long[2], new long[2], new long[2]};
+            for (PlayerRecord playerRecord : players.values()) add(memory[0], hash(playerRecord));
+            for (int row = 0; row < jumps.size(); row++) add(memory[1], hash(jump.moveTo(row)));
+            for (SignRecord   signRecord   : signs.values())   add(memory[2], hash(signRecord));
+        }
+        
+        // Digest the database
+        long[][] database = {new long[2], new long[2], new long[2]};
+        try (Statement s = conn.createStatement()) {
+            ResultSet rs = s.executeQuery("PRAGMA quick_check;");
+            String result = rs.next() ? rs.getString(1) : null;
+            rs.close();
+            if (!"ok".equals(result)) {
+                DBManager.logSevere(logPrefix+"Failed; database integrity check: "+result);
+                return false;
+            }
+            rs = s.executeQuery("SELECT * FROM players;");
+            while (rs.next()) add(database[0], hash(new PlayerRecord(rs)));
+            rs.close();
+            rs = s.executeQuery("SELECT * FROM jumps;");
+            while (rs.next()) add(database[1], hash(new JumpRecord(rs)));
+            rs.close();
+            rs = s.executeQuery("SELECT * FROM signs;");
+            while (rs.next()) add(database[2], hash(new SignRecord(rs)));
+            rs.close();
+        } catch (SQLException e) {
+            DBManager.logSevere(logPrefix+"Failed to read database:\n"+e.toString());
+            return false;
+        }
+        
+        // Compare
+        final String[] tables = {"players", "jumps", "signs"};
+        boolean consistent = true;
+        for (int i = 0; i < tables.length; i++) {
+            if (memory[i][0] != database[i][0] || memory[i][1] != database[i][1]) {
+                DBManager.logSevere(String.format("%sTable '%s' differs: "+
+                        "%d rows in memory, %d rows in database", logPrefix, tables[i],
+                        memory[i][0], database[i][0]));
+                consistent = false;
+            }
+        }
+        if (failedWrites.get() > 0) {
+            DBManager.logSevere(logPrefix+failedWrites.get()+" writes failed to persist");
+            consistent = false;
+        }
+        if (consistent) {
+            DBManager.logInfo(String.format("%sPassed for %d players, %d jumps, and %d signs "+
+                    "in %.1f ms", logPrefix, memory[0][0], memory[1][0], memory[2][0],
+                    (System.nanoTime()-start)/1e6));
+        }
+        return consistent;
+    }
+    
+    /** Adds the row hash to the digest {count, sum}; the sum does not depend on row order. */
+    private static void add(long[] digest, long hash) {
+        digest[0]++;
+        digest[1] += hash;
+    }
+    
+    private static long hash(PlayerRecord r) {
+        return mix(r.getId(), Objects.hash(r.uuid, r.username));
+    }
+    
+    private static long hash(JumpRecord r) {
+        return mix(r.id, Objects.hash(r.playerId, r.name, r.worldUuid, r.x, r.y, r.z, r.yaw,
+                r.version));
+    }
+    
+    private static long hash(JumpColumns.View r) {
+        return mix(r.getId(), Objects.hash(r.isPublic() ? null : r.getOwnerId(), r.getName(),
+                r.getWorldUuid(), r.getX(), r.getY(), r.getZ(), r.getYaw(), r.getVersion()));
+    }
+    
+    private static long hash(SignRecord r) {
+        return mix(r.getId(), Objects.hash(r.worldUuid, r.x, r.y, r.z, r.jumpId));
+    }
+    
+    private static long mix(int id, int hash) {
+        long h = ((long) id << 32 | (hash & 0xffffffffL))*0x9E3779B97F4A7C15L;
+        return h ^ (h >>> 29);
+    }
+    
+    /*
+     * Persistence
+     */
+    
+    /** Statements persisting a write, run on the database thread. */
+    private interface Write {
+        void run(Connection conn) throws SQLException;
+    }
+    
+    /**
+     * Queues the statement to be run on the database thread; see
+     * {@link #persist(byte[], Write)}.
+     */
+    private static void persist(final byte[] entry, final String sql, final Object... params) {
+        persist(entry, conn -> {
+            try (PreparedStatement ps = conn.prepareStatement(sql)) {
+                for (int i = 0; i < params.length; i++) ps.setObject(i+1, params[i]);
+                ps.executeUpdate();
+            }
+        });
+    }
+    
+    /**
+     * Queues the upsert of the row by its ID to be run on the database thread; see
+     * {@link #persist(byte[], Write)}.
+     * @param columns Columns of the row, the first being `id`, in the order of the values.
+     */
+    private static void persistUpsert(final byte[] entry, final String table,
+                                      final String[] columns, final Object... values) {
+        persist(entry, conn -> {
+            try (DBManager.Upsert upsert = new DBManager.Upsert(conn, table, columns)) {
+                for (int i = 0; i < values.length; i++) upsert.setObject(i+1, values[i]);
+                upsert.executeUpdate();
+            }
+        });
+    }
+    
+    /**
+     * Queues the write to be run on the database thread, along with the update of the
+     * sequence number, and then journals the write.  Call while holding the lock, so
+     * writes are queued in the order they were applied to memory.
+     * @param entry Journal entry of the write (see {@link StoreSnapshot#encode}).
+     */
+    private static void persist(final byte[] entry, final Write write) {
+        final long writeSeq = ++seq;
+        pendingWrites.incrementAndGet();
+        DBManager.submit(() -> {
+            Connection conn = DBManager.getConnection();
+            boolean autoCommit = true;
+            try {
+                if (conn == null) throw new SQLException("No database connection");
+                autoCommit = conn.getAutoCommit();
+                conn.setAutoCommit(false);
+                write.run(conn);
+                try (PreparedStatement seqPs = conn.prepareStatement(
+                        "UPDATE memory_store SET `seq`=? WHERE `id`=0;")) {
+                    seqPs.setLong(1, writeSeq);
+                    seqPs.executeUpdate();
+                }
+                conn.commit();
+            } catch (SQLException e) {
+                failedWrites.incrementAndGet();
+                DBManager.logSevere("Failed to persist write from memory:\n"+e.toString());
+                try {
+                    if (conn != null) conn.rollback();
+                } catch (SQLException e1) {
+                    DBManager.logSevere("Failed to roll back changes");
+                }
+                // The memory no longer matches the database, so neither does the snapshot
+                StoreSnapshot.invalidate();
+                return false;
+            } finally {
+                pendingWrites.decrementAndGet();
+                try {
+                    if (conn != null) conn.setAutoCommit(autoCommit);
+                } catch (SQLException e) {
+                    DBManager.logWarning("Failed to set database autocommit to "+autoCommit);
+                }
+            }
+            StoreSnapshot.append(writeSeq, entry);
+            return true;
+        });
+    }
+    
+    private static void persistPlayer(PlayerRecord r) {
+        persistUpsert(StoreSnapshot.encode(StoreSnapshot.PUT_PLAYER, r), "players",
+                new String[] {"id", "uuid", "username"},
+                r.getId(), DBManager.UuidToBytes(r.uuid), r.username);
+    }
+    
+    private static void persistJump(JumpRecord r) {
+        persistUpsert(StoreSnapshot.encode(StoreSnapshot.PUT_JUMP, r), "jumps",
+                new String[] {"id", "player_id", "name", "world_uuid", "x", "y", "z", "yaw",
+                        "version"},
+                r.id, r.playerId, r.name, DBManager.UuidToBytes(r.worldUuid),
+                r.x, r.y, r.z, r.yaw, r.version);
+    }
+    
+    private static void persistSign(SignRecord r) {
+        persistUpsert(StoreSnapshot.encode(StoreSnapshot.PUT_SIGN, r), "signs",
+                new String[] {"id", "world_uuid", "x", "y", "z", "jump_id", "chunk_key"},
+                r.getId(), DBManager.UuidToBytes(r.worldUuid), r.x, r.y, r.z, r.jumpId,
+                SignCache.getChunkKeyOfBlock(r.x, r.z));
+    }
+    
+    /*
+     * Indexes
+     */
+    
+    private static void putPlayer(PlayerRecord r) {
+        players.put(r.getId(), r);
+        playerIdsByUuid.put(r.uuid, r.getId());
+        playerIdsByName.put(r.username.toLowerCase(), r.getId());
+        nextPlayerId = Math.max(nextPlayerId, r.getId()+1);
+    }
+    
+    private static void removePlayer(PlayerRecord r) {
+        players.remove(r.getId());
+        playerIdsByUuid.remove(r.uuid);
+        // Another player may have taken the username since
+        playerIdsByName.remove(r.username.toLowerCase(), r.getId());
+    }
+    
+    private static void putJump(JumpRecord r) {
+        jumps.put(r.id, ownerId(r.playerId), r.name, r.worldUuid, r.x, r.y, r.z, r.yaw,
+                r.version);
+        nextJumpId = Math.max(nextJumpId, r.id+1);
+    }
+    
+    private static int ownerId(Integer playerId) {
+        return (playerId != null) ? playerId : JumpColumns.NONE;
+    }
+    
+    private static void putSign(SignRecord r) {
+        signs.put(r.getId(), r);
+        signsByBlock.computeIfAbsent(r.worldUuid, k -> new HashMap<>())
+                .put(pack(r.x, r.y, r.z), r);
+        signsByJump.computeIfAbsent(r.jumpId, k -> new HashSet<>()).add(r.getId());
+        nextSignId = Math.max(nextSignId, r.getId()+1);
+    }
+    
+    private static void removeSign(SignRecord r) {
+        signs.remove(r.getId());
+        Map<Long, SignRecord> worldSigns = signsByBlock.get(r.worldUuid);
+        if (worldSigns != null) worldSigns.remove(pack(r.x, r.y, r.z));
+        Set<Integer> jumpSigns = signsByJump.get(r.jumpId);
+        if (jumpSigns != null) {
+            jumpSigns.remove(r.getId());
+            if (jumpSigns.isEmpty()) signsByJump.remove(r.jumpId);
+        }
+    }
+    
+    /** Packs the block coordinates into one key; y is 0-255. */
+    private static long pack(int x, int y, int z) {
+        return ((long) x & 0xffffff) << 40 | ((long) z & 0xffffff) << 16 | (y & 0xffff);
+    }
+    
+    /*
+     * Players
+     */
+    
+    /** Returns a copy of the player record with the given ID, or null if DNE. */
+    static synchronized PlayerRecord getPlayer(int id) {
+        PlayerRecord r = players.get(id);
+        return (r != null) ? r.copy() : null;
+    }
+    
+    /** Returns a copy of the player record with the given UUID, or null if DNE. */
+    static synchronized PlayerRecord getPlayer(UUID uuid) {
+        Integer id = playerIdsByUuid.get(uuid);
+        return (id != null) ? getPlayer(id) : null;
+    }
+    
+    /** Returns a copy of the player record with the given username (case-insensitive). */
+    static synchronized PlayerRecord getPlayer(String username) {
+        Integer id = playerIdsByName.get(username.toLowerCase());
+        return (id != null) ? getPlayer(id) : null;
+    }
+    
+    /**
+     * Saves a copy of the player record; see {@link PlayerRecord#save()}.  Logs errors.
+     * @return ID of the saved record, or null on error.
+     */
+    static synchronized Integer savePlayer(Integer id, UUID uuid, String username) {
+        Integer uuidOwner = playerIdsByUuid.get(uuid);
+        if (uuidOwner != null && !uuidOwner.equals(id)) {
+            DBManager.logSevere("Failed to save player record: UUID "+uuid+" is taken");
+            return null;
+        }
+        if (id != null) {
+            PlayerRecord old = players.get(id);
+            if (old == null) return null;
+            removePlayer(old);
+        } else {
+            id = nextPlayerId++;
+        }
+        PlayerRecord r = new PlayerRecord(id, uuid, username);
+        putPlayer(r);
+        persistPlayer(r);
+        return id;
+    }
+    
+    /**
+     * Upserts a copy of the player record; see {@link PlayerRecord#upsert()}.
+     * @return ID of the saved record.
+     */
+    static synchronized int upsertPlayer(UUID uuid, String username) {
+        Integer id = playerIdsByUuid.get(uuid);
+        if (id != null) {
+            PlayerRecord old = players.get(id);
+            if (old.username.equals(username)) return id;
+            removePlayer(old);
+        } else {
+            id = nextPlayerId++;
+        }
+        PlayerRecord r = new PlayerRecord(id, uuid, username);
+        putPlayer(r);
+        persistPlayer(r);
+        return id;
+    }
+    
+    /** Deletes the player record with the given ID, along with its jumps and their signs. */
+    static synchronized void deletePlayer(int id) {
+        PlayerRecord r = players.get(id);
+        if (r == null) return;
+        deletePlayerInMemory(r);
+        // The database deletes the jumps and signs by cascade
+        persist(StoreSnapshot.encode(StoreSnapshot.DELETE_PLAYER, id),
+                "DELETE FROM players WHERE `id`=?;", id);
+    }
+    
+    private static void deletePlayerInMemory(PlayerRecord r) {
+        JumpColumns.View jump = jumps.view();
+        int[] rows = jumps.rowsOf(r.getId());
+        int[] jumpIds = new int[rows.length];
+        for (int i = 0; i < rows.length; i++) jumpIds[i] = jump.moveTo(rows[i]).getId();
+        for (int jumpId : jumpIds) deleteJumpInMemory(jumpId);
+        removePlayer(r);
+    }
+    
+    /*
+     * Jumps
+     */
+    
+    /** Returns a new jump record of the jump with the given ID, or null if DNE. */
+    static synchronized JumpRecord getJump(int id) {
+        int row = jumps.rowOf(id);
+        return (row != JumpColumns.NONE) ? jumps.view().moveTo(row).toRecord() : null;
+    }
+    
+    /** Returns a new jump record of the jump with the given owner and name, or null if DNE. */
+    static synchronized JumpRecord getJump(Integer playerId, String name) {
+        int row = jumps.rowOf(ownerId(playerId), name);
+        return (row != JumpColumns.NONE) ? jumps.view().moveTo(row).toRecord() : null;
+    }
+    
+    /**
+     * Returns new jump records of the jumps of the owner whose names match the SQL LIKE
+     * pattern, ordered by name.
+     */
+    static synchronized List<JumpRecord> getJumps(Integer playerId, String pattern) {
+        List<JumpRecord> matching = new ArrayList<>();
+        JumpColumns.View jump = jumps.view();
+        for (int row : jumps.rowsOf(ownerId(playerId))) {
+            if (PlayerCache.like(jump.moveTo(row).getName(), pattern))
+                matching.add(jump.toRecord());
+        }
+        return matching;
+    }
+    
+    /**
+     * Returns the names of the jumps of the owner whose names match the SQL LIKE pattern,
+     * ordered by name, without creating jump records.
+     */
+    static synchronized List<String> getJumpNames(Integer playerId, String pattern) {
+        List<String> matching = new ArrayList<>();
+        JumpColumns.View jump = jumps.view();
+        for (int row : jumps.rowsOf(ownerId(playerId))) {
+            String name = jump.moveTo(row).getName();
+            if (PlayerCache.like(name, pattern)) matching.add(name);
+        }
+        return matching;
+    }
+    
+    /**
+     * Saves a copy of the jump record and sets its ID and version; see
+     * {@link JumpRecord#save()}.  Logs errors, except conflicts and duplicates in a
+     * {@link UnitOfWork}.
+     * @return true on success; false on error.
+     */
+    static synchronized boolean saveJump(JumpRecord jumpRecord) {
+        if (jumpRecord.playerId != null && !players.containsKey(jumpRecord.playerId)) {
+            DBManager.logSevere("Failed to save jump record: player "+jumpRecord.playerId+
+                    " does not exist");
+            return false;
+        }
+        int taken = jumps.rowOf(ownerId(jumpRecord.playerId), jumpRecord.name);
+        if (taken != JumpColumns.NONE &&
+                !Integer.valueOf(jumps.view().moveTo(taken).getId()).equals(jumpRecord.id)) {
+            if (UnitOfWork.failed(UnitOfWork.Outcome.DUPLICATE)) return false;
+            DBManager.logSevere("Failed to save jump record: name '"+jumpRecord.name+
+                    "' is taken");
+            return false;
+        }
+        if (jumpRecord.id != null) {
+            // Deleted or changed since loaded?
+            int row = jumps.rowOf(jumpRecord.id);
+            if (row == JumpColumns.NONE ||
+                    jumps.view().moveTo(row).getVersion() != jumpRecord.version) {
+                UnitOfWork.failed(UnitOfWork.Outcome.CONFLICT);
+                return false;
+            }
+            jumpRecord.version++;
+        } else {
+            jumpRecord.id = nextJumpId++;
+        }
+        putJump(jumpRecord);
+        persistJump(jumpRecord);
+        return true;
+    }
+    
+    /** Deletes the jump record with the given ID, along with its signs. */
+    static synchronized void deleteJump(int id) {
+        if (jumps.rowOf(id) == JumpColumns.NONE) return;
+        deleteJumpInMemory(id);
+        // The database deletes the signs by cascade
+        persist(StoreSnapshot.encode(StoreSnapshot.DELETE_JUMP, id),
+                "DELETE FROM jumps WHERE `id`=?;", id);
+    }
+    
+    private static void deleteJumpInMemory(int id) {
+        Set<Integer> jumpSigns = signsByJump.get(id);
+        if (jumpSigns != null) {
+            for (Integer signId : new ArrayList<>(jumpSigns)) removeSign(signs.get(signId));
+        }
+        jumps.remove(id);
+    }
+    
+    /*
+     * Signs
+     */
+    
+    /** Returns a copy of the sign record at the given block, or null if DNE. */
+    static synchronized SignRecord getSign(UUID worldUuid, int x, int y, int z) {
+        Map<Long, SignRecord> worldSigns = signsByBlock.get(worldUuid);
+        SignRecord r = (worldSigns != null) ? worldSigns.get(pack(x, y, z)) : null;
+        return (r != null) ? r.copy() : null;
+    }
+    
+    /**
+     * Saves a copy of the sign record; see {@link SignRecord#save()}.  Logs errors.
+     * @return ID of the saved record, or null on error.
+     */
+    static synchronized Integer saveSign(SignRecord signRecord) {
+        Integer id = signRecord.getId();
+        if (jumps.rowOf(signRecord.jumpId) == JumpColumns.NONE) {
+            DBManager.logSevere("Failed to save sign record: jump "+signRecord.jumpId+
+                    " does not exist");
+            return null;
+        }
+        SignRecord taken = getSign(signRecord.worldUuid, signRecord.x, signRecord.y,
+                signRecord.z);
+        if (taken != null && !taken.getId().equals(id)) {
+            if (UnitOfWork.failed(UnitOfWork.Outcome.DUPLICATE)) return null;
+            DBManager.logSevere("Failed to save sign record: block is taken");
+            return null;
+        }
+        if (id != null) {
+            SignRecord old = signs.get(id);
+            if (old == null) return null;
+            removeSign(old);
+        } else {
+            id = nextSignId++;
+        }
+        SignRecord r = new SignRecord(id, signRecord.worldUuid, signRecord.x, signRecord.y,
+                signRecord.z, signRecord.jumpId);
+        putSign(r);
+        persistSign(r);
+        return id;
+    }
+    
+    /** Deletes the sign record with the given ID. */
+    static synchronized void deleteSign(int id) {
+        SignRecord r = signs.get(id);
+        if (r == null) return;
+        removeSign(r);
+        persist(StoreSnapshot.encode(StoreSnapshot.DELETE_SIGN, id),
+                "DELETE FROM signs WHERE `id`=?;", id);
+    }
+}
\ No newline at end of file
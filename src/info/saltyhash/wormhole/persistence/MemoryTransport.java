@@ -0,0 +1,35 @@
+package info.saltyhash.wormhole.persistence;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+/**
+ * Transport that delivers messages between the transports open in this JVM, synchronously
+ * on the sending thread.  Meant for tests and headless harnesses that run several
+ * "servers" in one process.
+ */
+public final class MemoryTransport implements InvalidationTransport {
+    /** Receivers of all open memory transports. */
+    private static final List<Consumer<byte[]>> receivers = new CopyOnWriteArrayList<>();
+    
+    private Consumer<byte[]> receiver;
+    
+    @Override
+    public void open(Consumer<byte[]> receiver) {
+        this.receiver = receiver;
+        receivers.add(receiver);
+    }
+    
+    @Override
+    public void send(byte[] message) {
+        for (Consumer<byte[]> other : receivers) {
+            if (other != receiver) other.accept(message.clone());
+        }
+    }
+    
+    @Override
+    public void close() {
+        receivers.remove(receiver);
+    }
+}
\ No newline at end of file
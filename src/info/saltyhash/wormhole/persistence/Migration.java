@@ -0,0 +1,55 @@
+package info.saltyhash.wormhole.persistence;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A database migration to a schema version, made of steps that run in order.
+ * Steps process their data in batches; see {@link Migrations} for how they are run.
+ */
+final class Migration {
+    /** Checkpoint returned by a step once it is complete. */
+    static final long DONE = -1;
+    
+    /** A step of a migration, which processes its data in checkpointed batches. */
+    interface Step {
+        /**
+         * Runs the next batch of the step.  Each batch runs in its own transaction, which
+         * also records the returned checkpoint, so that a step interrupted by a crash
+         * resumes from the last committed batch.
+         * @param  checkpoint Where to resume from; 0 for the first batch.
+         * @param  batchSize  Maximum number of rows to process in the batch.
+         * @return Checkpoint to resume from in the next batch, or DONE if the step is complete.
+         */
+        long runBatch(Connection conn, long checkpoint, int batchSize)
+                throws IllegalStateException, SQLException;
+    }
+    
+    final int version;
+    final List<String> descriptions = new ArrayList<>();
+    final List<Step>   steps        = new ArrayList<>();
+    
+    Migration(int version) {
+        this.version = version;
+    }
+    
+    /** Adds a step to the migration. */
+    Migration step(String description, Step step) {
+        descriptions.add(description);
+        steps.add(step);
+        return this;
+    }
+    
+    /** Adds a step that executes the SQL statements as a single batch. */
+    Migration statements(String description, final String... sql) {
+        return step(description, (conn, checkpoint, batchSize) -> {
+            try (Statement s = conn.createStatement()) {
+                for (String statement : sql) s.execute(statement);
+            }
+            return DONE;
+        });
+    }
+}
\ No newline at end of file
@@ -0,0 +1,287 @@
+package info.saltyhash.wormhole.persistence;
+
+import java.sql.*;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Registry of the database migrations, and the engine that runs them.
+ *
+ * Each batch of a migration step is committed in its own transaction along with the
+ * step's checkpoint, which is kept in the table 'migration_progress'.  If the server
+ * crashes mid-migration, the next run resumes from the last committed batch.
+ */
+final class Migrations {
+    /** All migrations, in order of version. */
+    private static final List<Migration> MIGRATIONS = Arrays.asList(
+            new Migration(0)
+                    .statements("Creating tables",
+                            "CREATE TABLE schema_version (\n" +
+                            "  `version` INTEGER);",
+                            "CREATE TABLE players (\n" +
+                            "  `id`       INTEGER PRIMARY KEY,\n" +
+                            "  `uuid`     BINARY(16) NOT NULL UNIQUE,\n" +
+                            "  `username` VARCHAR(16) NOT NULL);",
+                            "CREATE TABLE jumps (\n" +
+                            "  `id`         INTEGER PRIMARY KEY,\n" +
+                            "  `player_id`  INTEGER REFERENCES players(`id`)\n" +
+                            "               ON DELETE CASCADE ON UPDATE CASCADE,\n" +
+                            "  `name`       VARCHAR(100) NOT NULL,\n" +
+                            "  `world_uuid` BINARY(16) NOT NULL,\n" +
+                            "  `x` DOUBLE PRECISION NOT NULL,\n" +
+                            "  `y` DOUBLE PRECISION NOT NULL,\n" +
+                            "  `z` DOUBLE PRECISION NOT NULL,\n" +
+                            "  `yaw` FLOAT NOT NULL,\n" +
+                            "  UNIQUE (`player_id`, `name`));",
+                            "CREATE TABLE signs (\n" +
+                            "  `id` INTEGER PRIMARY KEY,\n" +
+                            "  `world_uuid` BINARY(16) NOT NULL,\n" +
+                            "  `x` INTEGER NOT NULL,\n" +
+                            "  `y` INTEGER NOT NULL,\n" +
+                            "  `z` INTEGER NOT NULL,\n" +
+                            "  `jump_id` INTEGER NOT NULL REFERENCES jumps(`id`)\n" +
+                            "            ON DELETE CASCADE ON UPDATE CASCADE,\n" +
+                            "  UNIQUE (`world_uuid`, `x`, `y`, `z`));")
+                    .step("Importing pre-1.4.0 players", LegacyImport::importPlayers)
+                    .step("Importing pre-1.4.0 jumps",   LegacyImport::importJumps)
+                    .step("Importing pre-1.4.0 signs",   LegacyImport::importSigns),
+            
+            // Adds the chunk key of each sign, so that all signs in a chunk
+            // can be fetched with a single indexed query
+            new Migration(1)
+                    .statements("Adding column 'chunk_key' to table 'signs'",
+                            "ALTER TABLE signs ADD COLUMN `chunk_key` INTEGER NOT NULL DEFAULT 0;")
+                    .step("Computing chunk keys of existing signs", Migrations::computeChunkKeys)
+                    .statements("Creating index 'signs_chunk'",
+                            "CREATE INDEX signs_chunk ON signs (`world_uuid`, `chunk_key`);"),
+            
+            // Adds the version of each jump, so that an update can check that the jump
+            // has not been changed since it was loaded (see UnitOfWork)
+            new Migration(2)
+                    .statements("Adding column 'version' to table 'jumps'",
+                            "ALTER TABLE jumps ADD COLUMN `version` INTEGER NOT NULL DEFAULT 0;"),
+            
+            // Adds the portals, i.e. regions that teleport players who walk into them
+            new Migration(3)
+                    .statements("Creating table 'portals'",
+                            "CREATE TABLE portals (\n" +
+                            "  `id` INTEGER PRIMARY KEY,\n" +
+                            "  `world_uuid` BINARY(16) NOT NULL,\n" +
+                            "  `min_x` INTEGER NOT NULL,\n" +
+                            "  `min_y` INTEGER NOT NULL,\n" +
+                            "  `min_z` INTEGER NOT NULL,\n" +
+                            "  `max_x` INTEGER NOT NULL,\n" +
+                            "  `max_y` INTEGER NOT NULL,\n" +
+                            "  `max_z` INTEGER NOT NULL,\n" +
+                            "  `jump_id` INTEGER NOT NULL REFERENCES jumps(`id`)\n" +
+                            "            ON DELETE CASCADE ON UPDATE CASCADE);",
+                            "CREATE INDEX portals_jump ON portals (`jump_id`);")
+    );
+    
+    /** Number of batches between progress log messages of a step. */
+    private static final int LOG_INTERVAL = 10;
+    
+    private Migrations() {}
+    
+    /** Returns the latest database version. */
+    static int getLatestVersion() {
+        return MIGRATIONS.get(MIGRATIONS.size()-1).version;
+    }
+    
+    /** Returns the current database version, or -1 if the database is empty or on error. */
+    static int getVersion(Connection conn) {
+        try (Statement s = conn.createStatement()) {
+            // Try to get the 1st row
+            ResultSet results = s.executeQuery(
+                    "SELECT version FROM schema_version LIMIT 1;");
+            
+            // Results are empty?
+            if (!results.isBeforeFirst()) {
+                // Either table DNE or row DNE
+                return -1;
+            }
+            return results.getInt("version");
+        } catch (SQLException e) {
+            // File or table DNE
+            return -1;
+        }
+    }
+    
+    private static void setVersion(Connection conn, int version) throws SQLException {
+        try (Statement s = conn.createStatement()) {
+            s.executeUpdate("DELETE FROM schema_version;");
+            s.executeUpdate("INSERT INTO schema_version (`version`) VALUES ("+version+");");
+        }
+    }
+    
+    /**
+     * Returns the saved progress of an interrupted migration as {version, step, checkpoint},
+     * or null if no migration was interrupted.
+     */
+    private static long[] getProgress(Connection conn) throws SQLException {
+        try (Statement s = conn.createStatement()) {
+            s.execute("CREATE TABLE IF NOT EXISTS migration_progress (\n" +
+                    "  `version`    INTEGER NOT NULL,\n" +
+                    "  `step`       INTEGER NOT NULL,\n" +
+                    "  `checkpoint` INTEGER NOT NULL);");
+            ResultSet rs = s.executeQuery(
+                    "SELECT `version`,`step`,`checkpoint` FROM migration_progress LIMIT 1;");
+            if (!rs.next()) return null;
+            return new long[] {rs.getLong("version"), rs.getLong("step"), rs.getLong("checkpoint")};
+        }
+    }
+    
+    private static void setProgress(Connection conn, int version, int step, long checkpoint)
+            throws SQLException {
+        try (PreparedStatement ps = conn.prepareStatement(
+                "INSERT INTO migration_progress (`version`,`step`,`checkpoint`) VALUES (?,?,?);");
+             Statement s = conn.createStatement()) {
+            s.executeUpdate("DELETE FROM migration_progress;");
+            ps.setInt(1, version);
+            ps.setInt(2, step);
+            ps.setLong(3, checkpoint);
+            ps.executeUpdate();
+        }
+    }
+    
+    /**
+     * Migrates the database to the latest version, resuming an interrupted migration
+     * if there is one.  Logs progress and the time taken by each step.  Logs errors.
+     * @param  conn      Connection to the database to migrate.
+     * @param  batchSize Maximum number of rows processed by each batch of a step.
+     * @param  logPrefix Prefix of log messages.
+     * @return true on success; false on failure.
+     */
+    static boolean migrate(Connection conn, int batchSize, String logPrefix) {
+        boolean autoCommit = true;
+        try {
+            // Commit any previous changes and disable autocommit
+            autoCommit = conn.getAutoCommit();
+            if (!autoCommit) conn.commit();
+            conn.setAutoCommit(false);
+            
+            // Return if database is already at latest version
+            int  version       = getVersion(conn);
+            int  latestVersion = getLatestVersion();
+            long[] progress    = getProgress(conn);
+            conn.commit();
+            if (version == latestVersion) return true;
+            // Sanity check
+            if (version > latestVersion) {
+                DBManager.logSevere(logPrefix+"Current database version is "+version+
+                        " but the latest database version is "+latestVersion);
+                return false;
+            }
+            
+            // Perform migrations in order
+            long start = System.nanoTime();
+            for (Migration migration : MIGRATIONS) {
+                if (migration.version <= version) continue;
+                String migrationPrefix = logPrefix+"[Migration "+migration.version+"] ";
+                
+                // Resume from the saved progress, if the migration was interrupted
+                int  firstStep  = 0;
+                long checkpoint = 0;
+                if (progress != null && progress[0] == migration.version) {
+                    firstStep  = (int) progress[1];
+                    checkpoint = progress[2];
+                    DBManager.logInfo(migrationPrefix+"Resuming at step "+(firstStep+1)+
+                            ", checkpoint "+checkpoint);
+                } else {
+                    DBManager.logInfo(migrationPrefix+"Starting:");
+                }
+                
+                // Perform steps in order, committing each batch with its checkpoint
+                int stepCount = migration.steps.size();
+                for (int step = firstStep; step < stepCount; step++) {
+                    String stepPrefix = migrationPrefix+"["+(step+1)+"/"+stepCount+"] ";
+                    DBManager.logInfo(stepPrefix+migration.descriptions.get(step));
+                    long stepStart = System.nanoTime();
+                    int  batches   = 0;
+                    do {
+                        checkpoint = migration.steps.get(step).runBatch(conn, checkpoint, batchSize);
+                        if (checkpoint == Migration.DONE) {
+                            setProgress(conn, migration.version, step+1, 0);
+                        } else {
+                            setProgress(conn, migration.version, step, checkpoint);
+                        }
+                        conn.commit();
+                        if (++batches % LOG_INTERVAL == 0) {
+                            DBManager.logInfo(stepPrefix+batches+" batches done (checkpoint "+
+                                    checkpoint+")");
+                        }
+                    } while (checkpoint != Migration.DONE);
+                    checkpoint = 0;
+                    DBManager.logInfo(stepPrefix+String.format("Done: %d batches in %.1f ms",
+                            batches, (System.nanoTime()-stepStart)/1e6));
+                }
+                
+                // Set database version and clear the progress
+                setVersion(conn, migration.version);
+                try (Statement s = conn.createStatement()) {
+                    s.executeUpdate("DELETE FROM migration_progress;");
+                }
+                conn.commit();
+                DBManager.logInfo(migrationPrefix+"Done");
+            }
+            
+            DBManager.logInfo(logPrefix+String.format("Database migrations complete in %.1f ms",
+                    (System.nanoTime()-start)/1e6));
+            return true;
+        
+        } catch (IllegalStateException | SQLException e) {
+            DBManager.logSevere(logPrefix+"Failed to perform migrations!");
+            DBManager.logSevere(e.toString());
+            
+            // Roll back changes of the current batch
+            DBManager.logInfo(logPrefix+"Rolling back changes of the current batch");
+            try {
+                conn.rollback();
+            } catch (SQLException e1) {
+                DBManager.logSevere("Failed to roll back changes");
+                e1.printStackTrace();
+            }
+            return false;
+        
+        } finally {
+            // Reset connection autocommit to previous value
+            try {
+                conn.setAutoCommit(autoCommit);
+            } catch (SQLException e) {
+                DBManager.logWarning("Failed to set database autocommit to "+autoCommit);
+                e.printStackTrace();
+            }
+        }
+    }
+    
+    /* <Migration Steps> */
+    
+    /**
+     * Computes the chunk keys of a batch of existing signs; see
+     * {@link SignCache#getChunkKey(int, int)}.  The checkpoint is the last sign ID updated.
+     */
+    private static long computeChunkKeys(Connection conn, long checkpoint, int batchSize)
+            throws SQLException {
+        try (PreparedStatement select = conn.prepareStatement(
+                     "SELECT MAX(`id`) FROM (SELECT `id` FROM signs WHERE `id` > ? "+
+                     "ORDER BY `id` LIMIT ?);");
+             PreparedStatement update = conn.prepareStatement(
+                     "UPDATE signs SET `chunk_key`=((`x` >> 4) << 32) | ((`z` >> 4) & 4294967295) "+
+                     "WHERE `id` > ? AND `id` <= ?;")) {
+            // Get the last sign ID of the batch
+            select.setLong(1, checkpoint);
+            select.setInt(2, batchSize);
+            ResultSet rs = select.executeQuery();
+            long lastId = rs.getLong(1);
+            if (rs.wasNull()) return Migration.DONE;
+            
+            // Update the batch
+            update.setLong(1, checkpoint);
+            update.setLong(2, lastId);
+            update.executeUpdate();
+            return lastId;
+        }
+    }
+    
+    /* </Migration Steps> */
+}
\ No newline at end of file
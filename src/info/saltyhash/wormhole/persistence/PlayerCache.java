@@ -0,0 +1,341 @@
+package info.saltyhash.wormhole.persistence;
+
+import info.saltyhash.wormhole.metrics.Jfr;
+import info.saltyhash.wormhole.metrics.Metrics;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Caches the player records and jump records of online players, so that their commands,
+ * tab completions, and sign clicks are served from memory.  Players are prefetched
+ * asynchronously when they log in and evicted when they quit.  Thread-safe.
+ */
+@SuppressWarnings("WeakerAccess")
+public final class PlayerCache {
+    /** Player record and alphabetical jump records of a cached player. */
+    private static final class Entry {
+        final PlayerRecord player;
+        volatile List<JumpRecord> jumps;    // Never modified; replaced on change
+        
+        Entry(PlayerRecord player, List<JumpRecord> jumps) {
+            this.player = player;
+            this.jumps  = jumps;
+        }
+    }
+    
+    private static final Map<Integer, Entry>   entries         = new ConcurrentHashMap<>();
+    private static final Map<UUID, Integer>    idsByUuid       = new ConcurrentHashMap<>();
+    private static final Map<String, Integer>  idsByUsername   = new ConcurrentHashMap<>();
+    private static final Map<Integer, Integer> playerIdsByJump = new ConcurrentHashMap<>();
+    
+    /** Incremented on every write, so that prefetches can detect concurrent changes. */
+    private static final AtomicLong writeCount = new AtomicLong();
+    /** Players whose prefetch is pending; evicting a player drops their prefetch. */
+    private static final Set<UUID> expected = ConcurrentHashMap.newKeySet();
+    
+    private static final Comparator<JumpRecord> BY_NAME = (a, b) -> a.name.compareTo(b.name);
+    
+    /** Lookups by the records served, or not, by the cache. */
+    private static final LongAdder hits   = Metrics.counter("cache.player.hits");
+    private static final LongAdder misses = Metrics.counter("cache.player.misses");
+    static {
+        Metrics.gauge("cache.player.hit_ratio", () -> Metrics.hitRatio(hits, misses));
+    }
+    
+    private PlayerCache() {}
+    
+    /** Empties the cache. */
+    public static synchronized void clear() {
+        entries.clear();
+        idsByUuid.clear();
+        idsByUsername.clear();
+        playerIdsByJump.clear();
+    }
+    
+    /**
+     * Marks the player as about to be prefetched; call before submitting the prefetch.  If
+     * the player is evicted (e.g. quits) before the prefetch runs, it caches nothing.
+     */
+    public static void expect(UUID uuid) {
+        expected.add(uuid);
+    }
+    
+    /** Returns true if the player with the given UUID is cached. */
+    public static boolean isCached(UUID uuid) {
+        return idsByUuid.containsKey(uuid);
+    }
+    
+    /**
+     * Saves the player to the database, creating or updating their record, and caches
+     * the player record along with all of the player's jump records.  Meant to be run on
+     * the database thread when the player logs in, after {@link #expect(UUID)}; the player
+     * is not cached if evicted since.  Logs errors.
+     * @return true on success; false on error.
+     */
+    public static boolean prefetch(UUID uuid, String username) {
+        PlayerRecord playerRecord = new PlayerRecord(uuid, username);
+        
+        // Memory-resident store holds every player already?
+        if (MemoryStore.isEnabled()) return playerRecord.upsert();
+        
+        for (int attempt = 0; attempt < 3; attempt++) {
+            // Save the player and load their jumps
+            if (!playerRecord.upsert()) return false;
+            long writesBefore = writeCount.get();
+            List<JumpRecord> jumpRecords = JumpRecord.loadWithPlayerId(playerRecord.getId());
+            if (jumpRecords == null) return false;
+            
+            // Cache the player, unless something was written while loading
+            synchronized (PlayerCache.class) {
+                if (writeCount.get() == writesBefore) {
+                    // Player left before the prefetch ran?
+                    if (expected.remove(uuid)) put(playerRecord, jumpRecords);
+                    return true;
+                }
+            }
+        }
+        DBManager.logWarning("Failed to cache player '"+username+"'; too many concurrent writes");
+        return false;
+    }
+    
+    /**
+     * Saves all the players to the database in a single transaction, creating or updating
+     * their records, and caches their player records and jump records.  Like
+     * {@link #prefetch(UUID, String)}, only players expected and not evicted since are
+     * cached.  Logs errors.
+     * @param  usernames Map of player UUID to username.
+     * @return true on success; false on error.
+     */
+    public static boolean prefetchAll(Map<UUID, String> usernames) {
+        List<PlayerRecord> playerRecords = new ArrayList<>(usernames.size());
+        for (Map.Entry<UUID, String> username : usernames.entrySet())
+            playerRecords.add(new PlayerRecord(username.getKey(), username.getValue()));
+        
+        // Memory-resident store holds every player already?
+        if (MemoryStore.isEnabled()) return PlayerRecord.upsertAll(playerRecords);
+        
+        for (int attempt = 0; attempt < 3; attempt++) {
+            // Save the players and load their jumps
+            if (!PlayerRecord.upsertAll(playerRecords)) return false;
+            long writesBefore = writeCount.get();
+            List<Integer> playerIds = new ArrayList<>(playerRecords.size());
+            for (PlayerRecord playerRecord : playerRecords) playerIds.add(playerRecord.getId());
+            Map<Integer, List<JumpRecord>> jumpRecords = JumpRecord.loadWithPlayerIds(playerIds);
+            if (jumpRecords == null) return false;
+            
+            // Cache the players, unless something was written while loading
+            synchronized (PlayerCache.class) {
+                if (writeCount.get() == writesBefore) {
+                    for (PlayerRecord playerRecord : playerRecords) {
+                        if (expected.remove(playerRecord.uuid))
+                            put(playerRecord, jumpRecords.get(playerRecord.getId()));
+                    }
+                    return true;
+                }
+            }
+        }
+        DBManager.logWarning("Failed to cache players; too many concurrent writes");
+        return false;
+    }
+    
+    /**
+     * Reloads the cached players and their jumps from the database, e.g. after missing
+     * changes made by other servers, keeping them cached meanwhile.  Call from the
+     * database thread.  Logs errors.
+     * @return true on success; false on error, in which case the cache is emptied.
+     */
+    static boolean refresh() {
+        for (int attempt = 0; attempt < 3; attempt++) {
+            // Load the cached players and their jumps
+            long writesBefore = writeCount.get();
+            List<Integer> playerIds = new ArrayList<>(entries.keySet());
+            Map<Integer, PlayerRecord> playerRecords = new HashMap<>(playerIds.size());
+            for (int playerId : playerIds) {
+                PlayerRecord playerRecord = PlayerRecord.loadFromDatabase(playerId);
+                if (playerRecord != null) playerRecords.put(playerId, playerRecord);
+            }
+            Map<Integer, List<JumpRecord>> jumpRecords = JumpRecord.loadWithPlayerIds(playerIds);
+            if (jumpRecords == null) break;
+            
+            // Replace the players still cached, unless something was written while loading
+            synchronized (PlayerCache.class) {
+                if (writeCount.get() != writesBefore) continue;
+                for (int playerId : playerIds) {
+                    Entry entry = entries.get(playerId);
+                    if (entry == null) continue;
+                    PlayerRecord playerRecord = playerRecords.get(playerId);
+                    // Deleted, or failed to load?  Leave the player to the database lookups.
+                    if (playerRecord == null) evict(entry.player.uuid);
+                    else put(playerRecord, jumpRecords.get(playerId));
+                }
+                return true;
+            }
+        }
+        DBManager.logWarning("Failed to refresh player cache; emptying it");
+        clear();
+        return false;
+    }
+    
+    /** Evicts the player with the given UUID from the cache. */
+    public static synchronized void evict(UUID uuid) {
+        expected.remove(uuid);
+        Integer playerId = idsByUuid.remove(uuid);
+        if (playerId == null) return;
+        Entry entry = entries.remove(playerId);
+        if (entry == null) return;
+        idsByUsername.remove(entry.player.username.toLowerCase(), playerId);
+        for (JumpRecord jumpRecord : entry.jumps) playerIdsByJump.remove(jumpRecord.id);
+    }
+    
+    private static void put(PlayerRecord playerRecord, List<JumpRecord> jumpRecords) {
+        int playerId = playerRecord.getId();
+        evict(playerRecord.uuid);
+        List<JumpRecord> jumps = new ArrayList<>(jumpRecords);
+        jumps.sort(BY_NAME);
+        entries.put(playerId, new Entry(playerRecord.copy(), Collections.unmodifiableList(jumps)));
+        idsByUuid.put(playerRecord.uuid, playerId);
+        idsByUsername.put(playerRecord.username.toLowerCase(), playerId);
+        for (JumpRecord jumpRecord : jumps) playerIdsByJump.put(jumpRecord.id, playerId);
+    }
+    
+    /* <Lookups> */
+    
+    /** Counts a lookup by a record as a hit if the result is cached (non-null), else a miss. */
+    static <T> T countLookup(T cached) {
+        if (cached != null) {
+            hits.increment();
+        } else {
+            misses.increment();
+            Jfr.cacheMiss("player");
+        }
+        return cached;
+    }
+    
+    /** Returns the cached player record with the given ID, or null if not cached. */
+    static PlayerRecord getPlayer(int id) {
+        Entry entry = entries.get(id);
+        return (entry != null) ? entry.player : null;
+    }
+    
+    /** Returns the cached player record with the given UUID, or null if not cached. */
+    static PlayerRecord getPlayer(UUID uuid) {
+        Integer id = idsByUuid.get(uuid);
+        return (id != null) ? getPlayer(id) : null;
+    }
+    
+    /** Returns the cached player record with the given username (case-insensitive), or null. */
+    static PlayerRecord getPlayer(String username) {
+        Integer id = idsByUsername.get(username.toLowerCase());
+        return (id != null) ? getPlayer(id) : null;
+    }
+    
+    /**
+     * Returns the alphabetical jump records of the cached player.  The list and its records
+     * are shared with the cache and must not be modified.
+     * @param  playerId Database ID of the player (null if public, which is never cached).
+     * @return List of jump records (may be empty), or null if the player is not cached.
+     */
+    static List<JumpRecord> getJumps(Integer playerId) {
+        if (playerId == null) return null;
+        Entry entry = entries.get(playerId);
+        return (entry != null) ? entry.jumps : null;
+    }
+    
+    /** Returns the cached jump record with the given ID (must not be modified), or null. */
+    static JumpRecord getJump(int jumpId) {
+        Integer playerId = playerIdsByJump.get(jumpId);
+        if (playerId == null) return null;
+        List<JumpRecord> jumps = getJumps(playerId);
+        if (jumps == null) return null;
+        for (JumpRecord jumpRecord : jumps) {
+            if (jumpRecord.id == jumpId) return jumpRecord;
+        }
+        return null;
+    }
+    
+    /**
+     * Returns true if the name matches the SQL LIKE pattern, where '%' matches any sequence
+     * of characters and '_' matches any single character, ignoring ASCII case.
+     */
+    static boolean like(String name, String pattern) {
+        return like(name, 0, pattern, 0);
+    }
+    
+    private static boolean like(String name, int n, String pattern, int p) {
+        while (p < pattern.length()) {
+            char pc = pattern.charAt(p);
+            if (pc == '%') {
+                // Collapse consecutive wildcards, then try every possible match length
+                while (p < pattern.length() && pattern.charAt(p) == '%') p++;
+                if (p == pattern.length()) return true;
+                for (int i = n; i < name.length(); i++) {
+                    if (like(name, i, pattern, p)) return true;
+                }
+                return false;
+            }
+            if (n >= name.length()) return false;
+            char nc = name.charAt(n);
+            if (pc != '_' && pc != nc && !(pc < 128 && nc < 128 &&
+                    Character.toLowerCase(pc) == Character.toLowerCase(nc))) {
+                return false;
+            }
+            n++; p++;
+        }
+        return n == name.length();
+    }
+    
+    /* </Lookups> */
+    
+    /* <Write-Through Hooks> */
+    
+    /** Called after the player record is saved to the database. */
+    static synchronized void playerSaved(PlayerRecord playerRecord) {
+        writeCount.incrementAndGet();
+        Entry entry = entries.get(playerRecord.getId());
+        if (entry == null) return;
+        // Username changed?
+        if (!entry.player.username.equalsIgnoreCase(playerRecord.username)) {
+            idsByUsername.remove(entry.player.username.toLowerCase(), playerRecord.getId());
+            idsByUsername.put(playerRecord.username.toLowerCase(), playerRecord.getId());
+        }
+        entries.put(playerRecord.getId(), new Entry(playerRecord.copy(), entry.jumps));
+    }
+    
+    /** Called after the player record, and so all their jumps, is deleted. */
+    static synchronized void playerDeleted(int playerId) {
+        writeCount.incrementAndGet();
+        Entry entry = entries.get(playerId);
+        if (entry != null) evict(entry.player.uuid);
+    }
+    
+    /** Called after the jump record is inserted or updated in the database. */
+    static synchronized void jumpSaved(JumpRecord jumpRecord) {
+        writeCount.incrementAndGet();
+        // Remove the previous version of the jump (its owner may have changed)
+        jumpDeleted(jumpRecord.id);
+        // Add the new version of the jump if its owner is cached
+        Entry entry = (jumpRecord.playerId != null) ? entries.get(jumpRecord.playerId) : null;
+        if (entry == null) return;
+        List<JumpRecord> jumps = new ArrayList<>(entry.jumps);
+        int index = Collections.binarySearch(jumps, jumpRecord, BY_NAME);
+        jumps.add((index < 0) ? -index-1 : index, jumpRecord.copy());
+        entry.jumps = Collections.unmodifiableList(jumps);
+        playerIdsByJump.put(jumpRecord.id, jumpRecord.playerId);
+    }
+    
+    /** Called after the jump record is deleted from the database. */
+    static synchronized void jumpDeleted(int jumpId) {
+        writeCount.incrementAndGet();
+        Integer playerId = playerIdsByJump.remove(jumpId);
+        Entry entry = (playerId != null) ? entries.get(playerId) : null;
+        if (entry == null) return;
+        List<JumpRecord> jumps = new ArrayList<>(entry.jumps);
+        jumps.removeIf(jumpRecord -> jumpRecord.id == jumpId);
+        entry.jumps = Collections.unmodifiableList(jumps);
+    }
+    
+    /* </Write-Through Hooks> */
+}
\ No newline at end of file
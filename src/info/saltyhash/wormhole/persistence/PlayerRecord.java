@@ -1,10 +1,13 @@
 package info.saltyhash.wormhole.persistence;
 
+import info.saltyhash.wormhole.metrics.Histogram;
+import info.saltyhash.wormhole.metrics.Jfr;
+import info.saltyhash.wormhole.metrics.Metrics;
 import org.bukkit.Bukkit;
 import org.bukkit.entity.Player;
 
 import java.sql.*;
-import java.util.UUID;
+import java.util.*;
 
 /** Represents a row in the database table 'player'. */
 @SuppressWarnings("WeakerAccess")
@@ -13,6 +16,25 @@ public class PlayerRecord {
     public  UUID    uuid;
     public  String  username;
     
+    /** The player as loaded or last saved, the "before" of their next update, if logged. */
+    private PlayerRecord loaded;
+    
+    // Latencies of the queries, whether answered from memory or by the database
+    private static final Histogram DELETE_LATENCY =
+            Metrics.histogram("query.player.delete");
+    private static final Histogram LOAD_BY_NAME_LATENCY =
+            Metrics.histogram("query.player.load_by_name");
+    private static final Histogram LOAD_BY_UUID_LATENCY =
+            Metrics.histogram("query.player.load_by_uuid");
+    private static final Histogram LOAD_BY_ID_LATENCY =
+            Metrics.histogram("query.player.load_by_id");
+    private static final Histogram SAVE_LATENCY =
+            Metrics.histogram("query.player.save");
+    private static final Histogram UPSERT_LATENCY =
+            Metrics.histogram("query.player.upsert");
+    private static final Histogram UPSERT_ALL_LATENCY =
+            Metrics.histogram("query.player.upsert_all");
+    
     public PlayerRecord(UUID uuid, String username) {
         this.id       = null;
         this.uuid     = uuid;
@@ -23,10 +45,46 @@ public class PlayerRecord {
         this(player.getUniqueId(), player.getName());
     }
     
-    private PlayerRecord(ResultSet rs) throws SQLException {
+    PlayerRecord(Integer id, UUID uuid, String username) {
+        this.id       = id;
+        this.uuid     = uuid;
+        this.username = username;
+    }
+    
+    PlayerRecord(ResultSet rs) throws SQLException {
+        Jfr.countRead();
         this.id       = rs.getInt("id");
         this.uuid     = DBManager.BytesToUuid(rs.getBytes("uuid"));
         this.username = rs.getString("username");
+        rememberLoaded();
+    }
+    
+    /** Returns a copy of the player record, as loaded. */
+    PlayerRecord copy() {
+        PlayerRecord copy = new PlayerRecord(id, uuid, username);
+        copy.rememberLoaded();
+        return copy;
+    }
+    
+    /**
+     * Remembers the player as they are now, for the change log of their next update, so
+     * that the update need not load them again; only if the change log is enabled.
+     */
+    private void rememberLoaded() {
+        loaded = ChangeLog.isEnabled() ? new PlayerRecord(id, uuid, username) : null;
+    }
+    
+    /**
+     * Restores the ID and loaded state of the player if the unit of work saving them is
+     * rolled back, so that they can be saved again.  Call before the write changes them.
+     */
+    private void restoreOnRollback() {
+        final Integer oldId = id;
+        final PlayerRecord oldLoaded = loaded;
+        UnitOfWork.afterRollback(() -> {
+            id = oldId;
+            loaded = oldLoaded;
+        });
     }
     
     /**
@@ -36,21 +94,42 @@ public class PlayerRecord {
      */
     @SuppressWarnings("unused")
     public boolean delete() {
-        // Get database connection
-        Connection conn = DBManager.getConnection();
-        if (conn == null) return false;
-        
-        // Create statement
-        final String sql = "DELETE FROM players WHERE `id`=?;";
-        try (PreparedStatement ps = conn.prepareStatement(sql)) {
-            // Set statement parameters and execute
-            ps.setInt(1, id);
-            ps.executeUpdate();
-        } catch (SQLException e) {
-            DBManager.logSevere("Failed to delete player record:\n"+e.toString());
-            return false;
+        long startNanos = DELETE_LATENCY.start();
+        Object jfrEvent = Jfr.beginQuery();
+        try {
+            // Memory-resident store?
+            if (MemoryStore.isEnabled()) {
+                MemoryStore.deletePlayer(id);
+                ChangeLog.playerDeleted(this);
+                return true;
+            }
+            
+            // Get database connection
+            Connection conn = DBManager.getConnection();
+            if (conn == null) return false;
+            
+            // Create statement
+            final String sql = "DELETE FROM players WHERE `id`=?;";
+            try (PreparedStatement ps = conn.prepareStatement(sql)) {
+                // Set statement parameters and execute
+                ps.setInt(1, id);
+                Jfr.countWritten(ps.executeUpdate());
+            } catch (SQLException e) {
+                DBManager.logSevere("Failed to delete player record:\n"+e.toString());
+                return false;
+            }
+            final int deletedId = id;
+            UnitOfWork.afterCommit(() -> {
+                SignCache.playerDeleted(deletedId);
+                PlayerCache.playerDeleted(deletedId);
+            });
+            CacheInvalidation.playerDeleted(id);
+            ChangeLog.playerDeleted(this);
+            return true;
+        } finally {
+            DELETE_LATENCY.recordSince(startNanos);
+            Jfr.endQuery(jfrEvent, DELETE_LATENCY);
         }
-        return true;
     }
     
     /** Returns the database ID of the player record, or null if DNE in database. */
@@ -73,22 +152,36 @@ public class PlayerRecord {
      * @return Player record or null if DNE or error.
      */
     public static PlayerRecord load(String username) {
-        // Get database connection
-        Connection conn = DBManager.getConnection();
-        if (conn == null) return null;
-        
-        // Create statement
-        final String sql = "SELECT * FROM players WHERE `username`=? COLLATE NOCASE LIMIT 1;";
-        try (PreparedStatement ps = conn.prepareStatement(sql)) {
-            // Set statement parameters and execute
-            ps.setString(1, username);
-            ResultSet rs = ps.executeQuery();
+        long startNanos = LOAD_BY_NAME_LATENCY.start();
+        Object jfrEvent = Jfr.beginQuery();
+        try {
+            // Memory-resident store?
+            if (MemoryStore.isEnabled()) return MemoryStore.getPlayer(username);
             
-            // Return a new player record or null if there are no results
-            return rs.next() ? new PlayerRecord(rs) : null;
-        } catch (SQLException e) {
-            DBManager.logSevere("Failed to load player record:\n"+e.toString());
-            return null;
+            // Player is cached?
+            PlayerRecord cached = PlayerCache.countLookup(PlayerCache.getPlayer(username));
+            if (cached != null) return cached.copy();
+            
+            // Get database connection
+            Connection conn = DBManager.getConnection();
+            if (conn == null) return null;
+            
+            // Create statement
+            final String sql = "SELECT * FROM players WHERE `username`=? COLLATE NOCASE LIMIT 1;";
+            try (PreparedStatement ps = conn.prepareStatement(sql)) {
+                // Set statement parameters and execute
+                ps.setString(1, username);
+                ResultSet rs = ps.executeQuery();
+                
+                // Return a new player record or null if there are no results
+                return rs.next() ? new PlayerRecord(rs) : null;
+            } catch (SQLException e) {
+                DBManager.logSevere("Failed to load player record:\n"+e.toString());
+                return null;
+            }
+        } finally {
+            LOAD_BY_NAME_LATENCY.recordSince(startNanos);
+            Jfr.endQuery(jfrEvent, LOAD_BY_NAME_LATENCY);
         }
     }
     
@@ -98,22 +191,36 @@ public class PlayerRecord {
      * @return Player record or null if DNE or error.
      */
     public static PlayerRecord load(UUID uuid) {
-        // Get database connection
-        Connection conn = DBManager.getConnection();
-        if (conn == null) return null;
-    
-        // Create statement
-        final String sql = "SELECT * FROM players WHERE `uuid`=? LIMIT 1;";
-        try (PreparedStatement ps = conn.prepareStatement(sql)) {
-            // Set statement parameters and execute
-            ps.setBytes(1, DBManager.UuidToBytes(uuid));
-            ResultSet rs = ps.executeQuery();
-        
-            // Return a new player record or null if there are no results
-            return rs.next() ? new PlayerRecord(rs) : null;
-        } catch (SQLException e) {
-            DBManager.logSevere("Failed to load player record:\n"+e.toString());
-            return null;
+        long startNanos = LOAD_BY_UUID_LATENCY.start();
+        Object jfrEvent = Jfr.beginQuery();
+        try {
+            // Memory-resident store?
+            if (MemoryStore.isEnabled()) return MemoryStore.getPlayer(uuid);
+            
+            // Player is cached?
+            PlayerRecord cached = PlayerCache.countLookup(PlayerCache.getPlayer(uuid));
+            if (cached != null) return cached.copy();
+            
+            // Get database connection
+            Connection conn = DBManager.getConnection();
+            if (conn == null) return null;
+            
+            // Create statement
+            final String sql = "SELECT * FROM players WHERE `uuid`=? LIMIT 1;";
+            try (PreparedStatement ps = conn.prepareStatement(sql)) {
+                // Set statement parameters and execute
+                ps.setBytes(1, DBManager.UuidToBytes(uuid));
+                ResultSet rs = ps.executeQuery();
+                
+                // Return a new player record or null if there are no results
+                return rs.next() ? new PlayerRecord(rs) : null;
+            } catch (SQLException e) {
+                DBManager.logSevere("Failed to load player record:\n"+e.toString());
+                return null;
+            }
+        } finally {
+            LOAD_BY_UUID_LATENCY.recordSince(startNanos);
+            Jfr.endQuery(jfrEvent, LOAD_BY_UUID_LATENCY);
         }
     }
     
@@ -123,6 +230,29 @@ public class PlayerRecord {
      * @return Player record or null if DNE or error.
      */
     public static PlayerRecord load(int id) {
+        long startNanos = LOAD_BY_ID_LATENCY.start();
+        Object jfrEvent = Jfr.beginQuery();
+        try {
+            // Memory-resident store?
+            if (MemoryStore.isEnabled()) return MemoryStore.getPlayer(id);
+            
+            // Player is cached?
+            PlayerRecord cached = PlayerCache.countLookup(PlayerCache.getPlayer(id));
+            if (cached != null) return cached.copy();
+            
+            return loadFromDatabase(id);
+        } finally {
+            LOAD_BY_ID_LATENCY.recordSince(startNanos);
+            Jfr.endQuery(jfrEvent, LOAD_BY_ID_LATENCY);
+        }
+    }
+    
+    /**
+     * Gets the player record with given ID from the database, bypassing the caches.
+     * Logs errors.
+     * @return Player record or null if DNE or error.
+     */
+    static PlayerRecord loadFromDatabase(int id) {
         // Get database connection
         Connection conn = DBManager.getConnection();
         if (conn == null) return null;
@@ -146,50 +276,290 @@ public class PlayerRecord {
      * @return true on success; false on error.
      */
     public boolean save() {
-        // Get database connection
-        Connection conn = DBManager.getConnection();
-        if (conn == null) return false;
-        
-        // ID != null ==> the record already exists in the database ==> do UPDATE
-        if (id != null) {
-            // Create update statement
-            final String sql = "UPDATE players SET `uuid`=?,`username`=? WHERE `id`=?;";
-            try (PreparedStatement ps = conn.prepareStatement(sql)) {
-                // Set statement parameters and execute, returning success
-                ps.setBytes(1, DBManager.UuidToBytes(uuid));
-                ps.setString(2, username);
-                ps.setInt(3, id);
-                return (ps.executeUpdate() > 0);
+        long startNanos = SAVE_LATENCY.start();
+        Object jfrEvent = Jfr.beginQuery();
+        try {
+            // Get the player as they were, for the change log
+            boolean created = (id == null);
+            PlayerRecord oldRecord = !created ? loaded : null;
+            
+            // Memory-resident store?
+            if (MemoryStore.isEnabled()) {
+                Integer savedId = MemoryStore.savePlayer(id, uuid, username);
+                if (savedId == null) return false;
+                id = savedId;
+                rememberLoaded();
+                ChangeLog.playerSaved(oldRecord, this, created);
+                return true;
+            }
+            
+            // Get database connection
+            Connection conn = DBManager.getConnection();
+            if (conn == null) return false;
+            
+            // ID != null ==> the record already exists in the database ==> do UPDATE
+            if (id != null) {
+                // Create update statement
+                final String sql = "UPDATE players SET `uuid`=?,`username`=? WHERE `id`=?;";
+                try (PreparedStatement ps = conn.prepareStatement(sql)) {
+                    // Set statement parameters and execute, returning success
+                    ps.setBytes(1, DBManager.UuidToBytes(uuid));
+                    ps.setString(2, username);
+                    ps.setInt(3, id);
+                    if (Jfr.countWritten(ps.executeUpdate()) == 0) return false;
+                    restoreOnRollback();
+                    rememberLoaded();
+                    UnitOfWork.afterCommit(() -> PlayerCache.playerSaved(this));
+                    CacheInvalidation.playerSaved(this);
+                    ChangeLog.playerSaved(oldRecord, this, false);
+                    return true;
+                } catch (SQLException e) {
+                    DBManager.logSevere("Failed to save player record via update:\n"+e.toString());
+                    return false;
+                }
+            }
+            // ID == null ==> the record does not exist in the database ==> do INSERT
+            else {
+                // Create insert statement
+                final String sql = "INSERT INTO players (`uuid`,`username`) VALUES (?,?);";
+                try (PreparedStatement ps = conn.prepareStatement(
+                        sql, Statement.RETURN_GENERATED_KEYS)) {
+                    // Set statement parameters and execute, returning success or failure
+                    ps.setBytes(1, DBManager.UuidToBytes(uuid));
+                    ps.setString(2, username);
+                    
+                    // Execute statement, throwing exception if failed
+                    if (Jfr.countWritten(ps.executeUpdate()) == 0)
+                        throw new SQLException("Failed to insert");
+                    
+                    // Set id to the generated key
+                    ResultSet rs = ps.getGeneratedKeys();
+                    if (rs.next()) {
+                        restoreOnRollback();
+                        id = rs.getInt(1);
+                        rememberLoaded();
+                        ChangeLog.playerSaved(null, this, true);
+                        return true;
+                    } else {
+                        throw new SQLException("Failed to retrieve generated key");
+                    }
+                } catch (SQLException e) {
+                    DBManager.logSevere("Failed to save player record via insert:\n"+e.toString());
+                    return false;
+                }
+            }
+        } finally {
+            SAVE_LATENCY.recordSince(startNanos);
+            Jfr.endQuery(jfrEvent, SAVE_LATENCY);
+        }
+    }
+    
+    /**
+     * Saves the player record to the database by inserting it, or by updating the username
+     * of the existing record with the same UUID.  Sets the record ID.  Logs errors.
+     * @return true on success; false on error.
+     */
+    public boolean upsert() {
+        long startNanos = UPSERT_LATENCY.start();
+        Object jfrEvent = Jfr.beginQuery();
+        try {
+            // Memory-resident store?
+            if (MemoryStore.isEnabled()) {
+                // Get the player as they were, for the change log
+                PlayerRecord oldRecord = ChangeLog.isEnabled() ? MemoryStore.getPlayer(uuid) : null;
+                id = MemoryStore.upsertPlayer(uuid, username);
+                rememberLoaded();
+                if (oldRecord == null || !oldRecord.username.equals(username))
+                    ChangeLog.playerSaved(oldRecord, this, oldRecord == null);
+                return true;
+            }
+            
+            // Get database connection
+            Connection conn = DBManager.getConnection();
+            if (conn == null) return false;
+            
+            // Create statements; the player is looked up first, and updated only if the
+            // username has changed
+            final String selectSql = "SELECT * FROM players WHERE `uuid`=? LIMIT 1;";
+            final String updateSql = "UPDATE players SET `username`=? WHERE `id`=?;";
+            PlayerRecord oldRecord;
+            boolean changed;
+            try (PreparedStatement selectPs = conn.prepareStatement(selectSql);
+                 PreparedStatement updatePs = conn.prepareStatement(updateSql)) {
+                byte[] uuidBytes = DBManager.UuidToBytes(uuid);
+                restoreOnRollback();
+                
+                // Get the player as they were, for the change log and their ID
+                selectPs.setBytes(1, uuidBytes);
+                ResultSet rs = selectPs.executeQuery();
+                oldRecord = rs.next() ? new PlayerRecord(rs) : null;
+                
+                if (oldRecord != null) {
+                    // Update the username, if changed
+                    id = oldRecord.id;
+                    changed = !oldRecord.username.equals(username);
+                    if (changed) {
+                        updatePs.setString(1, username);
+                        updatePs.setInt(2, id);
+                        Jfr.countWritten(updatePs.executeUpdate());
+                    }
+                } else {
+                    // Insert the player, or update them if another server just inserted them
+                    changed = (upsertRows(conn, Collections.singletonList(this)) > 0);
+                    
+                    // Get the player ID
+                    rs = selectPs.executeQuery();
+                    if (!rs.next()) throw new SQLException("Failed to retrieve player ID");
+                    id = rs.getInt("id");
+                }
             } catch (SQLException e) {
-                DBManager.logSevere("Failed to save player record via update:\n"+e.toString());
+                DBManager.logSevere("Failed to save player record via upsert:\n"+e.toString());
                 return false;
             }
+            rememberLoaded();
+            UnitOfWork.afterCommit(() -> PlayerCache.playerSaved(this));
+            CacheInvalidation.playerSaved(this);
+            if (changed) ChangeLog.playerSaved(oldRecord, this, oldRecord == null);
+            return true;
+        } finally {
+            UPSERT_LATENCY.recordSince(startNanos);
+            Jfr.endQuery(jfrEvent, UPSERT_LATENCY);
         }
-        // ID == null ==> the record does not exist in the database ==> do INSERT
-        else {
-            // Create insert statement
-            final String sql = "INSERT INTO players (`uuid`,`username`) VALUES (?,?);";
-            try (PreparedStatement ps = conn.prepareStatement(
-                    sql, Statement.RETURN_GENERATED_KEYS)) {
-                // Set statement parameters and execute, returning success or failure
-                ps.setBytes(1, DBManager.UuidToBytes(uuid));
-                ps.setString(2, username);
+    }
+    
+    /**
+     * Upserts all the player records (see {@link #upsert()}) in a single transaction using
+     * a batched statement, and sets their record IDs.  Logs errors.
+     * @return true on success; false on error, in which case nothing is saved.
+     */
+    public static boolean upsertAll(Collection<PlayerRecord> playerRecords) {
+        long startNanos = UPSERT_ALL_LATENCY.start();
+        Object jfrEvent = Jfr.beginQuery();
+        try {
+            if (playerRecords.isEmpty()) return true;
+            
+            // Memory-resident store?
+            if (MemoryStore.isEnabled()) {
+                for (PlayerRecord r : playerRecords) r.id = MemoryStore.upsertPlayer(r.uuid, r.username);
+                return true;
+            }
+            
+            // Get database connection
+            Connection conn = DBManager.getConnection();
+            if (conn == null) return false;
+            
+            boolean autoCommit = true;
+            try {
+                // Commit any previous changes and disable autocommit
+                autoCommit = conn.getAutoCommit();
+                if (!autoCommit) conn.commit();
+                conn.setAutoCommit(false);
                 
-                // Execute statement, throwing exception if failed
-                if (ps.executeUpdate() == 0) throw new SQLException("Failed to insert");
+                // Insert or update all players in one batch
+                upsertRows(conn, playerRecords);
                 
-                // Set id to the generated key
-                ResultSet rs = ps.getGeneratedKeys();
-                if (rs.next()) {
-                    id = rs.getInt(1);
-                    return true;
-                } else {
-                    throw new SQLException("Failed to retrieve generated key");
+                // Get the player IDs, a chunk of players at a time
+                Map<UUID, PlayerRecord> recordsByUuid = new HashMap<>(playerRecords.size());
+                for (PlayerRecord playerRecord : playerRecords)
+                    recordsByUuid.put(playerRecord.uuid, playerRecord);
+                List<UUID> uuids = new ArrayList<>(recordsByUuid.keySet());
+                for (int start = 0; start < uuids.size(); start += DBManager.MAX_PARAMETERS) {
+                    List<UUID> chunk = uuids.subList(
+                            start, Math.min(start+DBManager.MAX_PARAMETERS, uuids.size()));
+                    String sql = "SELECT `id`,`uuid` FROM players WHERE `uuid` IN ("+
+                            DBManager.placeholders(chunk.size())+");";
+                    try (PreparedStatement ps = conn.prepareStatement(sql)) {
+                        for (int i = 0; i < chunk.size(); i++)
+                            ps.setBytes(i+1, DBManager.UuidToBytes(chunk.get(i)));
+                        ResultSet rs = ps.executeQuery();
+                        while (rs.next()) {
+                            PlayerRecord playerRecord =
+                                    recordsByUuid.get(DBManager.BytesToUuid(rs.getBytes("uuid")));
+                            if (playerRecord != null) playerRecord.id = rs.getInt("id");
+                        }
+                    }
                 }
+                
+                // Commit changes
+                conn.commit();
             } catch (SQLException e) {
-                DBManager.logSevere("Failed to save player record via insert:\n"+e.toString());
+                DBManager.logSevere("Failed to save player records via batch upsert:\n"+e.toString());
+                try {
+                    conn.rollback();
+                } catch (SQLException e1) {
+                    DBManager.logSevere("Failed to roll back changes");
+                }
                 return false;
+            } finally {
+                // Reset connection autocommit to previous value
+                try {
+                    conn.setAutoCommit(autoCommit);
+                } catch (SQLException e) {
+                    DBManager.logWarning("Failed to set database autocommit to "+autoCommit);
+                }
+            }
+            
+            for (PlayerRecord playerRecord : playerRecords) {
+                if (playerRecord.id != null) PlayerCache.playerSaved(playerRecord);
+            }
+            return true;
+        } finally {
+            UPSERT_ALL_LATENCY.recordSince(startNanos);
+            Jfr.endQuery(jfrEvent, UPSERT_ALL_LATENCY);
+        }
+    }
+    
+    /**
+     * Inserts the players, or updates the usernames of those with the same UUID that
+     * differ, in batches.  SQLite older than 3.24 has no upserts, so there the players who
+     * do not exist are inserted, then the others are updated, in the caller's transaction
+     * or else in one of their own.
+     * @return Number of rows changed.
+     */
+    private static int upsertRows(Connection conn, Collection<PlayerRecord> playerRecords)
+            throws SQLException {
+        int changed = 0;
+        if (DBManager.supportsUpsert(conn)) {
+            final String upsertSql = "INSERT INTO players (`uuid`,`username`) VALUES (?,?) "+
+                    "ON CONFLICT(`uuid`) DO UPDATE SET `username`=excluded.`username` "+
+                    "WHERE `username`<>excluded.`username`;";
+            try (PreparedStatement ps = conn.prepareStatement(upsertSql)) {
+                for (PlayerRecord playerRecord : playerRecords) {
+                    ps.setBytes(1, DBManager.UuidToBytes(playerRecord.uuid));
+                    ps.setString(2, playerRecord.username);
+                    ps.addBatch();
+                }
+                for (int count : Jfr.countWritten(ps.executeBatch())) if (count > 0) changed++;
             }
+            return changed;
+        }
+        
+        final String insertSql = "INSERT OR IGNORE INTO players (`uuid`,`username`) VALUES (?,?);";
+        final String updateSql =
+                "UPDATE players SET `username`=? WHERE `uuid`=? AND `username`<>?;";
+        boolean autoCommit = conn.getAutoCommit();
+        conn.setAutoCommit(false);
+        try (PreparedStatement insertPs = conn.prepareStatement(insertSql);
+             PreparedStatement updatePs = conn.prepareStatement(updateSql)) {
+            for (PlayerRecord playerRecord : playerRecords) {
+                byte[] uuidBytes = DBManager.UuidToBytes(playerRecord.uuid);
+                insertPs.setBytes(1, uuidBytes);
+                insertPs.setString(2, playerRecord.username);
+                insertPs.addBatch();
+                updatePs.setString(1, playerRecord.username);
+                updatePs.setBytes(2, uuidBytes);
+                updatePs.setString(3, playerRecord.username);
+                updatePs.addBatch();
+            }
+            for (int count : Jfr.countWritten(insertPs.executeBatch())) if (count > 0) changed++;
+            for (int count : Jfr.countWritten(updatePs.executeBatch())) if (count > 0) changed++;
+            if (autoCommit) conn.commit();
+        } catch (SQLException e) {
+            if (autoCommit) conn.rollback();
+            throw e;
+        } finally {
+            conn.setAutoCommit(autoCommit);
         }
+        return changed;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,192 @@
+package info.saltyhash.wormhole.persistence;
+
+import info.saltyhash.wormhole.metrics.Metrics;
+
+import java.util.*;
+
+/**
+ * Spatial hash of all portals: the portals of each world, by the chunks (16x16 columns of
+ * blocks) they overlap.  Finding the portal a block is in takes two hash lookups and a scan
+ * of the few portals overlapping its chunk, however many portals there are, so it can be
+ * done each time a player moves to another block.  Loaded at warm-up.  Thread-safe.
+ */
+@SuppressWarnings("WeakerAccess")
+public final class PortalIndex {
+    private static final PortalRecord[] NONE = new PortalRecord[0];
+    
+    /** World UUID -> chunk key -> portals overlapping the chunk. */
+    private static final Map<UUID, Map<Long, PortalRecord[]>> portals = new HashMap<>();
+    /** Portal ID -> portal record. */
+    private static final Map<Integer, PortalRecord> portalsById = new HashMap<>();
+    /** Number of portals, readable without the lock. */
+    private static volatile int count = 0;
+    /** ID of the next portal saved while the memory-resident store is enabled. */
+    private static int nextId = 1;
+    
+    static {
+        Metrics.gauge("portals.count", () -> count);
+    }
+    
+    private PortalIndex() {}
+    
+    /** Returns true if there are no portals; does not lock. */
+    public static boolean isEmpty() {
+        return count == 0;
+    }
+    
+    /** Empties the index. */
+    public static synchronized void clear() {
+        portals.clear();
+        portalsById.clear();
+        count = 0;
+        nextId = 1;
+    }
+    
+    /**
+     * Replaces the index with all portals of the database.  Call from the database thread.
+     * Logs errors.
+     * @return true on success; false on error, in which case the index is unchanged.
+     */
+    public static boolean load() {
+        List<PortalRecord> portalRecords = PortalRecord.loadAll();
+        if (portalRecords == null) return false;
+        synchronized (PortalIndex.class) {
+            clear();
+            for (PortalRecord portalRecord : portalRecords) add(portalRecord);
+        }
+        return true;
+    }
+    
+    /** Returns the portal the block with the given coordinates is in, or null if none. */
+    public static synchronized PortalRecord getPortal(UUID worldUuid, int x, int y, int z) {
+        Map<Long, PortalRecord[]> worldPortals = portals.get(worldUuid);
+        if (worldPortals == null) return null;
+        PortalRecord[] chunkPortals = worldPortals.get(SignCache.getChunkKeyOfBlock(x, z));
+        if (chunkPortals == null) return null;
+        for (PortalRecord portalRecord : chunkPortals) {
+            if (portalRecord.contains(x, y, z)) return portalRecord;
+        }
+        return null;
+    }
+    
+    /**
+     * Returns the portal nearest to the block with the given coordinates among those
+     * overlapping its chunk, or null if none.
+     */
+    public static synchronized PortalRecord getNearest(UUID worldUuid, int x, int y, int z) {
+        Map<Long, PortalRecord[]> worldPortals = portals.get(worldUuid);
+        if (worldPortals == null) return null;
+        PortalRecord nearest = null;
+        long nearestDistance = Long.MAX_VALUE;
+        for (PortalRecord portalRecord :
+                worldPortals.getOrDefault(SignCache.getChunkKeyOfBlock(x, z), NONE)) {
+            long distance = portalRecord.getDistanceSquared(x, y, z);
+            if (distance < nearestDistance) {
+                nearest = portalRecord;
+                nearestDistance = distance;
+            }
+        }
+        return nearest;
+    }
+    
+    /** Returns a portal sharing a block with the given portal, or null if none. */
+    public static synchronized PortalRecord getOverlapping(PortalRecord portal) {
+        Map<Long, PortalRecord[]> worldPortals = portals.get(portal.worldUuid);
+        if (worldPortals == null) return null;
+        for (int chunkX = portal.minX >> 4; chunkX <= portal.maxX >> 4; chunkX++) {
+            for (int chunkZ = portal.minZ >> 4; chunkZ <= portal.maxZ >> 4; chunkZ++) {
+                PortalRecord[] chunkPortals =
+                        worldPortals.getOrDefault(SignCache.getChunkKey(chunkX, chunkZ), NONE);
+                for (PortalRecord portalRecord : chunkPortals) {
+                    if (portalRecord.overlaps(portal)) return portalRecord;
+                }
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * Returns a new portal ID, greater than that of any portal indexed.  Only valid while
+     * this server is the only writer of the database.
+     */
+    static synchronized int nextId() {
+        return nextId++;
+    }
+    
+    /** Adds the portal to each chunk it overlaps. */
+    private static void add(PortalRecord portal) {
+        remove(portal.getId());
+        portalsById.put(portal.getId(), portal);
+        nextId = Math.max(nextId, portal.getId()+1);
+        Map<Long, PortalRecord[]> worldPortals =
+                portals.computeIfAbsent(portal.worldUuid, k -> new HashMap<>());
+        for (int chunkX = portal.minX >> 4; chunkX <= portal.maxX >> 4; chunkX++) {
+            for (int chunkZ = portal.minZ >> 4; chunkZ <= portal.maxZ >> 4; chunkZ++) {
+                long chunkKey = SignCache.getChunkKey(chunkX, chunkZ);
+                PortalRecord[] chunkPortals = worldPortals.getOrDefault(chunkKey, NONE);
+                chunkPortals = Arrays.copyOf(chunkPortals, chunkPortals.length+1);
+                chunkPortals[chunkPortals.length-1] = portal;
+                worldPortals.put(chunkKey, chunkPortals);
+            }
+        }
+        count = portalsById.size();
+    }
+    
+    /** Removes the portal with the given ID from each chunk it overlaps, if indexed. */
+    private static void remove(int portalId) {
+        PortalRecord portal = portalsById.remove(portalId);
+        if (portal == null) return;
+        Map<Long, PortalRecord[]> worldPortals = portals.get(portal.worldUuid);
+        for (int chunkX = portal.minX >> 4; chunkX <= portal.maxX >> 4; chunkX++) {
+            for (int chunkZ = portal.minZ >> 4; chunkZ <= portal.maxZ >> 4; chunkZ++) {
+                long chunkKey = SignCache.getChunkKey(chunkX, chunkZ);
+                List<PortalRecord> chunkPortals =
+                        new ArrayList<>(Arrays.asList(worldPortals.get(chunkKey)));
+                chunkPortals.removeIf(p -> p.getId().equals(portalId));
+                if (chunkPortals.isEmpty()) worldPortals.remove(chunkKey);
+                else worldPortals.put(chunkKey, chunkPortals.toArray(NONE));
+            }
+        }
+        if (worldPortals.isEmpty()) portals.remove(portal.worldUuid);
+        count = portalsById.size();
+    }
+    
+    /**
+     * Removes the portal from the index, e.g. once found pointing to a jump that no longer
+     * exists, which the database deleted it along with.
+     */
+    public static synchronized void evict(PortalRecord portal) {
+        remove(portal.getId());
+    }
+    
+    /* <Write-Through Hooks> */
+    
+    /** Called after the portal record is inserted into the database, or by a peer. */
+    static synchronized void portalSaved(PortalRecord portalRecord) {
+        add(portalRecord);
+    }
+    
+    /** Called after the portal record is deleted from the database, or by a peer. */
+    static synchronized void portalDeleted(int portalId) {
+        remove(portalId);
+    }
+    
+    /** Called after the jump record is updated, here or by a peer. */
+    static synchronized void jumpSaved(int jumpId) {
+        for (PortalRecord portalRecord : portalsById.values()) {
+            if (portalRecord.jumpId == jumpId) portalRecord.forgetJumpRecord();
+        }
+    }
+    
+    /** Called after the jump record, and so all portals pointing to it, is deleted. */
+    static synchronized void jumpDeleted(int jumpId) {
+        if (portalsById.isEmpty()) return;
+        List<Integer> portalIds = new ArrayList<>();
+        for (PortalRecord portalRecord : portalsById.values()) {
+            if (portalRecord.jumpId == jumpId) portalIds.add(portalRecord.getId());
+        }
+        for (int portalId : portalIds) remove(portalId);
+    }
+    
+    /* </Write-Through Hooks> */
+}
\ No newline at end of file
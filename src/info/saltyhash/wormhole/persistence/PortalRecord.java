@@ -0,0 +1,311 @@
+package info.saltyhash.wormhole.persistence;
+
+import info.saltyhash.wormhole.metrics.Histogram;
+import info.saltyhash.wormhole.metrics.Jfr;
+import info.saltyhash.wormhole.metrics.Metrics;
+
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Represents a row in the database table 'portals': a cuboid of blocks, bounds inclusive,
+ * that teleports players who walk into it to a jump.
+ *
+ * Portals are not held by the {@link MemoryStore}; they are all kept in the
+ * {@link PortalIndex} instead, and written to the database directly.  When the storage
+ * mode is "memory", the index is changed at once and the writes are queued on the
+ * database thread, after the writes of the store they may depend on (e.g. of the jump a
+ * new portal points to), as the store does.
+ */
+@SuppressWarnings("WeakerAccess")
+public class PortalRecord {
+    private Integer id;     // Primary key
+    public  UUID worldUuid;
+    public  int  minX, minY, minZ;
+    public  int  maxX, maxY, maxZ;
+    public  int  jumpId;    // References column jumps.id
+    
+    /** Jump the portal points to, once loaded; forgotten when the jump is saved. */
+    private volatile JumpRecord jumpRecord = null;
+    /** Number of times the jump was forgotten, so that a load racing a save is not kept. */
+    private volatile int jumpForgotten = 0;
+    
+    // Latencies of the queries
+    private static final Histogram DELETE_LATENCY =
+            Metrics.histogram("query.portal.delete");
+    private static final Histogram LOAD_LATENCY =
+            Metrics.histogram("query.portal.load");
+    private static final Histogram LOAD_ALL_LATENCY =
+            Metrics.histogram("query.portal.load_all");
+    private static final Histogram SAVE_LATENCY =
+            Metrics.histogram("query.portal.save");
+    
+    /** Creates a portal spanning the blocks between the two corners, inclusive. */
+    public PortalRecord(UUID worldUuid, int x1, int y1, int z1, int x2, int y2, int z2,
+                        int jumpId) {
+        this.id        = null;
+        this.worldUuid = worldUuid;
+        this.minX      = Math.min(x1, x2);
+        this.minY      = Math.min(y1, y2);
+        this.minZ      = Math.min(z1, z2);
+        this.maxX      = Math.max(x1, x2);
+        this.maxY      = Math.max(y1, y2);
+        this.maxZ      = Math.max(z1, z2);
+        this.jumpId    = jumpId;
+    }
+    
+    PortalRecord(ResultSet rs) throws SQLException {
+        Jfr.countRead();
+        this.id        = rs.getInt("id");
+        this.worldUuid = DBManager.BytesToUuid(rs.getBytes("world_uuid"));
+        this.minX      = rs.getInt("min_x");
+        this.minY      = rs.getInt("min_y");
+        this.minZ      = rs.getInt("min_z");
+        this.maxX      = rs.getInt("max_x");
+        this.maxY      = rs.getInt("max_y");
+        this.maxZ      = rs.getInt("max_z");
+        this.jumpId    = rs.getInt("jump_id");
+    }
+    
+    /** Returns true if the block with the given coordinates is in the portal. */
+    public boolean contains(int x, int y, int z) {
+        return x >= minX && x <= maxX && y >= minY && y <= maxY && z >= minZ && z <= maxZ;
+    }
+    
+    /** Returns the squared distance in blocks from the block to the nearest block of the portal. */
+    public long getDistanceSquared(int x, int y, int z) {
+        long dx = Math.max(0, Math.max(minX-x, x-maxX));
+        long dy = Math.max(0, Math.max(minY-y, y-maxY));
+        long dz = Math.max(0, Math.max(minZ-z, z-maxZ));
+        return dx*dx+dy*dy+dz*dz;
+    }
+    
+    /** Returns true if the portal shares a block with the other portal of the same world. */
+    public boolean overlaps(PortalRecord other) {
+        return minX <= other.maxX && maxX >= other.minX && minY <= other.maxY &&
+                maxY >= other.minY && minZ <= other.maxZ && maxZ >= other.minZ;
+    }
+    
+    /** Returns the database ID of the portal record, or null if DNE in database. */
+    public Integer getId() {
+        return id;
+    }
+    
+    /**
+     * Returns the jump record the portal points to, or null if DNE or error.  The jump is
+     * loaded once and kept until it is saved, since players walking into a portal would
+     * otherwise load it on every step.  Do not change the record.
+     */
+    public JumpRecord getJumpRecord() {
+        JumpRecord jump = jumpRecord;
+        if (jump != null) return jump;
+        int forgotten = jumpForgotten;
+        jump = JumpRecord.loadWithId(jumpId);
+        if (jump != null && forgotten == jumpForgotten) jumpRecord = jump;
+        return jump;
+    }
+    
+    /** Forgets the jump the portal points to, once it is saved; see {@link PortalIndex}. */
+    void forgetJumpRecord() {
+        jumpForgotten++;
+        jumpRecord = null;
+    }
+    
+    /** Returns a description of the portal's bounds, e.g. "(0, 64, 0) to (2, 66, 0)". */
+    public String getBoundsDescription() {
+        return String.format("(%d, %d, %d) to (%d, %d, %d)", minX, minY, minZ, maxX, maxY, maxZ);
+    }
+    
+    /**
+     * Deletes the portal record from the database, and from the index.  Logs errors.
+     * @return true on success (even if record DNE); false on SQL error.
+     */
+    public boolean delete() {
+        long startNanos = DELETE_LATENCY.start();
+        Object jfrEvent = Jfr.beginQuery();
+        try {
+            // Cannot delete a portal record with no id
+            if (id == null) return true;
+            
+            // Memory-resident store?  Unindex the portal now, and delete it in the background.
+            if (MemoryStore.isEnabled()) {
+                PortalIndex.portalDeleted(id);
+                writeAfterMemoryStoreWrites(this::deleteFromDatabase);
+                return true;
+            }
+            
+            if (!deleteFromDatabase()) return false;
+            PortalIndex.portalDeleted(id);
+            CacheInvalidation.portalDeleted(id);
+            return true;
+        } finally {
+            DELETE_LATENCY.recordSince(startNanos);
+            Jfr.endQuery(jfrEvent, DELETE_LATENCY);
+        }
+    }
+    
+    private boolean deleteFromDatabase() {
+        // Get database connection
+        Connection conn = DBManager.getConnection();
+        if (conn == null) return false;
+        
+        // Create delete statement
+        final String sql = "DELETE FROM portals WHERE `id`=?;";
+        try (PreparedStatement ps = conn.prepareStatement(sql)) {
+            // Set statement parameters and execute
+            ps.setInt(1, id);
+            Jfr.countWritten(ps.executeUpdate());
+            return true;
+        } catch (SQLException e) {
+            DBManager.logSevere("Failed to delete portal record:\n"+e.toString());
+            return false;
+        }
+    }
+    
+    /**
+     * Gets the portal record with the given ID from the database.  Logs errors.
+     * @return Portal record, or null if DNE or error.
+     */
+    static PortalRecord loadFromDatabase(int id) {
+        long startNanos = LOAD_LATENCY.start();
+        Object jfrEvent = Jfr.beginQuery();
+        try {
+            // Get database connection
+            Connection conn = DBManager.getConnection();
+            if (conn == null) return null;
+            
+            // Create statement
+            final String sql = "SELECT * FROM portals WHERE `id`=? LIMIT 1;";
+            try (PreparedStatement ps = conn.prepareStatement(sql)) {
+                // Set statement parameters and execute
+                ps.setInt(1, id);
+                ResultSet rs = ps.executeQuery();
+                
+                // Return a new portal record or null if there are no results
+                return rs.next() ? new PortalRecord(rs) : null;
+            } catch (SQLException e) {
+                DBManager.logSevere("Failed to load portal record:\n"+e.toString());
+                return null;
+            }
+        } finally {
+            LOAD_LATENCY.recordSince(startNanos);
+            Jfr.endQuery(jfrEvent, LOAD_LATENCY);
+        }
+    }
+    
+    /**
+     * Gets all portal records from the database.  Logs errors.
+     * @return List of portal records (may be empty), or null on error.
+     */
+    static List<PortalRecord> loadAll() {
+        long startNanos = LOAD_ALL_LATENCY.start();
+        Object jfrEvent = Jfr.beginQuery();
+        try {
+            // Get database connection
+            Connection conn = DBManager.getConnection();
+            if (conn == null) return null;
+            
+            // Create statement
+            final String sql = "SELECT * FROM portals;";
+            try (PreparedStatement ps = conn.prepareStatement(sql)) {
+                ResultSet rs = ps.executeQuery();
+                List<PortalRecord> portalRecords = new ArrayList<>();
+                while (rs.next())
+                    portalRecords.add(new PortalRecord(rs));
+                return portalRecords;
+            } catch (SQLException e) {
+                DBManager.logSevere("Failed to load portal records:\n"+e.toString());
+                return null;
+            }
+        } finally {
+            LOAD_ALL_LATENCY.recordSince(startNanos);
+            Jfr.endQuery(jfrEvent, LOAD_ALL_LATENCY);
+        }
+    }
+    
+    /**
+     * Saves the new portal record to the database, and adds it to the index.  To change a
+     * portal, delete it and save a new one.  Logs errors.
+     * @return true on success; false on error.
+     */
+    public boolean save() {
+        long startNanos = SAVE_LATENCY.start();
+        Object jfrEvent = Jfr.beginQuery();
+        try {
+            // Already saved?  Portals are not updated in place.
+            if (id != null) return true;
+            
+            // Memory-resident store?  Index the portal now, under an ID of its own since the
+            // store is the only writer of the database, and insert it in the background.
+            if (MemoryStore.isEnabled()) {
+                id = PortalIndex.nextId();
+                PortalIndex.portalSaved(this);
+                writeAfterMemoryStoreWrites(() -> {
+                    if (insertIntoDatabase()) return true;
+                    PortalIndex.portalDeleted(id);
+                    return false;
+                });
+                return true;
+            }
+            
+            if (!insertIntoDatabase()) return false;
+            PortalIndex.portalSaved(this);
+            CacheInvalidation.portalSaved(this);
+            return true;
+        } finally {
+            SAVE_LATENCY.recordSince(startNanos);
+            Jfr.endQuery(jfrEvent, SAVE_LATENCY);
+        }
+    }
+    
+    private boolean insertIntoDatabase() {
+        // Get database connection
+        Connection conn = DBManager.getConnection();
+        if (conn == null) return false;
+        
+        // Create insert statement
+        final String sql = "INSERT INTO portals (`id`,`world_uuid`,`min_x`,`min_y`,`min_z`,"+
+                "`max_x`,`max_y`,`max_z`,`jump_id`) VALUES (?,?,?,?,?,?,?,?,?);";
+        try (PreparedStatement ps = conn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)) {
+            // Set statement parameters; a null ID is generated
+            ps.setObject(1, id);
+            ps.setBytes(2, DBManager.UuidToBytes(worldUuid));
+            ps.setInt(3, minX);
+            ps.setInt(4, minY);
+            ps.setInt(5, minZ);
+            ps.setInt(6, maxX);
+            ps.setInt(7, maxY);
+            ps.setInt(8, maxZ);
+            ps.setInt(9, jumpId);
+            
+            // Execute statement, throwing exception if failed
+            if (Jfr.countWritten(ps.executeUpdate()) == 0)
+                throw new SQLException("Failed to insert");
+            
+            // ID given?  Else, set id to the generated key.
+            if (id != null) return true;
+            ResultSet rs = ps.getGeneratedKeys();
+            if (!rs.next()) throw new SQLException("Failed to retrieve generated key");
+            id = rs.getInt(1);
+            return true;
+        } catch (SQLException e) {
+            DBManager.logSevere("Failed to save portal record via insert:\n"+e.toString());
+            return false;
+        }
+    }
+    
+    /**
+     * Queues the write on the database thread, after the writes of the memory-resident
+     * store.  Logs errors.
+     */
+    private static void writeAfterMemoryStoreWrites(BooleanSupplier write) {
+        DBManager.submit(() -> {
+            if (!write.getAsBoolean())
+                DBManager.logSevere("Failed to write portal record from memory");
+            return null;
+        });
+    }
+}
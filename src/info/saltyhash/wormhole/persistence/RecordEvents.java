@@ -0,0 +1,93 @@
+package info.saltyhash.wormhole.persistence;
+
+import info.saltyhash.wormhole.api.*;
+import org.bukkit.Bukkit;
+import org.bukkit.event.Event;
+import org.bukkit.event.HandlerList;
+
+/**
+ * Fires the events of the {@link WormholeService} API from the save and delete paths of
+ * the records.  Events are built only if someone listens for them, and fired only once
+ * the change is committed (see {@link UnitOfWork#afterCommit(Runnable)}).
+ */
+final class RecordEvents {
+    private RecordEvents() {}
+    
+    /** Returns true if a jump update needs the jump as it was, to fire rename or move events. */
+    static boolean wantsOldJump() {
+        return isListened(JumpRenameEvent.getHandlerList()) ||
+                isListened(JumpMoveEvent.getHandlerList());
+    }
+    
+    /**
+     * Fires the events for a saved jump record.
+     * @param oldRecord Jump record as it was before the update, or null if created.
+     */
+    static void jumpSaved(JumpRecord oldRecord, JumpRecord jumpRecord, boolean created) {
+        if (created) {
+            if (isListened(JumpCreateEvent.getHandlerList()))
+                fire(new JumpCreateEvent(toJump(jumpRecord)));
+            return;
+        }
+        if (oldRecord == null) return;
+        Jump jump = toJump(jumpRecord), oldJump = toJump(oldRecord);
+        if (!oldJump.getName().equals(jump.getName()) &&
+                isListened(JumpRenameEvent.getHandlerList()))
+            fire(new JumpRenameEvent(jump, oldJump.getName()));
+        if (!oldJump.isAt(jump) && isListened(JumpMoveEvent.getHandlerList()))
+            fire(new JumpMoveEvent(jump, oldJump));
+    }
+    
+    static void jumpDeleted(JumpRecord jumpRecord) {
+        if (!isListened(JumpDeleteEvent.getHandlerList())) return;
+        fire(new JumpDeleteEvent(toJump(jumpRecord)));
+    }
+    
+    /** @param jumpRecord Jump record the sign points to; null to load it if needed. */
+    static void signSaved(SignRecord signRecord, JumpRecord jumpRecord) {
+        if (!isListened(SignSetEvent.getHandlerList())) return;
+        fire(new SignSetEvent(signRecord.worldUuid, signRecord.x, signRecord.y, signRecord.z,
+                toJump(signRecord, jumpRecord)));
+    }
+    
+    /** @param jumpRecord Jump record the sign pointed to; null to load it if needed. */
+    static void signDeleted(SignRecord signRecord, JumpRecord jumpRecord) {
+        if (!isListened(SignUnsetEvent.getHandlerList())) return;
+        fire(new SignUnsetEvent(signRecord.worldUuid, signRecord.x, signRecord.y, signRecord.z,
+                toJump(signRecord, jumpRecord)));
+    }
+    
+    /** Returns a snapshot of the given jump record, or of the sign's if null, for the API. */
+    private static Jump toJump(SignRecord signRecord, JumpRecord jumpRecord) {
+        if (jumpRecord == null || !Integer.valueOf(signRecord.jumpId).equals(jumpRecord.id))
+            jumpRecord = JumpRecord.loadWithId(signRecord.jumpId);
+        return toJump(jumpRecord);
+    }
+    
+    /**
+     * Returns a snapshot of the jump record for the API, looking up its owner; null if the
+     * record is null.
+     */
+    static Jump toJump(JumpRecord jumpRecord) {
+        if (jumpRecord == null) return null;
+        return toJump(jumpRecord, jumpRecord.getPlayerRecord());
+    }
+    
+    /** Returns a snapshot of the jump record for the API, with the given owner. */
+    static Jump toJump(JumpRecord jumpRecord, PlayerRecord owner) {
+        return new Jump(jumpRecord.id,
+                (owner != null) ? owner.uuid : null, (owner != null) ? owner.username : null,
+                jumpRecord.name, jumpRecord.worldUuid,
+                jumpRecord.x, jumpRecord.y, jumpRecord.z, jumpRecord.yaw);
+    }
+    
+    private static boolean isListened(HandlerList handlers) {
+        // No server (e.g. run headless)?
+        if (Bukkit.getServer() == null) return false;
+        return handlers.getRegisteredListeners().length > 0;
+    }
+    
+    private static void fire(Event event) {
+        UnitOfWork.afterCommit(() -> Bukkit.getPluginManager().callEvent(event));
+    }
+}
\ No newline at end of file
@@ -0,0 +1,139 @@
+package info.saltyhash.wormhole.persistence;
+
+import info.saltyhash.wormhole.api.Jump;
+import info.saltyhash.wormhole.api.WormholeService;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Implements the {@link WormholeService} API with the records.  Lookups answered from
+ * memory (the memory-resident store, or the caches) complete immediately on the calling
+ * thread; the rest are queued on the database thread.
+ */
+public final class RecordService implements WormholeService {
+    @Override
+    public CompletableFuture<Jump> getJump(UUID ownerUuid, String name) {
+        // Memory-resident store?
+        if (MemoryStore.isEnabled())
+            return CompletableFuture.completedFuture(lookUpJump(ownerUuid, name));
+        
+        // Owner's jumps are cached?
+        PlayerRecord owner = getCachedOwner(ownerUuid);
+        List<JumpRecord> cached = (owner != null) ? PlayerCache.getJumps(owner.getId()) : null;
+        if (cached != null) {
+            for (JumpRecord jumpRecord : cached) {
+                if (jumpRecord.name.equals(name)) {
+                    return CompletableFuture.completedFuture(
+                            RecordEvents.toJump(jumpRecord, owner));
+                }
+            }
+            return CompletableFuture.completedFuture(null);
+        }
+        
+        return supplyAsync(() -> lookUpJump(ownerUuid, name));
+    }
+    
+    @Override
+    public CompletableFuture<List<Jump>> getJumps(UUID ownerUuid) {
+        // Memory-resident store?
+        if (MemoryStore.isEnabled())
+            return CompletableFuture.completedFuture(lookUpJumps(ownerUuid));
+        
+        // Owner's jumps are cached?
+        PlayerRecord owner = getCachedOwner(ownerUuid);
+        List<JumpRecord> cached = (owner != null) ? PlayerCache.getJumps(owner.getId()) : null;
+        if (cached != null) return CompletableFuture.completedFuture(toJumps(cached, owner));
+        
+        return supplyAsync(() -> lookUpJumps(ownerUuid));
+    }
+    
+    @Override
+    public CompletableFuture<Jump> getJumpOfSign(UUID worldUuid, int x, int y, int z) {
+        // Memory-resident store?
+        if (MemoryStore.isEnabled())
+            return CompletableFuture.completedFuture(lookUpJumpOfSign(worldUuid, x, y, z));
+        
+        // Sign's chunk is cached, along with the owner of its jump?
+        if (SignCache.isCached(worldUuid, x, z)) {
+            SignRecord signRecord = SignCache.getSign(worldUuid, x, y, z);
+            if (signRecord == null) return CompletableFuture.completedFuture(null);
+            JumpRecord jumpRecord = SignCache.getJump(signRecord.jumpId);
+            PlayerRecord owner = (jumpRecord != null && jumpRecord.playerId != null) ?
+                    PlayerCache.getPlayer(jumpRecord.playerId) : null;
+            if (jumpRecord != null && (jumpRecord.playerId == null || owner != null)) {
+                return CompletableFuture.completedFuture(
+                        RecordEvents.toJump(jumpRecord, owner));
+            }
+        }
+        
+        return supplyAsync(() -> lookUpJumpOfSign(worldUuid, x, y, z));
+    }
+    
+    /*
+     * Lookups through the records; run on the database thread unless in memory
+     */
+    
+    private static Jump lookUpJump(UUID ownerUuid, String name) {
+        Integer playerId = null;    // Assume public
+        if (ownerUuid != null) {
+            PlayerRecord playerRecord = PlayerRecord.load(ownerUuid);
+            if (playerRecord == null) return null;
+            playerId = playerRecord.getId();
+        }
+        return RecordEvents.toJump(JumpRecord.load(playerId, name));
+    }
+    
+    private static List<Jump> lookUpJumps(UUID ownerUuid) {
+        PlayerRecord playerRecord = null;   // Assume public
+        if (ownerUuid != null) {
+            playerRecord = PlayerRecord.load(ownerUuid);
+            if (playerRecord == null) return Collections.emptyList();
+        }
+        List<JumpRecord> jumpRecords = JumpRecord.loadWithPlayerId(
+                (playerRecord != null) ? playerRecord.getId() : null);
+        if (jumpRecords == null) throw new IllegalStateException("Failed to load jump records");
+        return toJumps(jumpRecords, playerRecord);
+    }
+    
+    private static Jump lookUpJumpOfSign(UUID worldUuid, int x, int y, int z) {
+        SignRecord signRecord = SignRecord.load(worldUuid, x, y, z);
+        return (signRecord != null) ? RecordEvents.toJump(signRecord.getJumpRecord()) : null;
+    }
+    
+    /** Returns the cached player record with the given UUID, or null if public or not cached. */
+    private static PlayerRecord getCachedOwner(UUID ownerUuid) {
+        return (ownerUuid != null) ? PlayerCache.getPlayer(ownerUuid) : null;
+    }
+    
+    private static List<Jump> toJumps(List<JumpRecord> jumpRecords, PlayerRecord owner) {
+        List<Jump> jumps = new ArrayList<>(jumpRecords.size());
+        for (JumpRecord jumpRecord : jumpRecords)
+            jumps.add(RecordEvents.toJump(jumpRecord, owner));
+        return jumps;
+    }
+    
+    /** Runs the lookup on the database thread, completing the returned future with its result. */
+    private static <T> CompletableFuture<T> supplyAsync(Callable<T> lookup) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        try {
+            DBManager.submit(() -> {
+                try {
+                    future.complete(lookup.call());
+                } catch (Throwable t) {
+                    future.completeExceptionally(t);
+                }
+                return null;
+            });
+        } catch (RejectedExecutionException e) {
+            // Database thread is shut down
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,366 @@
+package info.saltyhash.wormhole.persistence;
+
+import info.saltyhash.wormhole.metrics.Jfr;
+import info.saltyhash.wormhole.metrics.Metrics;
+import org.bukkit.Chunk;
+import org.bukkit.World;
+
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Caches the sign records, and the jump records they point to, of loaded chunks.
+ * Chunks are cached when they load and evicted when they unload, so memory scales with
+ * the loaded area rather than the total number of signs.  Thread-safe.
+ */
+@SuppressWarnings("WeakerAccess")
+public final class SignCache {
+    /** World UUID -> chunk key -> block key -> sign record. */
+    private static final Map<UUID, Map<Long, Map<Long, SignRecord>>> signs = new HashMap<>();
+    /** Jump ID -> jump record pointed to by at least one cached sign. */
+    private static final Map<Integer, JumpRecord> jumps = new HashMap<>();
+    /** Jump ID -> number of cached signs pointing to the jump. */
+    private static final Map<Integer, Integer> jumpRefCounts = new HashMap<>();
+    /** World UUID -> keys of the chunks whose load is pending; unloading a chunk drops it. */
+    private static final Map<UUID, Set<Long>> expected = new HashMap<>();
+    /** Incremented on every write, so that loads can detect concurrent changes. */
+    private static long writeCount;
+    
+    /** Lookups by the records served, or not, by the cache. */
+    private static final LongAdder hits   = Metrics.counter("cache.sign.hits");
+    private static final LongAdder misses = Metrics.counter("cache.sign.misses");
+    static {
+        Metrics.gauge("cache.sign.hit_ratio", () -> Metrics.hitRatio(hits, misses));
+    }
+    
+    private SignCache() {}
+    
+    /** Returns the key of the chunk with the given chunk coordinates. */
+    public static long getChunkKey(int chunkX, int chunkZ) {
+        return ((long) chunkX << 32) | (chunkZ & 0xFFFFFFFFL);
+    }
+    
+    /** Returns the key of the chunk containing the given block coordinates. */
+    public static long getChunkKeyOfBlock(int x, int z) {
+        return getChunkKey(x >> 4, z >> 4);
+    }
+    
+    /** Returns the key of the block with the given coordinates, unique within its chunk. */
+    private static long getBlockKey(int x, int y, int z) {
+        return ((long) (x & 0xF) << 36) | ((long) (z & 0xF) << 32) | (y & 0xFFFFFFFFL);
+    }
+    
+    /** Empties the cache. */
+    public static synchronized void clear() {
+        signs.clear();
+        jumps.clear();
+        jumpRefCounts.clear();
+        expected.clear();
+    }
+    
+    /** Returns the signs of the chunk, or null if the chunk is not cached. */
+    private static Map<Long, SignRecord> getChunk(UUID worldUuid, long chunkKey) {
+        Map<Long, Map<Long, SignRecord>> worldChunks = signs.get(worldUuid);
+        return (worldChunks != null) ? worldChunks.get(chunkKey) : null;
+    }
+    
+    /** Counts a lookup by a record as a hit if the chunk is cached, else a miss. */
+    static boolean countLookup(boolean cached) {
+        if (cached) {
+            hits.increment();
+        } else {
+            misses.increment();
+            Jfr.cacheMiss("sign");
+        }
+        return cached;
+    }
+    
+    /** Returns true if the chunk containing the given block coordinates is cached. */
+    public static synchronized boolean isCached(UUID worldUuid, int x, int z) {
+        return getChunk(worldUuid, getChunkKeyOfBlock(x, z)) != null;
+    }
+    
+    /**
+     * Returns the cached sign record at the given location.  Only meaningful if the chunk
+     * is cached; check with {@link #isCached(UUID, int, int)} first.
+     * @return Sign record or null if DNE.
+     */
+    static synchronized SignRecord getSign(UUID worldUuid, int x, int y, int z) {
+        Map<Long, SignRecord> chunkSigns = getChunk(worldUuid, getChunkKeyOfBlock(x, z));
+        return (chunkSigns != null) ? chunkSigns.get(getBlockKey(x, y, z)) : null;
+    }
+    
+    /**
+     * Returns the cached jump record with the given ID, or null if not cached.
+     * The record is shared with the cache and must not be modified.
+     */
+    static synchronized JumpRecord getJump(int jumpId) {
+        return jumps.get(jumpId);
+    }
+    
+    /**
+     * Marks the chunk as about to be loaded; call from the main thread before submitting the
+     * load.  If the chunk is unloaded before the load finishes, it caches nothing.
+     */
+    public static void expect(Chunk chunk) {
+        expect(chunk.getWorld().getUID(), getChunkKey(chunk.getX(), chunk.getZ()));
+    }
+    
+    private static synchronized void expect(UUID worldUuid, long chunkKey) {
+        expected.computeIfAbsent(worldUuid, k -> new HashSet<>()).add(chunkKey);
+    }
+    
+    /** Drops the pending load of the chunk, if any, and returns true if there was one. */
+    private static boolean unexpect(UUID worldUuid, long chunkKey) {
+        Set<Long> chunkKeys = expected.get(worldUuid);
+        if (chunkKeys == null || !chunkKeys.remove(chunkKey)) return false;
+        if (chunkKeys.isEmpty()) expected.remove(worldUuid);
+        return true;
+    }
+    
+    /**
+     * Loads the signs of the chunk, and the jumps they point to, into the cache right away.
+     * Logs errors.
+     * @param  isNew true if the chunk was just generated, and so cannot contain any signs.
+     * @return true on success; false on error.
+     */
+    public static boolean loadChunk(Chunk chunk, boolean isNew) {
+        expect(chunk);
+        return loadChunk(chunk.getWorld().getUID(), chunk.getX(), chunk.getZ(), isNew);
+    }
+    
+    /**
+     * Loads the signs of the chunk, and the jumps they point to, into the cache on the
+     * database thread; the chunk is looked up in the database until then.  Call from the
+     * main thread.  A new chunk cannot contain any signs, so it is cached at once.
+     * @param isNew true if the chunk was just generated.
+     */
+    public static void loadChunkLater(Chunk chunk, boolean isNew) {
+        // Memory-resident store holds every sign already?
+        if (MemoryStore.isEnabled()) return;
+        
+        final UUID worldUuid = chunk.getWorld().getUID();
+        final int chunkX = chunk.getX(), chunkZ = chunk.getZ();
+        expect(chunk);
+        if (isNew) {
+            loadChunk(worldUuid, chunkX, chunkZ, true);
+        } else {
+            DBManager.submit(() -> loadChunk(worldUuid, chunkX, chunkZ, false));
+        }
+    }
+    
+    /**
+     * Loads the signs of the chunk with the given coordinates, and the jumps they point to,
+     * into the cache.  Meant to be run on the database thread after {@link #expect(Chunk)};
+     * the chunk is not cached if unloaded since, and is loaded again if a record is written
+     * meanwhile.  Does not use the Bukkit API.  Logs errors.
+     * @param  isNew true if the chunk was just generated, and so cannot contain any signs.
+     * @return true on success; false on error.
+     */
+    public static boolean loadChunk(UUID worldUuid, int chunkX, int chunkZ, boolean isNew) {
+        long chunkKey = getChunkKey(chunkX, chunkZ);
+        
+        // Memory-resident store holds every sign already?
+        if (MemoryStore.isEnabled()) {
+            synchronized (SignCache.class) {
+                unexpect(worldUuid, chunkKey);
+            }
+            return true;
+        }
+        
+        for (int attempt = 0; attempt < 3; attempt++) {
+            // Chunk unloaded before the load ran, or already cached?
+            long writesBefore;
+            synchronized (SignCache.class) {
+                if (!expected.containsKey(worldUuid) ||
+                        !expected.get(worldUuid).contains(chunkKey)) return true;
+                if (getChunk(worldUuid, chunkKey) != null) {
+                    unexpect(worldUuid, chunkKey);
+                    return true;
+                }
+                writesBefore = writeCount;
+            }
+            
+            // Load sign and jump records of the chunk (a new chunk has none)
+            List<SignRecord> signRecords = Collections.emptyList();
+            Map<Integer, JumpRecord> chunkJumps = new HashMap<>();
+            if (!isNew) {
+                signRecords = SignRecord.loadInChunk(worldUuid, chunkX, chunkZ, chunkJumps);
+                if (signRecords == null) {
+                    synchronized (SignCache.class) {
+                        unexpect(worldUuid, chunkKey);
+                    }
+                    return false;
+                }
+            }
+            
+            // Cache the chunk, unless unloaded or something was written while loading
+            synchronized (SignCache.class) {
+                if (writeCount != writesBefore) continue;
+                if (!unexpect(worldUuid, chunkKey)) return true;
+                Map<Long, Map<Long, SignRecord>> worldChunks = signs.get(worldUuid);
+                if (worldChunks == null) signs.put(worldUuid, worldChunks = new HashMap<>());
+                if (worldChunks.containsKey(chunkKey)) return true;
+                Map<Long, SignRecord> chunkSigns = new HashMap<>();
+                for (SignRecord signRecord : signRecords) {
+                    JumpRecord jumpRecord = chunkJumps.get(signRecord.jumpId);
+                    // Orphaned sign record?  Its jump is gone, so cache it as no sign.
+                    if (jumpRecord == null) continue;
+                    chunkSigns.put(
+                            getBlockKey(signRecord.x, signRecord.y, signRecord.z), signRecord);
+                    // Share the jump record already cached, if any
+                    JumpRecord cachedJump = jumps.get(jumpRecord.id);
+                    addJumpRef((cachedJump != null) ? cachedJump : jumpRecord);
+                }
+                worldChunks.put(chunkKey, chunkSigns);
+                return true;
+            }
+        }
+        synchronized (SignCache.class) {
+            unexpect(worldUuid, chunkKey);
+        }
+        DBManager.logWarning("Failed to cache signs in chunk "+chunkX+","+chunkZ+
+                "; too many concurrent writes");
+        return false;
+    }
+    
+    /**
+     * Reloads the cached chunks from the database one at a time, e.g. after missing changes
+     * made by other servers; a chunk being reloaded is looked up in the database meanwhile.
+     * Call from the database thread.  Logs errors.
+     */
+    static void refresh() {
+        Map<UUID, List<Long>> chunkKeys = new HashMap<>();
+        synchronized (SignCache.class) {
+            for (Map.Entry<UUID, Map<Long, Map<Long, SignRecord>>> world : signs.entrySet())
+                chunkKeys.put(world.getKey(), new ArrayList<>(world.getValue().keySet()));
+        }
+        for (Map.Entry<UUID, List<Long>> world : chunkKeys.entrySet()) {
+            for (long chunkKey : world.getValue()) {
+                // Reload the chunk only if still cached, i.e. not unloaded meanwhile
+                synchronized (SignCache.class) {
+                    if (!unloadChunk(world.getKey(), chunkKey)) continue;
+                    expect(world.getKey(), chunkKey);
+                }
+                loadChunk(world.getKey(), (int) (chunkKey >> 32), (int) chunkKey, false);
+            }
+        }
+    }
+    
+    /** Loads all chunks currently loaded in the world into the cache on the database thread. */
+    public static void loadWorld(World world) {
+        for (Chunk chunk : world.getLoadedChunks()) loadChunkLater(chunk, false);
+    }
+    
+    /** Evicts the chunk from the cache. */
+    public static void unloadChunk(Chunk chunk) {
+        unloadChunk(chunk.getWorld().getUID(), getChunkKey(chunk.getX(), chunk.getZ()));
+    }
+    
+    /**
+     * Evicts the chunk with the given key from the cache, and drops its pending load.
+     * @return true if the chunk was cached.
+     */
+    private static synchronized boolean unloadChunk(UUID worldUuid, long chunkKey) {
+        unexpect(worldUuid, chunkKey);
+        Map<Long, Map<Long, SignRecord>> worldChunks = signs.get(worldUuid);
+        if (worldChunks == null) return false;
+        Map<Long, SignRecord> chunkSigns = worldChunks.remove(chunkKey);
+        if (chunkSigns == null) return false;
+        for (SignRecord signRecord : chunkSigns.values()) removeJumpRef(signRecord.jumpId);
+        if (worldChunks.isEmpty()) signs.remove(worldUuid);
+        return true;
+    }
+    
+    /** Evicts all chunks of the world from the cache. */
+    public static synchronized void unloadWorld(World world) {
+        expected.remove(world.getUID());
+        Map<Long, Map<Long, SignRecord>> worldChunks = signs.remove(world.getUID());
+        if (worldChunks == null) return;
+        for (Map<Long, SignRecord> chunkSigns : worldChunks.values())
+            for (SignRecord signRecord : chunkSigns.values()) removeJumpRef(signRecord.jumpId);
+    }
+    
+    private static void addJumpRef(JumpRecord jumpRecord) {
+        Integer refCount = jumpRefCounts.get(jumpRecord.id);
+        jumpRefCounts.put(jumpRecord.id, (refCount != null) ? refCount+1 : 1);
+        if (refCount == null) jumps.put(jumpRecord.id, jumpRecord);
+    }
+    
+    private static void removeJumpRef(int jumpId) {
+        Integer refCount = jumpRefCounts.get(jumpId);
+        if (refCount == null) return;
+        if (refCount > 1) {
+            jumpRefCounts.put(jumpId, refCount-1);
+        } else {
+            jumpRefCounts.remove(jumpId);
+            jumps.remove(jumpId);
+        }
+    }
+    
+    /* <Write-Through Hooks> */
+    
+    /**
+     * Called after the sign record is saved to the database.
+     * @param jumpRecord Jump record the sign points to, or null if DNE (the sign is not
+     *                   cached then).
+     */
+    static synchronized void signSaved(SignRecord signRecord, JumpRecord jumpRecord) {
+        writeCount++;
+        Map<Long, SignRecord> chunkSigns = getChunk(
+                signRecord.worldUuid, getChunkKeyOfBlock(signRecord.x, signRecord.z));
+        if (chunkSigns == null || jumpRecord == null) return;
+        SignRecord previous = chunkSigns.put(
+                getBlockKey(signRecord.x, signRecord.y, signRecord.z), signRecord);
+        if (previous != null) removeJumpRef(previous.jumpId);
+        // Share the jump record already cached, if any
+        JumpRecord cachedJump = jumps.get(jumpRecord.id);
+        addJumpRef((cachedJump != null) ? cachedJump : jumpRecord.copy());
+    }
+    
+    /** Called after the sign record is deleted from the database. */
+    static synchronized void signDeleted(SignRecord signRecord) {
+        writeCount++;
+        Map<Long, SignRecord> chunkSigns = getChunk(
+                signRecord.worldUuid, getChunkKeyOfBlock(signRecord.x, signRecord.z));
+        if (chunkSigns == null) return;
+        SignRecord removed = chunkSigns.remove(
+                getBlockKey(signRecord.x, signRecord.y, signRecord.z));
+        if (removed != null) removeJumpRef(removed.jumpId);
+    }
+    
+    /** Called after the jump record is updated in the database. */
+    static synchronized void jumpSaved(JumpRecord jumpRecord) {
+        writeCount++;
+        if (jumps.containsKey(jumpRecord.id)) jumps.put(jumpRecord.id, jumpRecord.copy());
+    }
+    
+    /** Called after the jump record, and so all signs pointing to it, is deleted. */
+    static synchronized void jumpDeleted(int jumpId) {
+        writeCount++;
+        if (!jumps.containsKey(jumpId)) return;
+        for (Map<Long, Map<Long, SignRecord>> worldChunks : signs.values()) {
+            for (Map<Long, SignRecord> chunkSigns : worldChunks.values()) {
+                Iterator<SignRecord> it = chunkSigns.values().iterator();
+                while (it.hasNext()) {
+                    if (it.next().jumpId == jumpId) it.remove();
+                }
+            }
+        }
+        jumpRefCounts.remove(jumpId);
+        jumps.remove(jumpId);
+    }
+    
+    /** Called after the player record, and so all their jumps and signs, is deleted. */
+    static synchronized void playerDeleted(int playerId) {
+        writeCount++;
+        List<Integer> jumpIds = new ArrayList<>();
+        for (JumpRecord jumpRecord : jumps.values()) {
+            if (jumpRecord.playerId != null && jumpRecord.playerId == playerId)
+                jumpIds.add(jumpRecord.id);
+        }
+        for (int jumpId : jumpIds) jumpDeleted(jumpId);
+    }
+    
+    /* </Write-Through Hooks> */
+}
\ No newline at end of file
@@ -1,8 +1,14 @@
 package info.saltyhash.wormhole.persistence;
 
+import info.saltyhash.wormhole.metrics.Histogram;
+import info.saltyhash.wormhole.metrics.Jfr;
+import info.saltyhash.wormhole.metrics.Metrics;
 import org.bukkit.block.Sign;
 
 import java.sql.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 
 /** Represents a row in the database table 'signs'. */
@@ -15,6 +21,19 @@ public class SignRecord {
     public  int  z;         // Unique with world_uuid, x, and y
     public  int  jumpId;    // References column jumps.id
     
+    /** The sign as loaded or last saved, the "before" of its next update, if logged. */
+    private SignRecord loaded;
+    
+    // Latencies of the queries, whether answered from memory or by the database
+    private static final Histogram DELETE_LATENCY =
+            Metrics.histogram("query.sign.delete");
+    private static final Histogram LOAD_LATENCY =
+            Metrics.histogram("query.sign.load");
+    private static final Histogram LOAD_CHUNK_LATENCY =
+            Metrics.histogram("query.sign.load_chunk");
+    private static final Histogram SAVE_LATENCY =
+            Metrics.histogram("query.sign.save");
+    
     public SignRecord(UUID worldUuid, int x, int y, int z, int jumpId) {
         this.id        = null;
         this.worldUuid = worldUuid;
@@ -28,13 +47,48 @@ public class SignRecord {
         this(sign.getWorld().getUID(), sign.getX(), sign.getY(), sign.getZ(), jumpId);
     }
     
-    private SignRecord(ResultSet rs) throws SQLException {
+    SignRecord(Integer id, UUID worldUuid, int x, int y, int z, int jumpId) {
+        this(worldUuid, x, y, z, jumpId);
+        this.id = id;
+    }
+    
+    SignRecord(ResultSet rs) throws SQLException {
+        Jfr.countRead();
         this.id        = rs.getInt("id");
         this.worldUuid = DBManager.BytesToUuid(rs.getBytes("world_uuid"));
         this.x         = rs.getInt("x");
         this.y         = rs.getInt("y");
         this.z         = rs.getInt("z");
         this.jumpId    = rs.getInt("jump_id");
+        rememberLoaded();
+    }
+    
+    /** Returns a copy of the sign record, as loaded. */
+    SignRecord copy() {
+        SignRecord copy = new SignRecord(id, worldUuid, x, y, z, jumpId);
+        copy.rememberLoaded();
+        return copy;
+    }
+    
+    /**
+     * Remembers the sign as it is now, for the change log of its next update, so that the
+     * update need not load it again; only if the change log is enabled.
+     */
+    private void rememberLoaded() {
+        loaded = ChangeLog.isEnabled() ? new SignRecord(id, worldUuid, x, y, z, jumpId) : null;
+    }
+    
+    /**
+     * Restores the ID and loaded state of the sign if the unit of work saving it is rolled
+     * back, so that it can be saved again.  Call before the write changes them.
+     */
+    private void restoreOnRollback() {
+        final Integer oldId = id;
+        final SignRecord oldLoaded = loaded;
+        UnitOfWork.afterRollback(() -> {
+            id = oldId;
+            loaded = oldLoaded;
+        });
     }
     
     /**
@@ -42,32 +96,93 @@ public class SignRecord {
      * @return true on success (even if record DNE); false on SQL error.
      */
     public boolean delete() {
-        // Get database connection
-        Connection conn = DBManager.getConnection();
-        if (conn == null) return false;
-        
-        // Create delete statement
-        final String sql = "DELETE FROM signs WHERE `id`=?;";
-        try (PreparedStatement ps = conn.prepareStatement(sql)) {
-            // Set statement parameters and execute
-            ps.setInt(1, id);
-            ps.executeUpdate();
-        } catch (SQLException e) {
-            DBManager.logSevere("Failed to delete sign record:\n"+e.toString());
-            return false;
+        return delete(null);
+    }
+    
+    /**
+     * Deletes the sign record from the database.  Logs errors.
+     * @param  jumpRecord Jump record the sign points to, if already loaded, for the events.
+     * @return true on success (even if record DNE); false on SQL error.
+     */
+    public boolean delete(JumpRecord jumpRecord) {
+        long startNanos = DELETE_LATENCY.start();
+        Object jfrEvent = Jfr.beginQuery();
+        try {
+            // Memory-resident store?
+            if (MemoryStore.isEnabled()) {
+                MemoryStore.deleteSign(id);
+                RecordEvents.signDeleted(this, jumpRecord);
+                ChangeLog.signDeleted(this);
+                return true;
+            }
+            
+            // Get database connection
+            Connection conn = DBManager.getConnection();
+            if (conn == null) return false;
+            
+            // Create delete statement
+            final String sql = "DELETE FROM signs WHERE `id`=?;";
+            try (PreparedStatement ps = conn.prepareStatement(sql)) {
+                // Set statement parameters and execute
+                ps.setInt(1, id);
+                Jfr.countWritten(ps.executeUpdate());
+            } catch (SQLException e) {
+                DBManager.logSevere("Failed to delete sign record:\n"+e.toString());
+                return false;
+            }
+            UnitOfWork.afterCommit(() -> SignCache.signDeleted(this));
+            CacheInvalidation.signDeleted(this);
+            RecordEvents.signDeleted(this, jumpRecord);
+            ChangeLog.signDeleted(this);
+            return true;
+        } finally {
+            DELETE_LATENCY.recordSince(startNanos);
+            Jfr.endQuery(jfrEvent, DELETE_LATENCY);
         }
-        return true;
     }
     
+    /** Returns the database ID of the sign record, or null if DNE in database. */
+    public Integer getId() {
+        return id;
+    }
+    
+    /** Returns the jump record the sign points to, or null if DNE or error. */
     public JumpRecord getJumpRecord() {
+        // Jump is cached?
+        JumpRecord jumpRecord = SignCache.getJump(jumpId);
+        if (jumpRecord != null) return jumpRecord.copy();
         return JumpRecord.loadWithId(jumpId);
     }
     
     /**
-     * Gets the sign record from the database.  Logs errors.
+     * Gets the sign record, from the cache if its chunk is loaded, otherwise from the
+     * database.  Logs errors.
      * @return Sign record or null if DNE or error.
      */
     public static SignRecord load(UUID worldUuid, int x, int y, int z) {
+        long startNanos = LOAD_LATENCY.start();
+        Object jfrEvent = Jfr.beginQuery();
+        try {
+            // Memory-resident store?
+            if (MemoryStore.isEnabled()) return MemoryStore.getSign(worldUuid, x, y, z);
+            
+            // Chunk is cached?
+            if (SignCache.countLookup(SignCache.isCached(worldUuid, x, z)))
+                return SignCache.getSign(worldUuid, x, y, z);
+            
+            return loadFromDatabase(worldUuid, x, y, z);
+        } finally {
+            LOAD_LATENCY.recordSince(startNanos);
+            Jfr.endQuery(jfrEvent, LOAD_LATENCY);
+        }
+    }
+    
+    /**
+     * Gets the sign record at the given location from the database, bypassing the cache.
+     * Logs errors.
+     * @return Sign record or null if DNE or error.
+     */
+    static SignRecord loadFromDatabase(UUID worldUuid, int x, int y, int z) {
         // Get database connection
         Connection conn = DBManager.getConnection();
         if (conn == null) return null;
@@ -96,62 +211,174 @@ public class SignRecord {
     }
     
     /**
-     * Saves the sign record to the database.  Logs errors.
-     * @return true on success; false on error.
+     * Gets all sign records in the chunk from the database, along with the jump records
+     * they point to.  Logs errors.
+     * @param  jumpRecords Map to put the jump records pointed to by the signs into, by ID.
+     * @return List of sign records in the chunk (may be empty), or null on error.
      */
-    public boolean save() {
-        // Get database connection
-        Connection conn = DBManager.getConnection();
-        if (conn == null) return false;
-        
-        // ID != null ==> the record already exists in the database ==> do UPDATE
-        if (id != null) {
-            // Create update statement
-            final String sql = "UPDATE signs SET `jump_id`=?,`world_uuid`=?,`x`=?,`y`=?,`z`=? "+
-                    "WHERE `id`=?;";
-            try (PreparedStatement ps = conn.prepareStatement(sql)) {
-                // Set statement parameters and execute, returning success
-                ps.setInt(1, jumpId);
-                ps.setBytes(2, DBManager.UuidToBytes(worldUuid));
-                ps.setInt(3, x);
-                ps.setInt(4, y);
-                ps.setInt(5, z);
-                ps.setInt(6, id);
-                return (ps.executeUpdate() > 0);
+    static List<SignRecord> loadInChunk(UUID worldUuid, int chunkX, int chunkZ,
+                                        Map<Integer, JumpRecord> jumpRecords) {
+        long startNanos = LOAD_CHUNK_LATENCY.start();
+        Object jfrEvent = Jfr.beginQuery();
+        try {
+            // Get database connection
+            Connection conn = DBManager.getConnection();
+            if (conn == null) return null;
+            
+            // Create statements
+            final String signsSql = "SELECT * FROM signs WHERE `world_uuid`=? AND `chunk_key`=?;";
+            final String jumpsSql = "SELECT * FROM jumps WHERE `id` IN "+
+                    "(SELECT `jump_id` FROM signs WHERE `world_uuid`=? AND `chunk_key`=?);";
+            try (PreparedStatement signsPs = conn.prepareStatement(signsSql);
+                 PreparedStatement jumpsPs = conn.prepareStatement(jumpsSql)) {
+                byte[] worldUuidBytes = DBManager.UuidToBytes(worldUuid);
+                long   chunkKey       = SignCache.getChunkKey(chunkX, chunkZ);
+                
+                // Get sign records in the chunk
+                signsPs.setBytes(1, worldUuidBytes);
+                signsPs.setLong(2, chunkKey);
+                ResultSet rs = signsPs.executeQuery();
+                List<SignRecord> signRecords = new ArrayList<>();
+                while (rs.next())
+                    signRecords.add(new SignRecord(rs));
+                rs.close();
+                if (signRecords.isEmpty()) return signRecords;
+                
+                // Get jump records pointed to by the signs
+                jumpsPs.setBytes(1, worldUuidBytes);
+                jumpsPs.setLong(2, chunkKey);
+                rs = jumpsPs.executeQuery();
+                while (rs.next()) {
+                    JumpRecord jumpRecord = new JumpRecord(rs);
+                    jumpRecords.put(jumpRecord.id, jumpRecord);
+                }
+                rs.close();
+                return signRecords;
             } catch (SQLException e) {
-                DBManager.logSevere("Failed to save sign record via update:\n"+e.toString());
-                return false;
+                DBManager.logSevere("Failed to load sign records in chunk:\n"+e.toString());
+                return null;
             }
+        } finally {
+            LOAD_CHUNK_LATENCY.recordSince(startNanos);
+            Jfr.endQuery(jfrEvent, LOAD_CHUNK_LATENCY);
         }
-        // ID == null ==> the record does not exist in the database ==> do INSERT
-        else {
-            // Create insert statement
-            final String sql = "INSERT INTO signs "+
-                    "(`world_uuid`,`x`,`y`,`z`,`jump_id`) VALUES (?,?,?,?,?);";
-            try (PreparedStatement ps = conn.prepareStatement(
-                    sql, Statement.RETURN_GENERATED_KEYS)) {
-                // Set statement parameters and execute, returning success or failure
-                ps.setBytes(1, DBManager.UuidToBytes(worldUuid));
-                ps.setInt(2, x);
-                ps.setInt(3, y);
-                ps.setInt(4, z);
-                ps.setInt(5, jumpId);
-                
-                // Execute statement, throwing exception if failed
-                if (ps.executeUpdate() == 0) throw new SQLException("Failed to insert");
-                
-                // Set id to the generated key
-                ResultSet rs = ps.getGeneratedKeys();
-                if (rs.next()) {
-                    id = rs.getInt(1);
+    }
+    
+    /**
+     * Saves the sign record to the database.  Logs errors, except duplicates in a
+     * {@link UnitOfWork}.
+     * @return true on success; false on error.
+     */
+    public boolean save() {
+        return save(null);
+    }
+    
+    /**
+     * Saves the sign record to the database.  Logs errors, except duplicates in a
+     * {@link UnitOfWork}.
+     * @param  jumpRecord Jump record the sign points to, if already loaded, for the events.
+     * @return true on success; false on error.
+     */
+    public boolean save(JumpRecord jumpRecord) {
+        long startNanos = SAVE_LATENCY.start();
+        Object jfrEvent = Jfr.beginQuery();
+        try {
+            // Get the sign as it was, for the change log; signs are only updated in place
+            boolean created = (id == null);
+            SignRecord oldRecord = !created ? loaded : null;
+            
+            // Memory-resident store?
+            if (MemoryStore.isEnabled()) {
+                Integer savedId = MemoryStore.saveSign(this);
+                if (savedId == null) return false;
+                id = savedId;
+                rememberLoaded();
+                RecordEvents.signSaved(this, jumpRecord);
+                ChangeLog.signSaved(oldRecord, this, created);
+                return true;
+            }
+            
+            // Get database connection
+            Connection conn = DBManager.getConnection();
+            if (conn == null) return false;
+            
+            // ID != null ==> the record already exists in the database ==> do UPDATE
+            if (id != null) {
+                // Create update statement
+                final String sql = "UPDATE signs SET `jump_id`=?,`world_uuid`=?,`x`=?,`y`=?,`z`=?,"+
+                        "`chunk_key`=? WHERE `id`=?;";
+                try (PreparedStatement ps = conn.prepareStatement(sql)) {
+                    // Set statement parameters and execute, returning success
+                    ps.setInt(1, jumpId);
+                    ps.setBytes(2, DBManager.UuidToBytes(worldUuid));
+                    ps.setInt(3, x);
+                    ps.setInt(4, y);
+                    ps.setInt(5, z);
+                    ps.setLong(6, SignCache.getChunkKeyOfBlock(x, z));
+                    ps.setInt(7, id);
+                    if (Jfr.countWritten(ps.executeUpdate()) == 0) return false;
+                    restoreOnRollback();
+                    rememberLoaded();
+                    UnitOfWork.afterCommit(this::updateCache);
+                    CacheInvalidation.signSaved(this);
+                    RecordEvents.signSaved(this, jumpRecord);
+                    ChangeLog.signSaved(oldRecord, this, created);
                     return true;
-                } else {
-                    throw new SQLException("Failed to retrieve generated key");
+                } catch (SQLException e) {
+                    if (UnitOfWork.failed(e)) return false;
+                    DBManager.logSevere("Failed to save sign record via update:\n"+e.toString());
+                    return false;
                 }
-            } catch (SQLException e) {
-                DBManager.logSevere("Failed to save sign record via insert:\n"+e.toString());
-                return false;
             }
+            // ID == null ==> the record does not exist in the database ==> do INSERT
+            else {
+                // Create insert statement
+                final String sql = "INSERT INTO signs "+
+                        "(`world_uuid`,`x`,`y`,`z`,`jump_id`,`chunk_key`) VALUES (?,?,?,?,?,?);";
+                try (PreparedStatement ps = conn.prepareStatement(
+                        sql, Statement.RETURN_GENERATED_KEYS)) {
+                    // Set statement parameters and execute, returning success or failure
+                    ps.setBytes(1, DBManager.UuidToBytes(worldUuid));
+                    ps.setInt(2, x);
+                    ps.setInt(3, y);
+                    ps.setInt(4, z);
+                    ps.setInt(5, jumpId);
+                    ps.setLong(6, SignCache.getChunkKeyOfBlock(x, z));
+                    
+                    // Execute statement, throwing exception if failed
+                    if (Jfr.countWritten(ps.executeUpdate()) == 0)
+                        throw new SQLException("Failed to insert");
+                    
+                    // Set id to the generated key
+                    ResultSet rs = ps.getGeneratedKeys();
+                    if (rs.next()) {
+                        restoreOnRollback();
+                        id = rs.getInt(1);
+                        rememberLoaded();
+                        UnitOfWork.afterCommit(this::updateCache);
+                        CacheInvalidation.signSaved(this);
+                        RecordEvents.signSaved(this, jumpRecord);
+                        ChangeLog.signSaved(oldRecord, this, created);
+                        return true;
+                    } else {
+                        throw new SQLException("Failed to retrieve generated key");
+                    }
+                } catch (SQLException e) {
+                    if (UnitOfWork.failed(e)) return false;
+                    DBManager.logSevere("Failed to save sign record via insert:\n"+e.toString());
+                    return false;
+                }
+            }
+        } finally {
+            SAVE_LATENCY.recordSince(startNanos);
+            Jfr.endQuery(jfrEvent, SAVE_LATENCY);
         }
     }
+    
+    /** Puts the saved sign record into the cache if its chunk is cached. */
+    private void updateCache() {
+        // Let a pending load of the chunk know, even if it is not cached yet
+        JumpRecord jumpRecord = SignCache.isCached(worldUuid, x, z) ? getJumpRecord() : null;
+        SignCache.signSaved(this, jumpRecord);
+    }
 }
\ No newline at end of file
@@ -0,0 +1,494 @@
+package info.saltyhash.wormhole.persistence;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.*;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Binary snapshot of the memory-resident store (see {@link MemoryStore}), plus an
+ * append-only journal of the writes made since the snapshot, so the store can be loaded at
+ * startup without decoding every row of the database.
+ *
+ * Every write persisted by the store bumps a sequence number, which the database keeps in
+ * table 'memory_store' in the same transaction as the write.  The snapshot is stamped with
+ * the sequence number it was taken at, and each journal entry with that of its write.
+ * A snapshot plus journal is only loaded if it has a valid checksum and ends at the
+ * sequence number of the database; otherwise the store is rebuilt from the database.
+ *
+ * Snapshot format: magic, format version, sequence number, world UUIDs, players, jumps,
+ * and signs (jumps and signs refer to worlds by index), then a CRC32 of all of the above.
+ * Journal format: magic and the sequence number of its snapshot, then entries of length,
+ * CRC32, and payload (sequence number, operation, and record or ID).
+ *
+ * Call from the database thread.
+ */
+public final class StoreSnapshot {
+    private static final int  SNAPSHOT_MAGIC = 0x57485350; // "WHSP"
+    private static final int  JOURNAL_MAGIC  = 0x57484A4C; // "WHJL"
+    private static final int  FORMAT_VERSION = 2;
+    
+    // Journal operations
+    static final byte PUT_PLAYER = 1, DELETE_PLAYER = 2;
+    static final byte PUT_JUMP   = 3, DELETE_JUMP   = 4;
+    static final byte PUT_SIGN   = 5, DELETE_SIGN   = 6;
+    
+    /** Journal being appended to, or null if not journaling. */
+    private static DataOutputStream journal;
+    /** Sequence number of the snapshot the journal follows. */
+    private static long journalBaseSeq;
+    /** True if a write failed, in which case no snapshot is taken until restart. */
+    private static boolean broken = false;
+    
+    private StoreSnapshot() {}
+    
+    private static File getSnapshotFile() {
+        File dbFile = DBManager.getDbFile();
+        return new File(dbFile.getParentFile(), "Wormhole.snapshot");
+    }
+    
+    private static File getJournalFile() {
+        File dbFile = DBManager.getDbFile();
+        return new File(dbFile.getParentFile(), "Wormhole.journal");
+    }
+    
+    /**
+     * Gets the sequence number of the last write persisted by the memory-resident store,
+     * creating table 'memory_store' if needed.
+     */
+    static long readSeq(Connection conn) throws SQLException {
+        try (Statement s = conn.createStatement()) {
+            s.executeUpdate("CREATE TABLE IF NOT EXISTS memory_store ("+
+                    "`id` INTEGER PRIMARY KEY CHECK (`id`=0), `seq` INTEGER NOT NULL);");
+            s.executeUpdate("INSERT OR IGNORE INTO memory_store (`id`,`seq`) VALUES (0,0);");
+            ResultSet rs = s.executeQuery("SELECT `seq` FROM memory_store WHERE `id`=0;");
+            if (!rs.next()) throw new SQLException("Failed to read store sequence number");
+            return rs.getLong(1);
+        }
+    }
+    
+    /**
+     * Loads the snapshot and replays the journal into the memory-resident store, and
+     * enables the store.  Logs errors.
+     * @return true on success; false if there is no valid snapshot matching the database,
+     *         in which case the store must be rebuilt from the database.
+     */
+    public static synchronized boolean load() {
+        long start = System.nanoTime();
+        closeJournal();
+        File snapshotFile = getSnapshotFile();
+        File journalFile  = getJournalFile();
+        if (!snapshotFile.isFile()) return false;
+        
+        // Get database connection
+        Connection conn = DBManager.getConnection();
+        if (conn == null) return false;
+        
+        long snapshotSeq, seq, journalEnd;
+        int  replayed = 0;
+        try {
+            long dbSeq = readSeq(conn);
+            
+            // Load the snapshot
+            try (FileChannel channel = FileChannel.open(
+                    snapshotFile.toPath(), StandardOpenOption.READ)) {
+                MappedByteBuffer in = channel.map(
+                        FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                snapshotSeq = seq = readSnapshot(in);
+            }
+            
+            // Replay the journal
+            journalEnd = 0;
+            if (journalFile.isFile()) {
+                try (FileChannel channel = FileChannel.open(
+                        journalFile.toPath(), StandardOpenOption.READ)) {
+                    MappedByteBuffer in = channel.map(
+                            FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                    if (in.remaining() < 12 || in.getInt() != JOURNAL_MAGIC)
+                        throw new IOException("Journal is corrupt");
+                    if (in.getLong() != seq)
+                        throw new IOException("Journal does not follow snapshot");
+                    journalEnd = in.position();
+                    while (in.remaining() >= 8) {
+                        int length = in.getInt();
+                        int crc    = in.getInt();
+                        if (length < 9 || length > in.remaining()) break; // Torn entry
+                        ByteBuffer entry = in.slice();
+                        entry.limit(length);
+                        if (crc != crc(entry.duplicate())) break;
+                        long entrySeq = entry.getLong();
+                        if (entrySeq != seq+1) break;
+                        replay(entry);
+                        seq = entrySeq;
+                        replayed++;
+                        in.position(in.position()+length);
+                        journalEnd = in.position();
+                    }
+                }
+            }
+            
+            // Snapshot and journal must end where the database does
+            if (seq != dbSeq) {
+                throw new IOException("Snapshot is at write "+seq+
+                        " but database is at write "+dbSeq);
+            }
+        } catch (IOException | SQLException | RuntimeException e) {
+            DBManager.logWarning("Failed to load store snapshot; rebuilding from database:\n"+
+                    e.toString());
+            MemoryStore.unload();
+            delete();
+            return false;
+        }
+        
+        // Continue the journal after its last valid entry
+        try {
+            if (journalEnd == 0) {
+                openJournal(seq);
+            } else {
+                try (FileChannel channel = FileChannel.open(
+                        journalFile.toPath(), StandardOpenOption.WRITE)) {
+                    channel.truncate(journalEnd);
+                }
+                journal = new DataOutputStream(new BufferedOutputStream(
+                        new FileOutputStream(journalFile, true)));
+                journalBaseSeq = snapshotSeq;
+            }
+        } catch (IOException e) {
+            DBManager.logWarning("Failed to open store journal:\n"+e.toString());
+        }
+        
+        MemoryStore.enable(seq);
+        MemoryStore.logJumpFootprint();
+        DBManager.logInfo(String.format("Loaded store snapshot and %d journal entries "+
+                "in %.1f ms", replayed, (System.nanoTime()-start)/1e6));
+        return true;
+    }
+    
+    /**
+     * Reads the snapshot into the memory-resident store, without enabling it.
+     * @return Sequence number of the snapshot.
+     */
+    private static long readSnapshot(ByteBuffer in) throws IOException {
+        // Verify the checksum
+        if (in.remaining() < 28) throw new IOException("Snapshot is corrupt");
+        ByteBuffer body = in.duplicate();
+        body.limit(in.limit()-8);
+        // The snapshot stores the CRC32 as an unsigned long; crc() returns it as an int
+        if ((crc(body) & 0xffffffffL) != in.getLong(in.limit()-8))
+            throw new IOException("Snapshot checksum does not match");
+        if (in.getInt() != SNAPSHOT_MAGIC) throw new IOException("Snapshot is corrupt");
+        int version = in.getInt();
+        if (version != FORMAT_VERSION)
+            throw new IOException("Snapshot format "+version+" is not supported");
+        long seq = in.getLong();
+        
+        // Read the worlds, players, jumps, and signs
+        UUID[] worlds = new UUID[in.getInt()];
+        for (int i = 0; i < worlds.length; i++) worlds[i] = readUuid(in);
+        int count = in.getInt();
+        List<PlayerRecord> players = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) players.add(readPlayer(in));
+        count = in.getInt();
+        JumpColumns jumps = new JumpColumns(count);
+        for (int i = 0; i < count; i++) readJump(in, worlds, jumps);
+        count = in.getInt();
+        List<SignRecord> signs = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) signs.add(readSign(in, worlds));
+        MemoryStore.restore(players, jumps, signs);
+        return seq;
+    }
+    
+    /** Applies the journal entry, positioned after its sequence number, to the store. */
+    private static void replay(ByteBuffer entry) throws IOException {
+        byte op = entry.get();
+        switch (op) {
+            case PUT_PLAYER:    MemoryStore.replayPut(readPlayer(entry));     break;
+            case PUT_JUMP:      MemoryStore.replayPut(readJump(entry));       break;
+            case PUT_SIGN:      MemoryStore.replayPut(readSign(entry, null)); break;
+            case DELETE_PLAYER:
+            case DELETE_JUMP:
+            case DELETE_SIGN:   MemoryStore.replayDelete(op, entry.getInt()); break;
+            default: throw new IOException("Journal entry has unknown operation "+op);
+        }
+    }
+    
+    /**
+     * Writes a snapshot of the memory-resident store, and starts a new journal.
+     * Does nothing if the store is not enabled, or if a write failed since it was loaded.
+     * Logs errors.
+     * @return true on success; false on error or if nothing was done.
+     */
+    public static synchronized boolean compact() {
+        if (!MemoryStore.isEnabled() || broken) return false;
+        long start = System.nanoTime();
+        File snapshotFile = getSnapshotFile();
+        File partFile     = new File(snapshotFile.getPath()+".part");
+        
+        // Copy the record lists (the records themselves are never modified by the store) and
+        // the jump columns
+        List<PlayerRecord> players = new ArrayList<>();
+        List<SignRecord>   signs   = new ArrayList<>();
+        JumpColumns jumps;
+        long seq;
+        synchronized (MemoryStore.class) {
+            seq   = MemoryStore.copyTo(players, signs);
+            jumps = MemoryStore.copyJumps();
+        }
+        JumpColumns.View jump = jumps.view();
+        
+        // Index the worlds
+        Map<UUID, Integer> worlds = new LinkedHashMap<>();
+        for (int row = 0; row < jumps.size(); row++)
+            worlds.putIfAbsent(jump.moveTo(row).getWorldUuid(), worlds.size());
+        for (SignRecord signRecord : signs) worlds.putIfAbsent(signRecord.worldUuid, worlds.size());
+        
+        // Write the snapshot to a temporary file, then move it into place
+        try (FileOutputStream file = new FileOutputStream(partFile)) {
+            CRC32 crc = new CRC32();
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    new CheckedOutputStream(file, crc), 1 << 16));
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeLong(seq);
+            out.writeInt(worlds.size());
+            for (UUID worldUuid : worlds.keySet()) writeUuid(out, worldUuid);
+            out.writeInt(players.size());
+            for (PlayerRecord playerRecord : players) writePlayer(out, playerRecord);
+            out.writeInt(jumps.size());
+            for (int row = 0; row < jumps.size(); row++) writeJump(out, jump.moveTo(row), worlds);
+            out.writeInt(signs.size());
+            for (SignRecord signRecord : signs) writeSign(out, signRecord, worlds);
+            out.flush();
+            out.writeLong(crc.getValue());
+            out.flush();
+            file.getFD().sync();
+        } catch (IOException e) {
+            DBManager.logSevere("Failed to write store snapshot:\n"+e.toString());
+            partFile.delete();
+            return false;
+        }
+        try {
+            // The old journal no longer follows the snapshot once it is replaced
+            closeJournal();
+            Files.deleteIfExists(getJournalFile().toPath());
+            Files.move(partFile.toPath(), snapshotFile.toPath(),
+                    StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            openJournal(seq);
+        } catch (IOException e) {
+            DBManager.logSevere("Failed to replace store snapshot:\n"+e.toString());
+            delete();
+            return false;
+        }
+        
+        DBManager.logInfo(String.format("Wrote store snapshot of %d players, %d jumps, and "+
+                "%d signs (%d KiB) in %.1f ms", players.size(), jumps.size(), signs.size(),
+                snapshotFile.length()/1024, (System.nanoTime()-start)/1e6));
+        return true;
+    }
+    
+    /** Starts a new, empty journal following the snapshot with the given sequence number. */
+    private static void openJournal(long seq) throws IOException {
+        closeJournal();
+        journal = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(getJournalFile())));
+        journal.writeInt(JOURNAL_MAGIC);
+        journal.writeLong(seq);
+        journal.flush();
+        journalBaseSeq = seq;
+    }
+    
+    /**
+     * Appends the persisted write to the journal; call once the write is committed.
+     * Writes already in the snapshot are ignored.
+     */
+    static synchronized void append(long seq, byte[] entry) {
+        if (journal == null || seq <= journalBaseSeq) return;
+        try {
+            ByteBuffer payload = ByteBuffer.allocate(8+entry.length);
+            payload.putLong(seq).put(entry).flip();
+            journal.writeInt(payload.remaining());
+            journal.writeInt(crc(payload.duplicate()));
+            journal.write(payload.array());
+            journal.flush();
+        } catch (IOException e) {
+            DBManager.logSevere("Failed to append to store journal:\n"+e.toString());
+            delete();
+        }
+    }
+    
+    /**
+     * Deletes the snapshot and journal for the rest of the session; called when a write
+     * fails to persist, so the memory no longer matches the database.
+     */
+    static synchronized void invalidate() {
+        broken = true;
+        delete();
+    }
+    
+    /** Flushes and closes the journal. */
+    public static synchronized void close() {
+        closeJournal();
+        broken = false;
+    }
+    
+    /**
+     * Deletes the snapshot and journal, so the next load rebuilds the store from the
+     * database.  Call before writing to the database other than through the store.
+     */
+    public static synchronized void delete() {
+        closeJournal();
+        getSnapshotFile().delete();
+        getJournalFile().delete();
+    }
+    
+    private static void closeJournal() {
+        if (journal == null) return;
+        try {
+            journal.close();
+        } catch (IOException e) {
+            DBManager.logWarning("Failed to close store journal:\n"+e.toString());
+        }
+        journal = null;
+    }
+    
+    /*
+     * Encoding
+     */
+    
+    /** Encodes the journal entry for the operation on the record or ID. */
+    static byte[] encode(byte op, Object recordOrId) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeByte(op);
+            if (recordOrId instanceof PlayerRecord)
+                writePlayer(out, (PlayerRecord) recordOrId);
+            else if (recordOrId instanceof JumpRecord)
+                writeJump(out, (JumpRecord) recordOrId, null);
+            else if (recordOrId instanceof SignRecord)
+                writeSign(out, (SignRecord) recordOrId, null);
+            else
+                out.writeInt((Integer) recordOrId);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // Cannot happen with a byte array
+        }
+        return bytes.toByteArray();
+    }
+    
+    private static int crc(ByteBuffer buffer) {
+        CRC32 crc = new CRC32();
+        crc.update(buffer);
+        return (int) crc.getValue();
+    }
+    
+    private static void writeUuid(DataOutput out, UUID uuid) throws IOException {
+        out.writeLong(uuid.getMostSignificantBits());
+        out.writeLong(uuid.getLeastSignificantBits());
+    }
+    
+    private static UUID readUuid(ByteBuffer in) {
+        return new UUID(in.getLong(), in.getLong());
+    }
+    
+    private static void writeString(DataOutput out, String string) throws IOException {
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        out.writeShort(bytes.length);
+        out.write(bytes);
+    }
+    
+    private static String readString(ByteBuffer in) {
+        byte[] bytes = new byte[in.getShort() & 0xffff];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+    
+    /** Writes the world UUID, or its index if the worlds are indexed. */
+    private static void writeWorld(DataOutput out, UUID worldUuid, Map<UUID, Integer> worlds)
+            throws IOException {
+        if (worlds != null) out.writeInt(worlds.get(worldUuid));
+        else                writeUuid(out, worldUuid);
+    }
+    
+    private static UUID readWorld(ByteBuffer in, UUID[] worlds) {
+        return (worlds != null) ? worlds[in.getInt()] : readUuid(in);
+    }
+    
+    private static void writePlayer(DataOutput out, PlayerRecord r) throws IOException {
+        out.writeInt(r.getId());
+        writeUuid(out, r.uuid);
+        writeString(out, r.username);
+    }
+    
+    private static PlayerRecord readPlayer(ByteBuffer in) {
+        return new PlayerRecord(in.getInt(), readUuid(in), readString(in));
+    }
+    
+    private static void writeJump(DataOutput out, JumpRecord r, Map<UUID, Integer> worlds)
+            throws IOException {
+        out.writeInt(r.id);
+        out.writeInt((r.playerId != null) ? r.playerId : JumpColumns.NONE);
+        writeString(out, r.name);
+        writeWorld(out, r.worldUuid, worlds);
+        out.writeDouble(r.x);
+        out.writeDouble(r.y);
+        out.writeDouble(r.z);
+        out.writeFloat(r.yaw);
+        out.writeInt(r.version);
+    }
+    
+    private static void writeJump(DataOutput out, JumpColumns.View r, Map<UUID, Integer> worlds)
+            throws IOException {
+        out.writeInt(r.getId());
+        out.writeInt(r.getOwnerId());
+        writeString(out, r.getName());
+        writeWorld(out, r.getWorldUuid(), worlds);
+        out.writeDouble(r.getX());
+        out.writeDouble(r.getY());
+        out.writeDouble(r.getZ());
+        out.writeFloat(r.getYaw());
+        out.writeInt(r.getVersion());
+    }
+    
+    /** Reads a jump of the snapshot straight into the columns. */
+    private static void readJump(ByteBuffer in, UUID[] worlds, JumpColumns jumps) {
+        jumps.put(in.getInt(), in.getInt(), readString(in), readWorld(in, worlds),
+                in.getDouble(), in.getDouble(), in.getDouble(), in.getFloat(), in.getInt());
+    }
+    
+    /** Reads a jump of the journal. */
+    private static JumpRecord readJump(ByteBuffer in) {
+        int id       = in.getInt();
+        int playerId = in.getInt();
+        JumpRecord r = new JumpRecord((playerId >= 0) ? playerId : null, readString(in),
+                readUuid(in), in.getDouble(), in.getDouble(), in.getDouble(), in.getFloat());
+        r.id = id;
+        r.version = in.getInt();
+        return r;
+    }
+    
+    private static void writeSign(DataOutput out, SignRecord r, Map<UUID, Integer> worlds)
+            throws IOException {
+        out.writeInt(r.getId());
+        writeWorld(out, r.worldUuid, worlds);
+        out.writeInt(r.x);
+        out.writeInt(r.y);
+        out.writeInt(r.z);
+        out.writeInt(r.jumpId);
+    }
+    
+    private static SignRecord readSign(ByteBuffer in, UUID[] worlds) {
+        return new SignRecord(in.getInt(), readWorld(in, worlds),
+                in.getInt(), in.getInt(), in.getInt(), in.getInt());
+    }
+}
\ No newline at end of file
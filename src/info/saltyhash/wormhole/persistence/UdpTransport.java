@@ -0,0 +1,99 @@
+package info.saltyhash.wormhole.persistence;
+
+import java.io.IOException;
+import java.net.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * Transport that sends each message as a UDP datagram to every peer, and listens for the
+ * datagrams of the peers on an address and port of its own.  Datagrams from anyone but
+ * the peers are dropped.  With the default address and peers on the loopback address, it
+ * connects servers that run on the same machine.
+ */
+public final class UdpTransport implements InvalidationTransport {
+    /** Largest message; messages are far smaller. */
+    private static final int MAX_MESSAGE_SIZE = 1024;
+    
+    private final InetSocketAddress address;
+    private final List<InetSocketAddress> peers;
+    /** Addresses the peers send from, which are the addresses they listen on. */
+    private final Set<InetSocketAddress> peerSet;
+    private DatagramSocket socket;
+    private Thread listener;
+    
+    /**
+     * @param address Address to listen on, e.g. "127.0.0.1", or that of this server on the
+     *                network shared with the peers.
+     * @param port    Port to listen on.
+     * @param peers   Addresses of the other servers, as "host:port" or just "port" for the
+     *                loopback address.
+     * @throws IllegalArgumentException if the address or a peer address is invalid.
+     */
+    public UdpTransport(String address, int port, List<String> peers) {
+        this.address = new InetSocketAddress(address, port);
+        if (this.address.isUnresolved())
+            throw new IllegalArgumentException("Invalid address '"+address+"'");
+        this.peers = new ArrayList<>();
+        for (String peer : peers) {
+            int colon = peer.lastIndexOf(':');
+            try {
+                this.peers.add((colon < 0) ?
+                        new InetSocketAddress(InetAddress.getLoopbackAddress(),
+                                Integer.parseInt(peer.trim())) :
+                        new InetSocketAddress(peer.substring(0, colon).trim(),
+                                Integer.parseInt(peer.substring(colon+1).trim())));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid peer address '"+peer+"'");
+            }
+        }
+        this.peerSet = new HashSet<>(this.peers);
+    }
+    
+    @Override
+    public void open(Consumer<byte[]> receiver) throws IOException {
+        socket = new DatagramSocket(address);
+        final DatagramSocket socket = this.socket;
+        listener = new Thread(() -> {
+            DatagramPacket packet = new DatagramPacket(
+                    new byte[MAX_MESSAGE_SIZE], MAX_MESSAGE_SIZE);
+            while (!socket.isClosed()) {
+                try {
+                    packet.setLength(MAX_MESSAGE_SIZE);
+                    socket.receive(packet);
+                    // Not from a peer?
+                    if (!peerSet.contains(packet.getSocketAddress())) continue;
+                    int offset = packet.getOffset();
+                    receiver.accept(Arrays.copyOfRange(
+                            packet.getData(), offset, offset+packet.getLength()));
+                } catch (IOException e) {
+                    if (!socket.isClosed())
+                        DBManager.logWarning("Failed to receive invalidation:\n"+e.toString());
+                }
+            }
+        }, "Wormhole-Invalidation");
+        listener.setDaemon(true);
+        listener.start();
+    }
+    
+    @Override
+    public void send(byte[] message) {
+        for (InetSocketAddress peer : peers) {
+            try {
+                socket.send(new DatagramPacket(message, message.length, peer));
+            } catch (IOException e) {
+                DBManager.logWarning("Failed to send invalidation to "+peer+":\n"+e.toString());
+            }
+        }
+    }
+    
+    @Override
+    public void close() {
+        if (socket != null) socket.close();
+        if (listener != null) listener.interrupt();
+    }
+}
\ No newline at end of file
@@ -0,0 +1,228 @@
+package info.saltyhash.wormhole.persistence;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs a multi-step operation on records, such as "look up the owner, make sure the name is
+ * free, then save the jump", as one unit of work: in a single transaction on the calling
+ * thread's connection, committed once at the end, or rolled back if the work fails.
+ * Record reads and writes made by the work join the transaction.  If the connection is
+ * already in a transaction opened by someone else (e.g. an import), the work runs in a
+ * savepoint of it instead, and committing or rolling back the transaction is left to its
+ * owner.
+ *
+ * Jump updates are checked against the version the jump was loaded with (optimistic
+ * concurrency), so a jump changed by someone else in the meantime is not overwritten;
+ * the unit of work fails with {@link Outcome#CONFLICT} instead.  A write that would break
+ * a unique key fails with {@link Outcome#DUPLICATE}.  Both are reported to the caller
+ * rather than logged as errors.
+ *
+ * Cache updates, events and change log entries of the writes are deferred until the work
+ * is committed, and dropped if it is rolled back, as are the IDs and versions the writes
+ * gave the records saved.  With the memory-resident store, the work runs while holding the
+ * store's lock, so no other write interleaves with it, but writes made before a failure
+ * are not undone, and neither are the IDs and versions, though events and change log
+ * entries are dropped as if rolled back.  Work should therefore make its writes last.
+ */
+public final class UnitOfWork {
+    /** How a unit of work ended. */
+    public enum Outcome {
+        COMMITTED,      // All changes were committed
+        ROLLED_BACK,    // The work returned false
+        CONFLICT,       // A record was changed by someone else since it was loaded
+        DUPLICATE,      // A write would have broken a unique key
+        ERROR           // Database error; logged
+    }
+    
+    /** A multi-step operation on records. */
+    public interface Work {
+        /**
+         * Runs the operation.  A step that fails should throw, so that the failure is
+         * classified (or logged as an error) rather than taken for a deliberate roll back.
+         * @return true to commit; false to roll back.
+         */
+        boolean run() throws SQLException;
+    }
+    
+    // SQLite result codes
+    private static final int SQLITE_BUSY       = 5;
+    private static final int SQLITE_CONSTRAINT = 19;
+    
+    /** Unit of work running on each thread, if any. */
+    private static final ThreadLocal<UnitOfWork> current = new ThreadLocal<>();
+    
+    /** Why a step of the work failed, or null if none has. */
+    private Outcome failure = null;
+    /** Actions to run once the work is committed; see {@link #afterCommit(Runnable)}. */
+    private final List<Runnable> afterCommit = new ArrayList<>();
+    /** Actions to run if the work is rolled back; see {@link #afterRollback(Runnable)}. */
+    private final List<Runnable> afterRollback = new ArrayList<>();
+    
+    private UnitOfWork() {}
+    
+    /**
+     * Runs the work as one unit; see {@link UnitOfWork}.  Work run from within another unit
+     * of work joins it, and failing fails the other unit too.  Logs errors.
+     * @return How the unit of work ended.
+     */
+    public static Outcome run(Work work) {
+        // Already in a unit of work?  Join it.
+        UnitOfWork outer = current.get();
+        if (outer != null) {
+            try {
+                if (work.run() && outer.failure == null) return Outcome.COMMITTED;
+            } catch (SQLException e) {
+                failed(e, outer);
+            }
+            // The joined work cannot be rolled back alone; roll back the other unit with it
+            if (outer.failure == null) outer.failure = Outcome.ROLLED_BACK;
+            return outer.failure;
+        }
+        
+        // Memory-resident store?  Hold its lock instead of a transaction.
+        if (MemoryStore.isEnabled()) {
+            UnitOfWork unitOfWork = new UnitOfWork();
+            boolean succeeded = false;
+            current.set(unitOfWork);
+            try {
+                synchronized (MemoryStore.class) {
+                    succeeded = work.run() && unitOfWork.failure == null;
+                }
+            } catch (SQLException e) {
+                failed(e, unitOfWork);
+            } finally {
+                current.remove();
+            }
+            if (succeeded) {
+                unitOfWork.committed();
+                return Outcome.COMMITTED;
+            }
+            // Writes made are kept even though the work failed, but not reported
+            return (unitOfWork.failure != null) ? unitOfWork.failure : Outcome.ROLLED_BACK;
+        }
+        
+        // Get database connection
+        Connection conn = DBManager.getConnection();
+        if (conn == null) return Outcome.ERROR;
+        
+        UnitOfWork unitOfWork = new UnitOfWork();
+        boolean autoCommit = true;
+        boolean committed  = false;
+        Savepoint savepoint = null;
+        try {
+            // Already in a transaction opened by someone else?  Run in a savepoint of it.
+            autoCommit = conn.getAutoCommit();
+            if (!autoCommit) savepoint = conn.setSavepoint();
+            else             conn.setAutoCommit(false);
+            current.set(unitOfWork);
+            
+            // Run the work, and commit it if it succeeded
+            if (work.run() && unitOfWork.failure == null) {
+                if (savepoint != null) conn.releaseSavepoint(savepoint);
+                else                   conn.commit();
+                committed = true;
+            }
+        } catch (SQLException e) {
+            failed(e, unitOfWork);
+        } finally {
+            current.remove();
+        }
+        
+        try {
+            // Roll back, unless committed
+            if (!committed) {
+                if (savepoint != null) {
+                    conn.rollback(savepoint);
+                    conn.releaseSavepoint(savepoint);
+                } else {
+                    conn.rollback();
+                }
+            }
+        } catch (SQLException e) {
+            DBManager.logSevere("Failed to roll back changes");
+        } finally {
+            // Reset connection autocommit to previous value
+            try {
+                conn.setAutoCommit(autoCommit);
+            } catch (SQLException e) {
+                DBManager.logWarning("Failed to set database autocommit to "+autoCommit);
+            }
+        }
+        if (committed) {
+            unitOfWork.committed();
+            return Outcome.COMMITTED;
+        }
+        unitOfWork.rolledBack();
+        return (unitOfWork.failure != null) ? unitOfWork.failure : Outcome.ROLLED_BACK;
+    }
+    
+    /**
+     * Runs the action once the current unit of work is committed, and drops it if the work
+     * is rolled back, or runs it now if there is no unit of work.  Used to fire events only
+     * for changes that are kept.
+     */
+    static void afterCommit(Runnable action) {
+        UnitOfWork unitOfWork = current.get();
+        if (unitOfWork != null) unitOfWork.afterCommit.add(action);
+        else                    action.run();
+    }
+    
+    /**
+     * Runs the action if the current unit of work is rolled back, and drops it once the work
+     * is committed; does nothing if there is no unit of work.  Used to undo changes the
+     * writes made to the records saved (e.g. their versions), so they can be saved again.
+     * Not run with the memory-resident store, which keeps the writes of failed work.
+     */
+    static void afterRollback(Runnable action) {
+        UnitOfWork unitOfWork = current.get();
+        if (unitOfWork != null) unitOfWork.afterRollback.add(action);
+    }
+    
+    private void committed() {
+        afterRollback.clear();
+        for (Runnable action : afterCommit) action.run();
+        afterCommit.clear();
+    }
+    
+    /** Undoes the changes to the records saved, latest first, and drops the other actions. */
+    private void rolledBack() {
+        afterCommit.clear();
+        for (int i = afterRollback.size()-1; i >= 0; i--) afterRollback.get(i).run();
+        afterRollback.clear();
+    }
+    
+    /** Records the exception thrown by the work, logging it if it is an error. */
+    private static void failed(SQLException e, UnitOfWork unitOfWork) {
+        failed(e);
+        if (unitOfWork.failure == Outcome.ERROR)
+            DBManager.logSevere("Failed to run unit of work:\n"+e.toString());
+    }
+    
+    /**
+     * Records the failure of a step of the current unit of work, if any.
+     * @return true if the failure is expected in a unit of work (a conflict or duplicate)
+     *         and so should be reported to its caller rather than logged.
+     */
+    static boolean failed(Outcome failure) {
+        UnitOfWork unitOfWork = current.get();
+        if (unitOfWork == null) return false;
+        if (unitOfWork.failure == null) unitOfWork.failure = failure;
+        return failure != Outcome.ERROR;
+    }
+    
+    /**
+     * Records the failure of a step of the current unit of work, if any, classifying the
+     * exception; see {@link #failed(Outcome)}.
+     */
+    static boolean failed(SQLException e) {
+        int code = e.getErrorCode() & 0xff;  // Primary result code
+        if (code == SQLITE_CONSTRAINT && String.valueOf(e.getMessage()).contains("UNIQUE"))
+            return failed(Outcome.DUPLICATE);
+        if (code == SQLITE_BUSY) return failed(Outcome.CONFLICT);
+        return failed(Outcome.ERROR);
+    }
+}
\ No newline at end of file